@@ -0,0 +1,63 @@
+package fr.redfroggy.sample.derivation.benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+
+/**
+ * Check that the buffer APIs do not allocate once compiled: runs the into-buffer benchmarks with the GC profiler
+ * and fails if a benchmark allocates more than {@link #MAX_BYTES_PER_OPERATION} per call.
+ * <p>
+ * The measure is taken after the JMH warm-up, in a forked JVM, so it does not depend on when the JIT compiles
+ * the calls (unlike a threshold on the allocated bytes of a unit test).
+ */
+public class AllocationCheck {
+
+    /**
+     * Benchmarks of the allocation-free APIs
+     */
+    public static final String BENCHMARKS = DiversificationBenchmark.class.getName() + ".diversify(Into|Handle)$";
+
+    /**
+     * Tolerance for the allocations of the benchmark loop itself, in bytes per call
+     */
+    public static final double MAX_BYTES_PER_OPERATION = 1;
+
+    /**
+     * Main method, exits with status 1 if a benchmark allocates
+     *
+     * @param args Optional cipher provider (default JCE)
+     * @throws RunnerException
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(BENCHMARKS)
+                .mode(Mode.AverageTime)
+                .param("cipherProvider", args.length > 0 ? args[0] : "JCE")
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        boolean allocating = false;
+        for (RunResult result : new Runner(options).run()) {
+            String benchmark = result.getParams().getBenchmark() + " " + result.getParams().getParam("standard");
+            for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+                if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                    double bytes = secondary.getValue().getScore();
+                    System.out.printf("%s: %.1f B/op%n", benchmark, bytes);
+                    allocating |= bytes > MAX_BYTES_PER_OPERATION;
+                }
+            }
+        }
+        if (allocating) {
+            System.err.println("Allocation in an allocation-free API");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package fr.redfroggy.sample.derivation.benchmarks;
+
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the bytes primitives used by the diversification, on one AES block
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BytesUtilsBenchmark {
+
+    private final byte[] block1 = BytesUtils.hexToBytes("FDE4FBAE4A09E020EFF722969F83832B");
+
+    private final byte[] block2 = BytesUtils.hexToBytes("FBC9F75C9413C041DFEE452D3F0706D1");
+
+    private final byte[] sequence = BytesUtils.hexToBytes("0104782E21801D803042F54E58502041627580");
+
+    private final String hexadecimal = "FD E4 FB AE 4A 09 E0 20 EF F7 22 96 9F 83 83 2B";
+
+    private final byte[] output = new byte[32];
+
+    @Benchmark
+    public byte[] shiftLeft() {
+        return BytesUtils.shiftLeft(block1);
+    }
+
+    @Benchmark
+    public byte[] xor() {
+        return BytesUtils.xor(block1, block2);
+    }
+
+    @Benchmark
+    public byte[] pad() {
+        return BytesUtils.pad(sequence, 32);
+    }
+
+    @Benchmark
+    public byte[] shiftLeftInPlace() {
+        BytesUtils.shiftLeft(block1, 0, block1.length, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] xorInPlace() {
+        BytesUtils.xor(block1, 0, block2, 0, output, 0, block1.length);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] padInPlace() {
+        System.arraycopy(sequence, 0, output, 0, sequence.length);
+        BytesUtils.pad(output, 0, sequence.length, 32);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] reverseInPlace() {
+        BytesUtils.reverse(block1, 0, block1.length, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return BytesUtils.bytesToHex(block1);
+    }
+
+    @Benchmark
+    public byte[] hexToBytes() {
+        return BytesUtils.hexToBytes(hexadecimal);
+    }
+}
@@ -0,0 +1,121 @@
+package fr.redfroggy.sample.derivation.benchmarks;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.CipherSelector;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyContextCache;
+import fr.redfroggy.sample.derivation.services.KeyHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread throughput and latency of each diversification standard
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+@State(Scope.Thread)
+public class DiversificationBenchmark {
+
+    /**
+     * Number of UIDs of a batch
+     */
+    public static final int BATCH_SIZE = 1024;
+
+    @Param({"AN10922_AES128", "AN10922_AES192", "AN0148_DES", "AN0148_3DES", "AN0148_AES"})
+    public String standard;
+
+    @Param({"AUTO", "JCE", "JAVA"})
+    public String cipherProvider;
+
+    private DiversificationStandard div;
+
+    private byte[] key;
+
+    private KeyHandle keyHandle;
+
+    private byte[] uid;
+
+    private byte[] aid;
+
+    private byte[] systemIdentifier;
+
+    private byte[] uids;
+
+    private byte[] output;
+
+    private byte[] batchOutput;
+
+    @Setup
+    public void setUp() throws DiversificationException {
+        AbstractDiversification.Standard std = AbstractDiversification.Standard.valueOf(standard);
+        div = new DiversificationStandard(std, KeyContextCache.DEFAULT_MAXIMUM_SIZE, CipherSelector.forName(cipherProvider, std.getAlgorithm()));
+        key = Vectors.key(std);
+        uid = Vectors.uid();
+        aid = Vectors.aid(std);
+        systemIdentifier = Vectors.systemIdentifier(std);
+        uids = Vectors.uids(BATCH_SIZE);
+        output = new byte[div.getDiversifiedKeyLength(key.length)];
+        batchOutput = new byte[BATCH_SIZE * output.length];
+        keyHandle = div.open(key, 0, key.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        keyHandle.close();
+    }
+
+    /**
+     * One card, array API
+     */
+    @Benchmark
+    public byte[] diversify() throws DiversificationException {
+        return div.diversify(key, Vectors.KEY_INDEX, uid, aid, systemIdentifier);
+    }
+
+    /**
+     * One card, into a caller buffer
+     */
+    @Benchmark
+    public byte[] diversifyInto() throws DiversificationException {
+        div.diversify(key, 0, key.length, Vectors.KEY_INDEX, uid, 0, uid.length, aid, 0, aid.length,
+                systemIdentifier, 0, systemIdentifier.length, output, 0);
+        return output;
+    }
+
+    /**
+     * One card, into a caller buffer, with an opened master key
+     */
+    @Benchmark
+    public byte[] diversifyHandle() throws DiversificationException {
+        div.diversify(keyHandle, Vectors.KEY_INDEX, uid, 0, uid.length, aid, 0, aid.length,
+                systemIdentifier, 0, systemIdentifier.length, output, 0);
+        return output;
+    }
+
+    /**
+     * Batch of cards, time per card
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public byte[] diversifyBatch() throws DiversificationException {
+        div.diversifyBatch(key, Vectors.KEY_INDEX, uids, 0, 7, BATCH_SIZE, aid, systemIdentifier, batchOutput, 0);
+        return batchOutput;
+    }
+}
@@ -0,0 +1,92 @@
+package fr.redfroggy.sample.derivation.benchmarks;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of one diversification process shared by several threads
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlogback.configurationFile=logback-benchmarks.xml")
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+
+    @Param({"AN10922_AES128", "AN0148_3DES", "AN0148_AES"})
+    public String standard;
+
+    private DiversificationStandard div;
+
+    private byte[] key;
+
+    private byte[] aid;
+
+    private byte[] systemIdentifier;
+
+    /**
+     * Buffers of a benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class ThreadBuffers {
+
+        private final byte[] uid = Vectors.uid();
+
+        private final byte[] output = new byte[32];
+    }
+
+    @Setup
+    public void setUp() throws DiversificationException {
+        AbstractDiversification.Standard std = AbstractDiversification.Standard.valueOf(standard);
+        div = new DiversificationStandard(std);
+        key = Vectors.key(std);
+        aid = Vectors.aid(std);
+        systemIdentifier = Vectors.systemIdentifier(std);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] threads01(ThreadBuffers buffers) throws DiversificationException {
+        return diversify(buffers);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public byte[] threads02(ThreadBuffers buffers) throws DiversificationException {
+        return diversify(buffers);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] threads04(ThreadBuffers buffers) throws DiversificationException {
+        return diversify(buffers);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] threadsMax(ThreadBuffers buffers) throws DiversificationException {
+        return diversify(buffers);
+    }
+
+    private byte[] diversify(ThreadBuffers buffers) throws DiversificationException {
+        div.diversify(key, 0, key.length, Vectors.KEY_INDEX, buffers.uid, 0, buffers.uid.length, aid, 0, aid.length,
+                systemIdentifier, 0, systemIdentifier.length, buffers.output, 0);
+        return buffers.output;
+    }
+}
@@ -0,0 +1,87 @@
+package fr.redfroggy.sample.derivation.benchmarks;
+
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+/**
+ * Inputs of the benchmarks, taken from the NXP and HID examples
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public abstract class Vectors {
+
+    /**
+     * Key index used by AN0148 standards
+     */
+    public static final int KEY_INDEX = 1;
+
+    /**
+     * Return the master key of a standard
+     *
+     * @param standard Diversification standard
+     * @return Master key
+     */
+    public static byte[] key(AbstractDiversification.Standard standard) {
+        switch (standard) {
+            case AN10922_AES128:
+                return BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+            case AN10922_AES192:
+                return BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF0102030405060708");
+            case AN0148_DES:
+                return BytesUtils.hexToBytes("0123456789ABCDEF");
+            default:
+                return BytesUtils.hexToBytes("0123456789ABCDEFFEDCBA9876543210");
+        }
+    }
+
+    /**
+     * Return a card UID
+     *
+     * @return UID
+     */
+    public static byte[] uid() {
+        return BytesUtils.hexToBytes("04782E21801D80");
+    }
+
+    /**
+     * Return the application ID of a standard
+     *
+     * @param standard Diversification standard
+     * @return Application ID, empty for AN0148
+     */
+    public static byte[] aid(AbstractDiversification.Standard standard) {
+        return isAN10922(standard) ? BytesUtils.hexToBytes("F54230") : new byte[0];
+    }
+
+    /**
+     * Return the system identifier of a standard
+     *
+     * @param standard Diversification standard
+     * @return System identifier, empty for AN0148
+     */
+    public static byte[] systemIdentifier(AbstractDiversification.Standard standard) {
+        return isAN10922(standard) ? BytesUtils.hexToBytes("4E585020416275") : new byte[0];
+    }
+
+    /**
+     * Return contiguous UIDs of a batch
+     *
+     * @param count Number of UIDs
+     * @return UIDs of 7 bytes
+     */
+    public static byte[] uids(int count) {
+        byte[] uids = new byte[7 * count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(uid(), 0, uids, 7 * i, 7);
+            uids[7 * i + 5] = (byte) (i >> 8);
+            uids[7 * i + 6] = (byte) i;
+        }
+        return uids;
+    }
+
+    private static boolean isAN10922(AbstractDiversification.Standard standard) {
+        return AbstractDiversification.Standard.AN10922_AES128.equals(standard)
+                || AbstractDiversification.Standard.AN10922_AES192.equals(standard);
+    }
+}
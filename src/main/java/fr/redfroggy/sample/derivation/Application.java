@@ -1,7 +1,10 @@
 package fr.redfroggy.sample.derivation;
 
+import fr.redfroggy.sample.derivation.configuration.Mode;
 import fr.redfroggy.sample.derivation.configuration.Settings;
 import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.load.LoadGenerator;
+import fr.redfroggy.sample.derivation.services.BulkDiversification;
 import fr.redfroggy.sample.derivation.services.DiversificationStandard;
 import fr.redfroggy.sample.derivation.utils.BytesUtils;
 import lombok.extern.slf4j.Slf4j;
@@ -10,8 +13,13 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
 
 import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 
 /**
  * Application
@@ -29,6 +37,28 @@ public class Application {
 
     @PostConstruct
     protected void run() {
+        switch (Mode.valueOf(settings.getMode())) {
+            case BULK:
+                runBulk();
+                break;
+            case VERIFY:
+                runVerify();
+                break;
+            case LOAD:
+                runLoad();
+                break;
+            case SERVER:
+                log.info("Serving diversification requests ({})", settings.getStandard());
+                break;
+            default:
+                runSingle();
+        }
+    }
+
+    /**
+     * Diversify one key and print it
+     */
+    protected void runSingle() {
         try {
             byte[] divK = div.diversify(
                     BytesUtils.hexToBytes(settings.getKey()),
@@ -44,6 +74,104 @@ public class Application {
         }
     }
 
+    /**
+     * Diversify a key for every UID of the input file, or of the range when a start UID is set
+     */
+    protected void runBulk() {
+        try {
+            BulkDiversification bulk = new BulkDiversification(div, settings.getUidLength(), settings.getBatchSize(), settings.getThreads());
+            byte[] key = BytesUtils.hexToBytes(settings.getKey());
+            byte[] aid = settings.getAid() != null ? BytesUtils.hexToBytes(settings.getAid()) : null;
+            byte[] systemIdentifier = settings.getSystemIdentifier() != null
+                    ? BytesUtils.hexToBytes(settings.getSystemIdentifier()) : null;
+
+            long start = System.nanoTime();
+            long count;
+            if (settings.getStart() != null) {
+                count = bulk.diversifyRange(key, settings.getKeyIndex(), aid, systemIdentifier,
+                        BytesUtils.hexToBytes(settings.getStart()), settings.getCount(), settings.getStep(),
+                        Paths.get(settings.getOutput()),
+                        BulkDiversification.Format.valueOf(settings.getOutputFormat()));
+            } else {
+                count = bulk.diversify(key, settings.getKeyIndex(), aid, systemIdentifier,
+                        Paths.get(settings.getInput()),
+                        BulkDiversification.Format.valueOf(settings.getInputFormat()),
+                        Paths.get(settings.getOutput()),
+                        BulkDiversification.Format.valueOf(settings.getOutputFormat()));
+            }
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println(String.format("Diversified keys: %d in %.3f s (%.0f keys/s)",
+                    count, elapsed / 1e9, count * 1e9 / Math.max(elapsed, 1)));
+        } catch (DiversificationException e) {
+            System.out.println("Diversification error : " + e.getMessage());
+            log.error("Diversification error", e);
+        }
+    }
+
+    /**
+     * Check the expected keys of the input file, the mismatches are written to the output file if set
+     */
+    protected void runVerify() {
+        try {
+            BulkDiversification bulk = new BulkDiversification(div, settings.getUidLength(), settings.getBatchSize(), settings.getThreads());
+
+            BulkDiversification.Verification verification = bulk.verify(
+                    BytesUtils.hexToBytes(settings.getKey()),
+                    settings.getKeyIndex(),
+                    settings.getAid() != null ? BytesUtils.hexToBytes(settings.getAid()) : null,
+                    settings.getSystemIdentifier() != null ? BytesUtils.hexToBytes(settings.getSystemIdentifier()) : null,
+                    Paths.get(settings.getInput()),
+                    BulkDiversification.Format.valueOf(settings.getInputFormat()),
+                    settings.getOutput() != null ? Paths.get(settings.getOutput()) : null);
+
+            System.out.println(String.format("Verified keys: %d, mismatches: %d in %.3f s (%.0f keys/s)",
+                    verification.getCount(), verification.getMismatches(), verification.getElapsed() / 1e9,
+                    verification.getThroughput()));
+        } catch (DiversificationException e) {
+            System.out.println("Verification error : " + e.getMessage());
+            log.error("Verification error", e);
+        }
+    }
+
+    /**
+     * Send requests to the process or to a server, print the throughput and latencies and save them if an output is set
+     */
+    protected void runLoad() {
+        try {
+            byte[] systemIdentifier = settings.getSystemIdentifier() != null
+                    ? BytesUtils.hexToBytes(settings.getSystemIdentifier()) : null;
+            LoadGenerator.Target target;
+            switch (settings.getLoadTarget()) {
+                case "HTTP":
+                    target = new LoadGenerator.HttpTarget(settings.getLoadUrl(), div.getStandard(),
+                            settings.getKeyIndex(), systemIdentifier);
+                    break;
+                case "TCP":
+                    if (settings.getTcpPort() == null) {
+                        throw new DiversificationException("Cannot load a TCP server without tcpPort");
+                    }
+                    target = new LoadGenerator.TcpTarget(new InetSocketAddress(settings.getLoadHost(), settings.getTcpPort()),
+                            div.getStandard(), 0, settings.getKeyIndex(), systemIdentifier);
+                    break;
+                default:
+                    target = new LoadGenerator.ProcessTarget(div, BytesUtils.hexToBytes(settings.getKey()),
+                            settings.getKeyIndex(), systemIdentifier);
+            }
+
+            LoadGenerator generator = new LoadGenerator(div.getStandard(), settings.getUidLength(),
+                    settings.getLoadClients(), settings.getLoadRate());
+            LoadGenerator.Report report = generator.run(target, settings.getLoadWarmup(), settings.getLoadDuration());
+            System.out.println(report);
+            if (settings.getOutput() != null) {
+                report.write(Paths.get(settings.getOutput()));
+            }
+        } catch (DiversificationException | IOException e) {
+            System.out.println("Load test error : " + e.getMessage());
+            log.error("Load test error", e);
+        }
+    }
+
     /**
      * Main client method
      *
@@ -52,11 +180,26 @@ public class Application {
      */
     public static void main(String[] args) throws Exception {
         Application.log.info("Application is running");
+        Mode mode = getMode(args);
         SpringApplication app = new SpringApplication(Application.class);
-        app.setWebEnvironment(false);
+        app.setWebEnvironment(mode == Mode.SERVER);
         ConfigurableApplicationContext ctx = app.run(args);
-        SpringApplication.exit(ctx);
-        Application.log.info("Application stopped");
+        if (mode != Mode.SERVER) {
+            SpringApplication.exit(ctx);
+            Application.log.info("Application stopped");
+        }
+    }
+
+    /**
+     * Read the run mode before the context is created, from command args, system properties or environment
+     *
+     * @param args Command args
+     * @return Run mode
+     */
+    protected static Mode getMode(String[] args) {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+        return Mode.valueOf(environment.getProperty("mode", Mode.SINGLE.name()));
     }
 
 }
@@ -0,0 +1,224 @@
+package fr.redfroggy.sample.derivation;
+
+import fr.redfroggy.sample.derivation.configuration.Settings;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.CipherSelector;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyContextCache;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry point diversifying keys without Spring, for the scripts starting the application for each key.
+ * <p>
+ * The options are those of the SINGLE mode (standard, uid, aid, key, keyIndex, systemIdentifier, cipherProvider),
+ * given as system properties or as --name=value arguments. The diversification process of a standard is only created
+ * when a key is diversified, with the JCE ciphers by default. Scripts may choose the Java ciphers (cipherProvider=JAVA)
+ * for a faster startup with DES keys, see {@link fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider}
+ * for their timing side channel.
+ * <p>
+ * With --stdin, the JVM stays alive and diversifies a key for each line of the standard input: a line holds
+ * name=value options separated by spaces, overriding those of the command line, and one line is printed for it.
+ */
+public class Launcher {
+
+    /**
+     * Options of a diversification
+     */
+    protected static final List<String> OPTIONS = Arrays.asList("standard", "uid", "aid", "key", "keyIndex",
+            "systemIdentifier", "cipherProvider");
+
+    /**
+     * Option reading the requests from the standard input
+     */
+    protected static final String STDIN = "--stdin";
+
+    /**
+     * Diversification processes created so far, by standard and cipher provider
+     */
+    protected final Map<String, DiversificationStandard> processes = new HashMap<>();
+
+    /**
+     * Diversify one key, or a key per line of the standard input with --stdin
+     *
+     * @param args Command args
+     * @throws IOException If the standard input cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        int status = run(args, new BufferedReader(new InputStreamReader(System.in, "UTF-8")), System.out);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Run the launcher
+     *
+     * @param args   Command args
+     * @param input  Requests, read with --stdin only
+     * @param output Diversified keys and errors
+     * @return Exit status: 0 on success, 1 if the single diversification failed, 2 for invalid command args
+     * @throws IOException If the input cannot be read
+     */
+    protected static int run(String[] args, BufferedReader input, PrintStream output) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("cipherProvider", "JCE");
+        for (String option : OPTIONS) {
+            String value = System.getProperty(option);
+            if (value != null) {
+                options.put(option, value);
+            }
+        }
+
+        boolean stdin = false;
+        try {
+            for (String arg : args) {
+                if (STDIN.equals(arg)) {
+                    stdin = true;
+                } else {
+                    parseOption(arg.startsWith("--") ? arg.substring(2) : arg, options);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            output.println("Invalid option : " + e.getMessage());
+            return 2;
+        }
+
+        Launcher launcher = new Launcher();
+        if (!stdin) {
+            return launcher.diversify(options, output) ? 0 : 1;
+        }
+
+        String line;
+        while ((line = input.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            Map<String, String> lineOptions = new HashMap<>(options);
+            try {
+                for (String option : line.split("\\s+")) {
+                    parseOption(option, lineOptions);
+                }
+            } catch (IllegalArgumentException e) {
+                output.println("Invalid option : " + e.getMessage());
+                continue;
+            }
+            launcher.diversify(lineOptions, output);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Diversify a key and print it
+     *
+     * @param options Options of the diversification
+     * @param output  Stream receiving the key or the error
+     * @return true if the key has been diversified
+     */
+    protected boolean diversify(Map<String, String> options, PrintStream output) {
+        try {
+            Settings settings = settings(options);
+            byte[] key = BytesUtils.hexToBytes(settings.getKey());
+            byte[] uid = BytesUtils.hexToBytes(settings.getUid());
+            byte[] aid = settings.getAid() != null ? BytesUtils.hexToBytes(settings.getAid()) : new byte[0];
+            byte[] systemIdentifier = settings.getSystemIdentifier() != null
+                    ? BytesUtils.hexToBytes(settings.getSystemIdentifier()) : new byte[0];
+
+            DiversificationStandard div = process(settings.getStandard(), settings.getCipherProvider());
+            byte[] divKey = new byte[div.getDiversifiedKeyLength(key.length)];
+            div.diversify(key, 0, key.length, settings.getKeyIndex(), uid, 0, uid.length, aid, 0, aid.length,
+                    systemIdentifier, 0, systemIdentifier.length, divKey, 0);
+
+            output.println("Diversified key: " + BytesUtils.bytesToHex(divKey));
+            return true;
+        } catch (DiversificationException | IllegalArgumentException e) {
+            output.println("Diversification error : " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Return the diversification process of a standard, created on first use
+     *
+     * @param standard       Standard name
+     * @param cipherProvider Cipher provider name
+     * @return Diversification process
+     * @throws DiversificationException If the process cannot be created
+     */
+    protected DiversificationStandard process(String standard, String cipherProvider) throws DiversificationException {
+        String name = standard + "/" + cipherProvider;
+        DiversificationStandard div = processes.get(name);
+        if (div == null) {
+            AbstractDiversification.Standard value = AbstractDiversification.Standard.valueOf(standard);
+            div = new DiversificationStandard(value, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                    CipherSelector.forName(cipherProvider, value.getAlgorithm()));
+            processes.put(name, div);
+        }
+
+        return div;
+    }
+
+    /**
+     * Build the settings of a diversification, the missing options taking the defaults of the application
+     *
+     * @param options Options
+     * @return Settings
+     */
+    protected static Settings settings(Map<String, String> options) {
+        Settings settings = new Settings();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String value = option.getValue();
+            switch (option.getKey()) {
+                case "standard":
+                    settings.setStandard(value);
+                    break;
+                case "uid":
+                    settings.setUid(value);
+                    break;
+                case "aid":
+                    settings.setAid(value);
+                    break;
+                case "key":
+                    settings.setKey(value);
+                    break;
+                case "keyIndex":
+                    settings.setKeyIndex(Integer.parseInt(value));
+                    break;
+                case "systemIdentifier":
+                    settings.setSystemIdentifier(value);
+                    break;
+                default:
+                    settings.setCipherProvider(value);
+            }
+        }
+
+        return settings;
+    }
+
+    /**
+     * Parse a name=value option
+     *
+     * @param option  Option
+     * @param options Options receiving the value
+     * @throws IllegalArgumentException If the option is unknown or has no value
+     */
+    protected static void parseOption(String option, Map<String, String> options) {
+        int separator = option.indexOf('=');
+        if (separator < 0 || !OPTIONS.contains(option.substring(0, separator))) {
+            throw new IllegalArgumentException(option);
+        }
+        options.put(option.substring(0, separator), option.substring(separator + 1));
+    }
+}
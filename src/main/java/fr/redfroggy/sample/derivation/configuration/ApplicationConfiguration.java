@@ -1,8 +1,16 @@
 package fr.redfroggy.sample.derivation.configuration;
 
 import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.metrics.MetricsRegistry;
+import fr.redfroggy.sample.derivation.services.AsyncDiversification;
+import fr.redfroggy.sample.derivation.services.CipherSelector;
+import fr.redfroggy.sample.derivation.services.DerivedKeyCache;
+import fr.redfroggy.sample.derivation.services.DiversificationCoalescer;
 import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyContextCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -23,6 +31,52 @@ public class ApplicationConfiguration {
      */
     @Bean
     public DiversificationStandard getDiversificationStandard() throws DiversificationException {
-        return new DiversificationStandard(DiversificationStandard.Standard.valueOf(settings.getStandard()));
+        DiversificationStandard div = new DiversificationStandard(DiversificationStandard.Standard.valueOf(settings.getStandard()),
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, CipherSelector.forName(settings.getCipherProvider(),
+                DiversificationStandard.Standard.valueOf(settings.getStandard()).getAlgorithm()));
+        if (settings.getDerivedKeyCacheSize() > 0) {
+            div.setDerivedKeyCache(new DerivedKeyCache(settings.getDerivedKeyCacheSize(), settings.getDerivedKeyCacheExpiration()));
+        }
+        return div;
+    }
+
+    /**
+     * Create the asynchronous facade of the diversification service, running the batches of the HTTP endpoints
+     * (SERVER mode). Its threads are started on first use.
+     *
+     * @param div Diversification service
+     * @return Asynchronous diversification service
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "mode", havingValue = "SERVER")
+    public AsyncDiversification getAsyncDiversification(DiversificationStandard div) {
+        return new AsyncDiversification(div, settings.getThreads(), settings.getAsyncQueueSize(),
+                AsyncDiversification.RejectionPolicy.valueOf(settings.getAsyncRejectionPolicy()));
+    }
+
+    /**
+     * Create the coalescer of the concurrent single-card requests, only when a window is set
+     *
+     * @param div Diversification service
+     * @return Coalescer
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("${coalesceWindow:0} > 0")
+    public DiversificationCoalescer getDiversificationCoalescer(DiversificationStandard div) {
+        return new DiversificationCoalescer(div, settings.getThreads(), settings.getCoalesceMaxBatchSize(),
+                settings.getCoalesceWindow());
+    }
+
+    /**
+     * Create the metrics registry, publishing the metrics of the diversification service in JMX
+     *
+     * @param div Diversification service
+     * @return Metrics registry
+     */
+    @Bean(destroyMethod = "close")
+    public MetricsRegistry getMetricsRegistry(DiversificationStandard div) {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.register(div.getMetrics());
+        return registry;
     }
 }
@@ -0,0 +1,32 @@
+package fr.redfroggy.sample.derivation.configuration;
+
+/**
+ * Run modes of the application
+ */
+public enum Mode {
+
+    /**
+     * Diversify one key and print it
+     */
+    SINGLE,
+
+    /**
+     * Diversify a key for every UID of a file or of a range
+     */
+    BULK,
+
+    /**
+     * Check the expected keys of a file of UIDs and keys
+     */
+    VERIFY,
+
+    /**
+     * Serve diversification requests over HTTP
+     */
+    SERVER,
+
+    /**
+     * Send diversification requests to the process or to a server and measure their latency
+     */
+    LOAD
+}
@@ -5,6 +5,8 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Settings
@@ -14,6 +16,13 @@ import javax.validation.constraints.NotNull;
 @Data
 public class Settings {
 
+    /**
+     * Run mode: SINGLE | BULK | VERIFY | SERVER | LOAD
+     * default: SINGLE
+     */
+    @NotNull
+    protected String mode = "SINGLE";
+
     /**
      * Derivation standard to use
      * default: AN10922_AES128
@@ -21,6 +30,13 @@ public class Settings {
     @NotNull
     protected String standard = "AN10922_AES128";
 
+    /**
+     * Block cipher implementation: JCE | JAVA | AUTO, AUTO taking the fastest correct one measured at startup
+     * default: JCE
+     */
+    @NotNull
+    protected String cipherProvider = "JCE";
+
     /**
      * Key to diversify
      * default: 00000000000000000000000000000000
@@ -53,4 +69,170 @@ public class Settings {
      */
     protected int keyIndex = 0;
 
+    /**
+     * File of UIDs (BULK mode), of UIDs and expected keys (VERIFY mode)
+     */
+    protected String input;
+
+    /**
+     * Format of the input file: HEX | BINARY (BULK and VERIFY modes)
+     * default: HEX
+     */
+    protected String inputFormat = "HEX";
+
+    /**
+     * First UID of a range, diversified instead of the input file (BULK mode only)
+     */
+    protected String start;
+
+    /**
+     * Number of UIDs of the range (BULK mode only)
+     * default: 1
+     */
+    protected long count = 1;
+
+    /**
+     * Difference between two UIDs of the range (BULK mode only)
+     * default: 1
+     */
+    protected long step = 1;
+
+    /**
+     * File receiving the diversified keys (BULK mode), the mismatches if set (VERIFY mode), the JSON report if set
+     * (LOAD mode)
+     */
+    protected String output;
+
+    /**
+     * Format of the keys file: HEX | BINARY (BULK mode only)
+     * default: HEX
+     */
+    protected String outputFormat = "HEX";
+
+    /**
+     * Length of the UIDs in bytes (BULK, VERIFY and LOAD modes)
+     * default: 7
+     */
+    protected int uidLength = 7;
+
+    /**
+     * Number of UIDs diversified together (BULK and VERIFY modes)
+     * default: 4096
+     */
+    protected int batchSize = 4096;
+
+    /**
+     * Number of diversified keys kept in cache for the cards presented again, 0 to disable the cache
+     * default: 0
+     */
+    protected int derivedKeyCacheSize = 0;
+
+    /**
+     * Time in milliseconds a diversified key is kept in cache, 0 for no expiration
+     * default: 600000
+     */
+    protected long derivedKeyCacheExpiration = 600000;
+
+    /**
+     * Number of diversification threads, 0 for one per processor (BULK, VERIFY and SERVER modes)
+     * default: 0
+     */
+    protected int threads = 0;
+
+    /**
+     * Maximum number of requests waiting for a thread of the asynchronous API
+     * default: 1024
+     */
+    protected int asyncQueueSize = 1024;
+
+    /**
+     * Behaviour of the asynchronous API when its queue is full: ABORT | CALLER_RUNS | BLOCK
+     * default: CALLER_RUNS
+     */
+    protected String asyncRejectionPolicy = "CALLER_RUNS";
+
+    /**
+     * Time a single-card HTTP request waits for concurrent requests to be diversified with, in microseconds,
+     * 0 to diversify each request alone (SERVER mode only)
+     * default: 0
+     */
+    protected long coalesceWindow = 0;
+
+    /**
+     * Maximum number of single-card HTTP requests diversified together (SERVER mode only)
+     * default: 64
+     */
+    protected int coalesceMaxBatchSize = 64;
+
+    /**
+     * Receiver of the requests: PROCESS | HTTP | TCP (LOAD mode only)
+     * default: PROCESS
+     */
+    protected String loadTarget = "PROCESS";
+
+    /**
+     * Base URL of the HTTP server (LOAD mode only)
+     * default: http://localhost:8080
+     */
+    protected String loadUrl = "http://localhost:8080";
+
+    /**
+     * Host of the binary protocol server, listening on tcpPort (LOAD mode only)
+     * default: localhost
+     */
+    protected String loadHost = "localhost";
+
+    /**
+     * Number of concurrent clients (LOAD mode only)
+     * default: 16
+     */
+    protected int loadClients = 16;
+
+    /**
+     * Requests per second of the open loop, 0 for a closed loop (LOAD mode only)
+     * default: 0
+     */
+    protected double loadRate = 0;
+
+    /**
+     * Duration of the warm-up in milliseconds, not measured (LOAD mode only)
+     * default: 2000
+     */
+    protected long loadWarmup = 2000;
+
+    /**
+     * Duration of the measure in milliseconds (LOAD mode only)
+     * default: 10000
+     */
+    protected long loadDuration = 10000;
+
+    /**
+     * Maximum number of UIDs of a batch request (SERVER mode only)
+     * default: 65536
+     */
+    protected int maxBatchSize = 65536;
+
+    /**
+     * Maximum number of requests of a keep-alive connection, -1 for unlimited (SERVER mode only)
+     * default: -1
+     */
+    protected int keepAliveRequests = -1;
+
+    /**
+     * Time in milliseconds a keep-alive connection waits for the next request (SERVER mode only)
+     * default: 60000
+     */
+    protected int keepAliveTimeout = 60000;
+
+    /**
+     * TCP port of the binary protocol server, not started if not set (SERVER mode only)
+     */
+    protected Integer tcpPort;
+
+    /**
+     * Additional master keys of the binary protocol server, referenced by handles 1 to n,
+     * handle 0 is the key (SERVER mode only)
+     */
+    protected List<String> keys = new ArrayList<>();
+
 }
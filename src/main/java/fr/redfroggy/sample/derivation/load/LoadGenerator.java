@@ -0,0 +1,535 @@
+package fr.redfroggy.sample.derivation.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.server.DiversificationClient;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyHandle;
+import fr.redfroggy.sample.derivation.utils.HexCodec;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator: diversification requests with random UIDs (and AIDs for AN10922) sent by concurrent clients
+ * to a {@link Target}, the process itself or a server.
+ * <ul>
+ * <li>Closed loop (rate 0): each client sends its next request when it gets the response of the previous one.</li>
+ * <li>Open loop: requests are scheduled at a fixed rate, shared by the clients. The latency of a request is measured
+ * from its scheduled time, so that a slow response also counts the delay of the requests waiting behind it.</li>
+ * </ul>
+ * Latencies are recorded in a histogram per client, merged at the end. Requests sent during the warm-up are not
+ * recorded.
+ */
+@Slf4j
+public class LoadGenerator {
+
+    /**
+     * Highest recorded latency, in nanoseconds
+     */
+    protected static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Precision of the latency histograms
+     */
+    protected static final int SIGNIFICANT_DIGITS = 3;
+
+    /**
+     * Length of the random AIDs (AN10922 only)
+     */
+    protected static final int AID_LENGTH = 3;
+
+    /**
+     * Standard of the requests
+     */
+    @Getter
+    protected final AbstractDiversification.Standard standard;
+
+    /**
+     * Length of the random UIDs
+     */
+    @Getter
+    protected final int uidLength;
+
+    /**
+     * Number of concurrent clients
+     */
+    @Getter
+    protected final int clients;
+
+    /**
+     * Requests per second of the open loop, 0 for a closed loop
+     */
+    @Getter
+    protected final double rate;
+
+    /**
+     * Create a load generator
+     *
+     * @param standard  Standard of the requests
+     * @param uidLength Length of the random UIDs
+     * @param clients   Number of concurrent clients
+     * @param rate      Requests per second of the open loop, 0 for a closed loop
+     */
+    public LoadGenerator(AbstractDiversification.Standard standard, int uidLength, int clients, double rate) {
+        if (clients <= 0 || rate < 0) {
+            throw new IllegalArgumentException("Invalid number of clients or rate");
+        }
+        this.standard = standard;
+        this.uidLength = uidLength;
+        this.clients = clients;
+        this.rate = rate;
+    }
+
+    /**
+     * Send requests to a target
+     *
+     * @param target   Target of the requests
+     * @param warmup   Duration of the warm-up, in milliseconds
+     * @param duration Duration of the measure, in milliseconds
+     * @return Report of the measure
+     * @throws DiversificationException If a client cannot connect or is interrupted
+     */
+    public Report run(final Target target, long warmup, long duration) throws DiversificationException {
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmup);
+        final long end = measureStart + TimeUnit.MILLISECONDS.toNanos(duration);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+
+        List<Runner> runners = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Runner runner = new Runner(target, i, start, measureStart, end, failure);
+            runner.thread.start();
+            runners.add(runner);
+        }
+
+        Histogram latencies = new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+        long errors = 0;
+        try {
+            for (Runner runner : runners) {
+                runner.thread.join();
+                latencies.add(runner.latencies);
+                errors += runner.errors;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Runner runner : runners) {
+                runner.thread.interrupt();
+            }
+            throw new DiversificationException("Load test interrupted", e);
+        }
+        if (failure.get() != null) {
+            throw new DiversificationException("Cannot run load test on " + target, failure.get());
+        }
+
+        return new Report(this, target.toString(), TimeUnit.NANOSECONDS.toMillis(end - measureStart), errors, latencies);
+    }
+
+    /**
+     * Write random inputs of a request of the standard: UID with the NXP manufacturer code, AID for AN10922
+     *
+     * @param random Random generator of the client
+     * @param uid    UID to write
+     * @param aid    AID to write, empty for AN0148
+     */
+    protected void randomize(Random random, byte[] uid, byte[] aid) {
+        random.nextBytes(uid);
+        uid[0] = 0x04;
+        random.nextBytes(aid);
+    }
+
+    /**
+     * Encode bytes in hexadecimal, without separator
+     *
+     * @param data Bytes
+     * @return Hexadecimal text
+     */
+    protected static String hex(byte[] data) {
+        byte[] text = new byte[2 * data.length];
+        HexCodec.encode(data, 0, data.length, text, 0);
+        return new String(text, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Client thread, sending its requests in turn
+     */
+    protected class Runner implements Runnable {
+
+        protected final Target target;
+
+        protected final int index;
+
+        protected final long start;
+
+        protected final long measureStart;
+
+        protected final long end;
+
+        protected final AtomicReference<Exception> failure;
+
+        protected final Histogram latencies = new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+
+        protected final Thread thread;
+
+        protected long errors;
+
+        protected Runner(Target target, int index, long start, long measureStart, long end,
+                         AtomicReference<Exception> failure) {
+            this.target = target;
+            this.index = index;
+            this.start = start;
+            this.measureStart = measureStart;
+            this.end = end;
+            this.failure = failure;
+            this.thread = new Thread(this, "load-client-" + index);
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(index);
+            byte[] uid = new byte[uidLength];
+            byte[] aid = new byte[standard.name().startsWith("AN10922") ? AID_LENGTH : 0];
+            // Each client sends one out of "clients" scheduled requests of the open loop
+            double interval = rate > 0 ? 1e9 * clients / rate : 0;
+            long request = 0;
+
+            try (Target.Client client = target.connect()) {
+                while (failure.get() == null && !Thread.currentThread().isInterrupted()) {
+                    long scheduled;
+                    if (rate > 0) {
+                        scheduled = start + (long) ((request + (double) index / clients) * interval);
+                        request++;
+                        if (scheduled >= end) {
+                            break;
+                        }
+                        long now;
+                        while ((now = System.nanoTime()) < scheduled) {
+                            LockSupport.parkNanos(scheduled - now);
+                        }
+                    } else {
+                        scheduled = System.nanoTime();
+                        if (scheduled >= end) {
+                            break;
+                        }
+                    }
+
+                    randomize(random, uid, aid);
+                    boolean ok;
+                    try {
+                        client.diversify(uid, aid);
+                        ok = true;
+                    } catch (DiversificationException e) {
+                        ok = false;
+                    }
+                    if (scheduled >= measureStart) {
+                        if (ok) {
+                            latencies.recordValue(Math.min(System.nanoTime() - scheduled, HIGHEST_LATENCY));
+                        } else {
+                            errors++;
+                        }
+                    }
+                }
+            } catch (IOException | DiversificationException | RuntimeException e) {
+                log.error("Load client {} stopped", index, e);
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * Receiver of the requests
+     */
+    public interface Target {
+
+        /**
+         * Open a client, used by one thread
+         *
+         * @return Client
+         * @throws IOException              If the target cannot be reached
+         * @throws DiversificationException If the target cannot diversify
+         */
+        Client connect() throws IOException, DiversificationException;
+
+        /**
+         * Connection of a client thread
+         */
+        interface Client extends Closeable {
+
+            /**
+             * Diversify a key and wait for it
+             *
+             * @param uid Card UID
+             * @param aid Application ID, empty for AN0148
+             * @throws IOException              If the communication fails
+             * @throws DiversificationException If the key is not diversified
+             */
+            void diversify(byte[] uid, byte[] aid) throws IOException, DiversificationException;
+        }
+    }
+
+    /**
+     * Diversification process of this JVM, through a handle of the master key, without allocation per request
+     */
+    public static class ProcessTarget implements Target {
+
+        protected final DiversificationStandard diversification;
+
+        protected final byte[] key;
+
+        protected final int keyIndex;
+
+        protected final byte[] systemIdentifier;
+
+        /**
+         * Create a target
+         *
+         * @param diversification  Diversification process
+         * @param key              Master key
+         * @param keyIndex         Key index
+         * @param systemIdentifier System identifier
+         */
+        public ProcessTarget(DiversificationStandard diversification, byte[] key, int keyIndex, byte[] systemIdentifier) {
+            this.diversification = diversification;
+            this.key = key;
+            this.keyIndex = keyIndex;
+            this.systemIdentifier = systemIdentifier != null ? systemIdentifier : new byte[0];
+        }
+
+        @Override
+        public Client connect() throws DiversificationException {
+            final KeyHandle handle = diversification.open(key, 0, key.length);
+            final byte[] output = new byte[diversification.getDiversifiedKeyLength(key.length)];
+            return new Client() {
+                @Override
+                public void diversify(byte[] uid, byte[] aid) throws DiversificationException {
+                    diversification.diversify(handle, keyIndex, uid, 0, uid.length, aid, 0, aid.length,
+                            systemIdentifier, 0, systemIdentifier.length, output, 0);
+                }
+
+                @Override
+                public void close() {
+                    handle.close();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "process " + diversification.getStandard();
+        }
+    }
+
+    /**
+     * GET /keys/{uid} endpoint of a server, with its configured key, over keep-alive connections
+     */
+    public static class HttpTarget implements Target {
+
+        protected final String url;
+
+        protected final AbstractDiversification.Standard standard;
+
+        protected final int keyIndex;
+
+        protected final String systemIdentifier;
+
+        /**
+         * Create a target
+         *
+         * @param url              Base URL of the server, as http://host:port
+         * @param standard         Standard of the requests
+         * @param keyIndex         Key index
+         * @param systemIdentifier System identifier
+         */
+        public HttpTarget(String url, AbstractDiversification.Standard standard, int keyIndex, byte[] systemIdentifier) {
+            this.url = url;
+            this.standard = standard;
+            this.keyIndex = keyIndex;
+            this.systemIdentifier = systemIdentifier != null ? hex(systemIdentifier) : "";
+        }
+
+        @Override
+        public Client connect() {
+            return new Client() {
+                protected final byte[] response = new byte[256];
+
+                @Override
+                public void diversify(byte[] uid, byte[] aid) throws IOException, DiversificationException {
+                    StringBuilder request = new StringBuilder(url).append("/keys/").append(hex(uid))
+                            .append("?standard=").append(standard.name()).append("&keyIndex=").append(keyIndex)
+                            .append("&systemIdentifier=").append(systemIdentifier);
+                    if (aid.length > 0) {
+                        request.append("&aid=").append(hex(aid));
+                    }
+
+                    HttpURLConnection connection = (HttpURLConnection) new URL(request.toString()).openConnection();
+                    int status = connection.getResponseCode();
+                    // The connection is kept alive once its response is read
+                    try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                        if (body != null) {
+                            while (body.read(response) >= 0) {
+                                continue;
+                            }
+                        }
+                    }
+                    if (status != HttpURLConnection.HTTP_OK) {
+                        throw new DiversificationException("Cannot diversify key, HTTP status " + status);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // Connections are pooled by the JDK
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return url + " " + standard;
+        }
+    }
+
+    /**
+     * Binary protocol of a server, one connection per client, with the master key of a handle
+     */
+    public static class TcpTarget implements Target {
+
+        protected final InetSocketAddress address;
+
+        protected final AbstractDiversification.Standard standard;
+
+        protected final int keyHandle;
+
+        protected final int keyIndex;
+
+        protected final byte[] systemIdentifier;
+
+        /**
+         * Create a target
+         *
+         * @param address          Address of the server
+         * @param standard         Standard of the requests
+         * @param keyHandle        Handle of the master key
+         * @param keyIndex         Key index
+         * @param systemIdentifier System identifier
+         */
+        public TcpTarget(InetSocketAddress address, AbstractDiversification.Standard standard, int keyHandle,
+                         int keyIndex, byte[] systemIdentifier) {
+            this.address = address;
+            this.standard = standard;
+            this.keyHandle = keyHandle;
+            this.keyIndex = keyIndex;
+            this.systemIdentifier = systemIdentifier;
+        }
+
+        @Override
+        public Client connect() throws IOException {
+            final DiversificationClient client = new DiversificationClient(address);
+            return new Client() {
+                @Override
+                public void diversify(byte[] uid, byte[] aid) throws IOException, DiversificationException {
+                    client.diversify(standard, keyHandle, keyIndex, uid, aid, systemIdentifier);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    client.close();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "tcp://" + address.getHostString() + ":" + address.getPort() + " " + standard;
+        }
+    }
+
+    /**
+     * Result of a load test, latencies in microseconds
+     */
+    @Getter
+    public static class Report {
+
+        protected final String target;
+
+        protected final String standard;
+
+        protected final String mode;
+
+        protected final int clients;
+
+        protected final double rate;
+
+        protected final long duration;
+
+        protected final long requests;
+
+        protected final long errors;
+
+        protected final double throughput;
+
+        protected final double latencyMean;
+
+        protected final double latencyP50;
+
+        protected final double latencyP90;
+
+        protected final double latencyP99;
+
+        protected final double latencyP999;
+
+        protected final double latencyMax;
+
+        protected Report(LoadGenerator generator, String target, long duration, long errors, Histogram latencies) {
+            this.target = target;
+            this.standard = generator.getStandard().name();
+            this.mode = generator.getRate() > 0 ? "OPEN" : "CLOSED";
+            this.clients = generator.getClients();
+            this.rate = generator.getRate();
+            this.duration = duration;
+            this.requests = latencies.getTotalCount();
+            this.errors = errors;
+            this.throughput = requests * 1000.0 / Math.max(duration, 1);
+            this.latencyMean = latencies.getMean() / 1000;
+            this.latencyP50 = latencies.getValueAtPercentile(50) / 1000.0;
+            this.latencyP90 = latencies.getValueAtPercentile(90) / 1000.0;
+            this.latencyP99 = latencies.getValueAtPercentile(99) / 1000.0;
+            this.latencyP999 = latencies.getValueAtPercentile(99.9) / 1000.0;
+            this.latencyMax = latencies.getMaxValue() / 1000.0;
+        }
+
+        /**
+         * Save the report as JSON
+         *
+         * @param path Report file
+         * @throws IOException If the file cannot be written
+         */
+        public void write(Path path) throws IOException {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(path.toFile(), this);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s, %d clients: %d requests (%d errors) in %.3f s, %.0f requests/s, "
+                            + "latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+                    mode, target, clients, requests, errors, duration / 1e3, throughput,
+                    latencyP50, latencyP99, latencyP999, latencyMax);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package fr.redfroggy.sample.derivation.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheStats;
+import lombok.Getter;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls, errors, latencies and batch sizes of a diversification process.
+ * <p>
+ * Each thread records in its own probe, so recording takes no lock and does not contend with other threads.
+ * Probes are merged into the totals when the metrics are read, the probe of a terminated thread is then dropped.
+ * Every call is counted but only one call out of {@link #getSampling()} per thread is timed,
+ * reading the clock costs more than some diversifications.
+ */
+public class DiversificationMetrics implements DiversificationMetricsMBean {
+
+    /**
+     * Highest recorded latency, in nanoseconds: longer calls are recorded with this value
+     */
+    protected static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Precision of the histograms (1%)
+     */
+    protected static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * Default number of calls per timed call
+     */
+    public static final int DEFAULT_SAMPLING = 16;
+
+    /**
+     * Start time of a call which is not timed
+     */
+    public static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * Name of the diversification process
+     */
+    protected final String name;
+
+    /**
+     * Number of calls per timed call
+     */
+    @Getter
+    protected final int sampling;
+
+    /**
+     * Probes of the recording threads, alive or not merged since they terminated
+     */
+    protected final List<Probe> probes = new CopyOnWriteArrayList<>();
+
+    /**
+     * Probe of the current thread
+     */
+    protected final ThreadLocal<Probe> probe = new ThreadLocal<Probe>() {
+        @Override
+        protected Probe initialValue() {
+            // Drop the probes of terminated threads, even if the metrics are never read
+            merge();
+            Probe probe = new Probe();
+            probes.add(probe);
+            return probe;
+        }
+    };
+
+    /**
+     * Statistics of the caches used by the process
+     */
+    protected final List<Supplier<CacheStats>> caches = new CopyOnWriteArrayList<>();
+
+    /**
+     * Statistics of the diversified key cache, if any
+     */
+    protected volatile Supplier<CacheStats> derivedKeyCache;
+
+    protected final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Latencies of single calls in nanoseconds, merged from the probes
+     */
+    protected final Histogram latency = new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+
+    /**
+     * Sizes of batches, merged from the probes
+     */
+    protected final Histogram batchSizes = new Histogram(Integer.MAX_VALUE, SIGNIFICANT_DIGITS);
+
+    /**
+     * Interval histograms read from the probes
+     */
+    protected final Histogram latencyInterval = new Histogram(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+
+    protected final Histogram batchSizesInterval = new Histogram(Integer.MAX_VALUE, SIGNIFICANT_DIGITS);
+
+    /**
+     * Number of single calls, merged from the probes
+     */
+    protected long calls;
+
+    /**
+     * Number of keys of batches, merged from the probes
+     */
+    protected long batchKeys;
+
+    /**
+     * Create metrics timing one call out of {@value #DEFAULT_SAMPLING}
+     *
+     * @param name Name of the diversification process
+     */
+    public DiversificationMetrics(String name) {
+        this(name, DEFAULT_SAMPLING);
+    }
+
+    /**
+     * Create metrics
+     *
+     * @param name     Name of the diversification process
+     * @param sampling Number of calls per timed call, 1 to time every call
+     */
+    public DiversificationMetrics(String name, int sampling) {
+        Preconditions.checkArgument(sampling > 0, "Sampling must be positive");
+        this.name = name;
+        this.sampling = sampling;
+    }
+
+    /**
+     * Add a cache to the hits and misses
+     *
+     * @param stats Statistics of the cache
+     */
+    public void addCache(Supplier<CacheStats> stats) {
+        caches.add(stats);
+    }
+
+    /**
+     * Set the diversified key cache of the process
+     *
+     * @param stats Statistics of the cache, null if the process has no cache
+     */
+    public void setDerivedKeyCache(Supplier<CacheStats> stats) {
+        derivedKeyCache = stats;
+    }
+
+    /**
+     * Start a single call
+     *
+     * @return Start time of the call if it is timed, {@link #NOT_TIMED} otherwise
+     */
+    public long start() {
+        Probe current = probe.get();
+        if (--current.countdown > 0) {
+            return NOT_TIMED;
+        }
+        current.countdown = sampling;
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a successful single call
+     *
+     * @param start Value returned by {@link #start()}
+     */
+    public void recordCall(long start) {
+        Probe current = probe.get();
+        current.calls.lazySet(current.calls.get() + 1);
+        if (start != NOT_TIMED) {
+            current.latency.recordValue(Math.min(Math.max(System.nanoTime() - start, 0), HIGHEST_LATENCY));
+        }
+    }
+
+    /**
+     * Record a successful batch call
+     *
+     * @param count Number of keys
+     */
+    public void recordBatch(int count) {
+        Probe current = probe.get();
+        current.batchSizes.recordValue(count);
+        current.batchKeys.lazySet(current.batchKeys.get() + count);
+    }
+
+    /**
+     * Record a failed call
+     */
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized long getCalls() {
+        merge();
+        return calls + batchSizes.getTotalCount();
+    }
+
+    @Override
+    public synchronized long getKeys() {
+        merge();
+        return calls + batchKeys;
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getLatencyP50() {
+        return getLatency(50);
+    }
+
+    @Override
+    public double getLatencyP99() {
+        return getLatency(99);
+    }
+
+    @Override
+    public double getLatencyP999() {
+        return getLatency(99.9);
+    }
+
+    @Override
+    public synchronized double getLatencyMax() {
+        merge();
+        return latency.getMaxValue() / 1000.0;
+    }
+
+    @Override
+    public synchronized long getBatches() {
+        merge();
+        return batchSizes.getTotalCount();
+    }
+
+    @Override
+    public long getBatchSizeP50() {
+        return getBatchSize(50);
+    }
+
+    @Override
+    public long getBatchSizeP99() {
+        return getBatchSize(99);
+    }
+
+    @Override
+    public synchronized long getBatchSizeMax() {
+        merge();
+        return batchSizes.getMaxValue();
+    }
+
+    @Override
+    public long getCacheHits() {
+        long hits = 0;
+        for (Supplier<CacheStats> cache : caches) {
+            hits += cache.get().hitCount();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long misses = 0;
+        for (Supplier<CacheStats> cache : caches) {
+            misses += cache.get().missCount();
+        }
+        return misses;
+    }
+
+    @Override
+    public long getDerivedKeyCacheHits() {
+        Supplier<CacheStats> cache = derivedKeyCache;
+        return cache != null ? cache.get().hitCount() : 0;
+    }
+
+    @Override
+    public long getDerivedKeyCacheMisses() {
+        Supplier<CacheStats> cache = derivedKeyCache;
+        return cache != null ? cache.get().missCount() : 0;
+    }
+
+    @Override
+    public synchronized void reset() {
+        merge();
+        latency.reset();
+        batchSizes.reset();
+        calls = 0;
+        batchKeys = 0;
+        errors.set(0);
+    }
+
+    /**
+     * Return a latency percentile of single calls
+     *
+     * @param percentile Percentile
+     * @return Latency in microseconds
+     */
+    protected synchronized double getLatency(double percentile) {
+        merge();
+        return latency.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    /**
+     * Return a batch size percentile
+     *
+     * @param percentile Percentile
+     * @return Number of keys
+     */
+    protected synchronized long getBatchSize(double percentile) {
+        merge();
+        return batchSizes.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Add the values recorded by the probes since the last merge to the totals,
+     * drop the probes of the terminated threads once their last values are added
+     */
+    protected synchronized void merge() {
+        for (Probe current : probes) {
+            // Checked first: the values recorded by a terminated thread are all visible
+            Thread thread = current.thread.get();
+            boolean terminated = thread == null || !thread.isAlive();
+
+            current.latency.getIntervalHistogramInto(latencyInterval);
+            latency.add(latencyInterval);
+            current.batchSizes.getIntervalHistogramInto(batchSizesInterval);
+            batchSizes.add(batchSizesInterval);
+            // Only the recording thread writes the counters, the already merged part is remembered
+            long totalCalls = current.calls.get();
+            calls += totalCalls - current.mergedCalls;
+            current.mergedCalls = totalCalls;
+            long totalBatchKeys = current.batchKeys.get();
+            batchKeys += totalBatchKeys - current.mergedBatchKeys;
+            current.mergedBatchKeys = totalBatchKeys;
+
+            if (terminated) {
+                probes.remove(current);
+            }
+        }
+    }
+
+    /**
+     * Measures of one thread
+     */
+    protected static class Probe {
+
+        /**
+         * Recording thread, not kept alive by its probe
+         */
+        protected final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+
+        protected final SingleWriterRecorder latency = new SingleWriterRecorder(HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+
+        protected final SingleWriterRecorder batchSizes = new SingleWriterRecorder(Integer.MAX_VALUE, SIGNIFICANT_DIGITS);
+
+        protected final AtomicLong calls = new AtomicLong();
+
+        protected final AtomicLong batchKeys = new AtomicLong();
+
+        /**
+         * Calls before the next timed call, used by the recording thread only
+         */
+        protected int countdown;
+
+        protected long mergedCalls;
+
+        protected long mergedBatchKeys;
+    }
+}
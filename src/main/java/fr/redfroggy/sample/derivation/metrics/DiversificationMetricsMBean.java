@@ -0,0 +1,98 @@
+package fr.redfroggy.sample.derivation.metrics;
+
+/**
+ * JMX view of the metrics of a diversification process.
+ * Latencies are in microseconds.
+ */
+public interface DiversificationMetricsMBean {
+
+    /**
+     * @return Name of the diversification process
+     */
+    String getName();
+
+    /**
+     * @return Number of successful calls, single and batch
+     */
+    long getCalls();
+
+    /**
+     * @return Number of diversified keys, single and batch
+     */
+    long getKeys();
+
+    /**
+     * @return Number of failed calls
+     */
+    long getErrors();
+
+    /**
+     * @return Median latency of timed single calls
+     */
+    double getLatencyP50();
+
+    /**
+     * @return 99th percentile latency of timed single calls
+     */
+    double getLatencyP99();
+
+    /**
+     * @return 99.9th percentile latency of timed single calls
+     */
+    double getLatencyP999();
+
+    /**
+     * @return Maximum latency of timed single calls
+     */
+    double getLatencyMax();
+
+    /**
+     * @return Number of calls per timed call
+     */
+    int getSampling();
+
+    /**
+     * @return Number of batch calls
+     */
+    long getBatches();
+
+    /**
+     * @return Median number of keys of a batch
+     */
+    long getBatchSizeP50();
+
+    /**
+     * @return 99th percentile number of keys of a batch
+     */
+    long getBatchSizeP99();
+
+    /**
+     * @return Maximum number of keys of a batch
+     */
+    long getBatchSizeMax();
+
+    /**
+     * @return Number of master key context cache hits
+     */
+    long getCacheHits();
+
+    /**
+     * @return Number of master key context cache misses
+     */
+    long getCacheMisses();
+
+    /**
+     * @return Number of calls answered by the diversified key cache
+     */
+    long getDerivedKeyCacheHits();
+
+    /**
+     * @return Number of calls not found in the diversified key cache
+     */
+    long getDerivedKeyCacheMisses();
+
+    /**
+     * Restart all measures from zero
+     */
+    void reset();
+}
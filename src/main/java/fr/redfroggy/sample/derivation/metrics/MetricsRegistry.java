@@ -0,0 +1,108 @@
+package fr.redfroggy.sample.derivation.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metrics of the diversification processes of the application, published as JMX MBeans
+ * named {@value #DOMAIN}:type=DiversificationMetrics,name=&lt;name&gt;
+ */
+@Slf4j
+public class MetricsRegistry implements Closeable {
+
+    /**
+     * JMX domain of the metrics
+     */
+    public static final String DOMAIN = "fr.redfroggy.sample.derivation";
+
+    protected final MBeanServer server;
+
+    protected final Map<String, DiversificationMetrics> metrics = new LinkedHashMap<>();
+
+    /**
+     * Create a registry publishing in the platform MBean server
+     */
+    public MetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Create a registry
+     *
+     * @param server MBean server
+     */
+    public MetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Add metrics, replacing the metrics of the same name
+     *
+     * @param diversificationMetrics Metrics
+     */
+    public synchronized void register(DiversificationMetrics diversificationMetrics) {
+        String name = diversificationMetrics.getName();
+        if (metrics.containsKey(name)) {
+            unregister(name);
+        }
+        metrics.put(name, diversificationMetrics);
+        try {
+            server.registerMBean(diversificationMetrics, objectName(name));
+        } catch (JMException e) {
+            log.warn("Cannot publish metrics {} in JMX", name, e);
+        }
+    }
+
+    /**
+     * Return all metrics
+     *
+     * @return Metrics in registration order
+     */
+    public synchronized List<DiversificationMetrics> getMetrics() {
+        return new ArrayList<>(metrics.values());
+    }
+
+    /**
+     * Remove all metrics from JMX
+     */
+    @Override
+    public synchronized void close() {
+        for (String name : new ArrayList<>(metrics.keySet())) {
+            unregister(name);
+        }
+    }
+
+    /**
+     * Remove metrics
+     *
+     * @param name Name of the metrics
+     */
+    protected void unregister(String name) {
+        metrics.remove(name);
+        try {
+            server.unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            log.debug("Cannot remove metrics {} from JMX", name, e);
+        }
+    }
+
+    /**
+     * Return the JMX name of metrics
+     *
+     * @param name Name of the metrics
+     * @return JMX name
+     * @throws JMException If the name is invalid
+     */
+    protected static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=DiversificationMetrics,name=" + name);
+    }
+}
@@ -0,0 +1,219 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+/**
+ * AES encryption (FIPS 197) with 32 bits lookup tables combining SubBytes, ShiftRows and MixColumns.
+ * <p>
+ * A block is held in four ints during the rounds, nothing is allocated per call.
+ * The round keys are on the heap and erased by {@link #destroy()}.
+ * <p>
+ * The table lookups are not constant time, see {@link JavaBlockCipherProvider}.
+ */
+public class AesBlockCipher implements BlockCipher {
+
+    /**
+     * Block size
+     */
+    protected static final int BLOCK_SIZE = 16;
+
+    /**
+     * S-box
+     */
+    protected static final int[] S = new int[256];
+
+    /**
+     * Round tables: T0[x] is the column (2.S[x], S[x], S[x], 3.S[x]), T1 to T3 its rotations
+     */
+    protected static final int[] T0 = new int[256];
+    protected static final int[] T1 = new int[256];
+    protected static final int[] T2 = new int[256];
+    protected static final int[] T3 = new int[256];
+
+    static {
+        // S-box: multiplicative inverse in GF(2^8) followed by the affine transformation,
+        // p walks the field by multiplications by 3 and q = 1/p by divisions by 3
+        int p = 1;
+        int q = 1;
+        do {
+            p = (p ^ (p << 1) ^ ((p & 0x80) != 0 ? 0x1B : 0x00)) & 0xFF;
+            q ^= q << 1;
+            q ^= q << 2;
+            q ^= q << 4;
+            q &= 0xFF;
+            if ((q & 0x80) != 0) {
+                q ^= 0x09;
+            }
+            int x = q ^ rotate8(q, 1) ^ rotate8(q, 2) ^ rotate8(q, 3) ^ rotate8(q, 4);
+            S[p] = (x ^ 0x63) & 0xFF;
+        } while (p != 1);
+        S[0] = 0x63;
+
+        for (int x = 0; x < 256; x++) {
+            int s = S[x];
+            int s2 = (s << 1) ^ ((s & 0x80) != 0 ? 0x11B : 0x00);
+            int t = (s2 << 24) | (s << 16) | (s << 8) | (s2 ^ s);
+            T0[x] = t;
+            T1[x] = Integer.rotateRight(t, 8);
+            T2[x] = Integer.rotateRight(t, 16);
+            T3[x] = Integer.rotateRight(t, 24);
+        }
+    }
+
+    /**
+     * Number of rounds
+     */
+    protected final int rounds;
+
+    /**
+     * Round keys, four words per round plus the initial one
+     */
+    protected final int[] roundKeys;
+
+    /**
+     * Create a cipher
+     *
+     * @param key AES key value (16, 24 or 32 bytes), not kept
+     * @throws InvalidKeyException If the key length is invalid
+     */
+    public AesBlockCipher(byte[] key) throws InvalidKeyException {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new InvalidKeyException("Invalid AES key length: " + key.length + " bytes");
+        }
+
+        // Key expansion
+        int nk = key.length / 4;
+        this.rounds = nk + 6;
+        this.roundKeys = new int[4 * (rounds + 1)];
+        for (int i = 0; i < nk; i++) {
+            roundKeys[i] = readInt(key, 4 * i);
+        }
+        int rcon = 0x01;
+        for (int i = nk; i < roundKeys.length; i++) {
+            int temp = roundKeys[i - 1];
+            if (i % nk == 0) {
+                temp = subWord(Integer.rotateLeft(temp, 8)) ^ (rcon << 24);
+                rcon = (rcon << 1) ^ ((rcon & 0x80) != 0 ? 0x11B : 0x00);
+            } else if (nk > 6 && i % nk == 4) {
+                temp = subWord(temp);
+            }
+            roundKeys[i] = roundKeys[i - nk] ^ temp;
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public void encryptBlocks(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        encrypt(input, inputOffset, length, output, outputOffset, false);
+    }
+
+    @Override
+    public void encryptChained(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        encrypt(input, inputOffset, length, output, outputOffset, true);
+    }
+
+    @Override
+    public void destroy() {
+        Arrays.fill(roundKeys, 0);
+    }
+
+    /**
+     * Encrypt blocks, chained or not
+     *
+     * @param input        Buffer containing the blocks
+     * @param inputOffset  Offset of the first block
+     * @param length       Number of bytes, multiple of the block size
+     * @param output       Buffer receiving the encrypted blocks
+     * @param outputOffset Offset of the first encrypted block
+     * @param chained      true to xor each block with the previous encrypted one
+     */
+    protected void encrypt(byte[] input, int inputOffset, int length, byte[] output, int outputOffset, boolean chained) {
+        if (length % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Input length not multiple of " + BLOCK_SIZE + " bytes");
+        }
+
+        int[] k = roundKeys;
+        int c0 = 0;
+        int c1 = 0;
+        int c2 = 0;
+        int c3 = 0;
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            int s0 = readInt(input, inputOffset + offset) ^ k[0];
+            int s1 = readInt(input, inputOffset + offset + 4) ^ k[1];
+            int s2 = readInt(input, inputOffset + offset + 8) ^ k[2];
+            int s3 = readInt(input, inputOffset + offset + 12) ^ k[3];
+            if (chained) {
+                s0 ^= c0;
+                s1 ^= c1;
+                s2 ^= c2;
+                s3 ^= c3;
+            }
+
+            int r = 4;
+            for (int round = 1; round < rounds; round++, r += 4) {
+                int t0 = T0[s0 >>> 24] ^ T1[(s1 >>> 16) & 0xFF] ^ T2[(s2 >>> 8) & 0xFF] ^ T3[s3 & 0xFF] ^ k[r];
+                int t1 = T0[s1 >>> 24] ^ T1[(s2 >>> 16) & 0xFF] ^ T2[(s3 >>> 8) & 0xFF] ^ T3[s0 & 0xFF] ^ k[r + 1];
+                int t2 = T0[s2 >>> 24] ^ T1[(s3 >>> 16) & 0xFF] ^ T2[(s0 >>> 8) & 0xFF] ^ T3[s1 & 0xFF] ^ k[r + 2];
+                s3 = T0[s3 >>> 24] ^ T1[(s0 >>> 16) & 0xFF] ^ T2[(s1 >>> 8) & 0xFF] ^ T3[s2 & 0xFF] ^ k[r + 3];
+                s0 = t0;
+                s1 = t1;
+                s2 = t2;
+            }
+
+            // Last round without MixColumns
+            c0 = lastRound(s0, s1, s2, s3) ^ k[r];
+            c1 = lastRound(s1, s2, s3, s0) ^ k[r + 1];
+            c2 = lastRound(s2, s3, s0, s1) ^ k[r + 2];
+            c3 = lastRound(s3, s0, s1, s2) ^ k[r + 3];
+
+            writeInt(c0, output, outputOffset + offset);
+            writeInt(c1, output, outputOffset + offset + 4);
+            writeInt(c2, output, outputOffset + offset + 8);
+            writeInt(c3, output, outputOffset + offset + 12);
+        }
+    }
+
+    /**
+     * SubBytes and ShiftRows of a column of the last round
+     */
+    protected static int lastRound(int a, int b, int c, int d) {
+        return (S[a >>> 24] << 24) | (S[(b >>> 16) & 0xFF] << 16) | (S[(c >>> 8) & 0xFF] << 8) | S[d & 0xFF];
+    }
+
+    /**
+     * Apply the S-box to the bytes of a word
+     */
+    protected static int subWord(int word) {
+        return lastRound(word, word, word, word);
+    }
+
+    /**
+     * Rotate a byte to the left
+     */
+    protected static int rotate8(int value, int shift) {
+        return ((value << shift) | (value >>> (8 - shift))) & 0xFF;
+    }
+
+    /**
+     * Read a big endian int
+     */
+    protected static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Write a big endian int
+     */
+    protected static void writeInt(int value, byte[] buffer, int offset) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
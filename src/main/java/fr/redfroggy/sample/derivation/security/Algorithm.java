@@ -27,4 +27,13 @@ public enum Algorithm {
         this.keyAlgorithm = keyAlgorithm;
         this.blocSize = blocSize;
     }
+
+    /**
+     * Return the transformation of the cipher in ECB mode without padding, to encrypt independent blocks at once
+     *
+     * @return Cipher transformation
+     */
+    public String getBlockCipherAlgorithm() {
+        return keyAlgorithm + "/ECB/NoPadding";
+    }
 }
\ No newline at end of file
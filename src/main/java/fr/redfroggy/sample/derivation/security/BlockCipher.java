@@ -0,0 +1,49 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Block cipher initialized with a key, encrypting only: the derivations never decrypt.
+ * <p>
+ * Input and output may be the same buffer at the same offset. A cipher is not thread safe.
+ */
+public interface BlockCipher {
+
+    /**
+     * Return the block size of the cipher
+     *
+     * @return Block size in bytes
+     */
+    int getBlockSize();
+
+    /**
+     * Encrypt independent blocks (ECB mode)
+     *
+     * @param input        Buffer containing the blocks
+     * @param inputOffset  Offset of the first block
+     * @param length       Number of bytes, multiple of the block size
+     * @param output       Buffer receiving the encrypted blocks
+     * @param outputOffset Offset of the first encrypted block
+     * @throws GeneralSecurityException
+     */
+    void encryptBlocks(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+            throws GeneralSecurityException;
+
+    /**
+     * Encrypt chained blocks (CBC mode), starting from a null IV at each call
+     *
+     * @param input        Buffer containing the blocks
+     * @param inputOffset  Offset of the first block
+     * @param length       Number of bytes, multiple of the block size
+     * @param output       Buffer receiving the encrypted blocks
+     * @param outputOffset Offset of the first encrypted block
+     * @throws GeneralSecurityException
+     */
+    void encryptChained(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+            throws GeneralSecurityException;
+
+    /**
+     * Erase the key schedule when the implementation can, the cipher cannot be used afterwards
+     */
+    void destroy();
+}
@@ -0,0 +1,27 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Source of block ciphers, the extension point between the derivations and a cipher implementation
+ */
+public interface BlockCipherProvider {
+
+    /**
+     * Return the name of the provider, as reported in the logs
+     *
+     * @return Name
+     */
+    String getName();
+
+    /**
+     * Create a cipher initialized with a key
+     *
+     * @param algorithm Algorithm of the cipher
+     * @param key       Key value from 0 to the limit, the buffer is not copied and must stay valid as long as the cipher
+     * @return Cipher
+     * @throws GeneralSecurityException If the algorithm or the key is not supported
+     */
+    BlockCipher newCipher(Algorithm algorithm, ByteBuffer key) throws GeneralSecurityException;
+}
@@ -0,0 +1,173 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * CMAC computation (RFC 4493, NIST SP 800-38B) of many messages of the same key built from a template:
+ * the messages only differ by a field at a fixed position, like the UID of the div sequences of a batch.
+ * <p>
+ * The chaining of a message is sequential, but the messages are independent: the n-th block of all messages
+ * is encrypted by a single call to the cipher in ECB mode. The provider processes one long buffer instead of
+ * one short call per message, which saves the cost of a cipher call per block and lets it pipeline the blocks.
+ * The padding and the subkey are applied to the template once, a message only costs the copy of its field.
+ * <p>
+ * An engine is not thread safe.
+ */
+public class BulkCmacEngine {
+
+    /**
+     * Cipher of the key
+     */
+    protected final BlockCipher cipher;
+
+    /**
+     * Block size of the cipher
+     */
+    protected final int blockSize;
+
+    /**
+     * Maximum number of messages of a call
+     */
+    protected final int capacity;
+
+    /**
+     * Offset of the variable field in the messages
+     */
+    protected final int fieldOffset;
+
+    /**
+     * Length of the variable field
+     */
+    protected final int fieldLength;
+
+    /**
+     * Padded template with the subkey applied, one buffer per block holding this block of each message
+     */
+    protected final byte[][] inputs;
+
+    /**
+     * Subkey bytes applied to the variable field, where it lies in the last block
+     */
+    protected final byte[] fieldMask;
+
+    /**
+     * Chaining values of the messages
+     */
+    protected final byte[] states;
+
+    /**
+     * Blocks of the messages xored with their chaining values
+     */
+    protected final byte[] blocks;
+
+    /**
+     * Create a bulk CMAC engine.
+     * A template shorter than a minimum length is padded (0x80 0x00...) up to this length, as required by AN10922.
+     *
+     * @param cipher        Cipher initialized with the key
+     * @param subKey1       Subkey K1 of the key
+     * @param subKey2       Subkey K2 of the key
+     * @param template      Message template, its variable field is replaced by the field of each message
+     * @param minimumLength Minimum length of a padded message, multiple of the block size
+     * @param fieldOffset   Offset of the variable field in the template
+     * @param fieldLength   Length of the variable field
+     * @param capacity      Maximum number of messages of a call
+     */
+    public BulkCmacEngine(BlockCipher cipher, byte[] subKey1, byte[] subKey2, byte[] template, int minimumLength,
+                          int fieldOffset, int fieldLength, int capacity) {
+        if (fieldOffset < 0 || fieldLength < 0 || fieldOffset + fieldLength > template.length) {
+            throw new IllegalArgumentException("Variable field out of the template");
+        }
+        this.cipher = cipher;
+        this.blockSize = subKey1.length;
+        this.capacity = capacity;
+        this.fieldOffset = fieldOffset;
+        this.fieldLength = fieldLength;
+
+        // Pad the template and apply the subkey to its last block
+        int length = template.length;
+        boolean padded = length == 0 || length % blockSize != 0 || length < minimumLength;
+        int paddedLength = padded ? Math.max(length / blockSize + 1, minimumLength / blockSize) * blockSize : length;
+        byte[] subKey = padded ? subKey2 : subKey1;
+        byte[] message = new byte[paddedLength];
+        System.arraycopy(template, 0, message, 0, length);
+        if (padded) {
+            message[length] = (byte) 0x80;
+        }
+        int last = paddedLength - blockSize;
+        for (int i = 0; i < blockSize; i++) {
+            message[last + i] ^= subKey[i];
+        }
+
+        this.fieldMask = new byte[fieldLength];
+        for (int i = 0; i < fieldLength; i++) {
+            int position = fieldOffset + i;
+            fieldMask[i] = position >= last ? subKey[position - last] : 0x00;
+        }
+
+        this.inputs = new byte[paddedLength / blockSize][capacity * blockSize];
+        for (int block = 0; block < inputs.length; block++) {
+            for (int m = 0; m < capacity; m++) {
+                System.arraycopy(message, block * blockSize, inputs[block], m * blockSize, blockSize);
+            }
+        }
+        this.states = new byte[capacity * blockSize];
+        this.blocks = new byte[capacity * blockSize];
+    }
+
+    /**
+     * Return the length of the MACs
+     *
+     * @return MAC length in bytes
+     */
+    public int getMacLength() {
+        return blockSize;
+    }
+
+    /**
+     * Compute the MACs of messages
+     *
+     * @param fields       Buffer containing the contiguous variable fields of the messages
+     * @param fieldsOffset Offset of the first field
+     * @param count        Number of messages, up to the capacity
+     * @param output       Buffer receiving the contiguous MACs
+     * @param outputOffset Offset of the first MAC in output
+     * @throws GeneralSecurityException
+     */
+    public void doFinal(byte[] fields, int fieldsOffset, int count, byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+
+        if (count > capacity) {
+            throw new IllegalArgumentException("Too many messages");
+        }
+
+        // The field of a message, usually in a single block
+        for (int m = 0; m < count; m++) {
+            int field = fieldsOffset + m * fieldLength;
+            for (int i = 0; i < fieldLength; i++) {
+                int position = fieldOffset + i;
+                inputs[position / blockSize][m * blockSize + position % blockSize] = (byte) (fields[field + i] ^ fieldMask[i]);
+            }
+        }
+
+        // First blocks without chaining, then each block xored with the encryption of the previous ones
+        int size = count * blockSize;
+        int lastBlock = inputs.length - 1;
+        if (lastBlock == 0) {
+            cipher.encryptBlocks(inputs[0], 0, size, output, outputOffset);
+            return;
+        }
+        cipher.encryptBlocks(inputs[0], 0, size, states, 0);
+        for (int block = 1; block <= lastBlock; block++) {
+            byte[] input = inputs[block];
+            for (int i = 0; i < size; i++) {
+                blocks[i] = (byte) (input[i] ^ states[i]);
+            }
+            if (block == lastBlock) {
+                cipher.encryptBlocks(blocks, 0, size, output, outputOffset);
+            } else {
+                cipher.encryptBlocks(blocks, 0, size, states, 0);
+            }
+        }
+    }
+}
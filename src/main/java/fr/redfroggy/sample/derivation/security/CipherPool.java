@@ -0,0 +1,138 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of cipher instances of a key shared between threads.
+ * A cipher is used by only one thread between {@link #acquire()} and {@link #release(BlockCipher)}.
+ * The pool keeps track of the ciphers it created, to erase their key schedules with {@link #clear()}.
+ */
+public class CipherPool {
+
+    /**
+     * Maximum number of idle ciphers kept by default
+     */
+    public static final int DEFAULT_MAXIMUM_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Provider of the ciphers
+     */
+    protected final BlockCipherProvider provider;
+
+    /**
+     * Algorithm of ciphers
+     */
+    protected final Algorithm algorithm;
+
+    /**
+     * Key used to initialize ciphers, read from 0 to its limit
+     */
+    protected final ByteBuffer key;
+
+    /**
+     * Maximum number of idle ciphers kept
+     */
+    protected final int maximumIdle;
+
+    /**
+     * Idle ciphers
+     */
+    protected final Queue<BlockCipher> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of idle ciphers
+     */
+    protected final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Ciphers created and not destroyed yet, idle or not
+     */
+    protected final Set<BlockCipher> created = Collections.newSetFromMap(new ConcurrentHashMap<BlockCipher, Boolean>());
+
+    /**
+     * Create a pool of ciphers initialized with a key held in a buffer, possibly direct
+     *
+     * @param provider  Provider of the ciphers
+     * @param algorithm Algorithm of ciphers
+     * @param key       Key of ciphers from 0 to the limit, the buffer is not copied
+     */
+    public CipherPool(BlockCipherProvider provider, Algorithm algorithm, ByteBuffer key) {
+        this.provider = provider;
+        this.algorithm = algorithm;
+        this.key = key;
+        this.maximumIdle = DEFAULT_MAXIMUM_IDLE;
+    }
+
+    /**
+     * Take a cipher from the pool, a new cipher is created if the pool is empty
+     *
+     * @return Cipher
+     * @throws GeneralSecurityException If the cipher cannot be created
+     */
+    public BlockCipher acquire() throws GeneralSecurityException {
+        BlockCipher cipher = idle.poll();
+        if (cipher != null) {
+            idleCount.decrementAndGet();
+            return cipher;
+        }
+
+        cipher = provider.newCipher(algorithm, key);
+        created.add(cipher);
+        return cipher;
+    }
+
+    /**
+     * Create ciphers until the pool holds a number of idle ones, even above the maximum idle count.
+     * Each new cipher encrypts a block in both modes, so that no lazy initialization of the provider is left
+     * for the first derivations.
+     *
+     * @param count Number of idle ciphers
+     * @throws GeneralSecurityException If a cipher cannot be created
+     */
+    public void prepare(int count) throws GeneralSecurityException {
+        byte[] block = new byte[algorithm.getBlocSize()];
+        while (idleCount.get() < count) {
+            BlockCipher cipher = provider.newCipher(algorithm, key);
+            created.add(cipher);
+            cipher.encryptBlocks(block, 0, block.length, block, 0);
+            cipher.encryptChained(block, 0, block.length, block, 0);
+            idleCount.incrementAndGet();
+            idle.offer(cipher);
+        }
+    }
+
+    /**
+     * Give back a cipher to the pool
+     *
+     * @param cipher Cipher acquired from this pool
+     */
+    public void release(BlockCipher cipher) {
+        if (idleCount.incrementAndGet() <= maximumIdle) {
+            idle.offer(cipher);
+        } else {
+            idleCount.decrementAndGet();
+            created.remove(cipher);
+            cipher.destroy();
+        }
+    }
+
+    /**
+     * Drop all ciphers and erase their key schedules, once no thread uses them anymore
+     */
+    public void clear() {
+        while (idle.poll() != null) {
+            idleCount.decrementAndGet();
+        }
+        for (BlockCipher cipher : created) {
+            created.remove(cipher);
+            cipher.destroy();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Streaming CMAC computation (RFC 4493, NIST SP 800-38B).
+ * <p>
+ * The engine works on a cipher initialized with the key, and on the subkeys K1 and K2 of this key. Blocks are buffered and chained through the cipher several at a time, the last block of the message is
+ * always kept until {@link #doFinal(byte[], int)} to apply the subkey.
+ * <p>
+ * An engine is not thread safe. It can be reused for another message of the same key after {@link #reset()},
+ * which does not re-key the cipher. A message already padded in a buffer of the caller can also be authenticated
+ * in one call, without being modified ({@link #doFinal(byte[], int, int, boolean, byte[], int)}).
+ */
+public class CmacEngine {
+
+    /**
+     * Number of blocks buffered before being chained through the cipher
+     */
+    protected static final int BUFFERED_BLOCKS = 4;
+
+    /**
+     * Cipher of the key
+     */
+    protected final BlockCipher cipher;
+
+    /**
+     * Subkey K1, applied to a complete last block
+     */
+    protected final byte[] subKey1;
+
+    /**
+     * Subkey K2, applied to a padded last block
+     */
+    protected final byte[] subKey2;
+
+    /**
+     * Block size of the cipher
+     */
+    protected final int blockSize;
+
+    /**
+     * Chaining value: encryption of the blocks already processed
+     */
+    protected final byte[] state;
+
+    /**
+     * Message bytes not processed yet
+     */
+    protected final byte[] buffer;
+
+    /**
+     * Output of the cipher
+     */
+    protected final byte[] work;
+
+    /**
+     * Number of bytes in buffer
+     */
+    protected int bufferLength;
+
+    /**
+     * Number of message bytes received since the last reset
+     */
+    protected long length;
+
+    /**
+     * Create a CMAC engine
+     *
+     * @param cipher  Cipher initialized with the key
+     * @param subKey1 Subkey K1 of the key
+     * @param subKey2 Subkey K2 of the key
+     */
+    public CmacEngine(BlockCipher cipher, byte[] subKey1, byte[] subKey2) {
+        this.cipher = cipher;
+        this.subKey1 = subKey1;
+        this.subKey2 = subKey2;
+        this.blockSize = subKey1.length;
+        this.state = new byte[blockSize];
+        this.buffer = new byte[BUFFERED_BLOCKS * blockSize];
+        this.work = new byte[BUFFERED_BLOCKS * blockSize];
+    }
+
+    /**
+     * Return the length of the MAC
+     *
+     * @return MAC length in bytes
+     */
+    public int getMacLength() {
+        return blockSize;
+    }
+
+    /**
+     * Add one byte to the message
+     *
+     * @param data Byte
+     * @return this engine
+     * @throws GeneralSecurityException
+     */
+    public CmacEngine update(byte data) throws GeneralSecurityException {
+        if (bufferLength == buffer.length) {
+            process(buffer.length - blockSize);
+        }
+        buffer[bufferLength++] = data;
+        length++;
+
+        return this;
+    }
+
+    /**
+     * Add bytes to the message
+     *
+     * @param data Bytes
+     * @return this engine
+     * @throws GeneralSecurityException
+     */
+    public CmacEngine update(byte[] data) throws GeneralSecurityException {
+        return update(data, 0, data.length);
+    }
+
+    /**
+     * Add bytes to the message
+     *
+     * @param data   Buffer containing the bytes
+     * @param offset Offset of the bytes
+     * @param count  Number of bytes
+     * @return this engine
+     * @throws GeneralSecurityException
+     */
+    public CmacEngine update(byte[] data, int offset, int count) throws GeneralSecurityException {
+        while (count > 0) {
+            if (bufferLength == buffer.length) {
+                // Keep the last block, it may be the final one
+                process(buffer.length - blockSize);
+            }
+
+            int chunk = Math.min(count, buffer.length - bufferLength);
+            System.arraycopy(data, offset, buffer, bufferLength, chunk);
+            bufferLength += chunk;
+            offset += chunk;
+            count -= chunk;
+            length += chunk;
+        }
+
+        return this;
+    }
+
+    /**
+     * Compute the MAC of the message and reset the engine
+     *
+     * @param output       Buffer receiving the MAC
+     * @param outputOffset Offset of the MAC in output
+     * @return Length of the MAC
+     * @throws GeneralSecurityException
+     */
+    public int doFinal(byte[] output, int outputOffset) throws GeneralSecurityException {
+        return doFinal(output, outputOffset, 0);
+    }
+
+    /**
+     * Compute the MAC of the message and reset the engine.
+     * When the message is shorter than a minimum length, it is padded (0x80 0x00...) up to this length
+     * instead of the next block boundary, as required by AN10922.
+     *
+     * @param output        Buffer receiving the MAC
+     * @param outputOffset  Offset of the MAC in output
+     * @param minimumLength Minimum length of the padded message, multiple of the block size
+     * @return Length of the MAC
+     * @throws GeneralSecurityException
+     */
+    public int doFinal(byte[] output, int outputOffset, int minimumLength) throws GeneralSecurityException {
+
+        byte[] subKey = subKey1;
+        if (length == 0 || length % blockSize != 0 || length < minimumLength) {
+            subKey = subKey2;
+            update((byte) 0x80);
+            while (length % blockSize != 0 || length < minimumLength) {
+                update((byte) 0x00);
+            }
+        }
+
+        int last = bufferLength - blockSize;
+        for (int i = 0; i < blockSize; i++) {
+            buffer[last + i] ^= subKey[i];
+        }
+        process(bufferLength);
+
+        System.arraycopy(state, 0, output, outputOffset, blockSize);
+        reset();
+
+        return blockSize;
+    }
+
+    /**
+     * Compute the MAC of a message already padded to whole blocks, out of place: the message is not modified.
+     * A message streamed before is discarded, the engine is reset afterwards.
+     *
+     * @param message      Buffer containing the padded message
+     * @param offset       Offset of the message
+     * @param count        Length of the padded message, a non-zero multiple of the block size
+     * @param padded       Whether the message has been padded, the last block then takes K2 instead of K1
+     * @param output       Buffer receiving the MAC
+     * @param outputOffset Offset of the MAC in output
+     * @return Length of the MAC
+     * @throws GeneralSecurityException
+     */
+    public int doFinal(byte[] message, int offset, int count, boolean padded, byte[] output, int outputOffset)
+            throws GeneralSecurityException {
+        if (count <= 0 || count % blockSize != 0) {
+            throw new IllegalArgumentException("Message must be padded to whole blocks");
+        }
+        if (length != 0) {
+            reset();
+        }
+
+        // All blocks but the last one, chained through the buffer
+        int last = offset + count - blockSize;
+        for (int position = offset; position < last; ) {
+            int chunk = Math.min(buffer.length, last - position);
+            System.arraycopy(message, position, buffer, 0, chunk);
+            bufferLength = chunk;
+            process(chunk);
+            position += chunk;
+        }
+
+        byte[] subKey = padded ? subKey2 : subKey1;
+        for (int i = 0; i < blockSize; i++) {
+            buffer[i] = (byte) (message[last + i] ^ subKey[i]);
+        }
+        bufferLength = blockSize;
+        process(blockSize);
+
+        System.arraycopy(state, 0, output, outputOffset, blockSize);
+        reset();
+
+        return blockSize;
+    }
+
+    /**
+     * Forget the current message, the key and the subkeys are kept
+     */
+    public void reset() {
+        Arrays.fill(state, (byte) 0x00);
+        Arrays.fill(buffer, (byte) 0x00);
+        Arrays.fill(work, (byte) 0x00);
+        bufferLength = 0;
+        length = 0;
+    }
+
+    /**
+     * Chain the first bytes of the buffer through the cipher
+     *
+     * @param count Number of bytes to process, multiple of the block size
+     * @throws GeneralSecurityException
+     */
+    protected void process(int count) throws GeneralSecurityException {
+        for (int i = 0; i < blockSize; i++) {
+            buffer[i] ^= state[i];
+        }
+
+        cipher.encryptChained(buffer, 0, count, work, 0);
+        System.arraycopy(work, count - blockSize, state, 0, blockSize);
+
+        System.arraycopy(buffer, count, buffer, 0, bufferLength - count);
+        bufferLength -= count;
+    }
+}
@@ -0,0 +1,314 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+/**
+ * Triple DES encryption (NIST SP 800-67, encrypt-decrypt-encrypt) with a 24 bytes key, as the JCE "DESede".
+ * <p>
+ * The S-boxes are merged with the permutation P into lookup tables, and the initial and final permutations of the
+ * inner DES operations cancel out. When the first two keys are equal, as for the single DES keys expanded to 3DES,
+ * their operations cancel out too and only the last DES encryption is done.
+ * The key schedules are on the heap and erased by {@link #destroy()}.
+ * <p>
+ * The S-box lookups are not constant time, see {@link JavaBlockCipherProvider}.
+ */
+public class DesBlockCipher implements BlockCipher {
+
+    /**
+     * Block size
+     */
+    protected static final int BLOCK_SIZE = 8;
+
+    /**
+     * Initial permutation
+     */
+    protected static final int[] IP = {
+            58, 50, 42, 34, 26, 18, 10, 2, 60, 52, 44, 36, 28, 20, 12, 4,
+            62, 54, 46, 38, 30, 22, 14, 6, 64, 56, 48, 40, 32, 24, 16, 8,
+            57, 49, 41, 33, 25, 17, 9, 1, 59, 51, 43, 35, 27, 19, 11, 3,
+            61, 53, 45, 37, 29, 21, 13, 5, 63, 55, 47, 39, 31, 23, 15, 7
+    };
+
+    /**
+     * Permutation of the output of the S-boxes
+     */
+    protected static final int[] P = {
+            16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
+            2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25
+    };
+
+    /**
+     * Permuted choice 1, from the key to the registers C and D
+     */
+    protected static final int[] PC1 = {
+            57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18,
+            10, 2, 59, 51, 43, 35, 27, 19, 11, 3, 60, 52, 44, 36,
+            63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22,
+            14, 6, 61, 53, 45, 37, 29, 21, 13, 5, 28, 20, 12, 4
+    };
+
+    /**
+     * Permuted choice 2, from the registers C and D to a round key
+     */
+    protected static final int[] PC2 = {
+            14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10,
+            23, 19, 12, 4, 26, 8, 16, 7, 27, 20, 13, 2,
+            41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48,
+            44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32
+    };
+
+    /**
+     * Left rotations of the registers C and D before each round
+     */
+    protected static final int[] ROTATIONS = {1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1};
+
+    /**
+     * S-boxes, four rows of 16 values each
+     */
+    protected static final int[][] S_BOXES = {
+            {14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7,
+                    0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+                    4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0,
+                    15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13},
+            {15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10,
+                    3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+                    0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15,
+                    13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9},
+            {10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8,
+                    13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+                    13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7,
+                    1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12},
+            {7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15,
+                    13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+                    10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4,
+                    3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14},
+            {2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9,
+                    14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+                    4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14,
+                    11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3},
+            {12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11,
+                    10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+                    9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6,
+                    4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13},
+            {4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1,
+                    13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+                    1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2,
+                    6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12},
+            {13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7,
+                    1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+                    7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8,
+                    2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11}
+    };
+
+    /**
+     * S-boxes followed by P: SP[64 * s + x] is the permuted output of the S-box s for the 6 bits input x
+     */
+    protected static final int[] SP = new int[8 * 64];
+
+    /**
+     * Initial permutation by byte: IP_BYTES[i][v] is the permutation of the byte v at index i of the block
+     */
+    protected static final long[][] IP_BYTES = new long[8][256];
+
+    /**
+     * Final permutation by byte
+     */
+    protected static final long[][] FP_BYTES = new long[8][256];
+
+    static {
+        for (int s = 0; s < 8; s++) {
+            for (int x = 0; x < 64; x++) {
+                int row = ((x >>> 4) & 0x02) | (x & 0x01);
+                int column = (x >>> 1) & 0x0F;
+                long value = (long) S_BOXES[s][16 * row + column] << (28 - 4 * s);
+                SP[64 * s + x] = (int) permute(value, 32, P);
+            }
+        }
+
+        int[] fp = new int[64];
+        for (int i = 0; i < 64; i++) {
+            fp[IP[i] - 1] = i + 1;
+        }
+        for (int i = 0; i < 8; i++) {
+            for (int v = 0; v < 256; v++) {
+                long block = (long) v << (56 - 8 * i);
+                IP_BYTES[i][v] = permute(block, 64, IP);
+                FP_BYTES[i][v] = permute(block, 64, fp);
+            }
+        }
+    }
+
+    /**
+     * Round keys of the DES operations to do, in order, as eight 6 bits groups per round
+     */
+    protected final int[] roundKeys;
+
+    /**
+     * Create a cipher
+     *
+     * @param key Triple DES key value (24 bytes), not kept
+     * @throws InvalidKeyException If the key length is invalid
+     */
+    public DesBlockCipher(byte[] key) throws InvalidKeyException {
+        if (key.length != 24) {
+            throw new InvalidKeyException("Invalid DESede key length: " + key.length + " bytes");
+        }
+
+        long key1 = readLong(key, 0);
+        long key2 = readLong(key, 8);
+        long key3 = readLong(key, 16);
+        if (((key1 ^ key2) & 0xFEFEFEFEFEFEFEFEL) == 0) {
+            // E(K3, D(K1, E(K1, x))) = E(K3, x), the parity bits are ignored
+            this.roundKeys = new int[128];
+            schedule(key3, false, roundKeys, 0);
+        } else {
+            this.roundKeys = new int[3 * 128];
+            schedule(key1, false, roundKeys, 0);
+            schedule(key2, true, roundKeys, 128);
+            schedule(key3, false, roundKeys, 256);
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public void encryptBlocks(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        encrypt(input, inputOffset, length, output, outputOffset, false);
+    }
+
+    @Override
+    public void encryptChained(byte[] input, int inputOffset, int length, byte[] output, int outputOffset) {
+        encrypt(input, inputOffset, length, output, outputOffset, true);
+    }
+
+    @Override
+    public void destroy() {
+        Arrays.fill(roundKeys, 0);
+    }
+
+    /**
+     * Encrypt blocks, chained or not
+     *
+     * @param input        Buffer containing the blocks
+     * @param inputOffset  Offset of the first block
+     * @param length       Number of bytes, multiple of the block size
+     * @param output       Buffer receiving the encrypted blocks
+     * @param outputOffset Offset of the first encrypted block
+     * @param chained      true to xor each block with the previous encrypted one
+     */
+    protected void encrypt(byte[] input, int inputOffset, int length, byte[] output, int outputOffset, boolean chained) {
+        if (length % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Input length not multiple of " + BLOCK_SIZE + " bytes");
+        }
+
+        int[] k = roundKeys;
+        long previous = 0;
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            long block = readLong(input, inputOffset + offset);
+            if (chained) {
+                block ^= previous;
+            }
+
+            long permuted = permute(block, IP_BYTES);
+            int left = (int) (permuted >>> 32);
+            int right = (int) permuted;
+            for (int r = 0; r < k.length; r += 8) {
+                int f = SP[(Integer.rotateRight(right, 27) ^ k[r]) & 0x3F]
+                        | SP[64 + ((Integer.rotateRight(right, 23) ^ k[r + 1]) & 0x3F)]
+                        | SP[128 + ((Integer.rotateRight(right, 19) ^ k[r + 2]) & 0x3F)]
+                        | SP[192 + ((Integer.rotateRight(right, 15) ^ k[r + 3]) & 0x3F)]
+                        | SP[256 + ((Integer.rotateRight(right, 11) ^ k[r + 4]) & 0x3F)]
+                        | SP[320 + ((Integer.rotateRight(right, 7) ^ k[r + 5]) & 0x3F)]
+                        | SP[384 + ((Integer.rotateRight(right, 3) ^ k[r + 6]) & 0x3F)]
+                        | SP[448 + ((Integer.rotateLeft(right, 1) ^ k[r + 7]) & 0x3F)];
+                int next = left ^ f;
+                left = right;
+                right = next;
+                if ((r & 0x7F) == 0x78) {
+                    // End of a DES operation: the halves are swapped, the final and next initial permutations cancel out
+                    int swap = left;
+                    left = right;
+                    right = swap;
+                }
+            }
+
+            previous = permute(((long) left << 32) | (right & 0xFFFFFFFFL), FP_BYTES);
+            writeLong(previous, output, outputOffset + offset);
+        }
+    }
+
+    /**
+     * Compute the round keys of a DES operation
+     *
+     * @param key     DES key value
+     * @param decrypt true for a decryption, the round keys being used in reverse order
+     * @param output  Buffer receiving the 16 round keys, as eight 6 bits groups each
+     * @param offset  Offset of the first round key
+     */
+    protected static void schedule(long key, boolean decrypt, int[] output, int offset) {
+        long cd = permute(key, 64, PC1);
+        int c = (int) (cd >>> 28);
+        int d = (int) (cd & 0x0FFFFFFF);
+        for (int round = 0; round < 16; round++) {
+            c = ((c << ROTATIONS[round]) | (c >>> (28 - ROTATIONS[round]))) & 0x0FFFFFFF;
+            d = ((d << ROTATIONS[round]) | (d >>> (28 - ROTATIONS[round]))) & 0x0FFFFFFF;
+            long roundKey = permute(((long) c << 28) | d, 56, PC2);
+
+            int position = offset + 8 * (decrypt ? 15 - round : round);
+            for (int s = 0; s < 8; s++) {
+                output[position + s] = (int) (roundKey >>> (42 - 6 * s)) & 0x3F;
+            }
+        }
+    }
+
+    /**
+     * Permute bits, numbered from 1 for the most significant one
+     *
+     * @param value Value to permute
+     * @param width Number of bits of the value
+     * @param table Source bit of each bit of the result
+     * @return Permuted value, of table.length bits
+     */
+    protected static long permute(long value, int width, int[] table) {
+        long result = 0;
+        for (int source : table) {
+            result = (result << 1) | ((value >>> (width - source)) & 0x01);
+        }
+        return result;
+    }
+
+    /**
+     * Permute the bits of a block with a table by byte
+     */
+    protected static long permute(long block, long[][] table) {
+        return table[0][(int) (block >>> 56) & 0xFF] | table[1][(int) (block >>> 48) & 0xFF]
+                | table[2][(int) (block >>> 40) & 0xFF] | table[3][(int) (block >>> 32) & 0xFF]
+                | table[4][(int) (block >>> 24) & 0xFF] | table[5][(int) (block >>> 16) & 0xFF]
+                | table[6][(int) (block >>> 8) & 0xFF] | table[7][(int) block & 0xFF];
+    }
+
+    /**
+     * Read a big endian long
+     */
+    protected static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Write a big endian long
+     */
+    protected static void writeLong(long value, byte[] buffer, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
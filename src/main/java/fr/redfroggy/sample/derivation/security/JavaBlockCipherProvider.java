@@ -0,0 +1,43 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Block ciphers implemented in Java, without the JCE.
+ * They save the JCE dispatch of each call, which costs as much as the encryption of one or two blocks.
+ * <p>
+ * Their rounds index lookup tables with bytes of the key and data, so the cache lines they touch depend on the key:
+ * a process sharing the processor caches (same host, other virtual machine) may recover key bits from timing
+ * measures. The JCE uses the AES instructions of the processor when available, which run in constant time.
+ * Use these ciphers, mostly faster for DES and 3DES, only where no untrusted code shares the host.
+ */
+public class JavaBlockCipherProvider implements BlockCipherProvider {
+
+    @Override
+    public String getName() {
+        return "Java";
+    }
+
+    @Override
+    public BlockCipher newCipher(Algorithm algorithm, ByteBuffer key) throws GeneralSecurityException {
+        byte[] value = new byte[key.limit()];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = key.get(i);
+        }
+        try {
+            switch (algorithm.getKeyAlgorithm()) {
+                case "AES":
+                    return new AesBlockCipher(value);
+                case "DESede":
+                    return new DesBlockCipher(value);
+                default:
+                    throw new NoSuchAlgorithmException("Cannot encrypt with " + algorithm);
+            }
+        } finally {
+            Arrays.fill(value, (byte) 0x00);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package fr.redfroggy.sample.derivation.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Block ciphers of the installed JCE providers.
+ * A cipher wraps a JCE cipher per mode, each created on its first use.
+ */
+public class JceBlockCipherProvider implements BlockCipherProvider {
+
+    @Override
+    public String getName() {
+        return "JCE";
+    }
+
+    @Override
+    public BlockCipher newCipher(Algorithm algorithm, ByteBuffer key) throws GeneralSecurityException {
+        JceBlockCipher cipher = new JceBlockCipher(algorithm, key);
+        // Check the algorithm and the key now rather than at the first encryption
+        cipher.getChained();
+        return cipher;
+    }
+
+    /**
+     * Block cipher delegating to JCE ciphers
+     */
+    protected static class JceBlockCipher implements BlockCipher {
+
+        /**
+         * Algorithm of the cipher
+         */
+        protected final Algorithm algorithm;
+
+        /**
+         * Key value from 0 to its limit
+         */
+        protected final ByteBuffer key;
+
+        /**
+         * Cipher in ECB mode, null until used
+         */
+        protected Cipher blocks;
+
+        /**
+         * Cipher in CBC mode with a null IV, null until used
+         */
+        protected Cipher chained;
+
+        /**
+         * Create a block cipher
+         *
+         * @param algorithm Algorithm of the cipher
+         * @param key       Key value from 0 to the limit
+         */
+        protected JceBlockCipher(Algorithm algorithm, ByteBuffer key) {
+            this.algorithm = algorithm;
+            this.key = key;
+        }
+
+        @Override
+        public int getBlockSize() {
+            return algorithm.getBlocSize();
+        }
+
+        @Override
+        public void encryptBlocks(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+                throws GeneralSecurityException {
+            if (blocks == null) {
+                blocks = newCipher(true);
+            }
+            blocks.doFinal(input, inputOffset, length, output, outputOffset);
+        }
+
+        @Override
+        public void encryptChained(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+                throws GeneralSecurityException {
+            getChained().doFinal(input, inputOffset, length, output, outputOffset);
+        }
+
+        @Override
+        public void destroy() {
+            // The key schedules stay inside the JCE ciphers, the provider does not let them be erased
+            blocks = null;
+            chained = null;
+        }
+
+        /**
+         * Return the cipher in CBC mode, created if needed
+         *
+         * @return Cipher
+         * @throws GeneralSecurityException
+         */
+        protected Cipher getChained() throws GeneralSecurityException {
+            if (chained == null) {
+                chained = newCipher(false);
+            }
+            return chained;
+        }
+
+        /**
+         * Create a JCE cipher initialized with the key
+         *
+         * @param ecb true for ECB mode, false for CBC mode with a null IV
+         * @return Cipher
+         * @throws GeneralSecurityException
+         */
+        protected Cipher newCipher(boolean ecb) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(ecb ? algorithm.getBlockCipherAlgorithm() : algorithm.getCipherAlgorithm());
+
+            // The provider takes the key as an array, this temporary copy is erased once the cipher is initialized
+            byte[] value = new byte[key.limit()];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = key.get(i);
+            }
+            try {
+                SecretKeySpec secretKey = new SecretKeySpec(value, algorithm.getKeyAlgorithm());
+                if (ecb) {
+                    cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+                } else {
+                    cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(new byte[algorithm.getBlocSize()]));
+                }
+            } finally {
+                Arrays.fill(value, (byte) 0x00);
+            }
+
+            return cipher;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package fr.redfroggy.sample.derivation.security;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Master keys referenced by handle.
+ * Requests name a key by its handle so the key itself never travels with them.
+ * Keys are held off-heap, so the garbage collector leaves no copy of them behind.
+ */
+public class KeyRing {
+
+    /**
+     * Keys in direct memory, indexed by handle
+     */
+    protected final ByteBuffer[] keys;
+
+    /**
+     * Create a key ring, the handle of a key is its index in the list
+     *
+     * @param keys Master keys
+     */
+    public KeyRing(List<byte[]> keys) {
+        this.keys = new ByteBuffer[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            this.keys[i] = ByteBuffer.allocateDirect(key.length);
+            this.keys[i].put(key).clear();
+        }
+    }
+
+    /**
+     * Return a copy of a key, to erase after use
+     *
+     * @param handle Handle of the key
+     * @return Key or null if the handle is unknown
+     */
+    public byte[] get(int handle) {
+        if (handle < 0 || handle >= keys.length) {
+            return null;
+        }
+
+        byte[] key = new byte[keys[handle].capacity()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = keys[handle].get(i);
+        }
+
+        return key;
+    }
+
+    /**
+     * Return the number of keys
+     *
+     * @return Number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Overwrite all keys
+     */
+    public void destroy() {
+        for (ByteBuffer key : keys) {
+            for (int i = 0; i < key.capacity(); i++) {
+                key.put(i, (byte) 0);
+            }
+        }
+    }
+}
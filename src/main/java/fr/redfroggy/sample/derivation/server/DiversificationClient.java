@@ -0,0 +1,202 @@
+package fr.redfroggy.sample.derivation.server;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.LENGTH_SIZE;
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.REQUEST_HEADER_SIZE;
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.RESPONSE_HEADER_SIZE;
+
+/**
+ * Blocking client of {@link DiversificationServer}.
+ * Requests can be pipelined: {@link #send} several of them, then {@link #receive} the responses in the same order.
+ * The server stops reading a connection whose responses are not read, so the number of requests sent
+ * and not yet received must stay bounded (a few thousands).
+ * An instance must not be used by several threads at once.
+ */
+public class DiversificationClient implements Closeable {
+
+    /**
+     * Size of the read and write buffers
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final SocketChannel channel;
+
+    protected final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+    protected final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+    protected int nextRequestId;
+
+    /**
+     * Connect to a server
+     *
+     * @param address Address of the server
+     * @throws IOException If the connection fails
+     */
+    public DiversificationClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.in.limit(0);
+    }
+
+    /**
+     * Diversify a key and wait for the result
+     *
+     * @param standard         Standard to use
+     * @param keyHandle        Handle of the master key
+     * @param keyIndex         Key index
+     * @param uid              Card UID
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Diversified key
+     * @throws IOException              If the communication fails
+     * @throws DiversificationException If the server cannot diversify the key
+     */
+    public byte[] diversify(AbstractDiversification.Standard standard, int keyHandle, int keyIndex,
+                            byte[] uid, byte[] aid, byte[] systemIdentifier) throws IOException, DiversificationException {
+        int requestId = send(standard, keyHandle, keyIndex, uid, aid, systemIdentifier);
+        Response response = receive();
+        if (response.getRequestId() != requestId) {
+            throw new IOException("Unexpected response " + response.getRequestId() + " to request " + requestId);
+        }
+        if (response.getStatus() != DiversificationProtocol.STATUS_OK) {
+            throw new DiversificationException("Cannot diversify key, status " + response.getStatus());
+        }
+        return response.getKey();
+    }
+
+    /**
+     * Queue a request, sent by {@link #flush()} or {@link #receive()}
+     *
+     * @param standard         Standard to use
+     * @param keyHandle        Handle of the master key
+     * @param keyIndex         Key index
+     * @param uid              Card UID
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Identifier of the request
+     * @throws IOException If the communication fails
+     */
+    public int send(AbstractDiversification.Standard standard, int keyHandle, int keyIndex,
+                    byte[] uid, byte[] aid, byte[] systemIdentifier) throws IOException {
+        int aidLength = aid != null ? aid.length : 0;
+        int systemIdentifierLength = systemIdentifier != null ? systemIdentifier.length : 0;
+        int length = REQUEST_HEADER_SIZE + uid.length + aidLength + systemIdentifierLength;
+        if (uid.length > 255 || aidLength > 255 || systemIdentifierLength > 255) {
+            throw new IllegalArgumentException("UID, AID and system identifier are limited to 255 bytes");
+        }
+        if (out.remaining() < LENGTH_SIZE + length) {
+            flush();
+        }
+
+        int requestId = nextRequestId++;
+        out.putShort((short) length);
+        out.putInt(requestId);
+        out.put((byte) standard.ordinal());
+        out.putShort((short) keyHandle);
+        out.put((byte) keyIndex);
+        out.put((byte) uid.length).put(uid);
+        out.put((byte) aidLength);
+        if (aidLength > 0) {
+            out.put(aid);
+        }
+        out.put((byte) systemIdentifierLength);
+        if (systemIdentifierLength > 0) {
+            out.put(systemIdentifier);
+        }
+        return requestId;
+    }
+
+    /**
+     * Send the queued requests
+     *
+     * @throws IOException If the communication fails
+     */
+    public void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Send the queued requests and wait for the next response
+     *
+     * @return Response
+     * @throws IOException If the communication fails
+     */
+    public Response receive() throws IOException {
+        flush();
+        fill(LENGTH_SIZE);
+        int length = in.getShort(in.position()) & 0xFFFF;
+        fill(LENGTH_SIZE + length);
+
+        in.position(in.position() + LENGTH_SIZE);
+        int requestId = in.getInt();
+        byte status = in.get();
+        byte[] key = new byte[in.get() & 0xFF];
+        in.get(key);
+        return new Response(requestId, status, key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Read until the buffer holds at least a number of bytes
+     *
+     * @param length Number of bytes
+     * @throws IOException If the connection is closed
+     */
+    protected void fill(int length) throws IOException {
+        if (in.remaining() >= length) {
+            return;
+        }
+        in.compact();
+        while (in.position() < length) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+        in.flip();
+    }
+
+    /**
+     * Response of the server
+     */
+    @Getter
+    public static class Response {
+
+        protected final int requestId;
+
+        protected final byte status;
+
+        protected final byte[] key;
+
+        protected Response(int requestId, byte status, byte[] key) {
+            this.requestId = requestId;
+            this.status = status;
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return "Response " + requestId + " status " + status + " key " + Arrays.toString(key);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package fr.redfroggy.sample.derivation.server;
+
+/**
+ * Binary protocol of the diversification server.
+ * <p>
+ * Every frame starts with its length on 2 bytes (big endian), not counting these 2 bytes.
+ * <p>
+ * Request: requestId (4) | standard (1) | keyHandle (2) | keyIndex (1) |
+ * uidLength (1) | uid | aidLength (1) | aid | systemIdentifierLength (1) | systemIdentifier
+ * <p>
+ * Response: requestId (4) | status (1) | keyLength (1) | diversified key
+ * <p>
+ * The standard is the ordinal of {@link fr.redfroggy.sample.derivation.services.AbstractDiversification.Standard}.
+ * A client may send several requests before reading the responses, they are answered in the same order.
+ */
+public final class DiversificationProtocol {
+
+    /**
+     * Length of the frame length
+     */
+    public static final int LENGTH_SIZE = 2;
+
+    /**
+     * Length of a request without UID, AID and system identifier
+     */
+    public static final int REQUEST_HEADER_SIZE = 4 + 1 + 2 + 1 + 3;
+
+    /**
+     * Length of a response without diversified key
+     */
+    public static final int RESPONSE_HEADER_SIZE = 4 + 1 + 1;
+
+    /**
+     * Maximum length of a request frame, including its length
+     */
+    public static final int MAX_REQUEST_SIZE = LENGTH_SIZE + REQUEST_HEADER_SIZE + 3 * 255;
+
+    /**
+     * Maximum length of a response frame, including its length
+     */
+    public static final int MAX_RESPONSE_SIZE = LENGTH_SIZE + RESPONSE_HEADER_SIZE + 32;
+
+    /**
+     * Key diversified
+     */
+    public static final byte STATUS_OK = 0;
+
+    /**
+     * Malformed request
+     */
+    public static final byte STATUS_INVALID_REQUEST = 1;
+
+    /**
+     * Unknown standard
+     */
+    public static final byte STATUS_UNKNOWN_STANDARD = 2;
+
+    /**
+     * Unknown key handle
+     */
+    public static final byte STATUS_UNKNOWN_KEY = 3;
+
+    /**
+     * Diversification failed
+     */
+    public static final byte STATUS_DIVERSIFICATION_ERROR = 4;
+
+    private DiversificationProtocol() {
+    }
+
+    /**
+     * Read an unsigned short
+     *
+     * @param buffer Buffer
+     * @param offset Offset of the value
+     * @return Value
+     */
+    public static int getShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Write a short
+     *
+     * @param buffer Buffer
+     * @param offset Offset of the value
+     * @param value  Value
+     */
+    public static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    /**
+     * Read an int
+     *
+     * @param buffer Buffer
+     * @param offset Offset of the value
+     * @return Value
+     */
+    public static int getInt(byte[] buffer, int offset) {
+        return (getShort(buffer, offset) << 16) | getShort(buffer, offset + 2);
+    }
+
+    /**
+     * Write an int
+     *
+     * @param buffer Buffer
+     * @param offset Offset of the value
+     * @param value  Value
+     */
+    public static void putInt(byte[] buffer, int offset, int value) {
+        putShort(buffer, offset, value >>> 16);
+        putShort(buffer, offset + 2, value);
+    }
+}
@@ -0,0 +1,383 @@
+package fr.redfroggy.sample.derivation.server;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationRegistry;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyHandle;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.LENGTH_SIZE;
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.MAX_REQUEST_SIZE;
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.MAX_RESPONSE_SIZE;
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.REQUEST_HEADER_SIZE;
+import static fr.redfroggy.sample.derivation.server.DiversificationProtocol.RESPONSE_HEADER_SIZE;
+
+/**
+ * Diversification server speaking {@link DiversificationProtocol} over non-blocking sockets.
+ * <p>
+ * An acceptor thread hands connections to a fixed number of workers. Each worker owns a selector and its connections,
+ * and diversifies the requests of a connection in its own thread, in order, directly from the read buffer
+ * into the write buffer: a request costs no allocation and no thread switch.
+ * A connection is not read while its pending responses do not fit in its write buffer.
+ * <p>
+ * The standards and master keys are those of a {@link DiversificationRegistry}, opened and warmed up before the server
+ * starts: requests use their handles.
+ */
+@Slf4j
+public class DiversificationServer implements Closeable {
+
+    /**
+     * Size of the read and write buffers of a connection
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Standards, indexed by ordinal
+     */
+    protected static final AbstractDiversification.Standard[] STANDARDS = AbstractDiversification.Standard.values();
+
+    /**
+     * Served standards and master keys, the handle of a key being its profile
+     */
+    protected final DiversificationRegistry registry;
+
+    /**
+     * Listening socket
+     */
+    protected final ServerSocketChannel serverChannel;
+
+    /**
+     * Connection handlers
+     */
+    protected final Worker[] workers;
+
+    /**
+     * Acceptor thread
+     */
+    protected final Thread acceptor;
+
+    protected volatile boolean running = true;
+
+    /**
+     * Create and start a server
+     *
+     * @param address  Listening address, port 0 for any free port
+     * @param registry Served standards and master keys, closed by its owner
+     * @param threads  Number of worker threads, 0 for one per processor
+     * @throws IOException If the server cannot listen
+     */
+    public DiversificationServer(InetSocketAddress address, DiversificationRegistry registry, int threads) throws IOException {
+        this.registry = registry;
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(address);
+
+        this.workers = new Worker[threads > 0 ? threads : Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            workers[i].thread.start();
+        }
+
+        this.acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "diversification-acceptor");
+        this.acceptor.start();
+
+        log.info("Diversification server listening on {}", getAddress());
+    }
+
+    /**
+     * Return the listening address
+     *
+     * @return Address
+     * @throws IOException
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Stop the server and close all connections
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        try {
+            acceptor.join();
+            for (Worker worker : workers) {
+                worker.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Diversification server stopped");
+    }
+
+    /**
+     * Accept connections and distribute them to the workers
+     */
+    protected void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Worker worker = workers[next++ % workers.length];
+                worker.accepted.add(channel);
+                worker.selector.wakeup();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Cannot accept connection", e);
+            }
+        }
+    }
+
+    /**
+     * Diversify one request
+     *
+     * @param request Buffer containing the request, without its length
+     * @param offset  Offset of the request
+     * @param length  Length of the request
+     * @param output  Buffer receiving the response, with its length
+     * @param outputOffset Offset of the response
+     * @return Length of the response, with its length
+     */
+    protected int handle(byte[] request, int offset, int length, byte[] output, int outputOffset) {
+        int end = offset + length;
+        int p = offset;
+        int requestId = DiversificationProtocol.getInt(request, p);
+        p += 4;
+        int standard = request[p++] & 0xFF;
+        int keyHandle = DiversificationProtocol.getShort(request, p);
+        p += 2;
+        int keyIndex = request[p++] & 0xFF;
+
+        int uidLength = request[p++] & 0xFF;
+        int uidOffset = p;
+        p += uidLength;
+        int aidLength = p < end ? request[p++] & 0xFF : 0;
+        int aidOffset = p;
+        p += aidLength;
+        int systemIdentifierLength = p < end ? request[p++] & 0xFF : 0;
+        int systemIdentifierOffset = p;
+        p += systemIdentifierLength;
+
+        DiversificationStandard div = standard < STANDARDS.length ? registry.get(STANDARDS[standard]) : null;
+        KeyHandle key = div != null ? registry.getKey(STANDARDS[standard], keyHandle) : null;
+
+        byte status;
+        int keyLength = 0;
+        if (p != end) {
+            status = DiversificationProtocol.STATUS_INVALID_REQUEST;
+        } else if (div == null) {
+            status = DiversificationProtocol.STATUS_UNKNOWN_STANDARD;
+        } else if (keyHandle < 0 || keyHandle >= registry.getProfileCount()) {
+            status = DiversificationProtocol.STATUS_UNKNOWN_KEY;
+        } else if (key == null) {
+            status = DiversificationProtocol.STATUS_DIVERSIFICATION_ERROR;
+        } else {
+            try {
+                keyLength = div.diversify(key, keyIndex,
+                        request, uidOffset, uidLength, request, aidOffset, aidLength,
+                        request, systemIdentifierOffset, systemIdentifierLength,
+                        output, outputOffset + LENGTH_SIZE + RESPONSE_HEADER_SIZE);
+                status = DiversificationProtocol.STATUS_OK;
+            } catch (DiversificationException | RuntimeException e) {
+                log.debug("Cannot diversify request {}", requestId, e);
+                status = DiversificationProtocol.STATUS_DIVERSIFICATION_ERROR;
+            }
+        }
+
+        DiversificationProtocol.putShort(output, outputOffset, RESPONSE_HEADER_SIZE + keyLength);
+        DiversificationProtocol.putInt(output, outputOffset + LENGTH_SIZE, requestId);
+        output[outputOffset + LENGTH_SIZE + 4] = status;
+        output[outputOffset + LENGTH_SIZE + 5] = (byte) keyLength;
+        return LENGTH_SIZE + RESPONSE_HEADER_SIZE + keyLength;
+    }
+
+    /**
+     * Selector loop of a set of connections
+     */
+    protected class Worker implements Runnable {
+
+        protected final Selector selector;
+
+        protected final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        protected final Thread thread;
+
+        protected Worker(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "diversification-worker-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        Connection connection = new Connection(channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && (key.isReadable() || key.isWritable())) {
+                                connection.service(key.isReadable());
+                            }
+                        } catch (IOException e) {
+                            log.debug("Connection closed", e);
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Diversification worker stopped", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.debug("Cannot close selector", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers of a client connection
+     */
+    protected class Connection {
+
+        protected final SocketChannel channel;
+
+        protected final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        protected final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        protected SelectionKey key;
+
+        /**
+         * Whether the client has shut down its output, the connection is closed once the received requests are answered
+         */
+        protected boolean closing;
+
+        protected Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read the available requests, answer them and write the responses.
+         * When the client shuts down its output, the complete requests already received are still answered.
+         *
+         * @param readable Whether data can be read
+         * @throws IOException If the connection fails or the client does not respect the protocol
+         */
+        protected void service(boolean readable) throws IOException {
+            if (readable && !closing && channel.read(in) < 0) {
+                closing = true;
+            }
+
+            // Answer the requests left while the write buffer was full, once it is written
+            boolean full;
+            do {
+                full = process();
+            } while (flush() && full);
+
+            if (closing && out.position() == 0) {
+                // An incomplete last request is dropped
+                close();
+                return;
+            }
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Answer the complete requests of the read buffer while the write buffer has room
+         *
+         * @return True if requests were left because the write buffer is full
+         * @throws IOException If a request is too large
+         */
+        protected boolean process() throws IOException {
+            in.flip();
+            byte[] request = in.array();
+            byte[] response = out.array();
+            boolean full = false;
+            while (in.remaining() >= LENGTH_SIZE) {
+                int length = DiversificationProtocol.getShort(request, in.position());
+                if (length < REQUEST_HEADER_SIZE || LENGTH_SIZE + length > MAX_REQUEST_SIZE) {
+                    throw new IOException("Invalid request length " + length);
+                }
+                if (in.remaining() < LENGTH_SIZE + length) {
+                    break;
+                }
+                if (out.remaining() < MAX_RESPONSE_SIZE) {
+                    full = true;
+                    break;
+                }
+
+                out.position(out.position() + handle(request, in.position() + LENGTH_SIZE, length, response, out.position()));
+                in.position(in.position() + LENGTH_SIZE + length);
+            }
+            in.compact();
+            return full;
+        }
+
+        /**
+         * Write the pending responses
+         *
+         * @return True if all responses were written
+         * @throws IOException
+         */
+        protected boolean flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            return out.position() == 0;
+        }
+
+        protected void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Cannot close connection", e);
+            }
+        }
+    }
+}
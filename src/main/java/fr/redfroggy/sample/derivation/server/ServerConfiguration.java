@@ -0,0 +1,93 @@
+package fr.redfroggy.sample.derivation.server;
+
+import fr.redfroggy.sample.derivation.configuration.Settings;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.metrics.MetricsRegistry;
+import fr.redfroggy.sample.derivation.security.KeyRing;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.CipherSelector;
+import fr.redfroggy.sample.derivation.services.DerivedKeyCache;
+import fr.redfroggy.sample.derivation.services.DiversificationRegistry;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyContextCache;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration of the binary protocol server (SERVER mode, when a TCP port is set)
+ */
+@Configuration
+@ConditionalOnProperty(name = "mode", havingValue = "SERVER")
+public class ServerConfiguration {
+
+    @Autowired
+    protected Settings settings;
+
+    @Autowired
+    protected DiversificationStandard div;
+
+    /**
+     * Create the master keys: handle 0 is the configured key, then the additional keys
+     *
+     * @return Master keys
+     */
+    @Bean(destroyMethod = "destroy")
+    public KeyRing getKeyRing() {
+        List<byte[]> keys = new ArrayList<>();
+        keys.add(BytesUtils.hexToBytes(settings.getKey()));
+        for (String key : settings.getKeys()) {
+            keys.add(BytesUtils.hexToBytes(key));
+        }
+        return new KeyRing(keys);
+    }
+
+    /**
+     * Create the registry of all standards with the master keys opened and warmed up for each of them
+     *
+     * @param keys    Master keys
+     * @param metrics Registry of the metrics of the served standards
+     * @return Diversification registry
+     * @throws DiversificationException If a diversification process cannot be created
+     */
+    @Bean(destroyMethod = "close")
+    public DiversificationRegistry getDiversificationRegistry(KeyRing keys, MetricsRegistry metrics) throws DiversificationException {
+        Map<AbstractDiversification.Standard, DiversificationStandard> standards = new EnumMap<>(AbstractDiversification.Standard.class);
+        for (AbstractDiversification.Standard standard : AbstractDiversification.Standard.values()) {
+            if (standard.equals(div.getStandard())) {
+                standards.put(standard, div);
+            } else {
+                DiversificationStandard other = new DiversificationStandard(standard, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                        CipherSelector.forName(settings.getCipherProvider(), standard.getAlgorithm()));
+                if (settings.getDerivedKeyCacheSize() > 0) {
+                    other.setDerivedKeyCache(new DerivedKeyCache(settings.getDerivedKeyCacheSize(), settings.getDerivedKeyCacheExpiration()));
+                }
+                metrics.register(other.getMetrics());
+                standards.put(standard, other);
+            }
+        }
+        return new DiversificationRegistry(standards, keys, settings.getThreads());
+    }
+
+    /**
+     * Create and start the binary protocol server, serving all standards
+     *
+     * @param registry Served standards and master keys
+     * @return Server
+     * @throws IOException If the server cannot listen
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "tcpPort")
+    public DiversificationServer getDiversificationServer(DiversificationRegistry registry) throws IOException {
+        return new DiversificationServer(new InetSocketAddress(settings.getTcpPort()), registry, settings.getThreads());
+    }
+}
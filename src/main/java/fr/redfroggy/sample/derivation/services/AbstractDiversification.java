@@ -2,13 +2,14 @@ package fr.redfroggy.sample.derivation.services;
 
 import fr.redfroggy.sample.derivation.exception.DiversificationException;
 import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.security.BlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.JceBlockCipherProvider;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.crypto.Cipher;
-
 /**
- * This class implement bases of a diversification system
+ * This class implement bases of a diversification system.
+ * An instance is thread safe: ciphers are taken from a pool for each operation.
  */
 @Slf4j
 public abstract class AbstractDiversification {
@@ -51,9 +52,10 @@ public abstract class AbstractDiversification {
     protected Standard standard;
 
     /**
-     * Cipher process
+     * Provider of the ciphers
      */
-    protected Cipher cipher;
+    @Getter
+    protected BlockCipherProvider cipherProvider;
 
     /**
      * Algorithm used
@@ -67,12 +69,19 @@ public abstract class AbstractDiversification {
      * @throws DiversificationException
      */
     public AbstractDiversification(Standard standard) throws DiversificationException {
-        try {
-            this.standard = standard;
-            this.algorithm = standard.getAlgorithm();
-            this.cipher = Cipher.getInstance(algorithm.getCipherAlgorithm());
-        } catch (Exception e) {
-            throw new DiversificationException("Cannot create instance of diversification process", e);
-        }
+        this(standard, null);
+    }
+
+    /**
+     * Create diversification process
+     *
+     * @param standard       Standard to use
+     * @param cipherProvider Provider of the ciphers, null for the JCE
+     * @throws DiversificationException
+     */
+    public AbstractDiversification(Standard standard, BlockCipherProvider cipherProvider) throws DiversificationException {
+        this.standard = standard;
+        this.algorithm = standard.getAlgorithm();
+        this.cipherProvider = cipherProvider != null ? cipherProvider : new JceBlockCipherProvider();
     }
 }
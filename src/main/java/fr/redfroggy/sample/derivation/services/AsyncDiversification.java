@@ -0,0 +1,289 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade of a diversification process: derivations are run by a fixed number of threads
+ * and their results are given as futures, so that callers can pipeline requests.
+ * <p>
+ * Requests wait in a bounded queue. When it is full, the rejection policy either fails the request,
+ * runs it in the calling thread or blocks the caller until there is room: the number of running derivations
+ * never exceeds the number of threads. A failed derivation completes its future with a
+ * {@link DiversificationException}.
+ * <p>
+ * The arrays of a request (key, UIDs, application ID, system identifier) are not copied: the caller must not modify
+ * them before the future is completed.
+ */
+public class AsyncDiversification implements Closeable {
+
+    /**
+     * Behaviour when the queue is full
+     */
+    public enum RejectionPolicy {
+
+        /**
+         * Complete the future with a {@link DiversificationException}
+         */
+        ABORT,
+
+        /**
+         * Run the derivation in the calling thread
+         */
+        CALLER_RUNS,
+
+        /**
+         * Block the calling thread until there is room in the queue
+         */
+        BLOCK
+    }
+
+    /**
+     * Default number of waiting requests
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * Diversification process
+     */
+    @Getter
+    protected final DiversificationStandard diversification;
+
+    /**
+     * Behaviour when the queue is full
+     */
+    @Getter
+    protected final RejectionPolicy rejectionPolicy;
+
+    /**
+     * Threads running the derivations
+     */
+    protected final ThreadPoolExecutor executor;
+
+    /**
+     * Create an asynchronous facade
+     *
+     * @param diversification Diversification process
+     * @param threads         Number of diversification threads, 0 for one per processor
+     * @param queueSize       Maximum number of waiting requests
+     * @param rejectionPolicy Behaviour when the queue is full
+     */
+    public AsyncDiversification(DiversificationStandard diversification, int threads, int queueSize,
+                                RejectionPolicy rejectionPolicy) {
+        this.diversification = diversification;
+        this.rejectionPolicy = rejectionPolicy;
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new DiversificationThreadFactory(), new Rejection());
+    }
+
+    /**
+     * Diversify a key for a card.
+     * The arrays are used by the derivation thread as they are: do not modify them before the future is completed.
+     *
+     * @param originalKey      Key to diversify
+     * @param keyIndex         Key index
+     * @param uid              Card UID
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Future diversified key
+     */
+    public CompletableFuture<byte[]> diversify(byte[] originalKey, int keyIndex, byte[] uid, byte[] aid,
+                                               byte[] systemIdentifier) {
+        return submit(() -> diversification.diversify(originalKey, keyIndex, uid, aid, systemIdentifier));
+    }
+
+    /**
+     * Diversify a master key opened by the process for a card
+     *
+     * @param key              Handle of the key to diversify
+     * @param keyIndex         Key index
+     * @param uid              Card UID
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Future diversified key
+     */
+    public CompletableFuture<byte[]> diversify(KeyHandle key, int keyIndex, byte[] uid, byte[] aid,
+                                               byte[] systemIdentifier) {
+        byte[] aidValue = aid != null ? aid : new byte[0];
+        byte[] systemIdentifierValue = systemIdentifier != null ? systemIdentifier : new byte[0];
+        return submit(() -> {
+            byte[] divKey = new byte[diversification.getDiversifiedKeyLength(key.getKeyLength())];
+            diversification.diversify(key, keyIndex, uid, 0, uid.length, aidValue, 0, aidValue.length,
+                    systemIdentifierValue, 0, systemIdentifierValue.length, divKey, 0);
+            return divKey;
+        });
+    }
+
+    /**
+     * Diversify a key for a batch of cards, in one request.
+     * The arrays are used by the derivation thread as they are: do not modify them before the future is completed.
+     *
+     * @param originalKey      Key to diversify
+     * @param keyIndex         Key index
+     * @param uids             Cards UIDs
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Future diversified keys, one after the other in the order of the UIDs
+     */
+    public CompletableFuture<byte[]> diversifyBatch(byte[] originalKey, int keyIndex, byte[][] uids, byte[] aid,
+                                                    byte[] systemIdentifier) {
+        return submit(() -> diversification.diversifyBatch(originalKey, keyIndex, uids, aid, systemIdentifier));
+    }
+
+    /**
+     * Diversify a key for a batch of contiguous UIDs, in one request.
+     * The arrays are used by the derivation thread as they are: do not modify them before the future is completed.
+     *
+     * @param originalKey      Key to diversify
+     * @param keyIndex         Key index
+     * @param uids             Buffer of contiguous UIDs, from offset 0
+     * @param uidLength        Length of one UID
+     * @param count            Number of UIDs
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Future diversified keys, one after the other in the order of the UIDs
+     */
+    public CompletableFuture<byte[]> diversifyBatch(byte[] originalKey, int keyIndex, byte[] uids, int uidLength,
+                                                    int count, byte[] aid, byte[] systemIdentifier) {
+        return submit(() -> {
+            byte[] keys = new byte[count * diversification.getDiversifiedKeyLength(originalKey.length)];
+            diversification.diversifyBatch(originalKey, keyIndex, uids, 0, uidLength, count, aid, systemIdentifier,
+                    keys, 0);
+            return keys;
+        });
+    }
+
+    /**
+     * Return the number of waiting requests
+     *
+     * @return Queue size
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting requests, the waiting ones are still run
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Close and wait for the waiting requests to be run
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return true if all requests have been run
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Queue a derivation
+     *
+     * @param task Derivation
+     * @param <T>  Type of the result
+     * @return Future result, failed if the request is rejected
+     */
+    protected <T> CompletableFuture<T> submit(Derivation<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(task.run());
+                } catch (DiversificationException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new DiversificationException(e.getMessage(), e));
+        }
+        return future;
+    }
+
+    /**
+     * Derivation run by a diversification thread
+     *
+     * @param <T> Type of the result
+     */
+    @FunctionalInterface
+    protected interface Derivation<T> {
+
+        /**
+         * Run the derivation
+         *
+         * @return Result
+         * @throws DiversificationException If the derivation fails
+         */
+        T run() throws DiversificationException;
+    }
+
+    /**
+     * Apply the rejection policy
+     */
+    protected class Rejection implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Diversification executor is closed");
+            }
+
+            switch (rejectionPolicy) {
+                case CALLER_RUNS:
+                    task.run();
+                    break;
+                case BLOCK:
+                    BlockingQueue<Runnable> queue = executor.getQueue();
+                    try {
+                        queue.put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the diversification queue", e);
+                    }
+                    if (executor.isShutdown() && queue.remove(task)) {
+                        throw new RejectedExecutionException("Diversification executor is closed");
+                    }
+                    break;
+                default:
+                    throw new RejectedExecutionException("Diversification queue is full");
+            }
+        }
+    }
+
+    /**
+     * Daemon threads named after the standard
+     */
+    protected class DiversificationThreadFactory implements ThreadFactory {
+
+        protected final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "diversification-" + diversification.getStandard() + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,873 @@
+package fr.redfroggy.sample.derivation.services;
+
+import com.google.common.util.concurrent.Futures;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import fr.redfroggy.sample.derivation.utils.HexCodec;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Diversification of a file or a range of UIDs.
+ * <p>
+ * The UIDs are read (or generated), diversified and written by chunks in a pipeline:
+ * one thread reads chunks, a pool of threads diversifies them and the calling thread writes them in the input order.
+ * The number of chunks is fixed, so the memory used does not depend on the file size.
+ * <p>
+ * Input is either hexadecimal lines (one UID per line, separators ignored, anything after ';' ignored)
+ * or fixed-width binary UIDs. Output is either hexadecimal lines "UID;KEY" or binary records UID || KEY.
+ */
+@Slf4j
+public class BulkDiversification {
+
+    /**
+     * File formats
+     */
+    public enum Format {
+        HEX,
+        BINARY
+    }
+
+    /**
+     * Default number of UIDs of a chunk
+     */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /**
+     * Separator between UID and key in hexadecimal output
+     */
+    public static final byte FIELD_SEPARATOR = ';';
+
+    /**
+     * Size of the hexadecimal input buffer
+     */
+    protected static final int INPUT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Size of the output buffer
+     */
+    protected static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Marks the end of the input
+     */
+    protected static final Future<Chunk> END = Futures.immediateFuture(null);
+
+    /**
+     * Diversification process
+     */
+    @Getter
+    protected final DiversificationStandard diversification;
+
+    /**
+     * Length of the UIDs
+     */
+    protected final int uidLength;
+
+    /**
+     * Number of UIDs of a chunk
+     */
+    protected final int batchSize;
+
+    /**
+     * Number of diversification threads
+     */
+    protected final int threads;
+
+    /**
+     * Create a bulk diversification
+     *
+     * @param diversification Diversification process
+     * @param uidLength       Length of the UIDs
+     * @param batchSize       Number of UIDs diversified together
+     * @param threads         Number of diversification threads, 0 for one per processor
+     */
+    public BulkDiversification(DiversificationStandard diversification, int uidLength, int batchSize, int threads) {
+        this.diversification = diversification;
+        this.uidLength = uidLength;
+        this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Diversify a key for all UIDs of a file
+     *
+     * @param key              Key to diversify
+     * @param keyIndex         Key index
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param input            File of UIDs
+     * @param inputFormat      Format of the UIDs file
+     * @param output           File receiving the diversified keys
+     * @param outputFormat     Format of the keys file
+     * @return Number of diversified keys
+     * @throws DiversificationException
+     */
+    public long diversify(byte[] key, int keyIndex, byte[] aid, byte[] systemIdentifier,
+                          Path input, Format inputFormat, Path output, Format outputFormat) throws DiversificationException {
+
+        int keyLength = diversification.getDiversifiedKeyLength(key.length);
+        try (UidReader reader = newReader(input, inputFormat, 0);
+             KeyWriter writer = new KeyWriter(output, outputFormat, uidLength, keyLength)) {
+            return diversify(key, keyIndex, aid, systemIdentifier, reader, 0, sink(writer), "file " + input);
+        } catch (IOException e) {
+            throw new DiversificationException("Cannot diversify file " + input, e);
+        }
+    }
+
+    /**
+     * Diversify a key for a range of UIDs into a file
+     *
+     * @param key              Key to diversify
+     * @param keyIndex         Key index
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param start            First UID of the range
+     * @param count            Number of UIDs
+     * @param step             Difference between two UIDs, read as big-endian numbers
+     * @param output           File receiving the diversified keys
+     * @param outputFormat     Format of the keys file
+     * @return Number of diversified keys
+     * @throws DiversificationException If the range does not fit in the UID length or a key cannot be diversified
+     * @see UidRange
+     */
+    public long diversifyRange(byte[] key, int keyIndex, byte[] aid, byte[] systemIdentifier,
+                               byte[] start, long count, long step, Path output, Format outputFormat)
+            throws DiversificationException {
+
+        int keyLength = diversification.getDiversifiedKeyLength(key.length);
+        try (KeyWriter writer = new KeyWriter(output, outputFormat, uidLength, keyLength)) {
+            return diversifyRange(key, keyIndex, aid, systemIdentifier, start, count, step, writer);
+        } catch (IOException e) {
+            throw new DiversificationException("Cannot write file " + output, e);
+        }
+    }
+
+    /**
+     * Diversify a key for a range of UIDs, the keys are given to a sink in the order of the range
+     *
+     * @param key              Key to diversify
+     * @param keyIndex         Key index
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param start            First UID of the range
+     * @param count            Number of UIDs
+     * @param step             Difference between two UIDs, read as big-endian numbers
+     * @param sink             Receiver of the UIDs and diversified keys, called by one thread at a time
+     * @return Number of diversified keys
+     * @throws DiversificationException If the range does not fit in the UID length or a key cannot be diversified
+     * @see UidRange
+     */
+    public long diversifyRange(byte[] key, int keyIndex, byte[] aid, byte[] systemIdentifier,
+                               byte[] start, long count, long step, KeySink sink) throws DiversificationException {
+
+        return diversify(key, keyIndex, aid, systemIdentifier, new UidRange(start, count, step), 0,
+                sink(sink), "range from " + BytesUtils.bytesToHex(start));
+    }
+
+    /**
+     * Check the diversified keys of a file of UIDs and expected keys, as written by the bulk diversification.
+     * The keys are diversified in parallel batches and compared as bytes, only the mismatches are reported.
+     *
+     * @param key              Key to diversify
+     * @param keyIndex         Key index
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param input            File of UIDs and expected keys: lines UID;KEY (HEX) or records UID || KEY (BINARY)
+     * @param inputFormat      Format of the file
+     * @param mismatches       File receiving the lines UID;EXPECTED;DIVERSIFIED of the mismatches, null for none
+     * @return Verification report
+     * @throws DiversificationException If the file cannot be read or a key cannot be diversified
+     */
+    public Verification verify(byte[] key, int keyIndex, byte[] aid, byte[] systemIdentifier,
+                               Path input, Format inputFormat, Path mismatches) throws DiversificationException {
+
+        long start = System.nanoTime();
+        int keyLength = diversification.getDiversifiedKeyLength(key.length);
+        try (UidReader reader = newReader(input, inputFormat, keyLength);
+             MismatchWriter writer = new MismatchWriter(mismatches, uidLength, keyLength)) {
+            long count = diversify(key, keyIndex, aid, systemIdentifier, reader, keyLength, writer, "file " + input);
+            return new Verification(count, writer.mismatches, System.nanoTime() - start);
+        } catch (IOException e) {
+            throw new DiversificationException("Cannot verify file " + input, e);
+        }
+    }
+
+    /**
+     * Open a file of UIDs
+     *
+     * @param input     File
+     * @param format    Format of the file
+     * @param keyLength Length of the expected key following each UID, 0 if there is none
+     * @return Reader
+     * @throws IOException If the file cannot be opened
+     */
+    protected UidReader newReader(Path input, Format format, int keyLength) throws IOException {
+        return format == Format.BINARY ? new BinaryUidReader(input, keyLength) : new HexUidReader(input, keyLength);
+    }
+
+    /**
+     * Adapt a key sink to the chunks of the pipeline
+     *
+     * @param sink Key sink
+     * @return Chunk sink
+     */
+    protected static ChunkSink sink(final KeySink sink) {
+        return new ChunkSink() {
+            @Override
+            public void write(Chunk chunk) throws IOException {
+                sink.write(chunk.uids, chunk.keys, chunk.count);
+            }
+        };
+    }
+
+    /**
+     * Diversify a key for all UIDs of a source, chunk by chunk
+     *
+     * @param key              Key to diversify
+     * @param keyIndex         Key index
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param reader           Source of the UIDs
+     * @param expectedLength   Length of the expected keys read with the UIDs, 0 if there are none
+     * @param sink             Receiver of the chunks, in the order of the source
+     * @param name             Name of the source in errors
+     * @return Number of diversified keys
+     * @throws DiversificationException
+     */
+    protected long diversify(final byte[] key, final int keyIndex, final byte[] aid, final byte[] systemIdentifier,
+                             final UidReader reader, int expectedLength, ChunkSink sink, String name)
+            throws DiversificationException {
+
+        final int keyLength = diversification.getDiversifiedKeyLength(key.length);
+        int chunks = 2 * threads + 2;
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            free.add(new Chunk(batchSize, uidLength, keyLength, expectedLength));
+        }
+        final BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<>(chunks + 1);
+
+        final ExecutorService computation = Executors.newFixedThreadPool(threads);
+        ExecutorService reading = Executors.newSingleThreadExecutor();
+        long count = 0;
+
+        try {
+            Future<Void> read = reading.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        while (true) {
+                            final Chunk chunk = free.take();
+                            chunk.count = reader.read(chunk, batchSize);
+                            if (chunk.count == 0) {
+                                return null;
+                            }
+
+                            pending.put(computation.submit(new Callable<Chunk>() {
+                                @Override
+                                public Chunk call() throws DiversificationException {
+                                    reader.fill(chunk);
+                                    diversification.diversifyBatch(key, keyIndex, chunk.uids, 0, uidLength, chunk.count,
+                                            aid, systemIdentifier, chunk.keys, 0);
+                                    if (chunk.expected != null) {
+                                        chunk.compare(keyLength);
+                                    }
+                                    return chunk;
+                                }
+                            }));
+                        }
+                    } finally {
+                        pending.put(END);
+                    }
+                }
+            });
+
+            Future<Chunk> next;
+            while ((next = pending.take()) != END) {
+                Chunk chunk = next.get();
+                sink.write(chunk);
+                count += chunk.count;
+                free.put(chunk);
+            }
+            read.get();
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DiversificationException) {
+                throw (DiversificationException) e.getCause();
+            }
+            throw new DiversificationException("Cannot diversify " + name, e.getCause());
+        } catch (IOException e) {
+            throw new DiversificationException("Cannot diversify " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiversificationException("Diversification of " + name + " interrupted", e);
+        } finally {
+            reading.shutdownNow();
+            computation.shutdownNow();
+        }
+
+        log.debug("{} keys diversified from {}", count, name);
+        return count;
+    }
+
+    /**
+     * Receiver of the diversified keys of a bulk diversification
+     */
+    public interface KeySink {
+
+        /**
+         * Receive the next diversified keys, in the order of the UIDs
+         *
+         * @param uids  Buffer of contiguous UIDs, from 0
+         * @param keys  Buffer of contiguous diversified keys, from 0
+         * @param count Number of UIDs and keys
+         * @throws IOException If the keys cannot be written
+         */
+        void write(byte[] uids, byte[] keys, int count) throws IOException;
+    }
+
+    /**
+     * Result of a verification
+     */
+    @Getter
+    public static class Verification {
+
+        /**
+         * Number of keys checked
+         */
+        protected final long count;
+
+        /**
+         * Number of diversified keys different from the expected ones
+         */
+        protected final long mismatches;
+
+        /**
+         * Duration of the verification in nanoseconds
+         */
+        protected final long elapsed;
+
+        public Verification(long count, long mismatches, long elapsed) {
+            this.count = count;
+            this.mismatches = mismatches;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Return the number of keys checked per second
+         *
+         * @return Throughput
+         */
+        public double getThroughput() {
+            return count * 1e9 / Math.max(elapsed, 1);
+        }
+    }
+
+    /**
+     * Receiver of the chunks of the pipeline
+     */
+    protected interface ChunkSink {
+
+        /**
+         * Receive the next chunk, in the order of the input
+         *
+         * @param chunk Diversified chunk, reused once this method returns
+         * @throws IOException If the chunk cannot be written
+         */
+        void write(Chunk chunk) throws IOException;
+    }
+
+    /**
+     * UIDs and diversified keys of a part of the input
+     */
+    protected static class Chunk {
+
+        protected final byte[] uids;
+
+        protected final byte[] keys;
+
+        protected int count;
+
+        /**
+         * Counter of the first UID (range only)
+         */
+        protected long first;
+
+        /**
+         * Whether the constant bytes of the UIDs have been written (range only)
+         */
+        protected boolean prepared;
+
+        /**
+         * Expected keys (verification only)
+         */
+        protected final byte[] expected;
+
+        /**
+         * Indexes of the keys different from the expected ones (verification only)
+         */
+        protected final int[] mismatches;
+
+        /**
+         * Number of mismatches
+         */
+        protected int mismatchCount;
+
+        protected Chunk(int batchSize, int uidLength, int keyLength, int expectedLength) {
+            this.uids = new byte[batchSize * uidLength];
+            this.keys = new byte[batchSize * keyLength];
+            this.expected = expectedLength > 0 ? new byte[batchSize * expectedLength] : null;
+            this.mismatches = expectedLength > 0 ? new int[batchSize] : null;
+        }
+
+        /**
+         * Compare the diversified keys with the expected ones
+         *
+         * @param keyLength Length of the keys
+         */
+        protected void compare(int keyLength) {
+            mismatchCount = 0;
+            for (int i = 0, offset = 0; i < count; i++, offset += keyLength) {
+                for (int j = offset; j < offset + keyLength; j++) {
+                    if (keys[j] != expected[j]) {
+                        mismatches[mismatchCount++] = i;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Source of UIDs, and of the expected keys for a verification
+     */
+    protected interface UidReader extends Closeable {
+
+        /**
+         * Read the next UIDs, in the reading thread
+         *
+         * @param chunk Chunk receiving the contiguous UIDs, and the expected keys of a verification
+         * @param max   Maximum number of UIDs to read
+         * @return Number of UIDs read, 0 at the end of the input
+         * @throws IOException
+         */
+        int read(Chunk chunk, int max) throws IOException;
+
+        /**
+         * Complete the UIDs of a chunk before its diversification, in a diversification thread
+         *
+         * @param chunk Chunk returned by {@link #read(Chunk, int)}
+         */
+        void fill(Chunk chunk);
+    }
+
+    /**
+     * Range of UIDs: a constant prefix and a big-endian counter on the last 7 bytes at most.
+     * <p>
+     * The UIDs are not parsed nor built from strings: the reading thread only hands out the counter of the first
+     * UID of each chunk, and the diversification threads generate the UIDs of their chunks. The bytes which stay
+     * the same over the whole range are written once in the buffer of a chunk, and only the varying low bytes
+     * of the counter are updated for each UID.
+     */
+    protected class UidRange implements UidReader {
+
+        /**
+         * First UID
+         */
+        protected final byte[] start;
+
+        /**
+         * Difference between two UIDs
+         */
+        protected final long step;
+
+        /**
+         * Number of low bytes which change over the range
+         */
+        protected final int varying;
+
+        /**
+         * Counter of the next UID to hand out
+         */
+        protected long next;
+
+        /**
+         * Number of UIDs left to hand out
+         */
+        protected long remaining;
+
+        protected UidRange(byte[] start, long count, long step) throws DiversificationException {
+            if (start.length != uidLength) {
+                throw new DiversificationException("Invalid UID length");
+            }
+            if (count < 0 || step < 1) {
+                throw new DiversificationException("Invalid UID range");
+            }
+
+            int counterLength = Math.min(uidLength, 7);
+            long first = 0;
+            for (int i = uidLength - counterLength; i < uidLength; i++) {
+                first = first << 8 | (start[i] & 0xFF);
+            }
+            long max = (1L << 8 * counterLength) - 1;
+            if (count > 1 && (count - 1) > (max - first) / step) {
+                throw new DiversificationException("UID range exceeds the last " + counterLength + " bytes of the UID");
+            }
+            long last = count > 1 ? first + (count - 1) * step : first;
+
+            this.start = start.clone();
+            this.step = step;
+            this.varying = (71 - Long.numberOfLeadingZeros(first ^ last)) / 8;
+            this.next = first;
+            this.remaining = count;
+        }
+
+        @Override
+        public int read(Chunk chunk, int max) {
+            int count = (int) Math.min(max, remaining);
+            chunk.first = next;
+            next += count * step;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public void fill(Chunk chunk) {
+            byte[] uids = chunk.uids;
+            if (!chunk.prepared) {
+                for (int offset = 0; offset < uids.length; offset += uidLength) {
+                    System.arraycopy(start, 0, uids, offset, uidLength);
+                }
+                chunk.prepared = true;
+            }
+
+            long value = chunk.first;
+            for (int i = 0, end = uidLength; i < chunk.count; i++, end += uidLength, value += step) {
+                long counter = value;
+                for (int j = end - 1; j >= end - varying; j--) {
+                    uids[j] = (byte) counter;
+                    counter >>>= 8;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+
+    /**
+     * Fixed-width binary UIDs, or records UID || expected key for a verification
+     */
+    protected class BinaryUidReader implements UidReader {
+
+        protected final FileChannel channel;
+
+        /**
+         * Length of the expected keys, 0 if there are none
+         */
+        protected final int keyLength;
+
+        /**
+         * Records of the last read (verification only)
+         */
+        protected byte[] records;
+
+        protected BinaryUidReader(Path input, int keyLength) throws IOException {
+            this.channel = FileChannel.open(input, StandardOpenOption.READ);
+            this.keyLength = keyLength;
+        }
+
+        @Override
+        public int read(Chunk chunk, int max) throws IOException {
+            int recordLength = uidLength + keyLength;
+            if (keyLength > 0 && records == null) {
+                records = new byte[max * recordLength];
+            }
+
+            ByteBuffer buffer = keyLength > 0 ? ByteBuffer.wrap(records, 0, max * recordLength)
+                    : ByteBuffer.wrap(chunk.uids, 0, max * uidLength);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read until the buffer is full or the end of the file
+            }
+
+            if (buffer.position() % recordLength != 0) {
+                throw new IOException(keyLength > 0 ? "File size is not a multiple of the record length"
+                        : "File size is not a multiple of the UID length");
+            }
+            int count = buffer.position() / recordLength;
+            for (int i = 0; keyLength > 0 && i < count; i++) {
+                System.arraycopy(records, i * recordLength, chunk.uids, i * uidLength, uidLength);
+                System.arraycopy(records, i * recordLength + uidLength, chunk.expected, i * keyLength, keyLength);
+            }
+            return count;
+        }
+
+        @Override
+        public void fill(Chunk chunk) {
+            // UIDs read from the file
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Hexadecimal UIDs, one per line, followed by the expected key for a verification
+     */
+    protected class HexUidReader implements UidReader {
+
+        protected final FileChannel channel;
+
+        protected final ByteBuffer buffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+
+        /**
+         * Length of the expected keys, 0 if there are none
+         */
+        protected final int keyLength;
+
+        protected long line;
+
+        protected HexUidReader(Path input, int keyLength) throws IOException {
+            this.channel = FileChannel.open(input, StandardOpenOption.READ);
+            this.buffer.limit(0);
+            this.keyLength = keyLength;
+        }
+
+        @Override
+        public int read(Chunk chunk, int max) throws IOException {
+            byte[] uids = chunk.uids;
+            byte[] keys = chunk.expected;
+            int count = 0;
+            int digits = 0;
+            int keyDigits = 0;
+            int field = 0;
+
+            byte[] data = buffer.array();
+            while (count < max) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int read = channel.read(buffer);
+                    buffer.flip();
+                    if (read < 0) {
+                        break;
+                    }
+                    continue;
+                }
+
+                int c = data[buffer.position()];
+                buffer.position(buffer.position() + 1);
+                if (c == '\n') {
+                    line++;
+                    if (digits != 0 || keyDigits != 0) {
+                        check(digits, keyDigits, line);
+                        count++;
+                    }
+                    digits = 0;
+                    keyDigits = 0;
+                    field = 0;
+                } else if (c == FIELD_SEPARATOR) {
+                    field++;
+                } else if (field == 0) {
+                    int value = HexCodec.digit(c);
+                    if (value >= 0) {
+                        if (digits >= 2 * uidLength) {
+                            throw new IOException("Invalid UID length at line " + (line + 1));
+                        }
+                        int index = count * uidLength + digits / 2;
+                        uids[index] = (byte) (digits % 2 == 0 ? value << 4 : uids[index] | value);
+                        digits++;
+                    }
+                } else if (field == 1 && keyLength > 0) {
+                    int value = HexCodec.digit(c);
+                    if (value >= 0) {
+                        if (keyDigits >= 2 * keyLength) {
+                            throw new IOException("Invalid key length at line " + (line + 1));
+                        }
+                        int index = count * keyLength + keyDigits / 2;
+                        keys[index] = (byte) (keyDigits % 2 == 0 ? value << 4 : keys[index] | value);
+                        keyDigits++;
+                    }
+                }
+            }
+
+            // Last line without line feed
+            if (count < max && (digits != 0 || keyDigits != 0)) {
+                line++;
+                check(digits, keyDigits, line);
+                count++;
+            }
+
+            return count;
+        }
+
+        /**
+         * Check the number of digits of a line
+         *
+         * @param digits    Digits of the UID
+         * @param keyDigits Digits of the expected key
+         * @param line      Line number
+         * @throws IOException If the UID or the key has not the expected length
+         */
+        protected void check(int digits, int keyDigits, long line) throws IOException {
+            if (digits != 2 * uidLength) {
+                throw new IOException("Invalid UID length at line " + line);
+            }
+            if (keyDigits != 2 * keyLength) {
+                throw new IOException("Invalid key length at line " + line);
+            }
+        }
+
+        @Override
+        public void fill(Chunk chunk) {
+            // UIDs read from the file
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Output of UIDs and diversified keys through a direct buffer
+     */
+    protected static class KeyWriter implements KeySink, Closeable {
+
+        protected final FileChannel channel;
+
+        protected final ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+
+        protected final Format format;
+
+        protected final int uidLength;
+
+        protected final int keyLength;
+
+        protected KeyWriter(Path output, Format format, int uidLength, int keyLength) throws IOException {
+            this.channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.format = format;
+            this.uidLength = uidLength;
+            this.keyLength = keyLength;
+        }
+
+        @Override
+        public void write(byte[] uids, byte[] keys, int count) throws IOException {
+            int recordLength = format == Format.BINARY ? uidLength + keyLength : 2 * (uidLength + keyLength) + 2;
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < recordLength) {
+                    flush();
+                }
+
+                if (format == Format.BINARY) {
+                    buffer.put(uids, i * uidLength, uidLength);
+                    buffer.put(keys, i * keyLength, keyLength);
+                } else {
+                    HexCodec.encode(uids, i * uidLength, uidLength, buffer);
+                    buffer.put(FIELD_SEPARATOR);
+                    HexCodec.encode(keys, i * keyLength, keyLength, buffer);
+                    buffer.put((byte) '\n');
+                }
+            }
+        }
+
+        /**
+         * Write a hexadecimal line UID;EXPECTED;DIVERSIFIED
+         *
+         * @param uids      Buffer of UIDs
+         * @param uidOffset Offset of the UID
+         * @param expected  Buffer of expected keys
+         * @param keys      Buffer of diversified keys
+         * @param keyOffset Offset of the expected and diversified keys
+         * @throws IOException
+         */
+        protected void writeMismatch(byte[] uids, int uidOffset, byte[] expected, byte[] keys, int keyOffset)
+                throws IOException {
+            if (buffer.remaining() < 2 * (uidLength + 2 * keyLength) + 3) {
+                flush();
+            }
+            HexCodec.encode(uids, uidOffset, uidLength, buffer);
+            buffer.put(FIELD_SEPARATOR);
+            HexCodec.encode(expected, keyOffset, keyLength, buffer);
+            buffer.put(FIELD_SEPARATOR);
+            HexCodec.encode(keys, keyOffset, keyLength, buffer);
+            buffer.put((byte) '\n');
+        }
+
+        protected void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Output of the mismatches of a verification, lines UID;EXPECTED;DIVERSIFIED
+     */
+    protected static class MismatchWriter implements ChunkSink, Closeable {
+
+        /**
+         * File, null if the mismatches are only counted
+         */
+        protected final KeyWriter writer;
+
+        protected final int uidLength;
+
+        protected final int keyLength;
+
+        /**
+         * Number of mismatches found
+         */
+        protected long mismatches;
+
+        protected MismatchWriter(Path output, int uidLength, int keyLength) throws IOException {
+            this.writer = output != null ? new KeyWriter(output, Format.HEX, uidLength, keyLength) : null;
+            this.uidLength = uidLength;
+            this.keyLength = keyLength;
+        }
+
+        @Override
+        public void write(Chunk chunk) throws IOException {
+            mismatches += chunk.mismatchCount;
+            for (int i = 0; writer != null && i < chunk.mismatchCount; i++) {
+                int index = chunk.mismatches[i];
+                writer.writeMismatch(chunk.uids, index * uidLength, chunk.expected, chunk.keys, index * keyLength);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}
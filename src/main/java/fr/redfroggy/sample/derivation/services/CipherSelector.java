@@ -0,0 +1,229 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.security.BlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.JceBlockCipherProvider;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Choice of the block cipher provider of an algorithm, by a self-benchmark at startup.
+ * <p>
+ * Each provider diversifies the reference examples of the standards using the algorithm. A provider giving a wrong key
+ * is discarded, the fastest of the others is chosen. The choice is made once per algorithm for the whole JVM,
+ * at the cost of half a second of startup.
+ * <p>
+ * The selection is an explicit opt-in (AUTO), the default provider being the JCE: it may choose the Java ciphers,
+ * whose table lookups are exposed to cache timing attacks, see {@link JavaBlockCipherProvider}.
+ */
+@Slf4j
+public class CipherSelector {
+
+    /**
+     * Reference examples of the standards
+     */
+    protected static final Example[] EXAMPLES = {
+            // NXP AN10922 / §2.2.1 : AES-128 key diversification example
+            new Example(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", 0,
+                    "04782E21801D80", "F54230", "4E585020416275", "A8DD63A3B89D54B37CA802473FDA9175"),
+            // NXP AN10922 / §2.3.1 : AES-192 key diversification example
+            new Example(AbstractDiversification.Standard.AN10922_AES192, "00112233445566778899AABBCCDDEEFF0102030405060708", 0,
+                    "04782E21801D80", "F54230", "4E585020416275", "CE39C8E1CD82D9A7BEDBE9D74AF59B23176755EE7586E12C"),
+            // HID AN1048 / §5.1. Example: Single DES
+            new Example(AbstractDiversification.Standard.AN0148_DES, "0123456789ABCDEF", 1,
+                    "045E75A9C12580", "", "", "1A945225B3FAA445"),
+            // HID AN1048 / §5.2. Example: Two-key 3DES
+            new Example(AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA9876543210", 1,
+                    "045E75A9C12580", "", "", "7BAA6C97BDA36BFF24445AFFA0B58CF6"),
+            // HID AN1048 / §5.3. Example: AES
+            new Example(AbstractDiversification.Standard.AN0148_AES, "0123456789ABCDEFFEDCBA9876543210", 1,
+                    "046C75A9C12580", "", "", "519A502E2F69CE7B17C3BFB12B304D28")
+    };
+
+    /**
+     * Number of diversifications of an example per measure
+     */
+    protected static final int ITERATIONS = 2000;
+
+    /**
+     * Minimum number of measures of a provider
+     */
+    protected static final int MINIMUM_MEASURES = 5;
+
+    /**
+     * Duration of the benchmark of an algorithm: the first measures run before the compilation of the code,
+     * the JCE only uses the AES instructions of the processor once its code is compiled
+     */
+    protected static final long DURATION = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Provider chosen for each algorithm
+     */
+    protected static final Map<Algorithm, BlockCipherProvider> SELECTED = new EnumMap<>(Algorithm.class);
+
+    private CipherSelector() {
+    }
+
+    /**
+     * Return the provider of an algorithm, benchmarking the available providers on the first call
+     *
+     * @param algorithm Algorithm
+     * @return Fastest correct provider
+     * @throws DiversificationException If no provider is correct
+     */
+    public static synchronized BlockCipherProvider select(Algorithm algorithm) throws DiversificationException {
+        BlockCipherProvider provider = SELECTED.get(algorithm);
+        if (provider == null) {
+            provider = select(algorithm, Arrays.asList(new JceBlockCipherProvider(), new JavaBlockCipherProvider()));
+            SELECTED.put(algorithm, provider);
+        }
+
+        return provider;
+    }
+
+    /**
+     * Return a provider by name
+     *
+     * @param name      AUTO, JCE or JAVA
+     * @param algorithm Algorithm of the ciphers, benchmarked for AUTO
+     * @return Provider
+     * @throws DiversificationException If no provider is correct (AUTO)
+     * @throws IllegalArgumentException If the name is unknown
+     */
+    public static BlockCipherProvider forName(String name, Algorithm algorithm) throws DiversificationException {
+        switch (name) {
+            case "AUTO":
+                return select(algorithm);
+            case "JCE":
+                return new JceBlockCipherProvider();
+            case "JAVA":
+                return new JavaBlockCipherProvider();
+            default:
+                throw new IllegalArgumentException("Unknown cipher provider: " + name);
+        }
+    }
+
+    /**
+     * Benchmark providers of an algorithm on the reference examples
+     *
+     * @param algorithm  Algorithm
+     * @param candidates Providers, by order of preference for an algorithm without example
+     * @return Fastest correct provider
+     * @throws DiversificationException If no provider is correct
+     */
+    public static BlockCipherProvider select(Algorithm algorithm, List<BlockCipherProvider> candidates)
+            throws DiversificationException {
+
+        List<Example> examples = new ArrayList<>();
+        for (Example example : EXAMPLES) {
+            if (example.standard.getAlgorithm().equals(algorithm)) {
+                examples.add(example);
+            }
+        }
+        if (examples.isEmpty()) {
+            return candidates.get(0);
+        }
+
+        // Measures of the providers interleaved, so that they all run before and after the compilation
+        long[] times = new long[candidates.size()];
+        Arrays.fill(times, Long.MAX_VALUE);
+        long end = System.nanoTime() + DURATION;
+        for (int measure = 0; measure < MINIMUM_MEASURES || System.nanoTime() < end; measure++) {
+            for (int i = 0; i < candidates.size(); i++) {
+                if (times[i] >= 0) {
+                    times[i] = Math.min(times[i], measure(candidates.get(i), examples));
+                }
+            }
+        }
+
+        int best = -1;
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < candidates.size(); i++) {
+            long time = times[i] < 0 ? -1 : times[i] / (ITERATIONS * examples.size());
+            report.append(i == 0 ? "" : ", ").append(candidates.get(i).getName())
+                    .append(time < 0 ? ": incorrect" : ": " + time + " ns");
+            // The measures being noisy, a provider replaces a preferred one only when clearly faster
+            if (times[i] >= 0 && (best < 0 || times[i] + times[i] / 5 < times[best])) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            throw new DiversificationException("Cannot find a correct cipher for " + algorithm + " (" + report + ")");
+        }
+
+        log.info("Cipher provider for {}: {} (time per diversification: {})", algorithm, candidates.get(best).getName(), report);
+        return candidates.get(best);
+    }
+
+    /**
+     * Diversify the examples with a provider
+     *
+     * @param provider Provider
+     * @param examples Reference examples
+     * @return Time in nanoseconds, -1 if the provider gives a wrong key or fails
+     */
+    protected static long measure(BlockCipherProvider provider, List<Example> examples) {
+        long time = 0;
+        for (Example example : examples) {
+            byte[] key = example.key;
+            byte[] uid = example.uid;
+            byte[] aid = example.aid;
+            byte[] systemIdentifier = example.systemIdentifier;
+            byte[] output = new byte[example.divKey.length];
+
+            try {
+                DiversificationStandard div = new DiversificationStandard(example.standard, 1, provider);
+                long start = System.nanoTime();
+                for (int n = 0; n < ITERATIONS; n++) {
+                    div.diversify(key, 0, key.length, example.keyIndex, uid, 0, uid.length, aid, 0, aid.length,
+                            systemIdentifier, 0, systemIdentifier.length, output, 0);
+                }
+                time += System.nanoTime() - start;
+            } catch (DiversificationException e) {
+                log.warn("Cipher provider {} failed on {}", provider.getName(), example.standard, e);
+                return -1;
+            }
+
+            if (!Arrays.equals(example.divKey, output)) {
+                log.warn("Cipher provider {} gives a wrong key on {}", provider.getName(), example.standard);
+                return -1;
+            }
+        }
+
+        return time;
+    }
+
+    /**
+     * Diversification example with its expected key
+     */
+    protected static class Example {
+
+        protected final AbstractDiversification.Standard standard;
+        protected final byte[] key;
+        protected final int keyIndex;
+        protected final byte[] uid;
+        protected final byte[] aid;
+        protected final byte[] systemIdentifier;
+        protected final byte[] divKey;
+
+        protected Example(AbstractDiversification.Standard standard, String key, int keyIndex, String uid, String aid,
+                          String systemIdentifier, String divKey) {
+            this.standard = standard;
+            this.key = BytesUtils.hexToBytes(key);
+            this.keyIndex = keyIndex;
+            this.uid = BytesUtils.hexToBytes(uid);
+            this.aid = BytesUtils.hexToBytes(aid);
+            this.systemIdentifier = BytesUtils.hexToBytes(systemIdentifier);
+            this.divKey = BytesUtils.hexToBytes(divKey);
+        }
+    }
+}
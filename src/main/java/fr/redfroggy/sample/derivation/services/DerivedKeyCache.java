@@ -0,0 +1,487 @@
+package fr.redfroggy.sample.derivation.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache of diversified keys, indexed by the master key, key index, UID, AID and system identifier
+ * of the derivation. It serves cards presented again and again without deriving their keys each time.
+ * <p>
+ * Lookups take no lock: the entries are spread over the segments of a Guava cache, read without lock,
+ * and a hit only takes a reference on the entry for the time of the copy. Entries expire after a fixed time
+ * and the least recently used ones are evicted above the maximum size. The inputs and the diversified key
+ * of an entry are zeroized on eviction, once no lookup uses them anymore.
+ * <p>
+ * The master key is indexed by the identifier of its {@link KeyContext} (or of its {@link KeyHandle}),
+ * never by its value: the cache holds no copy of a master key. The same key given by another handle,
+ * or again by value once its context has been evicted, is another entry.
+ */
+public class DerivedKeyCache {
+
+    /**
+     * Default number of diversified keys kept in cache
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    /**
+     * Default time in milliseconds a diversified key is kept in cache
+     */
+    public static final long DEFAULT_EXPIRATION = 10 * 60 * 1000;
+
+    /**
+     * Diversified keys by derivation inputs
+     */
+    protected final Cache<Inputs, DerivedKey> keys;
+
+    /**
+     * Reusable lookup key of each thread
+     */
+    protected final ThreadLocal<Inputs> probes = new ThreadLocal<Inputs>() {
+        @Override
+        protected Inputs initialValue() {
+            return new Inputs(new byte[64]);
+        }
+    };
+
+    /**
+     * Create a cache with the default size and expiration
+     */
+    public DerivedKeyCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRATION);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param maximumSize Maximum number of diversified keys kept in cache
+     * @param expiration  Time in milliseconds a diversified key is kept after its derivation, 0 for no expiration
+     */
+    public DerivedKeyCache(int maximumSize, long expiration) {
+        Preconditions.checkArgument(maximumSize > 0, "Cache size must be positive");
+        Preconditions.checkArgument(expiration >= 0, "Cache expiration must not be negative");
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats();
+        if (expiration > 0) {
+            builder.expireAfterWrite(expiration, TimeUnit.MILLISECONDS).ticker(CoarseTicker.get());
+        }
+        this.keys = builder
+                .removalListener(new RemovalListener<Inputs, DerivedKey>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Inputs, DerivedKey> notification) {
+                        // A replaced entry keeps its key
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            notification.getKey().zeroize();
+                        }
+                        notification.getValue().destroy();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Copy the diversified key of a derivation, if it is in cache
+     *
+     * @param context                Context of the master key
+     * @param keyLength              Length of the master key, before any expansion
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @return Length of the diversified key, -1 if it is not in cache
+     */
+    public int get(KeyContext context, int keyLength, int keyIndex,
+                   byte[] uid, int uidOffset, int uidLength,
+                   byte[] aid, int aidOffset, int aidLength,
+                   byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                   byte[] output, int outputOffset) {
+
+        Inputs probe = probes.get();
+        if (!probe.set(context.getId(), keyLength, keyIndex, uid, uidOffset, uidLength,
+                aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength)) {
+            return -1;
+        }
+
+        return get(probe, output, outputOffset);
+    }
+
+    /**
+     * Copy the diversified key of a derivation with an opened master key, if it is in cache
+     *
+     * @param key                    Handle of the master key
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @return Length of the diversified key, -1 if it is not in cache
+     */
+    public int get(KeyHandle key, int keyIndex,
+                   byte[] uid, int uidOffset, int uidLength,
+                   byte[] aid, int aidOffset, int aidLength,
+                   byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                   byte[] output, int outputOffset) {
+
+        Inputs probe = probes.get();
+        if (!probe.set(key.getId(), key.getKeyLength(), keyIndex, uid, uidOffset, uidLength,
+                aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength)) {
+            return -1;
+        }
+
+        return get(probe, output, outputOffset);
+    }
+
+    /**
+     * Add the diversified key of a derivation
+     *
+     * @param context                Context of the master key
+     * @param keyLength              Length of the master key, before any expansion
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer containing the diversified key
+     * @param outputOffset           Offset of the diversified key
+     * @param length                 Length of the diversified key
+     */
+    public void put(KeyContext context, int keyLength, int keyIndex,
+                    byte[] uid, int uidOffset, int uidLength,
+                    byte[] aid, int aidOffset, int aidLength,
+                    byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                    byte[] output, int outputOffset, int length) {
+
+        Inputs probe = probes.get();
+        if (probe.set(context.getId(), keyLength, keyIndex, uid, uidOffset, uidLength,
+                aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength)) {
+            put(probe, output, outputOffset, length);
+        }
+    }
+
+    /**
+     * Add the diversified key of a derivation with an opened master key
+     *
+     * @param key                    Handle of the master key
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer containing the diversified key
+     * @param outputOffset           Offset of the diversified key
+     * @param length                 Length of the diversified key
+     */
+    public void put(KeyHandle key, int keyIndex,
+                    byte[] uid, int uidOffset, int uidLength,
+                    byte[] aid, int aidOffset, int aidLength,
+                    byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                    byte[] output, int outputOffset, int length) {
+
+        Inputs probe = probes.get();
+        if (probe.set(key.getId(), key.getKeyLength(), keyIndex, uid, uidOffset, uidLength,
+                aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength)) {
+            put(probe, output, outputOffset, length);
+        }
+    }
+
+    /**
+     * Copy the diversified key of the inputs of a lookup key, and clear it
+     *
+     * @param probe        Lookup key of the current thread
+     * @param output       Buffer receiving the diversified key
+     * @param outputOffset Offset of the diversified key in output
+     * @return Length of the diversified key, -1 if it is not in cache
+     */
+    protected int get(Inputs probe, byte[] output, int outputOffset) {
+        DerivedKey derivedKey = keys.getIfPresent(probe);
+        probe.clear();
+
+        // The entry may have been evicted and zeroized since it has been read
+        if (derivedKey == null || !derivedKey.retain()) {
+            return -1;
+        }
+        try {
+            System.arraycopy(derivedKey.value, 0, output, outputOffset, derivedKey.value.length);
+            return derivedKey.value.length;
+        } finally {
+            derivedKey.release();
+        }
+    }
+
+    /**
+     * Add the diversified key of the inputs of a lookup key, and clear it
+     *
+     * @param probe        Lookup key of the current thread
+     * @param output       Buffer containing the diversified key
+     * @param outputOffset Offset of the diversified key
+     * @param length       Length of the diversified key
+     */
+    protected void put(Inputs probe, byte[] output, int outputOffset, int length) {
+        Inputs inputs = probe.copy();
+        probe.clear();
+        DerivedKey derivedKey = new DerivedKey(Arrays.copyOfRange(output, outputOffset, outputOffset + length));
+
+        // Keep the entry of a concurrent derivation of the same card
+        if (keys.asMap().putIfAbsent(inputs, derivedKey) != null) {
+            inputs.zeroize();
+            derivedKey.destroy();
+        }
+    }
+
+    /**
+     * Return the number of diversified keys in cache
+     *
+     * @return Number of keys
+     */
+    public long size() {
+        return keys.size();
+    }
+
+    /**
+     * Return the hits and misses of the cache
+     *
+     * @return Statistics
+     */
+    public CacheStats stats() {
+        return keys.stats();
+    }
+
+    /**
+     * Remove and zeroize all diversified keys
+     */
+    public void invalidateAll() {
+        keys.invalidateAll();
+    }
+
+    /**
+     * Clock of the expirations, updated every {@value #RESOLUTION} ms by a background thread.
+     * Reading the system clock on each lookup would cost about as much as the lookup itself.
+     * The thread is started with the first cache having an expiration, never when no cache expires.
+     */
+    protected static final class CoarseTicker extends Ticker {
+
+        protected static final long RESOLUTION = 10;
+
+        protected static CoarseTicker instance;
+
+        protected volatile long now = System.nanoTime();
+
+        /**
+         * Return the shared clock, started on the first call
+         */
+        protected static synchronized CoarseTicker get() {
+            if (instance == null) {
+                instance = new CoarseTicker();
+            }
+            return instance;
+        }
+
+        private CoarseTicker() {
+            ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "derived-key-cache-clock");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            clock.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    now = System.nanoTime();
+                }
+            }, RESOLUTION, RESOLUTION, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public long read() {
+            return now;
+        }
+    }
+
+    /**
+     * Inputs of a derivation, encoded as length-prefixed fields after the key identifier.
+     * The AID and system identifier are not hashed, equality compares all inputs.
+     */
+    protected static final class Inputs {
+
+        protected byte[] data;
+
+        protected int length;
+
+        protected int hash;
+
+        protected Inputs(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * Encode the inputs of a derivation in this object, the master key given by its identifier
+         *
+         * @return false if a field is too long or the key is empty
+         */
+        protected boolean set(long keyId, int keyLength, int keyIndex,
+                              byte[] uid, int uidOffset, int uidLength,
+                              byte[] aid, int aidOffset, int aidLength,
+                              byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength) {
+
+            if (keyLength <= 0 || keyLength > 255 || uidLength > 255 || aidLength > 255
+                    || systemIdentifierLength > 255) {
+                return false;
+            }
+            int required = 13 + uidLength + aidLength + systemIdentifierLength;
+            if (data.length < required) {
+                data = new byte[required];
+            }
+
+            // The key identifier and length (two keys may share the context of their expansion), then the UID
+            length = 0;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[length++] = (byte) (keyId >>> shift);
+            }
+            data[length++] = (byte) keyLength;
+            data[length++] = (byte) keyIndex;
+            append(uid, uidOffset, uidLength);
+            int h = 1;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + data[i];
+            }
+            hash = h;
+
+            append(aid, aidOffset, aidLength);
+            append(systemIdentifier, systemIdentifierOffset, systemIdentifierLength);
+            return true;
+        }
+
+        protected void append(byte[] field, int offset, int fieldLength) {
+            data[length++] = (byte) fieldLength;
+            if (fieldLength > 0) {
+                System.arraycopy(field, offset, data, length, fieldLength);
+                length += fieldLength;
+            }
+        }
+
+        /**
+         * Return an immutable copy of the current inputs
+         */
+        protected Inputs copy() {
+            Inputs copy = new Inputs(Arrays.copyOf(data, length));
+            copy.length = length;
+            copy.hash = hash;
+            return copy;
+        }
+
+        /**
+         * Erase the current inputs of a reusable lookup key
+         */
+        protected void clear() {
+            Arrays.fill(data, 0, length, (byte) 0x00);
+        }
+
+        /**
+         * Erase the inputs of an entry
+         */
+        protected void zeroize() {
+            Arrays.fill(data, (byte) 0x00);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Inputs)) {
+                return false;
+            }
+            Inputs inputs = (Inputs) other;
+            if (inputs.hash != hash || inputs.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[i] != inputs.data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Diversified key, zeroized when the cache and the lookups using it have released it
+     */
+    protected static final class DerivedKey {
+
+        protected final byte[] value;
+
+        /**
+         * Number of references, the cache owns the first one
+         */
+        protected final AtomicInteger references = new AtomicInteger(1);
+
+        protected DerivedKey(byte[] value) {
+            this.value = value;
+        }
+
+        protected boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+
+            return true;
+        }
+
+        protected void release() {
+            if (references.decrementAndGet() == 0) {
+                Arrays.fill(value, (byte) 0x00);
+            }
+        }
+
+        protected void destroy() {
+            release();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups concurrent single-card requests into batches.
+ * <p>
+ * Requests sharing the master key, key index, UID length, application ID and system identifier join the same open
+ * batch. A batch is diversified in one call of {@link DiversificationStandard#diversifyBatch}, either by the caller
+ * whose request fills it (no thread switch) or by a coalescer thread once the window has elapsed since its first
+ * request: under load most batches are full, and an idle request waits at most one window. Each caller gets its own
+ * future, completed with its key or with the {@link DiversificationException} of the batch.
+ * <p>
+ * The key, application ID and system identifier of a request must not be modified before its future is completed,
+ * the UID is copied.
+ */
+@Slf4j
+public class DiversificationCoalescer implements Closeable {
+
+    /**
+     * Default maximum number of cards of a batch
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Default window, in microseconds
+     */
+    public static final long DEFAULT_WINDOW = 200;
+
+    /**
+     * Diversification process
+     */
+    @Getter
+    protected final DiversificationStandard diversification;
+
+    /**
+     * Maximum number of cards of a batch
+     */
+    @Getter
+    protected final int maxBatchSize;
+
+    /**
+     * Maximum time a request waits for other requests, in microseconds
+     */
+    @Getter
+    protected final long window;
+
+    /**
+     * Threads diversifying the batches whose window has elapsed
+     */
+    protected final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Open batches by request parameters, guarded by itself
+     */
+    protected final Map<BatchKey, Batch> batches = new HashMap<>();
+
+    protected boolean closed;
+
+    /**
+     * Create a coalescer
+     *
+     * @param diversification Diversification process
+     * @param threads         Number of diversification threads, 0 for one per processor
+     * @param maxBatchSize    Maximum number of cards of a batch
+     * @param window          Maximum time a request waits for other requests, in microseconds
+     */
+    public DiversificationCoalescer(DiversificationStandard diversification, int threads, int maxBatchSize, long window) {
+        if (maxBatchSize <= 0 || window < 0) {
+            throw new IllegalArgumentException("Invalid batch size or window");
+        }
+        this.diversification = diversification;
+        this.maxBatchSize = maxBatchSize;
+        this.window = window;
+        this.executor = new ScheduledThreadPoolExecutor(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                new CoalescerThreadFactory());
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Diversify a key for a card, with the concurrent requests of the same parameters.
+     * The caller filling a batch diversifies it before returning.
+     *
+     * @param originalKey      Key to diversify
+     * @param keyIndex         Key index
+     * @param uid              Card UID
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Future diversified key
+     */
+    public CompletableFuture<byte[]> diversify(byte[] originalKey, int keyIndex, byte[] uid, byte[] aid,
+                                               byte[] systemIdentifier) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        BatchKey key = new BatchKey(originalKey, keyIndex, uid.length,
+                aid != null ? aid : new byte[0], systemIdentifier != null ? systemIdentifier : new byte[0]);
+
+        Batch full = null;
+        synchronized (batches) {
+            if (closed) {
+                future.completeExceptionally(new DiversificationException("Diversification coalescer is closed"));
+                return future;
+            }
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(key);
+                batches.put(key, batch);
+                batch.timer = executor.schedule(batch, window, TimeUnit.MICROSECONDS);
+            }
+            batch.add(uid, future);
+            if (batch.count == maxBatchSize) {
+                batches.remove(key);
+                batch.timer.cancel(false);
+                full = batch;
+            }
+        }
+
+        if (full != null) {
+            full.diversify();
+        }
+        return future;
+    }
+
+    /**
+     * Return the number of open batches
+     *
+     * @return Open batches
+     */
+    public int getOpenBatches() {
+        synchronized (batches) {
+            return batches.size();
+        }
+    }
+
+    /**
+     * Stop accepting requests, the open batches are diversified at once
+     */
+    @Override
+    public void close() {
+        List<Batch> open;
+        synchronized (batches) {
+            closed = true;
+            open = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : open) {
+            batch.timer.cancel(false);
+            batch.diversify();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Parameters shared by the requests of a batch
+     */
+    protected static class BatchKey {
+
+        protected final byte[] key;
+
+        protected final int keyIndex;
+
+        protected final int uidLength;
+
+        protected final byte[] aid;
+
+        protected final byte[] systemIdentifier;
+
+        protected final int hash;
+
+        protected BatchKey(byte[] key, int keyIndex, int uidLength, byte[] aid, byte[] systemIdentifier) {
+            this.key = key;
+            this.keyIndex = keyIndex;
+            this.uidLength = uidLength;
+            this.aid = aid;
+            this.systemIdentifier = systemIdentifier;
+            this.hash = 31 * (31 * (31 * (31 * Arrays.hashCode(key) + keyIndex) + uidLength) + Arrays.hashCode(aid))
+                    + Arrays.hashCode(systemIdentifier);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) o;
+            return hash == other.hash && keyIndex == other.keyIndex && uidLength == other.uidLength
+                    && Arrays.equals(key, other.key) && Arrays.equals(aid, other.aid)
+                    && Arrays.equals(systemIdentifier, other.systemIdentifier);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Requests waiting to be diversified together, run at the end of its window
+     */
+    protected class Batch implements Runnable {
+
+        protected final BatchKey key;
+
+        protected final byte[] uids;
+
+        @SuppressWarnings("unchecked")
+        protected final CompletableFuture<byte[]>[] futures = new CompletableFuture[maxBatchSize];
+
+        protected int count;
+
+        protected ScheduledFuture<?> timer;
+
+        protected Batch(BatchKey key) {
+            this.key = key;
+            this.uids = new byte[maxBatchSize * key.uidLength];
+        }
+
+        protected void add(byte[] uid, CompletableFuture<byte[]> future) {
+            System.arraycopy(uid, 0, uids, count * key.uidLength, key.uidLength);
+            futures[count++] = future;
+        }
+
+        /**
+         * End of the window: close the batch if it is still open, then diversify it
+         */
+        @Override
+        public void run() {
+            // A full batch is already closed
+            synchronized (batches) {
+                if (batches.get(key) != this) {
+                    return;
+                }
+                batches.remove(key);
+            }
+            diversify();
+        }
+
+        /**
+         * Diversify the requests and complete their futures
+         */
+        protected void diversify() {
+            try {
+                int keyLength = diversification.getDiversifiedKeyLength(key.key.length);
+                byte[] keys = new byte[count * keyLength];
+                diversification.diversifyBatch(key.key, key.keyIndex, uids, 0, key.uidLength, count,
+                        key.aid, key.systemIdentifier, keys, 0);
+                for (int i = 0; i < count; i++) {
+                    futures[i].complete(Arrays.copyOfRange(keys, i * keyLength, (i + 1) * keyLength));
+                }
+            } catch (DiversificationException | RuntimeException e) {
+                log.debug("Cannot diversify a batch of {} coalesced requests", count, e);
+                fail(e);
+            }
+        }
+
+        protected void fail(Exception e) {
+            for (int i = 0; i < count; i++) {
+                futures[i].completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Daemon threads named after the standard
+     */
+    protected class CoalescerThreadFactory implements ThreadFactory {
+
+        protected final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "coalescer-" + diversification.getStandard() + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
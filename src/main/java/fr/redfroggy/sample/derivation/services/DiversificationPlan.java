@@ -0,0 +1,513 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import lombok.Getter;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Diversification input compiled once for a standard, an application ID, a system identifier and a UID length:
+ * only the UID (and the key index for AN0148) changes between two cards.
+ * <p>
+ * The plan holds the padded message with an empty UID and knows which CMAC subkey applies to its last block.
+ * Diversifying a card copies this template into a buffer of the thread and patches the UID into it (prepare), then
+ * encrypts it for each key of the card (derive), with the code of a single standard.
+ * A plan is immutable and can be shared between threads and keys.
+ *
+ * @see DiversificationStandard#compile(int, byte[], byte[])
+ */
+public abstract class DiversificationPlan {
+
+    /**
+     * Diversification standard
+     */
+    @Getter
+    protected final AbstractDiversification.Standard standard;
+
+    /**
+     * Length of the UIDs
+     */
+    @Getter
+    protected final int uidLength;
+
+    /**
+     * Application ID
+     */
+    protected final byte[] aid;
+
+    /**
+     * System identifier
+     */
+    protected final byte[] systemIdentifier;
+
+    /**
+     * Create a plan
+     *
+     * @param standard         Diversification standard
+     * @param uidLength        Length of the UIDs
+     * @param aid              Application ID, copied
+     * @param systemIdentifier System identifier, copied
+     */
+    protected DiversificationPlan(AbstractDiversification.Standard standard, int uidLength,
+                                  byte[] aid, byte[] systemIdentifier) {
+        this.standard = standard;
+        this.uidLength = uidLength;
+        this.aid = aid;
+        this.systemIdentifier = systemIdentifier;
+    }
+
+    /**
+     * Compile the plan of a standard
+     *
+     * @param standard               Diversification standard
+     * @param uidLength              Length of the UIDs
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @return Plan
+     * @throws DiversificationException If the standard cannot diversify UIDs of this length
+     */
+    public static DiversificationPlan compile(AbstractDiversification.Standard standard, int uidLength,
+                                              byte[] aid, int aidOffset, int aidLength,
+                                              byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength)
+            throws DiversificationException {
+
+        if (uidLength < 0) {
+            throw new DiversificationException("Invalid UID length");
+        }
+        byte[] aidCopy = Arrays.copyOfRange(aid, aidOffset, aidOffset + aidLength);
+        byte[] systemIdentifierCopy = Arrays.copyOfRange(systemIdentifier, systemIdentifierOffset,
+                systemIdentifierOffset + systemIdentifierLength);
+
+        switch (standard) {
+            case AN10922_AES128:
+                return new AN10922Plan(standard, uidLength, aidCopy, systemIdentifierCopy);
+            case AN10922_AES192:
+                return new AN10922AES192Plan(standard, uidLength, aidCopy, systemIdentifierCopy);
+            case AN0148_DES:
+            case AN0148_3DES:
+                return new AN0148Plan(standard, uidLength, aidCopy, systemIdentifierCopy);
+            case AN0148_AES:
+                return new AN0148AESPlan(standard, uidLength, aidCopy, systemIdentifierCopy);
+            default:
+                throw new DiversificationException("Unknown diversification standard");
+        }
+    }
+
+    /**
+     * Return the length of the keys produced by this plan
+     *
+     * @param keyLength Length of the key to diversify
+     * @return Length of the diversified keys
+     */
+    public abstract int getDiversifiedKeyLength(int keyLength);
+
+    /**
+     * Return the diversification sequence of a card, without padding (D1 || D2 for AES 192 bits)
+     *
+     * @param keyIndex Key index
+     * @param uid      Card UID
+     * @return Diversification sequence
+     */
+    public abstract byte[] getDivSequence(int keyIndex, byte[] uid);
+
+    /**
+     * Return the length of the work buffer of a derivation
+     *
+     * @return Length in bytes
+     */
+    protected abstract int getWorkLength();
+
+    /**
+     * Diversify a key for a card
+     *
+     * @param engine       Context and cipher of the key, expanded for AN0148, held by the current thread
+     * @param work         Buffer of the current thread, of at least {@link #getWorkLength()} bytes
+     * @param keyLength    Length of the key, before any expansion
+     * @param keyIndex     Key index
+     * @param uid          Buffer containing the card UID, of the length of the plan
+     * @param uidOffset    Offset of the UID
+     * @param output       Buffer receiving the diversified key
+     * @param outputOffset Offset of the diversified key in output
+     * @throws DiversificationException
+     */
+    protected void diversify(DiversificationStandard.Engine engine, byte[] work, int keyLength, int keyIndex,
+                             byte[] uid, int uidOffset, byte[] output, int outputOffset) throws DiversificationException {
+        prepare(work, uid, uidOffset);
+        derive(engine, work, keyLength, keyIndex, output, outputOffset);
+    }
+
+    /**
+     * Write the input of a card shared by all its keys at the start of a work buffer
+     *
+     * @param work      Buffer of the current thread, of at least {@link #getWorkLength()} bytes
+     * @param uid       Buffer containing the card UID, of the length of the plan
+     * @param uidOffset Offset of the UID
+     */
+    protected abstract void prepare(byte[] work, byte[] uid, int uidOffset);
+
+    /**
+     * Diversify a key for the card prepared in a work buffer, the prepared input is left unchanged
+     *
+     * @param engine       Context and cipher of the key, expanded for AN0148, held by the current thread
+     * @param work         Buffer prepared by {@link #prepare(byte[], byte[], int)}
+     * @param keyLength    Length of the key, before any expansion
+     * @param keyIndex     Key index
+     * @param output       Buffer receiving the diversified key
+     * @param outputOffset Offset of the diversified key in output
+     * @throws DiversificationException
+     */
+    protected abstract void derive(DiversificationStandard.Engine engine, byte[] work, int keyLength, int keyIndex,
+                                   byte[] output, int outputOffset) throws DiversificationException;
+
+    /**
+     * Check if this plan has been compiled for these inputs
+     *
+     * @param uidLength              Length of the UIDs
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @return true if the plan gives the same keys as a plan compiled for these inputs
+     */
+    protected boolean matches(int uidLength, byte[] aid, int aidOffset, int aidLength,
+                              byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength) {
+        return uidLength == this.uidLength
+                && same(this.aid, aid, aidOffset, aidLength)
+                && same(this.systemIdentifier, systemIdentifier, systemIdentifierOffset, systemIdentifierLength);
+    }
+
+    /**
+     * Compare an array with a part of a buffer
+     *
+     * @param value  Array
+     * @param data   Buffer
+     * @param offset Offset in buffer
+     * @param length Length in buffer
+     * @return true if identical
+     */
+    protected static boolean same(byte[] value, byte[] data, int offset, int length) {
+        if (value.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value[i] != data[offset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * AN10922 AES 128 bits: CMAC of constant || UID || reversed AID || system identifier, padded to 32 bytes
+     */
+    protected static class AN10922Plan extends DiversificationPlan {
+
+        /**
+         * Diversification constant
+         */
+        protected static final byte DIV_CONSTANT = (byte) 0x01;
+
+        /**
+         * Minimum length of the padded message
+         */
+        protected static final int PADDED_LENGTH = 32;
+
+        /**
+         * Block size of AES
+         */
+        protected static final int BLOCK_SIZE = 16;
+
+        /**
+         * Length of the message before padding
+         */
+        protected final int messageLength;
+
+        /**
+         * Padded message with a zero UID and the constant D1
+         */
+        protected final byte[] template;
+
+        /**
+         * Whether the message is padded, the last block then takes the subkey K2 instead of K1
+         */
+        protected final boolean padded;
+
+        protected AN10922Plan(AbstractDiversification.Standard standard, int uidLength, byte[] aid, byte[] systemIdentifier) {
+            super(standard, uidLength, aid, systemIdentifier);
+            this.messageLength = 1 + uidLength + aid.length + systemIdentifier.length;
+            this.padded = messageLength % BLOCK_SIZE != 0 || messageLength < PADDED_LENGTH;
+            this.template = message(DIV_CONSTANT);
+        }
+
+        /**
+         * Build the padded message of a constant, with a zero UID
+         *
+         * @param constant Diversification constant
+         * @return Padded message
+         */
+        protected byte[] message(byte constant) {
+            int length = padded ? Math.max(messageLength / BLOCK_SIZE + 1, PADDED_LENGTH / BLOCK_SIZE) * BLOCK_SIZE
+                    : messageLength;
+            byte[] message = new byte[length];
+            writeMessage(constant, new byte[uidLength], 0, message, 0);
+            if (padded) {
+                message[messageLength] = (byte) 0x80;
+            }
+            return message;
+        }
+
+        /**
+         * Write the unpadded message of a card
+         *
+         * @param constant     Diversification constant
+         * @param uid          Buffer containing the card UID
+         * @param uidOffset    Offset of the UID
+         * @param output       Buffer receiving the message
+         * @param outputOffset Offset of the message in output
+         */
+        protected void writeMessage(byte constant, byte[] uid, int uidOffset, byte[] output, int outputOffset) {
+            output[outputOffset] = constant;
+            System.arraycopy(uid, uidOffset, output, outputOffset + 1, uidLength);
+            BytesUtils.reverse(aid, 0, aid.length, output, outputOffset + 1 + uidLength);
+            System.arraycopy(systemIdentifier, 0, output, outputOffset + 1 + uidLength + aid.length, systemIdentifier.length);
+        }
+
+        /**
+         * Compute the CMAC of the prepared message with a constant, with the CMAC engine of the key which leaves
+         * the message unchanged
+         *
+         * @param engine       Context and cipher of the key
+         * @param work         Buffer prepared by {@link #prepare(byte[], byte[], int)}
+         * @param constant     Diversification constant
+         * @param outputOffset Offset of the MAC in work, after the message
+         * @throws GeneralSecurityException
+         */
+        protected void cmac(DiversificationStandard.Engine engine, byte[] work, byte constant, int outputOffset)
+                throws GeneralSecurityException {
+            work[0] = constant;
+            engine.cmac().doFinal(work, 0, template.length, padded, work, outputOffset);
+        }
+
+        @Override
+        public int getDiversifiedKeyLength(int keyLength) {
+            return 16;
+        }
+
+        @Override
+        public byte[] getDivSequence(int keyIndex, byte[] uid) {
+            byte[] div = new byte[messageLength];
+            writeMessage(DIV_CONSTANT, uid, 0, div, 0);
+            return div;
+        }
+
+        @Override
+        protected int getWorkLength() {
+            return template.length + BLOCK_SIZE;
+        }
+
+        @Override
+        protected void prepare(byte[] work, byte[] uid, int uidOffset) {
+            System.arraycopy(template, 0, work, 0, template.length);
+            System.arraycopy(uid, uidOffset, work, 1, uidLength);
+        }
+
+        @Override
+        protected void derive(DiversificationStandard.Engine engine, byte[] work, int keyLength, int keyIndex,
+                              byte[] output, int outputOffset) throws DiversificationException {
+            try {
+                cmac(engine, work, DIV_CONSTANT, template.length);
+                System.arraycopy(work, template.length, output, outputOffset, BLOCK_SIZE);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                throw new DiversificationException("Cannot diversify key (AN10922)", e);
+            }
+        }
+    }
+
+    /**
+     * AN10922 AES 192 bits: key built from the CMAC of D1 and D2, which only differ by their constant
+     */
+    protected static class AN10922AES192Plan extends AN10922Plan {
+
+        /**
+         * Diversification constant of D1
+         */
+        protected static final byte DIV_CONSTANT1 = (byte) 0x11;
+
+        /**
+         * Diversification constant of D2
+         */
+        protected static final byte DIV_CONSTANT2 = (byte) 0x12;
+
+        protected AN10922AES192Plan(AbstractDiversification.Standard standard, int uidLength, byte[] aid, byte[] systemIdentifier) {
+            super(standard, uidLength, aid, systemIdentifier);
+        }
+
+        @Override
+        public int getDiversifiedKeyLength(int keyLength) {
+            return 24;
+        }
+
+        @Override
+        public byte[] getDivSequence(int keyIndex, byte[] uid) {
+            byte[] div = new byte[2 * messageLength];
+            writeMessage(DIV_CONSTANT1, uid, 0, div, 0);
+            writeMessage(DIV_CONSTANT2, uid, 0, div, messageLength);
+            return div;
+        }
+
+        @Override
+        protected int getWorkLength() {
+            return template.length + 2 * BLOCK_SIZE;
+        }
+
+        @Override
+        protected void derive(DiversificationStandard.Engine engine, byte[] work, int keyLength, int keyIndex,
+                              byte[] output, int outputOffset) throws DiversificationException {
+            try {
+                int ka = template.length;
+                int kb = ka + BLOCK_SIZE;
+                cmac(engine, work, DIV_CONSTANT1, ka);
+                cmac(engine, work, DIV_CONSTANT2, kb);
+
+                // Ka' (8 first bytes) || Ka' xor Kb' (8 last bytes of Ka', 8 first bytes of Kb') || Kb' (8 last bytes)
+                System.arraycopy(work, ka, output, outputOffset, 8);
+                BytesUtils.xor(work, ka + 8, work, kb, output, outputOffset + 8, 8);
+                System.arraycopy(work, kb + 8, output, outputOffset + 16, 8);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                throw new DiversificationException("Cannot diversify key (AN10922)", e);
+            }
+        }
+    }
+
+    /**
+     * AN0148 DES and 3DES: key index || UID, padded to 8 bytes, xored with the key and encrypted,
+     * a second block chained on the first one for a 3DES key
+     */
+    protected static class AN0148Plan extends DiversificationPlan {
+
+        /**
+         * Length of the diversification block
+         */
+        protected final int blockSize;
+
+        protected AN0148Plan(AbstractDiversification.Standard standard, int uidLength, byte[] aid, byte[] systemIdentifier)
+                throws DiversificationException {
+            super(standard, uidLength, aid, systemIdentifier);
+            this.blockSize = standard.getAlgorithm().getBlocSize();
+            if (copies() * BytesUtils.paddedLength(1 + uidLength, 8) != blockSize) {
+                throw new DiversificationException("Invalid key or UID length");
+            }
+        }
+
+        /**
+         * Return the number of copies of key index || UID in the block
+         *
+         * @return 1, 2 for AES
+         */
+        protected int copies() {
+            return 1;
+        }
+
+        @Override
+        public int getDiversifiedKeyLength(int keyLength) {
+            return keyLength;
+        }
+
+        @Override
+        public byte[] getDivSequence(int keyIndex, byte[] uid) {
+            byte[] div = new byte[blockSize];
+            int length = blockSize / copies();
+            for (int offset = 0; offset < blockSize; offset += length) {
+                div[offset] = (byte) keyIndex;
+                System.arraycopy(uid, 0, div, offset + 1, uidLength);
+            }
+            return div;
+        }
+
+        @Override
+        protected boolean matches(int uidLength, byte[] aid, int aidOffset, int aidLength,
+                                  byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength) {
+            return uidLength == this.uidLength;
+        }
+
+        @Override
+        protected int getWorkLength() {
+            return 32;
+        }
+
+        @Override
+        protected void prepare(byte[] work, byte[] uid, int uidOffset) {
+            System.arraycopy(uid, uidOffset, work, 1, uidLength);
+            Arrays.fill(work, 1 + uidLength, 8, (byte) 0x00);
+        }
+
+        @Override
+        protected void derive(DiversificationStandard.Engine engine, byte[] work, int keyLength, int keyIndex,
+                              byte[] output, int outputOffset) throws DiversificationException {
+            try {
+                // First block: key xor (key index || UID || zeros), encrypted into the second half of work
+                work[0] = (byte) keyIndex;
+                engine.context.xorKey(0, work, 0, work, 8, 8);
+                engine.cipher.encryptBlocks(work, 8, 8, work, 16);
+                if (keyLength == 8) {
+                    System.arraycopy(work, 16, output, outputOffset, 8);
+                    return;
+                }
+
+                // Second block, chained on the first one. Only two blocks are computed, a longer key is completed with zeros
+                engine.context.xorKey(8, work, 16, work, 8, 8);
+                engine.cipher.encryptBlocks(work, 8, 8, work, 24);
+                int length = Math.min(keyLength, 16);
+                System.arraycopy(work, 16, output, outputOffset, length);
+                Arrays.fill(output, outputOffset + length, outputOffset + keyLength, (byte) 0x00);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                throw new DiversificationException("Cannot diversify key (AN0148)", e);
+            }
+        }
+    }
+
+    /**
+     * AN0148 AES: (key index || UID, padded to 8 bytes) twice, xored with the key and encrypted
+     */
+    protected static class AN0148AESPlan extends AN0148Plan {
+
+        protected AN0148AESPlan(AbstractDiversification.Standard standard, int uidLength, byte[] aid, byte[] systemIdentifier)
+                throws DiversificationException {
+            super(standard, uidLength, aid, systemIdentifier);
+        }
+
+        @Override
+        protected int copies() {
+            return 2;
+        }
+
+        @Override
+        protected int getWorkLength() {
+            return 48;
+        }
+
+        @Override
+        protected void derive(DiversificationStandard.Engine engine, byte[] work, int keyLength, int keyIndex,
+                              byte[] output, int outputOffset) throws DiversificationException {
+            try {
+                // (key index || UID || zeros) twice, xored with the key
+                work[0] = (byte) keyIndex;
+                engine.context.xorKey(0, work, 0, work, 16, 8);
+                engine.context.xorKey(8, work, 0, work, 24, 8);
+                engine.cipher.encryptBlocks(work, 16, 16, work, 32);
+                System.arraycopy(work, 32, output, outputOffset, keyLength);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                throw new DiversificationException("Cannot diversify key (AN0148)", e);
+            }
+        }
+    }
+}
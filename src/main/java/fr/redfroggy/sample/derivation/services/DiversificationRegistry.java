@@ -0,0 +1,226 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.KeyRing;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Diversification processes of several standards and master keys (key profiles) served by one process.
+ * <p>
+ * Everything is set up when the registry is created: each standard opens every key profile it can use,
+ * runs a few derivations with it, and creates ciphers for the serving threads. A request is dispatched
+ * by standard and profile with two array lookups, without any cipher or key initialization.
+ * Only the first request of a thread on a key still allocates its engine.
+ * <p>
+ * A registry is thread safe.
+ */
+@Slf4j
+public class DiversificationRegistry implements Closeable {
+
+    /**
+     * Number of derivations run with each key when the registry is created
+     */
+    protected static final int WARM_UP_ITERATIONS = 1000;
+
+    /**
+     * Diversification processes, indexed by standard ordinal
+     */
+    protected final DiversificationStandard[] standards;
+
+    /**
+     * Key profiles opened by each served standard, indexed by standard ordinal then profile.
+     * A key the standard cannot use has no handle.
+     */
+    protected final KeyHandle[][] keys;
+
+    /**
+     * Number of key profiles
+     */
+    @Getter
+    protected final int profileCount;
+
+    /**
+     * Create a registry and warm up its standards and keys
+     *
+     * @param standards Diversification processes of the served standards
+     * @param keys      Master keys, the profile of a key is its handle in the key ring
+     * @param threads   Number of threads serving the requests, 0 for one per processor
+     * @throws DiversificationException If the ciphers of a key cannot be created
+     */
+    public DiversificationRegistry(Map<AbstractDiversification.Standard, DiversificationStandard> standards,
+                                   KeyRing keys, int threads) throws DiversificationException {
+        int ciphers = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.standards = new DiversificationStandard[AbstractDiversification.Standard.values().length];
+        this.keys = new KeyHandle[this.standards.length][];
+        this.profileCount = keys.size();
+
+        try {
+            for (Map.Entry<AbstractDiversification.Standard, DiversificationStandard> entry : standards.entrySet()) {
+                int standard = entry.getKey().ordinal();
+                this.standards[standard] = entry.getValue();
+                this.keys[standard] = open(entry.getValue(), keys, ciphers);
+            }
+        } catch (DiversificationException | RuntimeException e) {
+            close();
+            throw e;
+        }
+
+        log.info("Diversification registry ready: {} standards, {} key profiles", standards.size(), profileCount);
+    }
+
+    /**
+     * Return the diversification process of a standard
+     *
+     * @param standard Standard
+     * @return Process, null if the standard is not served
+     */
+    public DiversificationStandard get(AbstractDiversification.Standard standard) {
+        return standards[standard.ordinal()];
+    }
+
+    /**
+     * Return the handle of a key profile for a standard
+     *
+     * @param standard Standard
+     * @param profile  Key profile
+     * @return Handle, null if the standard is not served, the profile unknown or its key not usable by the standard
+     */
+    public KeyHandle getKey(AbstractDiversification.Standard standard, int profile) {
+        KeyHandle[] standardKeys = keys[standard.ordinal()];
+        if (standardKeys == null || profile < 0 || profile >= standardKeys.length) {
+            return null;
+        }
+
+        return standardKeys[profile];
+    }
+
+    /**
+     * Diversify a key for a card into a caller buffer, with a key profile and a standard of the registry
+     *
+     * @param standard               Standard
+     * @param profile                Key profile
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @return Length of the diversified key
+     * @throws DiversificationException If the standard is not served, the profile unknown or the derivation fails
+     */
+    public int diversify(AbstractDiversification.Standard standard, int profile, int keyIndex,
+                         byte[] uid, int uidOffset, int uidLength,
+                         byte[] aid, int aidOffset, int aidLength,
+                         byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                         byte[] output, int outputOffset) throws DiversificationException {
+
+        DiversificationStandard div = standards[standard.ordinal()];
+        if (div == null) {
+            throw new DiversificationException("Diversification standard " + standard + " is not served");
+        }
+        if (profile < 0 || profile >= profileCount) {
+            throw new DiversificationException("Unknown key profile: " + profile);
+        }
+        KeyHandle key = keys[standard.ordinal()][profile];
+        if (key == null) {
+            throw new DiversificationException("Key profile " + profile + " cannot be used by " + standard);
+        }
+
+        return div.diversify(key, keyIndex, uid, uidOffset, uidLength, aid, aidOffset, aidLength,
+                systemIdentifier, systemIdentifierOffset, systemIdentifierLength, output, outputOffset);
+    }
+
+    /**
+     * Close all key handles, the keys are zeroized once the running derivations are done
+     */
+    @Override
+    public void close() {
+        for (KeyHandle[] standardKeys : keys) {
+            for (int i = 0; standardKeys != null && i < standardKeys.length; i++) {
+                if (standardKeys[i] != null) {
+                    standardKeys[i].close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open and warm up the key profiles for a standard
+     *
+     * @param div     Diversification process
+     * @param keyRing Master keys
+     * @param ciphers Number of ciphers to create for each key
+     * @return Handles indexed by profile, null for the keys the standard cannot use
+     * @throws DiversificationException If the ciphers of a key cannot be created
+     */
+    protected static KeyHandle[] open(DiversificationStandard div, KeyRing keyRing, int ciphers)
+            throws DiversificationException {
+
+        KeyHandle[] handles = new KeyHandle[keyRing.size()];
+        for (int i = 0; i < handles.length; i++) {
+            byte[] key = keyRing.get(i);
+            try {
+                handles[i] = div.open(key, 0, key.length);
+            } catch (DiversificationException e) {
+                log.debug("Key profile {} cannot be used by {}", i, div.getStandard(), e);
+                continue;
+            } finally {
+                Arrays.fill(key, (byte) 0x00);
+            }
+
+            try {
+                warmUp(div, handles[i]);
+                handles[i].context.getCiphers().prepare(ciphers);
+            } catch (GeneralSecurityException | DiversificationException | RuntimeException e) {
+                for (int j = 0; j <= i; j++) {
+                    if (handles[j] != null) {
+                        handles[j].close();
+                    }
+                }
+                throw e instanceof DiversificationException ? (DiversificationException) e
+                        : new DiversificationException("Cannot initialize cipher", e);
+            }
+        }
+
+        return handles;
+    }
+
+    /**
+     * Run derivations with a key, bypassing the metrics and the cache of diversified keys
+     *
+     * @param div Diversification process
+     * @param key Key opened by the process
+     * @throws DiversificationException If a derivation fails
+     */
+    protected static void warmUp(DiversificationStandard div, KeyHandle key) throws DiversificationException {
+        byte[] uid = new byte[7];
+        byte[] aid = new byte[3];
+        byte[] systemIdentifier = new byte[7];
+        byte[] output = new byte[div.getDiversifiedKeyLength(key.getKeyLength())];
+
+        DiversificationStandard.Engine engine = key.acquire(div);
+        try {
+            DiversificationStandard.Workspace workspace = div.workspaces.get();
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                uid[6] = (byte) i;
+                div.diversify(workspace, engine, key.getKeyLength(), 0, uid, 0, uid.length, aid, 0, aid.length,
+                        systemIdentifier, 0, systemIdentifier.length, output, 0);
+            }
+        } finally {
+            key.release();
+            Arrays.fill(output, (byte) 0x00);
+        }
+    }
+}
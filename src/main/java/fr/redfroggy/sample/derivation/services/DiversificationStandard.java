@@ -1,37 +1,66 @@
 package fr.redfroggy.sample.derivation.services;
 
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheStats;
 import com.google.common.primitives.Bytes;
 import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.metrics.DiversificationMetrics;
 import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.security.BlockCipher;
+import fr.redfroggy.sample.derivation.security.BlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.BulkCmacEngine;
+import fr.redfroggy.sample.derivation.security.CmacEngine;
 import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 /**
- * This class implement AN10922 diversification standard
+ * This class implement AN10922 diversification standard.
+ * An instance can be shared between threads.
  */
 @Slf4j
 public class DiversificationStandard extends AbstractDiversification {
 
     /**
-     * AN10922 AES 128 Bits constant
+     * AN10922 div sequences are padded to 32 bytes before the CMAC
      */
-    protected static final byte AES128_DIV_CONSTANT = (byte) 0x01;
+    protected static final int AN10922_PADDED_LENGTH = 32;
 
     /**
-     * AN10922 AES 192 Bits constant #1
+     * Number of cards of a batch whose blocks are encrypted by a single cipher call
      */
-    protected static final byte AES192_DIV_CONSTANT1 = (byte) 0x11;
+    protected static final int BATCH_CHUNK_SIZE = 256;
 
     /**
-     * AN10922 AES 192 Bits constant #2
+     * Contexts (initialized cipher and CMAC subkeys) of the master keys
      */
-    protected static final byte AES192_DIV_CONSTANT2 = (byte) 0x12;
+    protected final KeyContextCache contexts;
+
+    /**
+     * Calls, errors, latencies and batch sizes
+     */
+    @Getter
+    protected final DiversificationMetrics metrics;
+
+    /**
+     * Diversified keys of the last derivations, null if disabled
+     */
+    @Getter
+    protected volatile DerivedKeyCache derivedKeyCache;
+
+    /**
+     * Work buffers and last used key context of each thread
+     */
+    protected final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
 
     /**
      * Create diversification process
@@ -40,7 +69,55 @@ public class DiversificationStandard extends AbstractDiversification {
      * @throws DiversificationException
      */
     public DiversificationStandard(Standard standard) throws DiversificationException {
-        super(standard);
+        this(standard, KeyContextCache.DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Create diversification process
+     *
+     * @param standard         Standard to use
+     * @param contextCacheSize Number of master key contexts kept in cache
+     * @throws DiversificationException
+     */
+    public DiversificationStandard(Standard standard, int contextCacheSize) throws DiversificationException {
+        this(standard, contextCacheSize, null);
+    }
+
+    /**
+     * Create diversification process
+     *
+     * @param standard         Standard to use
+     * @param contextCacheSize Number of master key contexts kept in cache
+     * @param cipherProvider   Provider of the ciphers, null for the JCE
+     * @throws DiversificationException
+     */
+    public DiversificationStandard(Standard standard, int contextCacheSize, BlockCipherProvider cipherProvider)
+            throws DiversificationException {
+        super(standard, cipherProvider);
+        this.contexts = new KeyContextCache(contextCacheSize, this.cipherProvider);
+        this.metrics = new DiversificationMetrics(standard.name());
+        this.metrics.addCache(new Supplier<CacheStats>() {
+            @Override
+            public CacheStats get() {
+                return contexts.stats();
+            }
+        });
+    }
+
+    /**
+     * Serve the derivations already done from a cache of the diversified keys.
+     * Batches are always diversified.
+     *
+     * @param derivedKeyCache Cache of the diversified keys, null to disable it
+     */
+    public void setDerivedKeyCache(final DerivedKeyCache derivedKeyCache) {
+        this.derivedKeyCache = derivedKeyCache;
+        metrics.setDerivedKeyCache(derivedKeyCache == null ? null : new Supplier<CacheStats>() {
+            @Override
+            public CacheStats get() {
+                return derivedKeyCache.stats();
+            }
+        });
     }
 
     /**
@@ -55,274 +132,1205 @@ public class DiversificationStandard extends AbstractDiversification {
      * @throws DiversificationException
      */
     public byte[] diversify(byte[] originalKey, int keyIndex, byte[] uid, byte[] aid, byte[] systemIdentifier) throws DiversificationException {
-        return diversify(originalKey, getDivSequence(keyIndex, uid, aid, systemIdentifier));
+        long start = metrics.start();
+        try {
+            DerivedKeyCache cache = derivedKeyCache;
+            if (aid == null) {
+                aid = new byte[0];
+            }
+            if (systemIdentifier == null) {
+                systemIdentifier = new byte[0];
+            }
+            int aidLength = aid.length;
+            int systemIdentifierLength = systemIdentifier.length;
+            KeyContext context = acquire(originalKey);
+            try {
+                if (cache != null) {
+                    byte[] divKey = new byte[getDiversifiedKeyLength(originalKey.length)];
+                    if (cache.get(context, originalKey.length, keyIndex, uid, 0, uid.length, aid, 0, aidLength,
+                            systemIdentifier, 0, systemIdentifierLength, divKey, 0) >= 0) {
+                        log.debug("Diversified key found in cache");
+                        metrics.recordCall(start);
+                        return divKey;
+                    }
+                }
+
+                DiversificationPlan plan = DiversificationPlan.compile(standard, uid.length, aid, 0, aidLength,
+                        systemIdentifier, 0, systemIdentifierLength);
+                byte[] divKey = new byte[plan.getDiversifiedKeyLength(originalKey.length)];
+                diversify(plan, context, originalKey, keyIndex, uid, divKey);
+
+                if (cache != null) {
+                    cache.put(context, originalKey.length, keyIndex, uid, 0, uid.length, aid, 0, aidLength,
+                            systemIdentifier, 0, systemIdentifierLength, divKey, 0, divKey.length);
+                }
+                metrics.recordCall(start);
+                return divKey;
+            } finally {
+                context.release();
+            }
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
     }
 
     /**
-     * Diversify a key with div sequence
+     * Take the context of a key from the shared cache
      *
-     * @param key Key to diversify
-     * @param div Diversification sequence
-     * @return Diversified key
+     * @param originalKey Key to diversify
+     * @return Context of the key, expanded for AN0148, to release after use
+     * @throws DiversificationException If the key cannot be used by this standard
+     */
+    protected KeyContext acquire(byte[] originalKey) throws DiversificationException {
+        byte[] key = originalKey;
+        try {
+            if (!Standard.AN10922_AES128.equals(standard) && !Standard.AN10922_AES192.equals(standard)) {
+                key = expandKeyAN0148(originalKey);
+                checkKeyAN0148(key.length);
+            }
+            return contexts.acquire(algorithm, key);
+        } catch (GeneralSecurityException e) {
+            throw new DiversificationException("Cannot initialize key", e);
+        } finally {
+            if (key != originalKey) {
+                Arrays.fill(key, (byte) 0x00);
+            }
+        }
+    }
+
+    /**
+     * Diversify a key for a card with a plan
+     *
+     * @param plan        Plan of the derivation
+     * @param context     Context of the key, retained by the caller
+     * @param originalKey Key to diversify
+     * @param keyIndex    Key index
+     * @param uid         Card UID
+     * @param divKey      Buffer receiving the diversified key
      * @throws DiversificationException
      */
-    protected byte[] diversify(byte[] key, byte[] div) throws DiversificationException {
-        switch (standard) {
-            case AN10922_AES128:
-                return diversifyAN10922AES128(key, div);
-            case AN10922_AES192:
-                return diversifyAN10922AES192(key, div);
-            case AN0148_3DES:
-            case AN0148_DES:
-            case AN0148_AES:
-                return diversifyAN0148(key, div);
-            default:
-                throw new DiversificationException("Unknown diversification standard");
+    protected void diversify(DiversificationPlan plan, KeyContext context, byte[] originalKey, int keyIndex,
+                             byte[] uid, byte[] divKey) throws DiversificationException {
+        Engine engine = new Engine();
+        engine.context = context;
+        try {
+            engine.cipher = context.getCiphers().acquire();
+            try {
+                plan.diversify(engine, new byte[plan.getWorkLength()], originalKey.length, keyIndex, uid, 0, divKey, 0);
+            } finally {
+                context.getCiphers().release(engine.cipher);
+            }
+            if (log.isTraceEnabled()) {
+                log(context, originalKey, plan.getDivSequence(keyIndex, uid), divKey);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new DiversificationException("Cannot initialize cipher", e);
         }
     }
 
     /**
-     * Diversify a key with div sequence (AN10922 mode)
+     * Diversify a key for a batch of cards
      *
-     * @param key Key to diversify
-     * @param div Diversification sequence
-     * @return Diversified key
+     * @param originalKey      Key to diversify
+     * @param keyIndex         Key index
+     * @param uids             Cards UID, all of the same length
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Diversified keys, concatenated in the order of the UIDs
      * @throws DiversificationException
      */
-    protected byte[] diversifyAN10922AES128(byte[] key, byte[] div) throws DiversificationException {
+    public byte[] diversifyBatch(byte[] originalKey, int keyIndex, byte[][] uids, byte[] aid, byte[] systemIdentifier) throws DiversificationException {
+        if (uids.length == 0) {
+            return new byte[0];
+        }
+
+        int uidLength = uids[0].length;
+        byte[] buffer = new byte[uids.length * uidLength];
+        for (int i = 0; i < uids.length; i++) {
+            if (uids[i].length != uidLength) {
+                throw new DiversificationException("All UIDs of a batch must have the same length");
+            }
+            System.arraycopy(uids[i], 0, buffer, i * uidLength, uidLength);
+        }
+
+        byte[] output = new byte[uids.length * getDiversifiedKeyLength(originalKey.length)];
+        diversifyBatch(originalKey, keyIndex, buffer, 0, uidLength, uids.length, aid, systemIdentifier, output, 0);
+        return output;
+    }
+
+    /**
+     * Diversify a key for a batch of cards.
+     * The key context, the cipher and the diversification sequence are prepared once for the whole batch,
+     * only the UID bytes change between two cards.
+     *
+     * @param originalKey      Key to diversify
+     * @param keyIndex         Key index
+     * @param uids             Buffer of contiguous UIDs
+     * @param uidsOffset       Offset of the first UID in buffer
+     * @param uidLength        Length of one UID
+     * @param count            Number of UIDs
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param output           Buffer receiving the contiguous diversified keys
+     * @param outputOffset     Offset of the first diversified key in output
+     * @throws DiversificationException
+     */
+    public void diversifyBatch(byte[] originalKey, int keyIndex, byte[] uids, int uidsOffset, int uidLength, int count,
+                               byte[] aid, byte[] systemIdentifier, byte[] output, int outputOffset) throws DiversificationException {
+
         try {
+            int divKeyLength = getDiversifiedKeyLength(originalKey.length);
+            if (uidLength <= 0 || count < 0 || uidsOffset < 0 || uidsOffset + uidLength * count > uids.length) {
+                throw new DiversificationException("UIDs buffer is too small");
+            }
+            if (outputOffset < 0 || outputOffset + divKeyLength * count > output.length) {
+                throw new DiversificationException("Output buffer is too small");
+            }
+            if (count == 0) {
+                return;
+            }
 
-            log.info("===== AN10922 DIVERSIFICATION ======");
-            log.info("ALGO: {}", algorithm.toString());
-            log.info("K: {}", BytesUtils.bytesToHex(key));
-            byte[] divKey = diversifyAN10922(key, div);
-            log.info("K': {}", BytesUtils.bytesToHex(divKey));
-            log.info("====================================");
+            log.debug("Diversify a batch of {} keys ({})", count, standard);
 
-            return divKey;
+            DiversificationPlan plan = DiversificationPlan.compile(standard, uidLength,
+                    aid != null ? aid : new byte[0], 0, aid != null ? aid.length : 0,
+                    systemIdentifier != null ? systemIdentifier : new byte[0], 0,
+                    systemIdentifier != null ? systemIdentifier.length : 0);
+            byte[] template = plan.getDivSequence(keyIndex, new byte[uidLength]);
+            switch (standard) {
+                case AN10922_AES128:
+                case AN10922_AES192:
+                    diversifyBatchAN10922(originalKey, template, uids, uidsOffset, uidLength, count, output, outputOffset);
+                    break;
+                case AN0148_3DES:
+                case AN0148_DES:
+                case AN0148_AES:
+                    diversifyBatchAN0148(originalKey, template, uids, uidsOffset, uidLength, count, output, outputOffset);
+                    break;
+                default:
+                    throw new DiversificationException("Unknown diversification standard");
+            }
+            metrics.recordBatch(count);
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
+    }
 
-        } catch (Exception e) {
-            throw new DiversificationException("Cannot diversify key (AN10922)", e);
+    /**
+     * Diversify a key for a card, without allocation once the key has been used by the current thread.
+     * With a {@link DerivedKeyCache}, only the cache hits are without allocation.
+     * Nothing is logged on this path.
+     *
+     * @param key                    Buffer containing the key to diversify
+     * @param keyOffset              Offset of the key
+     * @param keyLength              Length of the key
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @return Length of the diversified key
+     * @throws DiversificationException
+     */
+    public int diversify(byte[] key, int keyOffset, int keyLength, int keyIndex,
+                         byte[] uid, int uidOffset, int uidLength,
+                         byte[] aid, int aidOffset, int aidLength,
+                         byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                         byte[] output, int outputOffset) throws DiversificationException {
+
+        long start = metrics.start();
+        try {
+            int divKeyLength = getDiversifiedKeyLength(keyLength);
+            if (outputOffset < 0 || outputOffset + divKeyLength > output.length) {
+                throw new DiversificationException("Output buffer is too small");
+            }
+
+            Workspace workspace = workspaces.get();
+            KeyContext context = acquire(workspace, key, keyOffset, keyLength);
+            try {
+                diversify(workspace, context, keyLength, keyIndex, uid, uidOffset, uidLength,
+                        aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                        output, outputOffset);
+            } finally {
+                context.release();
+            }
+
+            metrics.recordCall(start);
+            return divKeyLength;
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
         }
     }
 
+    /**
+     * Load a master key for the derivations of this process.
+     * The key is copied off-heap and its cipher initialized once, the caller can erase its own copy.
+     *
+     * @param key    Buffer containing the master key
+     * @param offset Offset of the key
+     * @param length Length of the key
+     * @return Handle of the key, to close when the key is not used anymore
+     * @throws DiversificationException If the key cannot be used by this standard
+     */
+    public KeyHandle open(byte[] key, int offset, int length) throws DiversificationException {
+        byte[] expanded = null;
+        try {
+            switch (standard) {
+                case AN10922_AES128:
+                case AN10922_AES192:
+                    return new KeyHandle(this, length, new KeyContext(cipherProvider, algorithm, key, offset, length));
+                case AN0148_3DES:
+                case AN0148_DES:
+                case AN0148_AES:
+                    expanded = new byte[24];
+                    int expandedLength = expandKeyAN0148(key, offset, length, expanded);
+                    checkKeyAN0148(expandedLength);
+                    return new KeyHandle(this, length, new KeyContext(cipherProvider, algorithm, expanded, 0, expandedLength));
+                default:
+                    throw new DiversificationException("Unknown diversification standard");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new DiversificationException("Cannot initialize key", e);
+        } finally {
+            if (expanded != null) {
+                Arrays.fill(expanded, (byte) 0x00);
+            }
+        }
+    }
 
     /**
-     * Diversify a key with div sequence (AN10922 mode) AES 192 bits
+     * Diversify a key for a card into a caller buffer, with a master key opened by this process.
+     * Without allocation once the current thread has used the handle.
+     * With a {@link DerivedKeyCache}, only the cache hits are without allocation.
      *
-     * @param key Key to diversify
-     * @param div Diversification sequences (D1 || D2)
-     * @return Diversified key
+     * @param key                    Handle of the key to diversify
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @return Length of the diversified key
      * @throws DiversificationException
      */
-    protected byte[] diversifyAN10922AES192(byte[] key, byte[] div) throws DiversificationException {
+    public int diversify(KeyHandle key, int keyIndex,
+                         byte[] uid, int uidOffset, int uidLength,
+                         byte[] aid, int aidOffset, int aidLength,
+                         byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                         byte[] output, int outputOffset) throws DiversificationException {
+
+        long start = metrics.start();
         try {
+            int divKeyLength = getDiversifiedKeyLength(key.getKeyLength());
+            if (outputOffset < 0 || outputOffset + divKeyLength > output.length) {
+                throw new DiversificationException("Output buffer is too small");
+            }
 
-            if (Algorithm.AES192.equals(algorithm) && 192 > Cipher.getMaxAllowedKeyLength(algorithm.getKeyAlgorithm())) {
-                throw new DiversificationException("AES 192 is not available");
+            DerivedKeyCache cache = derivedKeyCache;
+            if (cache != null && cache.get(key, keyIndex, uid, uidOffset, uidLength,
+                    aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                    output, outputOffset) >= 0) {
+                metrics.recordCall(start);
+                return divKeyLength;
             }
 
-            byte[] divKey;
-            byte[] d1 = Arrays.copyOfRange(div, 0, div.length / 2);
-            byte[] d2 = Arrays.copyOfRange(div, div.length / 2, div.length);
+            Engine engine = key.acquire(this);
+            try {
+                diversify(workspaces.get(), engine, key.getKeyLength(), keyIndex, uid, uidOffset, uidLength,
+                        aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                        output, outputOffset);
+            } finally {
+                key.release();
+            }
 
-            log.info("===== AN10922 DIVERSIFICATION ======");
-            log.info("ALGO: {}", algorithm.toString());
-            log.info("K: {}", BytesUtils.bytesToHex(key));
+            if (cache != null) {
+                cache.put(key, keyIndex, uid, uidOffset, uidLength,
+                        aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                        output, outputOffset, divKeyLength);
+            }
 
-            log.info("--- D1 ---");
-            byte[] divKey1 = diversifyAN10922(key, d1);
-            log.info("Ka': {}", BytesUtils.bytesToHex(divKey1));
-            log.info("--- D2 ---");
-            byte[] divKey2 = diversifyAN10922(key, d2);
-            log.info("Kb': {}", BytesUtils.bytesToHex(divKey2));
-            log.info("----------");
+            metrics.recordCall(start);
+            return divKeyLength;
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
+    }
 
-            divKey = Bytes.concat(
-                    Arrays.copyOfRange(divKey1, 0, 8),
-                    BytesUtils.xor(Arrays.copyOfRange(divKey1, 8, 16), Arrays.copyOfRange(divKey2, 0, 8)),
-                    Arrays.copyOfRange(divKey2, 8, 16));
+    /**
+     * Compile the constant part of the derivations of an application: the AID, the system identifier and the UID length
+     * are fixed, only the UID changes between two cards.
+     *
+     * @param uidLength        Length of the UIDs
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Plan, usable with {@link #diversify(DiversificationPlan, KeyHandle, int, byte[], int, byte[], int)}
+     * @throws DiversificationException If this standard cannot diversify UIDs of this length
+     */
+    public DiversificationPlan compile(int uidLength, byte[] aid, byte[] systemIdentifier) throws DiversificationException {
+        return DiversificationPlan.compile(standard, uidLength, aid, 0, aid.length, systemIdentifier, 0, systemIdentifier.length);
+    }
 
-            log.info("K': {}", BytesUtils.bytesToHex(divKey));
-            log.info("====================================");
+    /**
+     * Diversify a key for a card into a caller buffer, with a plan compiled by this process and a master key it opened.
+     * Without allocation once the current thread has used the handle.
+     *
+     * @param plan         Plan of the application
+     * @param key          Handle of the key to diversify
+     * @param keyIndex     Key index
+     * @param uid          Buffer containing the card UID, of the length of the plan
+     * @param uidOffset    Offset of the UID
+     * @param output       Buffer receiving the diversified key
+     * @param outputOffset Offset of the diversified key in output
+     * @return Length of the diversified key
+     * @throws DiversificationException
+     */
+    public int diversify(DiversificationPlan plan, KeyHandle key, int keyIndex, byte[] uid, int uidOffset,
+                         byte[] output, int outputOffset) throws DiversificationException {
 
-            return divKey;
+        long start = metrics.start();
+        try {
+            if (plan.getStandard() != standard) {
+                throw new DiversificationException("Plan compiled for another diversification standard");
+            }
+            int divKeyLength = plan.getDiversifiedKeyLength(key.getKeyLength());
+            if (outputOffset < 0 || outputOffset + divKeyLength > output.length) {
+                throw new DiversificationException("Output buffer is too small");
+            }
 
-        } catch (Exception e) {
-            throw new DiversificationException("Cannot diversify key (AN10922)", e);
+            DerivedKeyCache cache = derivedKeyCache;
+            if (cache != null && cache.get(key, keyIndex, uid, uidOffset, plan.uidLength,
+                    plan.aid, 0, plan.aid.length, plan.systemIdentifier, 0, plan.systemIdentifier.length,
+                    output, outputOffset) >= 0) {
+                metrics.recordCall(start);
+                return divKeyLength;
+            }
+
+            Engine engine = key.acquire(this);
+            byte[] work = workspaces.get().buffer(Workspace.MESSAGE, plan.getWorkLength());
+            try {
+                plan.diversify(engine, work, key.getKeyLength(), keyIndex, uid, uidOffset, output, outputOffset);
+            } finally {
+                Arrays.fill(work, 0, plan.getWorkLength(), (byte) 0x00);
+                key.release();
+            }
+
+            if (cache != null) {
+                cache.put(key, keyIndex, uid, uidOffset, plan.uidLength,
+                        plan.aid, 0, plan.aid.length, plan.systemIdentifier, 0, plan.systemIdentifier.length,
+                        output, outputOffset, divKeyLength);
+            }
+
+            metrics.recordCall(start);
+            return divKeyLength;
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
         }
     }
 
     /**
-     * Diversify a key with div sequence (AN10922 mode)
+     * Diversify all the keys of a card into one record, with a plan compiled by this process.
+     * The UID is written into the diversification input once, then each key of the set only runs its own
+     * cipher pass. The diversified keys are not cached, the call is counted as one batch of the size of the set.
      *
-     * @param key Key to diversify
-     * @param div Diversification sequence
-     * @return Diversified key
+     * @param plan         Plan of the application
+     * @param keys         Master keys and key indexes, opened by this process
+     * @param uid          Buffer containing the card UID, of the length of the plan
+     * @param uidOffset    Offset of the UID
+     * @param output       Buffer receiving the record, the diversified keys in the order of the set
+     * @param outputOffset Offset of the record in output
+     * @return Length of the record
      * @throws DiversificationException
      */
-    protected byte[] diversifyAN10922(byte[] key, byte[] div) throws DiversificationException {
+    public int diversify(DiversificationPlan plan, KeySet keys, byte[] uid, int uidOffset,
+                         byte[] output, int outputOffset) throws DiversificationException {
+
         try {
+            if (plan.getStandard() != standard) {
+                throw new DiversificationException("Plan compiled for another diversification standard");
+            }
+            int recordLength = keys.getRecordLength(plan);
+            if (outputOffset < 0 || outputOffset + recordLength > output.length) {
+                throw new DiversificationException("Output buffer is too small");
+            }
+            if (uidOffset < 0 || uidOffset + plan.getUidLength() > uid.length) {
+                throw new DiversificationException("Invalid UID length");
+            }
 
-            SecretKeySpec secretKey = new SecretKeySpec(key, algorithm.getKeyAlgorithm());
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(new byte[algorithm.getBlocSize()]));
+            byte[] work = workspaces.get().buffer(Workspace.MESSAGE, plan.getWorkLength());
+            try {
+                plan.prepare(work, uid, uidOffset);
 
-            byte[] finalDiv = div;
-            boolean padded = false;
-            if (div.length != 32) {
-                finalDiv = BytesUtils.pad(Bytes.concat(div, new byte[]{(byte) 0x80}), 32);
-                padded = true;
+                int offset = outputOffset;
+                for (int i = 0; i < keys.size(); ) {
+                    KeyHandle key = keys.getKey(i);
+                    Engine engine = key.acquire(this);
+                    try {
+                        do {
+                            plan.derive(engine, work, key.getKeyLength(), keys.getKeyIndex(i), output, offset);
+                            offset += plan.getDiversifiedKeyLength(key.getKeyLength());
+                            i++;
+                        } while (i < keys.size() && keys.getKey(i) == key);
+                    } finally {
+                        key.release();
+                    }
+                }
+            } finally {
+                Arrays.fill(work, 0, plan.getWorkLength(), (byte) 0x00);
             }
 
-            // Generate SubKeys
-            // Let L = CIPHK(0b)
-            byte[] lKey = cipher.doFinal(new byte[algorithm.getBlocSize()]);
-            byte[] subKey1 = generateSubKey(lKey);
-            byte[] subKey2 = generateSubKey(subKey1);
+            metrics.recordBatch(keys.size());
+            return recordLength;
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
+    }
 
-            // CMAC
-            byte[] cmac = cmac(finalDiv, subKey1, subKey2, padded);
+    /**
+     * Diversify a key for a card, without allocation once the key has been used by the current thread.
+     * Inputs are read from their position to their limit and are not modified,
+     * the diversified key is written at the position of output which is then advanced.
+     *
+     * @param key              Key to diversify
+     * @param keyIndex         Key index
+     * @param uid              Card UID
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @param output           Buffer receiving the diversified key
+     * @return Length of the diversified key
+     * @throws DiversificationException
+     */
+    public int diversify(ByteBuffer key, int keyIndex, ByteBuffer uid, ByteBuffer aid, ByteBuffer systemIdentifier,
+                         ByteBuffer output) throws DiversificationException {
 
-            // Last 16-byte block. (CMAC)
-            byte[] divKey = Arrays.copyOfRange(cmac, 16, 32);
+        long start = metrics.start();
+        try {
+            Workspace workspace = workspaces.get();
+            byte[] uidArray = workspace.copy(uid, Workspace.UID);
+            byte[] aidArray = workspace.copy(aid, Workspace.AID);
+            byte[] systemIdentifierArray = workspace.copy(systemIdentifier, Workspace.SYSTEM_IDENTIFIER);
 
-            log.info("K0: {}", BytesUtils.bytesToHex(lKey));
-            log.info("K1: {}", BytesUtils.bytesToHex(subKey1));
-            log.info("K2: {}", BytesUtils.bytesToHex(subKey2));
-            log.info("M: {}", BytesUtils.bytesToHex(div));
+            int keyLength = key.remaining();
+            int divKeyLength = getDiversifiedKeyLength(keyLength);
+            if (output.remaining() < divKeyLength) {
+                throw new DiversificationException("Output buffer is too small");
+            }
 
-            return divKey;
+            // The key is read in place: a direct buffer is not copied on the heap
+            KeyContext context = acquire(workspace, key);
+            try {
+                if (output.hasArray()) {
+                    diversify(workspace, context, keyLength, keyIndex,
+                            uidArray, offset(uid), uid.remaining(),
+                            aidArray, offset(aid), aid.remaining(),
+                            systemIdentifierArray, offset(systemIdentifier), systemIdentifier.remaining(),
+                            output.array(), output.arrayOffset() + output.position());
+                } else {
+                    byte[] divKey = workspace.buffer(Workspace.OUTPUT, divKeyLength);
+                    try {
+                        diversify(workspace, context, keyLength, keyIndex,
+                                uidArray, offset(uid), uid.remaining(),
+                                aidArray, offset(aid), aid.remaining(),
+                                systemIdentifierArray, offset(systemIdentifier), systemIdentifier.remaining(),
+                                divKey, 0);
+                        int position = output.position();
+                        for (int i = 0; i < divKeyLength; i++) {
+                            output.put(position + i, divKey[i]);
+                        }
+                    } finally {
+                        Arrays.fill(divKey, 0, divKeyLength, (byte) 0x00);
+                    }
+                }
+            } finally {
+                context.release();
+            }
+            output.position(output.position() + divKeyLength);
 
+            metrics.recordCall(start);
+            return divKeyLength;
+        } catch (DiversificationException | RuntimeException e) {
+            metrics.recordError();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the length of the keys produced by this standard
+     *
+     * @param keyLength Length of the key to diversify
+     * @return Length of the diversified keys
+     */
+    public int getDiversifiedKeyLength(int keyLength) {
+        switch (standard) {
+            case AN10922_AES128:
+                return 16;
+            case AN10922_AES192:
+                return 24;
+            default:
+                return keyLength;
+        }
+    }
+
+    /**
+     * Diversify a key for a batch of cards (AN10922 mode)
+     *
+     * @param key          Key to diversify
+     * @param template     Diversification sequence with an empty UID (D1 || D2 for AES 192 bits)
+     * @param uids         Buffer of contiguous UIDs
+     * @param uidsOffset   Offset of the first UID in buffer
+     * @param uidLength    Length of one UID
+     * @param count        Number of UIDs
+     * @param output       Buffer receiving the contiguous diversified keys
+     * @param outputOffset Offset of the first diversified key in output
+     * @throws DiversificationException
+     */
+    protected void diversifyBatchAN10922(byte[] key, byte[] template, byte[] uids, int uidsOffset, int uidLength, int count,
+                                         byte[] output, int outputOffset) throws DiversificationException {
+        try {
+            KeyContext context = contexts.acquire(algorithm, key);
+            BlockCipher cipher = null;
+            try {
+                cipher = context.getCiphers().acquire();
+                boolean aes192 = Standard.AN10922_AES192.equals(standard);
+                int divLength = aes192 ? template.length / 2 : template.length;
+                int chunkSize = Math.min(count, BATCH_CHUNK_SIZE);
+
+                // D1 and D2, UID starts after the diversification constant
+                BulkCmacEngine cmac1 = new BulkCmacEngine(cipher, context.getSubKey1(), context.getSubKey2(),
+                        Arrays.copyOfRange(template, 0, divLength), AN10922_PADDED_LENGTH, 1, uidLength, chunkSize);
+                BulkCmacEngine cmac2 = aes192 ? new BulkCmacEngine(cipher, context.getSubKey1(), context.getSubKey2(),
+                        Arrays.copyOfRange(template, divLength, template.length), AN10922_PADDED_LENGTH, 1, uidLength, chunkSize) : null;
+                byte[] macs1 = aes192 ? new byte[chunkSize * 16] : null;
+                byte[] macs2 = aes192 ? new byte[chunkSize * 16] : null;
+
+                for (int first = 0; first < count; first += chunkSize) {
+                    int cards = Math.min(chunkSize, count - first);
+                    int uidOffset = uidsOffset + first * uidLength;
+                    if (aes192) {
+                        cmac1.doFinal(uids, uidOffset, cards, macs1, 0);
+                        cmac2.doFinal(uids, uidOffset, cards, macs2, 0);
+                        for (int i = 0; i < cards; i++) {
+                            combineAN10922AES192(macs1, i * 16, macs2, i * 16, output, outputOffset + (first + i) * 24);
+                        }
+                    } else {
+                        cmac1.doFinal(uids, uidOffset, cards, output, outputOffset + first * 16);
+                    }
+                }
+            } finally {
+                if (cipher != null) {
+                    context.getCiphers().release(cipher);
+                }
+                context.release();
+            }
         } catch (Exception e) {
-            throw new DiversificationException("Cannot diversify key (AN10922)", e);
+            throw new DiversificationException("Cannot diversify keys (AN10922)", e);
         }
     }
 
     /**
-     * Diversify a key with div sequence (AN0148 mode)
+     * Diversify a key for a batch of cards (AN0148 mode)
      *
-     * @param key Key to diversify
-     * @param div Diversification sequence
-     * @return Diversified key
+     * @param key          Key to diversify
+     * @param template     Diversification sequence with an empty UID
+     * @param uids         Buffer of contiguous UIDs
+     * @param uidsOffset   Offset of the first UID in buffer
+     * @param uidLength    Length of one UID
+     * @param count        Number of UIDs
+     * @param output       Buffer receiving the contiguous diversified keys
+     * @param outputOffset Offset of the first diversified key in output
      * @throws DiversificationException
      */
-    protected byte[] diversifyAN0148(byte[] key, byte[] div) throws DiversificationException {
+    protected void diversifyBatchAN0148(byte[] key, byte[] template, byte[] uids, int uidsOffset, int uidLength, int count,
+                                        byte[] output, int outputOffset) throws DiversificationException {
+        byte[] toDivKey = null;
+        byte[] inputs = null;
+        byte[] divKeys1 = null;
+        byte[] divKeys2 = null;
+        try {
+            int keySize = key.length;
+            toDivKey = expandKeyAN0148(key);
+            boolean aes = algorithm.equals(Algorithm.AES);
+            int blockSize = template.length;
+            if (blockSize != algorithm.getBlocSize()) {
+                throw new DiversificationException("Invalid key or UID length");
+            }
+            checkKeyAN0148(toDivKey.length);
+
+            KeyContext context = contexts.acquire(algorithm, toDivKey);
+            BlockCipher cipher = null;
+            try {
+                cipher = context.getCiphers().acquire();
 
+                // Key xor div sequence of each card, the UID starts after the key index, twice for AES
+                int chunkSize = Math.min(count, BATCH_CHUNK_SIZE);
+                inputs = new byte[chunkSize * blockSize];
+                BytesUtils.xor(toDivKey, 0, template, 0, inputs, 0, blockSize);
+                for (int i = 1; i < chunkSize; i++) {
+                    System.arraycopy(inputs, 0, inputs, i * blockSize, blockSize);
+                }
+                divKeys1 = new byte[chunkSize * blockSize];
+                divKeys2 = new byte[chunkSize * blockSize];
+
+                for (int first = 0; first < count; first += chunkSize) {
+                    int cards = Math.min(chunkSize, count - first);
+                    for (int i = 0; i < cards; i++) {
+                        int uidOffset = uidsOffset + (first + i) * uidLength;
+                        BytesUtils.xor(toDivKey, 1, uids, uidOffset, inputs, i * blockSize + 1, uidLength);
+                        if (aes) {
+                            BytesUtils.xor(toDivKey, blockSize / 2 + 1, uids, uidOffset, inputs, i * blockSize + blockSize / 2 + 1, uidLength);
+                        }
+                    }
+                    // A single block per card is encrypted directly into the output
+                    int offset = outputOffset + first * keySize;
+                    if (keySize == blockSize) {
+                        cipher.encryptBlocks(inputs, 0, cards * blockSize, output, offset);
+                        continue;
+                    }
+                    cipher.encryptBlocks(inputs, 0, cards * blockSize, divKeys1, 0);
+
+                    // Second block, chained on the first one of each card
+                    for (int i = 0; i < cards; i++) {
+                        BytesUtils.xor(toDivKey, 8, divKeys1, i * 8, divKeys2, i * 8, 8);
+                    }
+                    cipher.encryptBlocks(divKeys2, 0, cards * 8, divKeys2, 0);
+
+                    // Only two blocks are computed, a longer key is completed with zeros
+                    int length2 = Math.min(keySize - 8, 8);
+                    for (int i = 0; i < cards; i++) {
+                        System.arraycopy(divKeys1, i * 8, output, offset + i * keySize, 8);
+                        System.arraycopy(divKeys2, i * 8, output, offset + i * keySize + 8, length2);
+                        Arrays.fill(output, offset + i * keySize + 8 + length2, offset + (i + 1) * keySize, (byte) 0x00);
+                    }
+                }
+            } finally {
+                if (cipher != null) {
+                    context.getCiphers().release(cipher);
+                }
+                context.release();
+            }
+        } catch (DiversificationException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DiversificationException("Cannot diversify keys (AN0148)", e);
+        } finally {
+            // Key xor inputs and intermediate keys are key material
+            for (byte[] secret : new byte[][]{toDivKey != key ? toDivKey : null, inputs, divKeys1, divKeys2}) {
+                if (secret != null) {
+                    Arrays.fill(secret, (byte) 0x00);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the retained context of a master key for the current thread, expanded for AN0148
+     *
+     * @param workspace Buffers and last context of the current thread
+     * @param key       Buffer containing the key to diversify
+     * @param keyOffset Offset of the key
+     * @param keyLength Length of the key
+     * @return Key context, to release after use
+     * @throws DiversificationException If the key cannot be used by this standard
+     */
+    protected KeyContext acquire(Workspace workspace, byte[] key, int keyOffset, int keyLength) throws DiversificationException {
         try {
-            byte[] tmpKey;
-            byte[] toDivKey = key;
+            switch (standard) {
+                case AN10922_AES128:
+                case AN10922_AES192:
+                    return workspace.acquire(contexts, algorithm, key, keyOffset, keyLength);
+                case AN0148_3DES:
+                case AN0148_DES:
+                case AN0148_AES:
+                    if (keyLength > workspace.expandedKey.capacity()) {
+                        throw new DiversificationException("Invalid key or UID length");
+                    }
+                    for (int i = 0; i < keyLength; i++) {
+                        workspace.expandedKey.put(i, key[keyOffset + i]);
+                    }
+                    return acquireAN0148(workspace, keyLength);
+                default:
+                    throw new DiversificationException("Unknown diversification standard");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new DiversificationException("Cannot initialize key", e);
+        }
+    }
 
-            int keySize = key.length;
+    /**
+     * Return the retained context of a master key for the current thread, expanded for AN0148.
+     * The key is not copied on the heap.
+     *
+     * @param workspace Buffers and last context of the current thread
+     * @param key       Buffer containing the key to diversify from its position to its limit, not modified
+     * @return Key context, to release after use
+     * @throws DiversificationException If the key cannot be used by this standard
+     */
+    protected KeyContext acquire(Workspace workspace, ByteBuffer key) throws DiversificationException {
+        try {
+            switch (standard) {
+                case AN10922_AES128:
+                case AN10922_AES192:
+                    return workspace.acquire(contexts, algorithm, key);
+                case AN0148_3DES:
+                case AN0148_DES:
+                case AN0148_AES:
+                    int keyLength = key.remaining();
+                    if (keyLength > workspace.expandedKey.capacity()) {
+                        throw new DiversificationException("Invalid key or UID length");
+                    }
+                    for (int i = 0; i < keyLength; i++) {
+                        workspace.expandedKey.put(i, key.get(key.position() + i));
+                    }
+                    return acquireAN0148(workspace, keyLength);
+                default:
+                    throw new DiversificationException("Unknown diversification standard");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new DiversificationException("Cannot initialize key", e);
+        }
+    }
 
+    /**
+     * Expand the key copied at the start of the off-heap buffer of the workspace and return its retained context,
+     * the buffer is erased afterwards (AN0148 mode)
+     *
+     * @param workspace Buffers and last context of the current thread
+     * @param keyLength Length of the key to diversify
+     * @return Key context, to release after use
+     * @throws DiversificationException   If the key cannot be used by this standard
+     * @throws GeneralSecurityException If the context cannot be created
+     */
+    protected KeyContext acquireAN0148(Workspace workspace, int keyLength)
+            throws DiversificationException, GeneralSecurityException {
+        ByteBuffer toDivKey = workspace.expandedKey;
+        try {
+            int toDivKeyLength = keyLength;
             if (!algorithm.equals(Algorithm.AES)) {
-                if (keySize == 8) {
-                    toDivKey = Bytes.concat(key, key, key);
-                } else if (keySize == 16) {
-                    toDivKey = Bytes.concat(key, Arrays.copyOfRange(key, 0, 8));
+                if (keyLength == 8) {
+                    for (int i = 0; i < 8; i++) {
+                        toDivKey.put(8 + i, toDivKey.get(i));
+                        toDivKey.put(16 + i, toDivKey.get(i));
+                    }
+                    toDivKeyLength = 24;
+                } else if (keyLength == 16) {
+                    for (int i = 0; i < 8; i++) {
+                        toDivKey.put(16 + i, toDivKey.get(i));
+                    }
+                    toDivKeyLength = 24;
                 }
             }
+            checkKeyAN0148(toDivKeyLength);
 
-            SecretKeySpec secretKey = new SecretKeySpec(toDivKey, algorithm.getKeyAlgorithm());
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(new byte[div.length]));
+            toDivKey.clear().limit(toDivKeyLength);
+            return workspace.acquire(contexts, algorithm, toDivKey);
+        } finally {
+            toDivKey.clear();
+            for (int i = 0; i < toDivKey.capacity(); i++) {
+                toDivKey.put(i, (byte) 0x00);
+            }
+        }
+    }
 
-            if (algorithm.equals(Algorithm.AES)) {
-                toDivKey = BytesUtils.xor(toDivKey, div);
-                tmpKey = cipher.doFinal(toDivKey);
+    /**
+     * Diversify a key for a card into a caller buffer with a retained context, through the cache of diversified keys
+     *
+     * @param workspace              Buffers of the current thread, holding the engine of the context
+     * @param context                Context of the key, acquired by the workspace
+     * @param keyLength              Length of the key, before any expansion
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @throws DiversificationException
+     */
+    protected void diversify(Workspace workspace, KeyContext context, int keyLength, int keyIndex,
+                             byte[] uid, int uidOffset, int uidLength,
+                             byte[] aid, int aidOffset, int aidLength,
+                             byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                             byte[] output, int outputOffset) throws DiversificationException {
+        DerivedKeyCache cache = derivedKeyCache;
+        if (cache != null && cache.get(context, keyLength, keyIndex, uid, uidOffset, uidLength,
+                aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                output, outputOffset) >= 0) {
+            return;
+        }
 
-            } else {
-                byte[] key1 = Arrays.copyOfRange(toDivKey, 0, 8);
-                key1 = BytesUtils.xor(key1, div);
-                byte[] divKey1 = cipher.doFinal(key1);
+        diversify(workspace, workspace, keyLength, keyIndex, uid, uidOffset, uidLength,
+                aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                output, outputOffset);
 
-                byte[] key2 = Arrays.copyOfRange(toDivKey, 8, 16);
-                key2 = BytesUtils.xor(key2, divKey1);
-                byte[] divKey2 = cipher.doFinal(key2);
+        if (cache != null) {
+            cache.put(context, keyLength, keyIndex, uid, uidOffset, uidLength,
+                    aid, aidOffset, aidLength, systemIdentifier, systemIdentifierOffset, systemIdentifierLength,
+                    output, outputOffset, getDiversifiedKeyLength(keyLength));
+        }
+    }
+
+    /**
+     * Diversify a key for a card into a caller buffer, with the engine of a master key and the last plan of the thread
+     *
+     * @param workspace              Buffers and last plan of the current thread
+     * @param engine                 Context and cipher of the key, held by the current thread
+     * @param keyLength              Length of the key, before any expansion
+     * @param keyIndex               Key index
+     * @param uid                    Buffer containing the card UID
+     * @param uidOffset              Offset of the UID
+     * @param uidLength              Length of the UID
+     * @param aid                    Buffer containing the application ID
+     * @param aidOffset              Offset of the application ID
+     * @param aidLength              Length of the application ID
+     * @param systemIdentifier       Buffer containing the system identifier
+     * @param systemIdentifierOffset Offset of the system identifier
+     * @param systemIdentifierLength Length of the system identifier
+     * @param output                 Buffer receiving the diversified key
+     * @param outputOffset           Offset of the diversified key in output
+     * @throws DiversificationException
+     */
+    protected void diversify(Workspace workspace, Engine engine, int keyLength, int keyIndex,
+                             byte[] uid, int uidOffset, int uidLength,
+                             byte[] aid, int aidOffset, int aidLength,
+                             byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength,
+                             byte[] output, int outputOffset) throws DiversificationException {
+        DiversificationPlan plan = workspace.plan(standard, uidLength, aid, aidOffset, aidLength,
+                systemIdentifier, systemIdentifierOffset, systemIdentifierLength);
+        byte[] work = workspace.buffer(Workspace.MESSAGE, plan.getWorkLength());
+        try {
+            plan.diversify(engine, work, keyLength, keyIndex, uid, uidOffset, output, outputOffset);
+        } finally {
+            Arrays.fill(work, 0, plan.getWorkLength(), (byte) 0x00);
+        }
+    }
 
-                tmpKey = Bytes.concat(divKey1, divKey2);
+    /**
+     * Expand a DES or 2-key 3DES key to a 3-key 3DES key (AN0148 mode)
+     *
+     * @param key Key to expand
+     * @return Key usable by the cipher
+     */
+    protected byte[] expandKeyAN0148(byte[] key) {
+        if (!algorithm.equals(Algorithm.AES)) {
+            if (key.length == 8) {
+                return Bytes.concat(key, key, key);
+            } else if (key.length == 16) {
+                return Bytes.concat(key, Arrays.copyOfRange(key, 0, 8));
             }
+        }
 
-            byte[] divKey = Arrays.copyOf(tmpKey, keySize);
+        return key;
+    }
 
+    /**
+     * Expand a DES or 2-key 3DES key to a 3-key 3DES key into a caller buffer (AN0148 mode)
+     *
+     * @param key       Buffer containing the key to expand
+     * @param keyOffset Offset of the key
+     * @param keyLength Length of the key
+     * @param output    Buffer receiving the key usable by the cipher (24 bytes)
+     * @return Length of the expanded key
+     */
+    protected int expandKeyAN0148(byte[] key, int keyOffset, int keyLength, byte[] output) {
+        if (keyLength > output.length) {
+            return 0;
+        }
 
-            log.info("====== AN0148 DIVERSIFICATION ======");
-            log.info("ALGO: {}", algorithm.toString());
-            log.info("K: {}", BytesUtils.bytesToHex(key));
-            log.info("M: {}", BytesUtils.bytesToHex(div));
-            log.info("K': {}", BytesUtils.bytesToHex(divKey));
-            log.info("====================================");
+        System.arraycopy(key, keyOffset, output, 0, keyLength);
+        if (!algorithm.equals(Algorithm.AES)) {
+            if (keyLength == 8) {
+                System.arraycopy(key, keyOffset, output, 8, 8);
+                System.arraycopy(key, keyOffset, output, 16, 8);
+                return 24;
+            } else if (keyLength == 16) {
+                System.arraycopy(key, keyOffset, output, 16, 8);
+                return 24;
+            }
+        }
 
-            return divKey;
+        return keyLength;
+    }
 
-        } catch (Exception e) {
-            throw new DiversificationException("Cannot diversify key (AN0148)", e);
+    /**
+     * Check the length of an expanded key (AN0148 mode)
+     *
+     * @param toDivKeyLength Length of the expanded key
+     * @throws DiversificationException If the cipher cannot diversify with this key
+     */
+    protected void checkKeyAN0148(int toDivKeyLength) throws DiversificationException {
+        if (algorithm.equals(Algorithm.AES) ? toDivKeyLength != algorithm.getBlocSize() : toDivKeyLength < 16) {
+            throw new DiversificationException("Invalid key or UID length");
         }
     }
 
     /**
-     * Generate Subkey
+     * Build an AES 192 bits key from the CMAC of D1 and D2 held in larger buffers (AN10922 mode)
      *
-     * @return Sub key
-     * @throws GeneralSecurityException
+     * @param cmac1        Buffer containing the CMAC of D1
+     * @param cmac1Offset  Offset of the CMAC of D1
+     * @param cmac2        Buffer containing the CMAC of D2
+     * @param cmac2Offset  Offset of the CMAC of D2
+     * @param output       Buffer receiving the key (24 bytes)
+     * @param outputOffset Offset of the key in output
      */
-    protected byte[] generateSubKey(byte[] key) throws GeneralSecurityException {
+    protected void combineAN10922AES192(byte[] cmac1, int cmac1Offset, byte[] cmac2, int cmac2Offset,
+                                        byte[] output, int outputOffset) {
+        System.arraycopy(cmac1, cmac1Offset, output, outputOffset, 8);
+        BytesUtils.xor(cmac1, cmac1Offset + 8, cmac2, cmac2Offset, output, outputOffset + 8, 8);
+        System.arraycopy(cmac2, cmac2Offset + 8, output, outputOffset + 16, 8);
+    }
 
-        byte[] subKey = BytesUtils.shiftLeft(key);
-        int msbL = (key[0] & 0xff) >> 7;
-        if (msbL == 1) {
-            subKey[15] = (byte) (subKey[15] ^ (byte) 0x87);
+    /**
+     * Log the values of a derivation at TRACE level, key material included: to enable for tests only
+     *
+     * @param context Context of the key
+     * @param key     Key to diversify
+     * @param div     Diversification sequence
+     * @param divKey  Diversified key
+     */
+    protected void log(KeyContext context, byte[] key, byte[] div, byte[] divKey) {
+        boolean an10922 = Standard.AN10922_AES128.equals(standard) || Standard.AN10922_AES192.equals(standard);
+        log.trace(an10922 ? "===== AN10922 DIVERSIFICATION ======" : "====== AN0148 DIVERSIFICATION ======");
+        log.trace("ALGO: {}", algorithm.toString());
+        log.trace("K: {}", BytesUtils.bytesToHex(key));
+        if (an10922) {
+            log.trace("K0: {}", BytesUtils.bytesToHex(context.getLKey()));
+            log.trace("K1: {}", BytesUtils.bytesToHex(context.getSubKey1()));
+            log.trace("K2: {}", BytesUtils.bytesToHex(context.getSubKey2()));
         }
-
-        return subKey;
+        log.trace("M: {}", BytesUtils.bytesToHex(div));
+        log.trace("K': {}", BytesUtils.bytesToHex(divKey));
+        log.trace("====================================");
     }
 
     /**
-     * Compute a CMAC string
+     * Return the offset of the position of a buffer in the array returned by {@link Workspace#copy(ByteBuffer, int)}
      *
-     * @param d      D value
-     * @param k1     Sub key 1
-     * @param k2     Sub key 2
-     * @param padded Is the div sequence is padded ?
-     * @return cmac value
-     * @throws GeneralSecurityException
+     * @param buffer Buffer
+     * @return Offset in array
+     */
+    protected static int offset(ByteBuffer buffer) {
+        return buffer.hasArray() ? buffer.arrayOffset() + buffer.position() : 0;
+    }
+
+    /**
+     * Key context with the cipher a thread holds for it
      */
-    protected byte[] cmac(byte[] d, byte[] k1, byte[] k2, boolean padded) throws GeneralSecurityException {
+    protected static class Engine {
 
         /**
-         * Last 16-byte is XORed with K2 if padding is added, otherwise XORed with K1
+         * Key context, retained by the user of the engine
          */
-        byte[] inputMSB = Arrays.copyOfRange(d, 0, 16);
-        byte[] inputLSB = Arrays.copyOfRange(d, 16, 32);
+        protected KeyContext context;
 
-        if (padded) {
-            inputLSB = BytesUtils.xor(inputLSB, k2);
-        } else {
-            inputLSB = BytesUtils.xor(inputLSB, k1);
-        }
+        /**
+         * Cipher of the key context, held by this thread only
+         */
+        protected BlockCipher cipher;
 
-        return cipher.doFinal(Bytes.concat(inputMSB, inputLSB));
+        /**
+         * CMAC engine of the cipher, created on first use
+         */
+        protected CmacEngine cmac;
+
+        /**
+         * Return the CMAC engine of the key context, reset between two messages without re-keying the cipher
+         *
+         * @return CMAC engine
+         */
+        protected CmacEngine cmac() {
+            if (cmac == null) {
+                cmac = new CmacEngine(cipher, context.getSubKey1(), context.getSubKey2());
+            }
+            return cmac;
+        }
     }
 
     /**
-     * Create diversification string
-     *
-     * @param keyIndex Key index
-     * @param csn      Csn
-     * @param aid      Application ID
-     * @param sysId    System Identifier
-     * @return Diversification string
-     */
-    protected byte[] getDivSequence(int keyIndex, byte[] csn, byte[] aid, byte[] sysId) {
-        if (standard.equals(Standard.AN10922_AES128)) {
-            return Bytes.concat(new byte[]{AES128_DIV_CONSTANT}, csn, BytesUtils.reverseBytes(aid), sysId);
-        } else if (standard.equals(Standard.AN10922_AES192)) {
-            byte[] divSequence1 = Bytes.concat(new byte[]{AES192_DIV_CONSTANT1}, csn, BytesUtils.reverseBytes(aid), sysId);
-            byte[] divSequence2 = Bytes.concat(new byte[]{AES192_DIV_CONSTANT2}, csn, BytesUtils.reverseBytes(aid), sysId);
-            return Bytes.concat(divSequence1, divSequence2);
-        } else if (standard.equals(Standard.AN0148_AES)) {
-            byte[] divSequence = BytesUtils.pad(Bytes.concat(new byte[]{(byte) keyIndex}, csn), 8);
-            return Bytes.concat(divSequence, divSequence);
-        } else {
-            return BytesUtils.pad(Bytes.concat(new byte[]{(byte) keyIndex}, csn), 8);
+     * Work buffers of a thread, the engine of the key context it used last, not retained between calls,
+     * and the plan of its last derivation
+     */
+    protected static class Workspace extends Engine {
+
+        protected static final int UID = 0;
+        protected static final int AID = 1;
+        protected static final int SYSTEM_IDENTIFIER = 2;
+        protected static final int OUTPUT = 3;
+        protected static final int MESSAGE = 4;
+
+        /**
+         * Buffers by usage, grown on demand
+         */
+        protected final byte[][] buffers = new byte[5][64];
+
+        /**
+         * Master key expanded for AN0148, off-heap and erased once its context is acquired
+         */
+        protected final ByteBuffer expandedKey = ByteBuffer.allocateDirect(24);
+
+        /**
+         * Plan of the last derivation of this thread
+         */
+        protected DiversificationPlan plan;
+
+        /**
+         * Return the plan of a derivation, reuse the last plan of this thread when the inputs are the same
+         *
+         * @param standard               Diversification standard
+         * @param uidLength              Length of the UID
+         * @param aid                    Buffer containing the application ID
+         * @param aidOffset              Offset of the application ID
+         * @param aidLength              Length of the application ID
+         * @param systemIdentifier       Buffer containing the system identifier
+         * @param systemIdentifierOffset Offset of the system identifier
+         * @param systemIdentifierLength Length of the system identifier
+         * @return Plan
+         * @throws DiversificationException If the standard cannot diversify UIDs of this length
+         */
+        protected DiversificationPlan plan(Standard standard, int uidLength, byte[] aid, int aidOffset, int aidLength,
+                                           byte[] systemIdentifier, int systemIdentifierOffset, int systemIdentifierLength)
+                throws DiversificationException {
+            if (plan == null || !plan.matches(uidLength, aid, aidOffset, aidLength,
+                    systemIdentifier, systemIdentifierOffset, systemIdentifierLength)) {
+                plan = DiversificationPlan.compile(standard, uidLength, aid, aidOffset, aidLength,
+                        systemIdentifier, systemIdentifierOffset, systemIdentifierLength);
+            }
+
+            return plan;
+        }
+
+        /**
+         * Return a buffer of at least a length, a buffer too small is erased and replaced
+         *
+         * @param usage  Usage of the buffer
+         * @param length Minimum length
+         * @return Buffer
+         */
+        protected byte[] buffer(int usage, int length) {
+            if (buffers[usage].length < length) {
+                Arrays.fill(buffers[usage], (byte) 0x00);
+                buffers[usage] = new byte[Math.max(length, 2 * buffers[usage].length)];
+            }
+
+            return buffers[usage];
+        }
+
+        /**
+         * Return the array backing a byte buffer, or a copy of its remaining bytes for a direct buffer
+         *
+         * @param data  Byte buffer
+         * @param usage Usage of the copy
+         * @return Array containing the remaining bytes at {@link #offset(ByteBuffer)}
+         */
+        protected byte[] copy(ByteBuffer data, int usage) {
+            if (data.hasArray()) {
+                return data.array();
+            }
+
+            byte[] copy = buffer(usage, data.remaining());
+            int position = data.position();
+            for (int i = 0; i < data.remaining(); i++) {
+                copy[i] = data.get(position + i);
+            }
+
+            return copy;
+        }
+
+        /**
+         * Return the retained context of a key, reuse the last context of this thread when the key is the same
+         *
+         * @param contexts  Cache of contexts
+         * @param algorithm Algorithm of the key
+         * @param key       Buffer containing the key
+         * @param offset    Offset of the key
+         * @param length    Length of the key
+         * @return Key context, to release after use
+         * @throws GeneralSecurityException
+         */
+        protected KeyContext acquire(KeyContextCache contexts, Algorithm algorithm, byte[] key, int offset, int length)
+                throws GeneralSecurityException {
+
+            if (context != null && context.retain()) {
+                if (context.matches(key, offset, length)) {
+                    return context;
+                }
+                context.getCiphers().release(cipher);
+                context.release();
+            }
+            context = null;
+            cipher = null;
+            cmac = null;
+
+            return acquire(contexts.acquire(algorithm, ByteBuffer.wrap(key, offset, length)));
+        }
+
+        /**
+         * Return the retained context of a key, reuse the last context of this thread when the key is the same.
+         * The key is not copied on the heap.
+         *
+         * @param contexts  Cache of contexts
+         * @param algorithm Algorithm of the key
+         * @param key       Buffer containing the key from its position to its limit, not modified
+         * @return Key context, to release after use
+         * @throws GeneralSecurityException
+         */
+        protected KeyContext acquire(KeyContextCache contexts, Algorithm algorithm, ByteBuffer key)
+                throws GeneralSecurityException {
+
+            if (context != null && context.retain()) {
+                if (context.matches(key)) {
+                    return context;
+                }
+                context.getCiphers().release(cipher);
+                context.release();
+            }
+            context = null;
+            cipher = null;
+            cmac = null;
+
+            return acquire(contexts.acquire(algorithm, key));
+        }
+
+        /**
+         * Make a new retained context the last context of this thread, with a cipher of its own
+         *
+         * @param newContext Retained context
+         * @return Key context, to release after use
+         * @throws GeneralSecurityException If no cipher can be created, the context is then released
+         */
+        protected KeyContext acquire(KeyContext newContext) throws GeneralSecurityException {
+            try {
+                cipher = newContext.getCiphers().acquire();
+            } catch (GeneralSecurityException e) {
+                newContext.release();
+                throw e;
+            }
+            context = newContext;
+
+            return newContext;
         }
     }
 }
@@ -0,0 +1,292 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.security.BlockCipher;
+import fr.redfroggy.sample.derivation.security.BlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.CipherPool;
+import fr.redfroggy.sample.derivation.security.JceBlockCipherProvider;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Material computed once for a master key and reused by every derivation under this key:
+ * the initialized ciphers and the CMAC subkeys (L, K1, K2)
+ * <p>
+ * A context is shared between threads. Users must {@link #retain()} it before use
+ * and {@link #release()} it afterwards, the key material is zeroized when the last reference is released.
+ * <p>
+ * The key value is held off-heap, so it is neither moved nor copied by the garbage collector.
+ * The key schedules of the Java ciphers are erased with the context, those of the JCE ciphers cannot be.
+ */
+public class KeyContext {
+
+    /**
+     * CMAC Rb constant for 128 bits blocks (NIST SP 800-38B)
+     */
+    protected static final byte RB_128 = (byte) 0x87;
+
+    /**
+     * CMAC Rb constant for 64 bits blocks (NIST SP 800-38B)
+     */
+    protected static final byte RB_64 = (byte) 0x1B;
+
+    /**
+     * Last identifier given to a context
+     */
+    protected static final AtomicLong LAST_ID = new AtomicLong();
+
+    /**
+     * Unique identifier of the context, names its key in the cache of diversified keys
+     */
+    @Getter
+    protected final long id = LAST_ID.incrementAndGet();
+
+    /**
+     * Algorithm of the key
+     */
+    @Getter
+    protected final Algorithm algorithm;
+
+    /**
+     * Copy of the key value, in direct memory
+     */
+    protected final ByteBuffer key;
+
+    /**
+     * Ciphers initialized with the key
+     */
+    @Getter
+    protected final CipherPool ciphers;
+
+    /**
+     * L = CIPHK(0b)
+     */
+    @Getter
+    protected final byte[] lKey;
+
+    /**
+     * CMAC subkey K1
+     */
+    @Getter
+    protected final byte[] subKey1;
+
+    /**
+     * CMAC subkey K2
+     */
+    @Getter
+    protected final byte[] subKey2;
+
+    /**
+     * Number of references, the cache owns the first one
+     */
+    protected final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Create the context of a key
+     *
+     * @param algorithm Algorithm of the key
+     * @param key       Key value
+     * @throws GeneralSecurityException If the key cannot be used with this algorithm
+     */
+    public KeyContext(Algorithm algorithm, byte[] key) throws GeneralSecurityException {
+        this(new JceBlockCipherProvider(), algorithm, key, 0, key.length);
+    }
+
+    /**
+     * Create the context of a key
+     *
+     * @param provider  Provider of the ciphers
+     * @param algorithm Algorithm of the key
+     * @param key       Buffer containing the key value
+     * @param offset    Offset of the key value
+     * @param length    Length of the key value
+     * @throws GeneralSecurityException If the key cannot be used with this algorithm
+     */
+    public KeyContext(BlockCipherProvider provider, Algorithm algorithm, byte[] key, int offset, int length)
+            throws GeneralSecurityException {
+        this(provider, algorithm, ByteBuffer.wrap(key, offset, length));
+    }
+
+    /**
+     * Create the context of a key, without copying it on the heap
+     *
+     * @param provider  Provider of the ciphers
+     * @param algorithm Algorithm of the key
+     * @param key       Buffer containing the key value from its position to its limit, not modified
+     * @throws GeneralSecurityException If the key cannot be used with this algorithm
+     */
+    public KeyContext(BlockCipherProvider provider, Algorithm algorithm, ByteBuffer key)
+            throws GeneralSecurityException {
+        this.algorithm = algorithm;
+        this.key = ByteBuffer.allocateDirect(key.remaining());
+        this.key.put(key.duplicate()).clear();
+
+        this.ciphers = new CipherPool(provider, algorithm, this.key);
+
+        // Generate SubKeys
+        // Let L = CIPHK(0b)
+        BlockCipher cipher = ciphers.acquire();
+        try {
+            this.lKey = new byte[algorithm.getBlocSize()];
+            cipher.encryptBlocks(lKey, 0, lKey.length, lKey, 0);
+        } finally {
+            ciphers.release(cipher);
+        }
+        this.subKey1 = generateSubKey(lKey);
+        this.subKey2 = generateSubKey(subKey1);
+    }
+
+    /**
+     * Check if this context has been created for a key value
+     *
+     * @param otherKey Key value to compare
+     * @return true if the key values are identical
+     */
+    public boolean matches(byte[] otherKey) {
+        return matches(otherKey, 0, otherKey.length);
+    }
+
+    /**
+     * Check if this context has been created for a key value
+     *
+     * @param otherKey Buffer containing the key value to compare
+     * @param offset   Offset of the key value
+     * @param length   Length of the key value
+     * @return true if the key values are identical
+     */
+    public boolean matches(byte[] otherKey, int offset, int length) {
+        if (length != key.capacity()) {
+            return false;
+        }
+
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            diff |= key.get(i) ^ otherKey[offset + i];
+        }
+
+        return diff == 0;
+    }
+
+    /**
+     * Check if this context has been created for a key value
+     *
+     * @param otherKey Buffer containing the key value to compare from its position to its limit, not modified
+     * @return true if the key values are identical
+     */
+    public boolean matches(ByteBuffer otherKey) {
+        int length = otherKey.remaining();
+        if (length != key.capacity()) {
+            return false;
+        }
+
+        int position = otherKey.position();
+        int diff = 0;
+        for (int i = 0; i < length; i++) {
+            diff |= key.get(i) ^ otherKey.get(position + i);
+        }
+
+        return diff == 0;
+    }
+
+    /**
+     * Return the length of the key value
+     *
+     * @return Length in bytes
+     */
+    public int getKeyLength() {
+        return key.capacity();
+    }
+
+    /**
+     * Xor a part of the key value with data, without copying the key on the heap
+     *
+     * @param keyOffset    Offset in the key value
+     * @param data         Buffer containing the data
+     * @param dataOffset   Offset of the data
+     * @param output       Buffer receiving the result
+     * @param outputOffset Offset of the result
+     * @param length       Number of bytes
+     */
+    public void xorKey(int keyOffset, byte[] data, int dataOffset, byte[] output, int outputOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            output[outputOffset + i] = (byte) (key.get(keyOffset + i) ^ data[dataOffset + i]);
+        }
+    }
+
+    /**
+     * Take a reference on this context
+     *
+     * @return false if the context has already been destroyed
+     */
+    public boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    /**
+     * Release a reference on this context, the key material is erased with the last reference
+     *
+     * @return true if the last reference has been released
+     */
+    public boolean release() {
+        if (references.decrementAndGet() == 0) {
+            zeroize();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Release the reference owned by the cache.
+     * The key material is erased as soon as no derivation uses this context anymore.
+     *
+     * @return true if the last reference has been released
+     */
+    public boolean destroy() {
+        return release();
+    }
+
+    /**
+     * Erase the key material held by this context
+     */
+    protected void zeroize() {
+        ciphers.clear();
+        for (int i = 0; i < key.capacity(); i++) {
+            key.put(i, (byte) 0x00);
+        }
+        Arrays.fill(lKey, (byte) 0x00);
+        Arrays.fill(subKey1, (byte) 0x00);
+        Arrays.fill(subKey2, (byte) 0x00);
+    }
+
+    /**
+     * Generate Subkey
+     *
+     * @param key Previous key (L or K1)
+     * @return Sub key
+     */
+    protected static byte[] generateSubKey(byte[] key) {
+
+        byte[] subKey = new byte[key.length];
+        int msbL = BytesUtils.shiftLeft(key, 0, key.length, subKey, 0);
+        if (msbL == 1) {
+            int last = subKey.length - 1;
+            subKey[last] = (byte) (subKey[last] ^ (subKey.length == 8 ? RB_64 : RB_128));
+        }
+
+        return subKey;
+    }
+}
@@ -0,0 +1,165 @@
+package fr.redfroggy.sample.derivation.services;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.security.BlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.JceBlockCipherProvider;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bounded cache of key contexts, indexed by a fingerprint of the key.
+ * Evicted contexts are zeroized once they are released by the derivations using them.
+ */
+public class KeyContextCache {
+
+    /**
+     * Default number of master keys kept in cache
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 16;
+
+    /**
+     * Contexts by key fingerprint
+     */
+    protected final Cache<HashCode, KeyContext> contexts;
+
+    /**
+     * Provider of the ciphers of the contexts
+     */
+    protected final BlockCipherProvider provider;
+
+    /**
+     * Create a cache with the default size
+     */
+    public KeyContextCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param maximumSize Maximum number of master keys kept in cache
+     */
+    public KeyContextCache(int maximumSize) {
+        this(maximumSize, new JceBlockCipherProvider());
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param maximumSize Maximum number of master keys kept in cache
+     * @param provider    Provider of the ciphers of the contexts
+     */
+    public KeyContextCache(int maximumSize, BlockCipherProvider provider) {
+        this.provider = provider;
+        Preconditions.checkArgument(maximumSize > 0, "Cache size must be positive");
+        this.contexts = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .removalListener(new RemovalListener<HashCode, KeyContext>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<HashCode, KeyContext> notification) {
+                        notification.getValue().destroy();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Return the context of a key, create it if it is not in cache.
+     * The returned context is retained and must be released by the caller.
+     *
+     * @param algorithm Algorithm of the key
+     * @param key       Key value
+     * @return Key context
+     * @throws GeneralSecurityException If the key cannot be used with this algorithm
+     */
+    public KeyContext acquire(Algorithm algorithm, byte[] key) throws GeneralSecurityException {
+        return acquire(algorithm, ByteBuffer.wrap(key));
+    }
+
+    /**
+     * Return the context of a key, create it if it is not in cache. The key is not copied on the heap.
+     * The returned context is retained and must be released by the caller.
+     *
+     * @param algorithm Algorithm of the key
+     * @param key       Buffer containing the key value from its position to its limit, not modified
+     * @return Key context
+     * @throws GeneralSecurityException If the key cannot be used with this algorithm
+     */
+    public KeyContext acquire(final Algorithm algorithm, final ByteBuffer key) throws GeneralSecurityException {
+        HashCode fingerprint = fingerprint(algorithm, key);
+        while (true) {
+            KeyContext context;
+            try {
+                context = contexts.get(fingerprint, new Callable<KeyContext>() {
+                    @Override
+                    public KeyContext call() throws GeneralSecurityException {
+                        return new KeyContext(provider, algorithm, key);
+                    }
+                });
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) e.getCause();
+                }
+                throw new GeneralSecurityException("Cannot create key context", e.getCause());
+            }
+
+            // The context may have been evicted and destroyed since it has been read
+            if (context.retain()) {
+                return context;
+            }
+        }
+    }
+
+    /**
+     * Return the number of contexts in cache
+     *
+     * @return Number of contexts
+     */
+    public long size() {
+        return contexts.size();
+    }
+
+    /**
+     * Return the hits and misses of the cache
+     *
+     * @return Statistics
+     */
+    public CacheStats stats() {
+        return contexts.stats();
+    }
+
+    /**
+     * Remove and zeroize all contexts
+     */
+    public void invalidateAll() {
+        contexts.invalidateAll();
+    }
+
+    /**
+     * Compute the fingerprint of a key
+     *
+     * @param algorithm Algorithm of the key
+     * @param key       Buffer containing the key value from its position to its limit, not modified
+     * @return Key fingerprint
+     */
+    protected static HashCode fingerprint(Algorithm algorithm, ByteBuffer key) {
+        Hasher hasher = Hashing.sha256().newHasher().putInt(algorithm.ordinal());
+        for (int i = key.position(); i < key.limit(); i++) {
+            hasher.putByte(key.get(i));
+        }
+        return hasher.hash();
+    }
+}
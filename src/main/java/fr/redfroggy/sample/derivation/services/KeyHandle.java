@@ -0,0 +1,144 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Master key loaded once for a diversification process, see {@link DiversificationStandard#open(byte[], int, int)}.
+ * Derivations reference the key by this handle: the key is neither copied nor compared on each call,
+ * and each thread keeps its own initialized cipher for it.
+ * <p>
+ * The key value is held off-heap by the key context of the handle, and zeroized when the handle is closed
+ * and no derivation uses it anymore. The ciphers of the threads are then erased and unlinked from their engines.
+ * A handle can be shared between threads.
+ */
+public class KeyHandle implements Closeable {
+
+    /**
+     * Process which opened this handle
+     */
+    protected final DiversificationStandard owner;
+
+    /**
+     * Length of the master key, before any expansion
+     */
+    @Getter
+    protected final int keyLength;
+
+    /**
+     * Context of the key used by the cipher, owned by this handle
+     */
+    protected final KeyContext context;
+
+    /**
+     * Cipher of each thread
+     */
+    protected final ThreadLocal<DiversificationStandard.Engine> engines = new ThreadLocal<>();
+
+    /**
+     * Engines of all threads, unlinked from the context when it is erased
+     */
+    protected final Set<DiversificationStandard.Engine> created =
+            Collections.newSetFromMap(new ConcurrentHashMap<DiversificationStandard.Engine, Boolean>());
+
+    /**
+     * Whether the reference of the handle on its context has been released
+     */
+    protected final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Create a handle
+     *
+     * @param owner     Process opening the handle
+     * @param keyLength Length of the master key
+     * @param context   Context of the key used by the cipher, released when the handle is closed
+     */
+    protected KeyHandle(DiversificationStandard owner, int keyLength, KeyContext context) {
+        this.owner = owner;
+        this.keyLength = keyLength;
+        this.context = context;
+    }
+
+    /**
+     * Return the unique identifier of the handle, the one of its key context
+     *
+     * @return Identifier naming the key in the cache of diversified keys
+     */
+    public long getId() {
+        return context.getId();
+    }
+
+    /**
+     * Return the cipher of the current thread, retaining the key context
+     *
+     * @param process Process using the handle
+     * @return Engine, to give back with {@link #release()}
+     * @throws DiversificationException If the handle is closed or has been opened by another process
+     */
+    protected DiversificationStandard.Engine acquire(DiversificationStandard process) throws DiversificationException {
+        if (process != owner) {
+            throw new DiversificationException("Key handle opened by another diversification process");
+        }
+        if (!context.retain()) {
+            throw new DiversificationException("Key handle is closed");
+        }
+
+        DiversificationStandard.Engine engine = engines.get();
+        if (engine == null) {
+            try {
+                engine = new DiversificationStandard.Engine();
+                engine.cipher = context.getCiphers().acquire();
+                engine.context = context;
+                created.add(engine);
+                engines.set(engine);
+            } catch (GeneralSecurityException e) {
+                context.release();
+                throw new DiversificationException("Cannot initialize cipher", e);
+            }
+        }
+
+        return engine;
+    }
+
+    /**
+     * Give back the engine of the current thread
+     */
+    protected void release() {
+        if (context.release()) {
+            unlink();
+        }
+    }
+
+    /**
+     * Close the handle, the key is zeroized once the running derivations are done
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            engines.remove();
+            if (context.destroy()) {
+                unlink();
+            }
+        }
+    }
+
+    /**
+     * Drop the references of the engines of all threads on the erased context and its ciphers,
+     * no derivation uses them anymore
+     */
+    protected void unlink() {
+        for (DiversificationStandard.Engine engine : created) {
+            engine.cipher = null;
+            engine.cmac = null;
+            engine.context = null;
+        }
+        created.clear();
+    }
+}
@@ -0,0 +1,92 @@
+package fr.redfroggy.sample.derivation.services;
+
+import java.util.Arrays;
+
+/**
+ * Keys of a card derived in one call: a list of master keys opened by one process, each with a key index
+ * (several key indexes of a key for AN0148, several application master keys for AN10922).
+ * <p>
+ * The diversified keys of a card are written one after the other into one record, in the order of the list.
+ * The entries of a same master key should follow each other: its context is then acquired once for all of them.
+ * A key set is built once, then it can be shared between threads.
+ *
+ * @see DiversificationStandard#diversify(DiversificationPlan, KeySet, byte[], int, byte[], int)
+ */
+public class KeySet {
+
+    /**
+     * Master keys of the entries
+     */
+    protected KeyHandle[] keys = new KeyHandle[4];
+
+    /**
+     * Key indexes of the entries
+     */
+    protected int[] keyIndexes = new int[4];
+
+    /**
+     * Number of entries
+     */
+    protected int size;
+
+    /**
+     * Add an entry
+     *
+     * @param key      Master key, opened by the process diversifying the set
+     * @param keyIndex Key index
+     * @return This key set
+     */
+    public KeySet add(KeyHandle key, int keyIndex) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            keyIndexes = Arrays.copyOf(keyIndexes, 2 * size);
+        }
+        keys[size] = key;
+        keyIndexes[size] = keyIndex;
+        size++;
+        return this;
+    }
+
+    /**
+     * Return the number of entries
+     *
+     * @return Number of diversified keys of a record
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the master key of an entry
+     *
+     * @param entry Entry
+     * @return Master key
+     */
+    public KeyHandle getKey(int entry) {
+        return keys[entry];
+    }
+
+    /**
+     * Return the key index of an entry
+     *
+     * @param entry Entry
+     * @return Key index
+     */
+    public int getKeyIndex(int entry) {
+        return keyIndexes[entry];
+    }
+
+    /**
+     * Return the length of the record of a card
+     *
+     * @param plan Plan of the derivations
+     * @return Sum of the lengths of the diversified keys
+     */
+    public int getRecordLength(DiversificationPlan plan) {
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            length += plan.getDiversifiedKeyLength(keys[i].getKeyLength());
+        }
+        return length;
+    }
+}
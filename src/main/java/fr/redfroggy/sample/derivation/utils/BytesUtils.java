@@ -1,10 +1,10 @@
 package fr.redfroggy.sample.derivation.utils;
 
-import com.google.common.primitives.Bytes;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
-import org.apache.commons.lang3.ArrayUtils;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 /**
@@ -60,23 +60,9 @@ public abstract class BytesUtils {
      * @return hexadecimal representation
      */
     public static String bytesToHex(byte[] bytes, char separator, int bytePerRow) {
-
-        int count = 0;
-        StringBuilder hexa = new StringBuilder();
-
-        for (int i = 0; i < bytes.length; i++) {
-            if (bytePerRow > 0 && count == bytePerRow) {
-                hexa.append('\n');
-                count = 0;
-            } else if (i > 0) {
-                hexa.append(separator);
-            }
-
-            hexa.append(String.format("%02X", bytes[i]));
-            count++;
-        }
-
-        return hexa.toString();
+        CharBuffer hexa = CharBuffer.allocate(HexCodec.encodedLength(bytes.length));
+        HexCodec.encode(ByteBuffer.wrap(bytes), hexa, separator, bytePerRow);
+        return new String(hexa.array());
     }
 
     /**
@@ -86,14 +72,13 @@ public abstract class BytesUtils {
      * @return bytes array
      */
     public static byte[] hexToBytes(String hexadecimal) {
-        String cleanedHexa = hexadecimal.replaceAll("[^a-fA-F0-9]", "");
-        int len = cleanedHexa.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(cleanedHexa.charAt(i), 16) << 4)
-                    + Character.digit(cleanedHexa.charAt(i + 1), 16));
+        int digits = HexCodec.countDigits(hexadecimal);
+        if (digits % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hexadecimal digits: " + hexadecimal);
         }
 
+        byte[] data = new byte[digits / 2];
+        HexCodec.decode(CharBuffer.wrap(hexadecimal), ByteBuffer.wrap(data));
         return data;
     }
 
@@ -126,24 +111,41 @@ public abstract class BytesUtils {
      * @return Data padded
      */
     public static byte[] pad(byte[] data, int multiple) {
+        int length = paddedLength(data.length, multiple);
+        return length == data.length ? data : Arrays.copyOf(data, length);
+    }
 
-        if (multiple <= 0) {
-            // No padding
-            return data;
+    /**
+     * Pad data in place with zeros to n*multiple size
+     *
+     * @param data     Buffer containing the data, large enough for the padding
+     * @param offset   Offset of the data
+     * @param length   Length of the data
+     * @param multiple Multiple bloc size
+     * @return Length of the padded data
+     */
+    public static int pad(byte[] data, int offset, int length, int multiple) {
+        int padded = paddedLength(length, multiple);
+        for (int i = length; i < padded; i++) {
+            data[offset + i] = (byte) 0x00;
         }
 
-        if (data.length % multiple == 0) {
-            return data;
-        }
+        return padded;
+    }
 
-        int padding;
-        if (data.length < multiple) {
-            padding = multiple - data.length;
-        } else {
-            padding = ((data.length / multiple + 1) * multiple) - data.length;
+    /**
+     * Return the length of padded data
+     *
+     * @param length   Length of the data
+     * @param multiple Multiple bloc size, no padding if not positive
+     * @return Smallest multiple of the bloc size not less than the length
+     */
+    public static int paddedLength(int length, int multiple) {
+        if (multiple <= 0 || length % multiple == 0) {
+            return length;
         }
 
-        return Bytes.concat(data, new byte[padding]);
+        return (length / multiple + 1) * multiple;
     }
 
     /**
@@ -171,13 +173,28 @@ public abstract class BytesUtils {
      */
     public static byte[] xor(byte[] data1, byte[] data2) {
         byte[] result = new byte[data1.length < data2.length ? data2.length : data1.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = ((byte) (data1[i] ^ data2[i]));
-        }
-
+        xor(data1, 0, data2, 0, result, 0, result.length);
         return result;
     }
 
+    /**
+     * Apply a XOR function on two bytes ranges, without allocation.
+     * The output may be one of the inputs at the same offset.
+     *
+     * @param data1        Data 1
+     * @param offset1      Offset of data 1
+     * @param data2        Data 2
+     * @param offset2      Offset of data 2
+     * @param output       Buffer receiving the result
+     * @param outputOffset Offset of the result
+     * @param length       Number of bytes
+     */
+    public static void xor(byte[] data1, int offset1, byte[] data2, int offset2, byte[] output, int outputOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            output[outputOffset + i] = (byte) (data1[offset1 + i] ^ data2[offset2 + i]);
+        }
+    }
+
     /**
      * Shift bit left
      *
@@ -185,23 +202,35 @@ public abstract class BytesUtils {
      * @return Shifted data
      */
     public static byte[] shiftLeft(byte[] data) {
+        byte[] shifted = new byte[data.length];
+        shiftLeft(data, 0, data.length, shifted, 0);
+        return shifted;
+    }
 
-        StringBuilder sb = new StringBuilder();
-
-        for (byte b : data) {
-            String s = Integer.toBinaryString(0x100 + b);
-            sb.append(s.subSequence(s.length() - 8, s.length()));
+    /**
+     * Shift bits left by one, without allocation.
+     * The output may be the data itself at the same offset.
+     *
+     * @param data         Data to shift
+     * @param offset       Offset of the data
+     * @param length       Length of the data
+     * @param output       Buffer receiving the shifted data
+     * @param outputOffset Offset of the shifted data
+     * @return Bit shifted out of the data (0 or 1)
+     */
+    public static int shiftLeft(byte[] data, int offset, int length, byte[] output, int outputOffset) {
+        if (length == 0) {
+            return 0;
         }
 
-        String s = sb.toString().substring(1) + "0";
-
-        byte[] a = new byte[s.length() / 8];
-
-        for (int index = 0, i = 0; i < s.length(); index++, i += 8) {
-            a[index] = (byte) Integer.parseInt(s.substring(i, i + 8), 2);
+        int carry = (data[offset] >> 7) & 0x01;
+        int last = length - 1;
+        for (int i = 0; i < last; i++) {
+            output[outputOffset + i] = (byte) ((data[offset + i] << 1) | ((data[offset + i + 1] >> 7) & 0x01));
         }
+        output[outputOffset + last] = (byte) (data[offset + last] << 1);
 
-        return a;
+        return carry;
     }
 
     /**
@@ -211,8 +240,26 @@ public abstract class BytesUtils {
      * @return Reversed data
      */
     public static byte[] reverseBytes(byte[] data) {
-        byte[] reversed = ArrayUtils.clone(data);
-        ArrayUtils.reverse(reversed);
+        byte[] reversed = new byte[data.length];
+        reverse(data, 0, data.length, reversed, 0);
         return reversed;
     }
+
+    /**
+     * Reverse bytes, without allocation.
+     * The output may be the data itself at the same offset, other overlapping ranges are not supported.
+     *
+     * @param data         Data to reverse
+     * @param offset       Offset of the data
+     * @param length       Length of the data
+     * @param output       Buffer receiving the reversed data
+     * @param outputOffset Offset of the reversed data
+     */
+    public static void reverse(byte[] data, int offset, int length, byte[] output, int outputOffset) {
+        for (int i = 0, j = length - 1; i <= j; i++, j--) {
+            byte first = data[offset + i];
+            output[outputOffset + i] = data[offset + j];
+            output[outputOffset + j] = first;
+        }
+    }
 }
@@ -0,0 +1,214 @@
+package fr.redfroggy.sample.derivation.utils;
+
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Table driven hexadecimal codec working on buffers, without intermediate strings.
+ * <p>
+ * Encoding writes upper case digits. Decoding accepts both cases and skips any other character,
+ * so "04:78 2E" and "04782e" decode the same way.
+ */
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public abstract class HexCodec {
+
+    /**
+     * Upper case hexadecimal digits, in ASCII
+     */
+    protected static final byte[] DIGITS = "0123456789ABCDEF".getBytes();
+
+    /**
+     * Value of the ASCII characters, -1 for non hexadecimal characters
+     */
+    protected static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int c = 0; c < VALUES.length; c++) {
+            VALUES[c] = (byte) Character.digit(c, 16);
+        }
+    }
+
+    /**
+     * Return the value of an hexadecimal digit
+     *
+     * @param c Character
+     * @return Value of the digit, -1 if the character is not an hexadecimal digit
+     */
+    public static int digit(int c) {
+        return c >= 0 && c < VALUES.length ? VALUES[c] : -1;
+    }
+
+    /**
+     * Encode bytes as ASCII digits
+     *
+     * @param data         Bytes to encode
+     * @param offset       Offset of the bytes
+     * @param length       Number of bytes
+     * @param output       Buffer receiving the digits
+     * @param outputOffset Offset of the digits
+     * @return Number of digits written
+     */
+    public static int encode(byte[] data, int offset, int length, byte[] output, int outputOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i];
+            output[outputOffset + 2 * i] = DIGITS[(b >> 4) & 0x0F];
+            output[outputOffset + 2 * i + 1] = DIGITS[b & 0x0F];
+        }
+
+        return 2 * length;
+    }
+
+    /**
+     * Encode bytes as ASCII digits
+     *
+     * @param data   Bytes to encode
+     * @param offset Offset of the bytes
+     * @param length Number of bytes
+     * @param output Buffer receiving the digits, with room for all of them
+     */
+    public static void encode(byte[] data, int offset, int length, ByteBuffer output) {
+        for (int i = offset; i < offset + length; i++) {
+            output.put(DIGITS[(data[i] >> 4) & 0x0F]);
+            output.put(DIGITS[data[i] & 0x0F]);
+        }
+    }
+
+    /**
+     * Encode the remaining bytes of a buffer as ASCII digits, as far as the output has room
+     *
+     * @param data   Bytes to encode
+     * @param output Buffer receiving the digits
+     * @return Number of bytes encoded
+     */
+    public static int encode(ByteBuffer data, ByteBuffer output) {
+        int count = Math.min(data.remaining(), output.remaining() / 2);
+        for (int i = 0; i < count; i++) {
+            int b = data.get();
+            output.put(DIGITS[(b >> 4) & 0x0F]);
+            output.put(DIGITS[b & 0x0F]);
+        }
+
+        return count;
+    }
+
+    /**
+     * Encode the remaining bytes of a buffer as characters, as far as the output has room.
+     * Bytes are separated by the separator, or by a line feed every bytesPerRow bytes.
+     *
+     * @param data        Bytes to encode
+     * @param output      Buffer receiving the characters
+     * @param separator   Character written between two bytes of the same call
+     * @param bytesPerRow Number of bytes per line, 0 for a single line
+     * @return Number of bytes encoded
+     */
+    public static int encode(ByteBuffer data, CharBuffer output, char separator, int bytesPerRow) {
+        int count = 0;
+        while (data.hasRemaining() && output.remaining() >= (count > 0 ? 3 : 2)) {
+            if (count > 0) {
+                output.put(bytesPerRow > 0 && count % bytesPerRow == 0 ? '\n' : separator);
+            }
+            int b = data.get();
+            output.put((char) DIGITS[(b >> 4) & 0x0F]);
+            output.put((char) DIGITS[b & 0x0F]);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Return the number of characters written by {@link #encode(ByteBuffer, CharBuffer, char, int)}
+     *
+     * @param length Number of bytes
+     * @return Number of characters
+     */
+    public static int encodedLength(int length) {
+        return length > 0 ? 3 * length - 1 : 0;
+    }
+
+    /**
+     * Decode the digits of a buffer, skipping other characters, as far as the output has room.
+     * A last digit without its pair is left in the input, to be completed by the next characters.
+     *
+     * @param input  Characters to decode
+     * @param output Buffer receiving the bytes
+     * @return Number of bytes decoded
+     */
+    public static int decode(CharBuffer input, ByteBuffer output) {
+        int count = 0;
+        int high = -1;
+        int highPosition = input.position();
+        while (input.hasRemaining() && output.hasRemaining()) {
+            int value = digit(input.get());
+            if (value < 0) {
+                continue;
+            }
+            if (high < 0) {
+                high = value;
+                highPosition = input.position() - 1;
+            } else {
+                output.put((byte) (high << 4 | value));
+                high = -1;
+                count++;
+            }
+        }
+        if (high >= 0) {
+            input.position(highPosition);
+        }
+
+        return count;
+    }
+
+    /**
+     * Decode the ASCII digits of a buffer, skipping other characters, as far as the output has room.
+     * A last digit without its pair is left in the input, to be completed by the next characters.
+     *
+     * @param input  ASCII characters to decode
+     * @param output Buffer receiving the bytes
+     * @return Number of bytes decoded
+     */
+    public static int decode(ByteBuffer input, ByteBuffer output) {
+        int count = 0;
+        int high = -1;
+        int highPosition = input.position();
+        while (input.hasRemaining() && output.hasRemaining()) {
+            int value = digit(input.get());
+            if (value < 0) {
+                continue;
+            }
+            if (high < 0) {
+                high = value;
+                highPosition = input.position() - 1;
+            } else {
+                output.put((byte) (high << 4 | value));
+                high = -1;
+                count++;
+            }
+        }
+        if (high >= 0) {
+            input.position(highPosition);
+        }
+
+        return count;
+    }
+
+    /**
+     * Count the hexadecimal digits of a text
+     *
+     * @param text Text
+     * @return Number of digits
+     */
+    public static int countDigits(CharSequence text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (digit(text.charAt(i)) >= 0) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
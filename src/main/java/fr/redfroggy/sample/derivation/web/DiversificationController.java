@@ -0,0 +1,317 @@
+package fr.redfroggy.sample.derivation.web;
+
+import fr.redfroggy.sample.derivation.configuration.Settings;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.AsyncDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationCoalescer;
+import fr.redfroggy.sample.derivation.services.DiversificationRegistry;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyHandle;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import fr.redfroggy.sample.derivation.utils.HexCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * HTTP endpoints of the diversification (SERVER mode).
+ * <p>
+ * The master key is the configured one. AID, system identifier and key index default to the configured values
+ * and can be overridden per request.
+ * <ul>
+ * <li>GET /keys/{uid}: diversified key of one card, as hexadecimal text. The standard and the key profile
+ * (handle of a master key, 0 for the configured key) can be chosen per request, among those of the registry.</li>
+ * <li>POST /keys, application/octet-stream: contiguous fixed-width UIDs, returns the contiguous diversified keys</li>
+ * <li>POST /keys, text/plain: one hexadecimal UID per line, returns one hexadecimal key per line</li>
+ * </ul>
+ * A batch is diversified in one call of {@link DiversificationStandard#diversifyBatch}, without object per card,
+ * by the threads of the {@link AsyncDiversification} facade: the request thread is released meanwhile, and the bounded
+ * queue of the facade limits the batches waiting for a thread.
+ * With a coalescing window, concurrent single-card requests of the configured key are diversified together
+ * by a {@link DiversificationCoalescer}.
+ */
+@RestController
+@RequestMapping("/keys")
+@Slf4j
+public class DiversificationController {
+
+    @Autowired
+    protected Settings settings;
+
+    @Autowired
+    protected DiversificationStandard div;
+
+    @Autowired(required = false)
+    protected DiversificationRegistry registry;
+
+    @Autowired(required = false)
+    protected DiversificationCoalescer coalescer;
+
+    @Autowired(required = false)
+    protected AsyncDiversification async;
+
+    /**
+     * Configured master key
+     */
+    protected byte[] key;
+
+    /**
+     * Configured application ID
+     */
+    protected byte[] aid;
+
+    /**
+     * Configured system identifier
+     */
+    protected byte[] systemIdentifier;
+
+    /**
+     * Parse the configured values once
+     */
+    @PostConstruct
+    protected void init() {
+        key = BytesUtils.hexToBytes(settings.getKey());
+        aid = settings.getAid() != null ? BytesUtils.hexToBytes(settings.getAid()) : new byte[0];
+        systemIdentifier = settings.getSystemIdentifier() != null ? BytesUtils.hexToBytes(settings.getSystemIdentifier()) : new byte[0];
+    }
+
+    /**
+     * Diversify the key for one card
+     *
+     * @param uid              Card UID (hexadecimal)
+     * @param keyIndex         Key index
+     * @param aid              Application ID (hexadecimal)
+     * @param systemIdentifier System Identifier (hexadecimal)
+     * @param standard         Standard, the configured one by default
+     * @param profile          Key profile, the configured key by default
+     * @return Diversified key (hexadecimal)
+     * @throws DiversificationException
+     */
+    @RequestMapping(value = "/{uid}", method = RequestMethod.GET, produces = MediaType.TEXT_PLAIN_VALUE)
+    public byte[] diversify(@PathVariable("uid") String uid,
+                            @RequestParam(value = "keyIndex", required = false) Integer keyIndex,
+                            @RequestParam(value = "aid", required = false) String aid,
+                            @RequestParam(value = "systemIdentifier", required = false) String systemIdentifier,
+                            @RequestParam(value = "standard", required = false) String standard,
+                            @RequestParam(value = "profile", required = false) Integer profile) throws DiversificationException {
+
+        byte[] uidBytes = BytesUtils.hexToBytes(uid);
+        byte[] aidBytes = aid != null ? BytesUtils.hexToBytes(aid) : this.aid;
+        byte[] systemIdentifierBytes = systemIdentifier != null ? BytesUtils.hexToBytes(systemIdentifier) : this.systemIdentifier;
+        int index = keyIndex != null ? keyIndex : settings.getKeyIndex();
+
+        byte[] divKey;
+        if (standard == null && profile == null && coalescer != null && settings.getCoalesceWindow() > 0) {
+            divKey = await(coalescer.diversify(key, index, uidBytes, aidBytes, systemIdentifierBytes));
+        } else if (standard == null && profile == null) {
+            divKey = new byte[div.getDiversifiedKeyLength(key.length)];
+            div.diversify(key, 0, key.length, index, uidBytes, 0, uidBytes.length, aidBytes, 0, aidBytes.length,
+                    systemIdentifierBytes, 0, systemIdentifierBytes.length, divKey, 0);
+        } else {
+            if (registry == null) {
+                throw new DiversificationException("Cannot choose the standard or the key profile without registry");
+            }
+            AbstractDiversification.Standard requested = standard != null
+                    ? AbstractDiversification.Standard.valueOf(standard) : div.getStandard();
+            int requestedProfile = profile != null ? profile : 0;
+            KeyHandle handle = registry.getKey(requested, requestedProfile);
+            if (handle == null) {
+                throw new DiversificationException("Key profile " + requestedProfile + " is not available for " + requested);
+            }
+            DiversificationStandard process = registry.get(requested);
+            divKey = new byte[process.getDiversifiedKeyLength(handle.getKeyLength())];
+            process.diversify(handle, index, uidBytes, 0, uidBytes.length, aidBytes, 0, aidBytes.length,
+                    systemIdentifierBytes, 0, systemIdentifierBytes.length, divKey, 0);
+        }
+
+        byte[] response = new byte[2 * divKey.length];
+        HexCodec.encode(divKey, 0, divKey.length, response, 0);
+        return response;
+    }
+
+    /**
+     * Diversify the key for a batch of binary UIDs
+     *
+     * @param uids             Contiguous UIDs
+     * @param uidLength        Length of one UID
+     * @param keyIndex         Key index
+     * @param aid              Application ID (hexadecimal)
+     * @param systemIdentifier System Identifier (hexadecimal)
+     * @return Future contiguous diversified keys, in the order of the UIDs
+     * @throws DiversificationException
+     */
+    @RequestMapping(method = RequestMethod.POST, consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public CompletableFuture<byte[]> diversifyBatch(@RequestBody byte[] uids,
+                                 @RequestParam(value = "uidLength", required = false) Integer uidLength,
+                                 @RequestParam(value = "keyIndex", required = false) Integer keyIndex,
+                                 @RequestParam(value = "aid", required = false) String aid,
+                                 @RequestParam(value = "systemIdentifier", required = false) String systemIdentifier) throws DiversificationException {
+
+        int length = uidLength != null ? uidLength : settings.getUidLength();
+        if (length <= 0 || uids.length % length != 0) {
+            throw new DiversificationException("Body length is not a multiple of the UID length");
+        }
+        int count = checkBatchSize(uids.length / length);
+
+        return diversifyBatch(keyIndex != null ? keyIndex : settings.getKeyIndex(), uids, length, count,
+                aid != null ? BytesUtils.hexToBytes(aid) : this.aid,
+                systemIdentifier != null ? BytesUtils.hexToBytes(systemIdentifier) : this.systemIdentifier);
+    }
+
+    /**
+     * Diversify the key for a batch of hexadecimal UIDs
+     *
+     * @param lines            One hexadecimal UID per line, all of the same length
+     * @param keyIndex         Key index
+     * @param aid              Application ID (hexadecimal)
+     * @param systemIdentifier System Identifier (hexadecimal)
+     * @return Future hexadecimal diversified keys, one per line in the order of the UIDs
+     * @throws DiversificationException
+     */
+    @RequestMapping(method = RequestMethod.POST, consumes = MediaType.TEXT_PLAIN_VALUE, produces = MediaType.TEXT_PLAIN_VALUE)
+    public CompletableFuture<byte[]> diversifyBatchHex(@RequestBody byte[] lines,
+                                    @RequestParam(value = "keyIndex", required = false) Integer keyIndex,
+                                    @RequestParam(value = "aid", required = false) String aid,
+                                    @RequestParam(value = "systemIdentifier", required = false) String systemIdentifier) throws DiversificationException {
+
+        // Decoded UIDs are at most half the size of the text
+        byte[] uids = new byte[(lines.length + 1) / 2];
+        int count = 0;
+        int uidLength = 0;
+        int digits = 0;
+        int offset = 0;
+        for (int i = 0; i <= lines.length; i++) {
+            int c = i < lines.length ? lines[i] : '\n';
+            if (c == '\n') {
+                if (digits != 0) {
+                    if (digits % 2 != 0 || (uidLength != 0 && digits != 2 * uidLength)) {
+                        throw new DiversificationException("Invalid UID length at line " + (count + 1));
+                    }
+                    uidLength = digits / 2;
+                    offset += uidLength;
+                    count++;
+                }
+                digits = 0;
+            } else {
+                int value = HexCodec.digit(c);
+                if (value >= 0) {
+                    int index = offset + digits / 2;
+                    uids[index] = (byte) (digits % 2 == 0 ? value << 4 : uids[index] | value);
+                    digits++;
+                }
+            }
+        }
+        checkBatchSize(count);
+        if (count == 0) {
+            return CompletableFuture.completedFuture(new byte[0]);
+        }
+
+        int keyLength = div.getDiversifiedKeyLength(key.length);
+        int cards = count;
+        CompletableFuture<byte[]> response = new CompletableFuture<>();
+        diversifyBatch(keyIndex != null ? keyIndex : settings.getKeyIndex(), uids, uidLength, count,
+                aid != null ? BytesUtils.hexToBytes(aid) : this.aid,
+                systemIdentifier != null ? BytesUtils.hexToBytes(systemIdentifier) : this.systemIdentifier)
+                .whenComplete((keys, e) -> {
+                    // The exception of the derivation as is, for the exception handler
+                    if (e != null) {
+                        response.completeExceptionally(e);
+                        return;
+                    }
+                    byte[] text = new byte[cards * (2 * keyLength + 1)];
+                    for (int i = 0; i < cards; i++) {
+                        int position = i * (2 * keyLength + 1);
+                        HexCodec.encode(keys, i * keyLength, keyLength, text, position);
+                        text[position + 2 * keyLength] = '\n';
+                    }
+                    response.complete(text);
+                });
+        return response;
+    }
+
+    /**
+     * Reject invalid requests
+     *
+     * @param e Cause
+     * @return Error message
+     */
+    @ExceptionHandler({DiversificationException.class, IllegalArgumentException.class})
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String handleError(Exception e) {
+        log.debug("Invalid diversification request", e);
+        return e.getMessage();
+    }
+
+    /**
+     * Wait for a coalesced request
+     *
+     * @param future Future diversified key
+     * @return Diversified key
+     * @throws DiversificationException If the diversification fails or the request is interrupted
+     */
+    protected byte[] await(Future<byte[]> future) throws DiversificationException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DiversificationException) {
+                throw (DiversificationException) e.getCause();
+            }
+            throw new DiversificationException("Cannot diversify key", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DiversificationException("Interrupted while diversifying key", e);
+        }
+    }
+
+    /**
+     * Diversify the configured key for a batch of UIDs, by the asynchronous facade when there is one
+     *
+     * @param keyIndex         Key index
+     * @param uids             Contiguous UIDs, from offset 0
+     * @param uidLength        Length of one UID
+     * @param count            Number of UIDs
+     * @param aid              Application ID
+     * @param systemIdentifier System Identifier
+     * @return Future contiguous diversified keys
+     * @throws DiversificationException If the batch is diversified in this thread and fails
+     */
+    protected CompletableFuture<byte[]> diversifyBatch(int keyIndex, byte[] uids, int uidLength, int count,
+                                                       byte[] aid, byte[] systemIdentifier) throws DiversificationException {
+        if (async != null) {
+            return async.diversifyBatch(key, keyIndex, uids, uidLength, count, aid, systemIdentifier);
+        }
+        byte[] keys = new byte[count * div.getDiversifiedKeyLength(key.length)];
+        div.diversifyBatch(key, keyIndex, uids, 0, uidLength, count, aid, systemIdentifier, keys, 0);
+        return CompletableFuture.completedFuture(keys);
+    }
+
+    /**
+     * Check the number of UIDs of a batch
+     *
+     * @param count Number of UIDs
+     * @return Number of UIDs
+     * @throws DiversificationException If the batch is too large
+     */
+    protected int checkBatchSize(int count) throws DiversificationException {
+        if (count > settings.getMaxBatchSize()) {
+            throw new DiversificationException("Batch is too large: " + count + " UIDs, maximum " + settings.getMaxBatchSize());
+        }
+        return count;
+    }
+}
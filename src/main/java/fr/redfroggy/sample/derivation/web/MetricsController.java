@@ -0,0 +1,32 @@
+package fr.redfroggy.sample.derivation.web;
+
+import fr.redfroggy.sample.derivation.metrics.DiversificationMetrics;
+import fr.redfroggy.sample.derivation.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * HTTP endpoint of the metrics (SERVER mode), the same values as in JMX
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Autowired
+    protected MetricsRegistry registry;
+
+    /**
+     * Return the metrics of all diversification processes
+     *
+     * @return Metrics
+     */
+    @RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<DiversificationMetrics> getMetrics() {
+        return registry.getMetrics();
+    }
+}
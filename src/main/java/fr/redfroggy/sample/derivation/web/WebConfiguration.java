@@ -0,0 +1,50 @@
+package fr.redfroggy.sample.derivation.web;
+
+import fr.redfroggy.sample.derivation.configuration.Settings;
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.ProtocolHandler;
+import org.apache.coyote.http11.AbstractHttp11Protocol;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.embedded.ConfigurableEmbeddedServletContainer;
+import org.springframework.boot.context.embedded.EmbeddedServletContainerCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatConnectorCustomizer;
+import org.springframework.boot.context.embedded.tomcat.TomcatEmbeddedServletContainerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuration of the HTTP server (SERVER mode)
+ */
+@Configuration
+public class WebConfiguration {
+
+    @Autowired
+    protected Settings settings;
+
+    /**
+     * Keep client connections open between requests, so terminals backends reuse them
+     *
+     * @return Customizer of the embedded Tomcat
+     */
+    @Bean
+    public EmbeddedServletContainerCustomizer keepAliveCustomizer() {
+        return new EmbeddedServletContainerCustomizer() {
+            @Override
+            public void customize(ConfigurableEmbeddedServletContainer container) {
+                if (container instanceof TomcatEmbeddedServletContainerFactory) {
+                    ((TomcatEmbeddedServletContainerFactory) container).addConnectorCustomizers(new TomcatConnectorCustomizer() {
+                        @Override
+                        public void customize(Connector connector) {
+                            ProtocolHandler handler = connector.getProtocolHandler();
+                            if (handler instanceof AbstractHttp11Protocol) {
+                                AbstractHttp11Protocol<?> protocol = (AbstractHttp11Protocol<?>) handler;
+                                protocol.setMaxKeepAliveRequests(settings.getKeepAliveRequests());
+                                protocol.setKeepAliveTimeout(settings.getKeepAliveTimeout());
+                            }
+                        }
+                    });
+                }
+            }
+        };
+    }
+}
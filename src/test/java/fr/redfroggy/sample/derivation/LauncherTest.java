@@ -0,0 +1,86 @@
+package fr.redfroggy.sample.derivation;
+
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ * Test of the entry point without Spring
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class LauncherTest {
+
+    private static final String[] AN10922_AES128 = {"--standard=AN10922_AES128",
+            "--key=00112233445566778899AABBCCDDEEFF", "--uid=04782E21801D80", "--aid=F54230",
+            "--systemIdentifier=4E585020416275"};
+
+    private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 key diversification example, with each cipher provider
+     */
+    @Test
+    public void run_Single() throws Exception {
+        Assert.assertEquals(0, run(AN10922_AES128, ""));
+        Assert.assertEquals(key("A8DD63A3B89D54B37CA802473FDA9175"), output().trim());
+
+        output.reset();
+        String[] args = AN10922_AES128.clone();
+        args[0] = "--cipherProvider=JAVA";
+        Assert.assertEquals(0, run(args, ""));
+        Assert.assertEquals(key("A8DD63A3B89D54B37CA802473FDA9175"), output().trim());
+    }
+
+    /**
+     * HID AN1048 / §5.1 and §5.3 read from the input, the command line giving the defaults of the lines
+     */
+    @Test
+    public void run_Stdin() throws Exception {
+        String input = "standard=AN0148_DES key=0123456789ABCDEF keyIndex=1 uid=045E75A9C12580\n"
+                + "\n"
+                + "standard=AN0148_AES key=0123456789ABCDEFFEDCBA9876543210 keyIndex=1 uid=046C75A9C12580\n"
+                + "standard=AN0148_AES key=0123\n"
+                + "unknown=1\n"
+                + "uid=04782E21801D80\n";
+
+        Assert.assertEquals(0, run(new String[]{"--stdin", AN10922_AES128[1], AN10922_AES128[2],
+                AN10922_AES128[3], AN10922_AES128[4]}, input));
+
+        String[] lines = output().split("\\r?\\n");
+        Assert.assertEquals(5, lines.length);
+        Assert.assertEquals(key("1A945225B3FAA445"), lines[0]);
+        Assert.assertEquals(key("519A502E2F69CE7B17C3BFB12B304D28"), lines[1]);
+        Assert.assertTrue(lines[2].startsWith("Diversification error : "));
+        Assert.assertEquals("Invalid option : unknown=1", lines[3]);
+        Assert.assertEquals(key("A8DD63A3B89D54B37CA802473FDA9175"), lines[4]);
+    }
+
+    @Test
+    public void run_Errors() throws Exception {
+        Assert.assertEquals(2, run(new String[]{"--mode=SERVER"}, ""));
+        Assert.assertEquals("Invalid option : mode=SERVER", output().trim());
+
+        output.reset();
+        Assert.assertEquals(1, run(new String[]{"--standard=AN0148_DES", "--key=0123"}, ""));
+        Assert.assertTrue(output().startsWith("Diversification error : "));
+    }
+
+    private int run(String[] args, String input) throws Exception {
+        return Launcher.run(args, new BufferedReader(new StringReader(input)), new PrintStream(output, true, "UTF-8"));
+    }
+
+    private String key(String hex) {
+        return "Diversified key: " + BytesUtils.bytesToHex(BytesUtils.hexToBytes(hex));
+    }
+
+    private String output() throws Exception {
+        return output.toString("UTF-8");
+    }
+}
@@ -0,0 +1,129 @@
+package fr.redfroggy.sample.derivation.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.services.KeyContextCache;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Test of the load generator against the process
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class LoadGeneratorTest {
+
+    private static final byte[] KEY = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    /**
+     * Closed loop: the clients send requests as fast as they are answered, the report is saved as JSON
+     */
+    @Test
+    public void run_ClosedLoop() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        LoadGenerator.Report report = new LoadGenerator(div.getStandard(), 7, 2, 0)
+                .run(new LoadGenerator.ProcessTarget(div, KEY, 0, SEED), 100, 200);
+
+        Assert.assertEquals("CLOSED", report.getMode());
+        Assert.assertTrue(report.getRequests() > 0);
+        Assert.assertEquals(0, report.getErrors());
+        Assert.assertTrue(report.getLatencyP50() <= report.getLatencyP99());
+        Assert.assertTrue(report.getLatencyP99() <= report.getLatencyP999());
+        Assert.assertTrue(report.getLatencyP999() <= report.getLatencyMax());
+
+        Path path = File.createTempFile("load", ".json").toPath();
+        try {
+            report.write(path);
+            JsonNode json = new ObjectMapper().readTree(path.toFile());
+            Assert.assertEquals(report.getRequests(), json.get("requests").asLong());
+            Assert.assertEquals("AN10922_AES128", json.get("standard").asText());
+            Assert.assertTrue(json.has("latencyP999"));
+            Assert.assertTrue(json.has("throughput"));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Open loop: the number of requests follows the rate, whatever the speed of the target
+     */
+    @Test
+    public void run_OpenLoop() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_3DES,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        LoadGenerator.Report report = new LoadGenerator(div.getStandard(), 7, 4, 2000)
+                .run(new LoadGenerator.ProcessTarget(div, KEY, 1, null), 100, 500);
+
+        Assert.assertEquals("OPEN", report.getMode());
+        Assert.assertTrue("Requests " + report.getRequests(), report.getRequests() >= 950 && report.getRequests() <= 1050);
+        Assert.assertEquals(0, report.getErrors());
+    }
+
+    /**
+     * Random inputs: UIDs of the NXP manufacturer, AIDs for AN10922 only
+     */
+    @Test
+    public void run_RandomInputs() throws Exception {
+        final Set<String> uids = new HashSet<>();
+        final Set<Integer> aidLengths = new HashSet<>();
+        LoadGenerator.Target target = new LoadGenerator.Target() {
+            @Override
+            public Client connect() {
+                return new Client() {
+                    @Override
+                    public void diversify(byte[] uid, byte[] aid) throws DiversificationException {
+                        Assert.assertEquals(0x04, uid[0]);
+                        synchronized (uids) {
+                            uids.add(BytesUtils.bytesToHex(uid));
+                            aidLengths.add(aid.length);
+                        }
+                        if (uids.size() % 2 == 0) {
+                            throw new DiversificationException("Rejected");
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+
+        LoadGenerator.Report report = new LoadGenerator(AbstractDiversification.Standard.AN0148_DES, 7, 1, 1000)
+                .run(target, 0, 100);
+        Assert.assertTrue(uids.size() >= 90);
+        Assert.assertEquals(1, aidLengths.size());
+        Assert.assertTrue(aidLengths.contains(0));
+        Assert.assertTrue(report.getErrors() > 0);
+        Assert.assertEquals(uids.size(), report.getRequests() + report.getErrors());
+
+        aidLengths.clear();
+        new LoadGenerator(AbstractDiversification.Standard.AN10922_AES192, 7, 1, 1000).run(target, 0, 20);
+        Assert.assertTrue(aidLengths.contains(3));
+    }
+
+    /**
+     * A client that cannot connect stops the test
+     */
+    @Test(expected = DiversificationException.class)
+    public void run_ConnectFailure() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        new LoadGenerator(div.getStandard(), 7, 1, 0).run(new LoadGenerator.ProcessTarget(div, new byte[5], 0, SEED), 0, 100);
+    }
+}
@@ -0,0 +1,157 @@
+package fr.redfroggy.sample.derivation.metrics;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test of the diversification metrics
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationMetricsTest {
+
+    private static final byte[] KEY = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+
+    private static final byte[] UID = BytesUtils.hexToBytes("04:78:2E:21:80:1D:80");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    @Test
+    public void record_SeveralThreads() throws Exception {
+        final DiversificationMetrics metrics = new DiversificationMetrics("test", 1);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 1000; i++) {
+                        metrics.recordCall(System.nanoTime() - i * 1000L);
+                    }
+                    metrics.recordBatch(10);
+                    metrics.recordError();
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        Assert.assertEquals(4004, metrics.getCalls());
+        Assert.assertEquals(4040, metrics.getKeys());
+        Assert.assertEquals(4, metrics.getErrors());
+        Assert.assertEquals(4, metrics.getBatches());
+        Assert.assertEquals(10, metrics.getBatchSizeMax(), 1);
+        Assert.assertEquals(500, metrics.getLatencyP50(), 10);
+        Assert.assertEquals(990, metrics.getLatencyP99(), 20);
+        Assert.assertTrue(metrics.getLatencyMax() >= 990);
+
+        // Values recorded after a read are added to the totals
+        metrics.recordCall(metrics.start());
+        Assert.assertEquals(4005, metrics.getCalls());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getCalls());
+        Assert.assertEquals(0, metrics.getKeys());
+        Assert.assertEquals(0, metrics.getErrors());
+    }
+
+    /**
+     * The probes of terminated threads are dropped once merged, their values are kept in the totals
+     */
+    @Test
+    public void record_TerminatedThreads() throws Exception {
+        final DiversificationMetrics metrics = new DiversificationMetrics("test", 1);
+        for (int t = 0; t < 10; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    metrics.recordCall(metrics.start());
+                    metrics.recordBatch(10);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        // Each new thread drops the probes of the previous ones
+        Assert.assertTrue(metrics.probes.size() <= 1);
+
+        Assert.assertEquals(20, metrics.getCalls());
+        Assert.assertEquals(110, metrics.getKeys());
+        Assert.assertEquals(10, metrics.getBatches());
+        Assert.assertTrue(metrics.probes.isEmpty());
+    }
+
+    @Test
+    public void record_Sampling() throws Exception {
+        DiversificationMetrics metrics = new DiversificationMetrics("test", 4);
+        int timed = 0;
+        for (int i = 0; i < 100; i++) {
+            long start = metrics.start();
+            if (start != DiversificationMetrics.NOT_TIMED) {
+                timed++;
+            }
+            metrics.recordCall(start);
+        }
+
+        Assert.assertEquals(25, timed);
+        Assert.assertEquals(100, metrics.getCalls());
+    }
+
+    @Test
+    public void diversify_Recorded() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        DiversificationMetrics metrics = div.getMetrics();
+
+        div.diversify(KEY, 0, UID, AID, SEED);
+        div.diversify(KEY, 0, UID, AID, SEED);
+        byte[] output = new byte[16];
+        div.diversify(KEY, 0, KEY.length, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, output, 0);
+        div.diversifyBatch(KEY, 0, new byte[][]{UID, UID, UID}, AID, SEED);
+        try {
+            div.diversify(KEY, 0, KEY.length, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, new byte[8], 0);
+            Assert.fail();
+        } catch (DiversificationException e) {
+            // Expected
+        }
+
+        Assert.assertEquals(4, metrics.getCalls());
+        Assert.assertEquals(6, metrics.getKeys());
+        Assert.assertEquals(1, metrics.getErrors());
+        Assert.assertEquals(1, metrics.getBatches());
+        Assert.assertEquals(3, metrics.getBatchSizeP50());
+        Assert.assertTrue(metrics.getLatencyMax() > 0);
+        Assert.assertEquals(1, metrics.getCacheMisses());
+        Assert.assertEquals(3, metrics.getCacheHits());
+    }
+
+    @Test
+    public void registry_Jmx() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        MetricsRegistry registry = new MetricsRegistry(server);
+        DiversificationMetrics metrics = new DiversificationMetrics("AN10922_AES128");
+        metrics.recordCall(metrics.start());
+        registry.register(metrics);
+
+        ObjectName name = new ObjectName(MetricsRegistry.DOMAIN + ":type=DiversificationMetrics,name=AN10922_AES128");
+        Assert.assertEquals(1L, server.getAttribute(name, "Calls"));
+        Assert.assertEquals(1, registry.getMetrics().size());
+
+        // Replaced by metrics of the same name
+        registry.register(new DiversificationMetrics("AN10922_AES128"));
+        Assert.assertEquals(0L, server.getAttribute(name, "Calls"));
+
+        registry.close();
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
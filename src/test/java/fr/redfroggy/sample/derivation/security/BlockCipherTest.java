@@ -0,0 +1,118 @@
+package fr.redfroggy.sample.derivation.security;
+
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test of the Java block ciphers against known answers and the JCE
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BlockCipherTest {
+
+    private final BlockCipherProvider java = new JavaBlockCipherProvider();
+
+    private final BlockCipherProvider jce = new JceBlockCipherProvider();
+
+    /**
+     * FIPS 197 Appendix C : Example vectors
+     */
+    @Test
+    public void aes_Vectors() throws Exception {
+        assertEncrypts(Algorithm.AES, "000102030405060708090a0b0c0d0e0f",
+                "00112233445566778899aabbccddeeff", "69c4e0d86a7b0430d8cdb78070b4c55a");
+        assertEncrypts(Algorithm.AES, "000102030405060708090a0b0c0d0e0f1011121314151617",
+                "00112233445566778899aabbccddeeff", "dda97ca4864cdfe06eaf70a0ec0d7191");
+        assertEncrypts(Algorithm.AES, "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+                "00112233445566778899aabbccddeeff", "8ea2b7ca516745bfeafc49904b496089");
+    }
+
+    /**
+     * Single DES example with the three keys equal, then NIST SP 800-67 three-key example
+     */
+    @Test
+    public void des_Vectors() throws Exception {
+        assertEncrypts(Algorithm.TDES, "133457799BBCDFF1133457799BBCDFF1133457799BBCDFF1",
+                "0123456789ABCDEF", "85E813540F0AB405");
+        assertEncrypts(Algorithm.TDES, "0123456789ABCDEF23456789ABCDEF01456789ABCDEF0123",
+                "5468652071756663 6B2062726F776E20 666F78206A756D70", "A826FD8CE53B855F CCE21C8112256FE6 68D5C05DD9B6B900");
+    }
+
+    /**
+     * Random keys and messages give the same blocks as the JCE, chained or not, in place or not
+     */
+    @Test
+    public void encrypt_SameAsJce() throws Exception {
+        Random random = new Random(0x4E58);
+        Algorithm[] algorithms = {Algorithm.AES, Algorithm.AES, Algorithm.AES, Algorithm.TDES, Algorithm.TDES};
+        int[] keyLengths = {16, 24, 32, 24, 24};
+        for (int n = 0; n < 200; n++) {
+            int a = n % algorithms.length;
+            byte[] key = new byte[keyLengths[a]];
+            random.nextBytes(key);
+            if (n % 10 == 4) {
+                // Single DES expanded to 3DES
+                System.arraycopy(key, 0, key, 8, 8);
+            }
+            int blockSize = algorithms[a].getBlocSize();
+            byte[] input = new byte[3 + blockSize * (1 + random.nextInt(5))];
+            random.nextBytes(input);
+            int length = input.length - 3;
+
+            BlockCipher expected = jce.newCipher(algorithms[a], ByteBuffer.wrap(key));
+            BlockCipher actual = java.newCipher(algorithms[a], ByteBuffer.wrap(key));
+            for (boolean chained : new boolean[]{false, true}) {
+                byte[] expectedOutput = new byte[length];
+                byte[] actualOutput = new byte[length + 1];
+                byte[] inPlace = input.clone();
+                if (chained) {
+                    expected.encryptChained(input, 3, length, expectedOutput, 0);
+                    actual.encryptChained(input, 3, length, actualOutput, 1);
+                    actual.encryptChained(inPlace, 3, length, inPlace, 3);
+                } else {
+                    expected.encryptBlocks(input, 3, length, expectedOutput, 0);
+                    actual.encryptBlocks(input, 3, length, actualOutput, 1);
+                    actual.encryptBlocks(inPlace, 3, length, inPlace, 3);
+                }
+                Assert.assertArrayEquals(expectedOutput, Arrays.copyOfRange(actualOutput, 1, length + 1));
+                Assert.assertArrayEquals(expectedOutput, Arrays.copyOfRange(inPlace, 3, length + 3));
+            }
+        }
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void aes_BadKeyLength() throws Exception {
+        java.newCipher(Algorithm.AES, ByteBuffer.wrap(new byte[15]));
+    }
+
+    @Test(expected = InvalidKeyException.class)
+    public void des_BadKeyLength() throws Exception {
+        java.newCipher(Algorithm.TDES, ByteBuffer.wrap(new byte[16]));
+    }
+
+    @Test
+    public void destroy_Zeroized() throws Exception {
+        AesBlockCipher aes = new AesBlockCipher(BytesUtils.hexToBytes("000102030405060708090a0b0c0d0e0f"));
+        DesBlockCipher des = new DesBlockCipher(BytesUtils.hexToBytes("0123456789ABCDEFFEDCBA98765432100123456789ABCDEF"));
+
+        aes.destroy();
+        des.destroy();
+
+        Assert.assertArrayEquals(new int[aes.roundKeys.length], aes.roundKeys);
+        Assert.assertArrayEquals(new int[des.roundKeys.length], des.roundKeys);
+    }
+
+    private void assertEncrypts(Algorithm algorithm, String key, String plain, String cipher) throws Exception {
+        byte[] input = BytesUtils.hexToBytes(plain);
+        byte[] output = new byte[input.length];
+        java.newCipher(algorithm, ByteBuffer.wrap(BytesUtils.hexToBytes(key))).encryptBlocks(input, 0, input.length, output, 0);
+        Assert.assertArrayEquals(BytesUtils.hexToBytes(cipher), output);
+    }
+}
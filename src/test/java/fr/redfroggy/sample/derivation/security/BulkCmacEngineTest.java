@@ -0,0 +1,105 @@
+package fr.redfroggy.sample.derivation.security;
+
+import fr.redfroggy.sample.derivation.services.KeyContext;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test of the CMAC of several messages at once
+ * See RFC 4493 §4 : Test Vectors
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BulkCmacEngineTest {
+
+    private static final String KEY = "2b7e1516 28aed2a6 abf71588 09cf4f3c";
+
+    private static final String MESSAGE = "6bc1bee2 2e409f96 e93d7e11 7393172a ae2d8a57 1e03ac9c 9eb76fac 45af8e51"
+            + "30c81c46 a35ce411 e5fbc119 1a0a52ef f69f2445 df4f9b17 ad2b417b e66c3710";
+
+    private KeyContext context;
+
+    private CmacEngine cmac;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new KeyContext(Algorithm.AES, BytesUtils.hexToBytes(KEY));
+        cmac = new CmacEngine(context.getCiphers().acquire(), context.getSubKey1(), context.getSubKey2());
+    }
+
+    /**
+     * RFC 4493 §4 : Examples 1 to 4, the field of each message taken from the example message
+     */
+    @Test
+    public void doFinal_Vectors() throws Exception {
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("bb1d6929 e9593728 7fa37d12 9b756746"), mac(0, 0, 0));
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("070a16b4 6b4d4144 f79bdd9d d04a287c"), mac(16, 3, 7));
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("dfa66747 de9ae630 30ca3261 1497c827"), mac(40, 30, 10));
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("51f0bebf 7e3b9d92 fc497417 79363cfe"), mac(64, 0, 64));
+    }
+
+    /**
+     * Random messages give the same MACs as the streaming engine, with and without minimum length
+     */
+    @Test
+    public void doFinal_SameAsStreaming() throws Exception {
+        Random random = new Random(0x4E58);
+        for (int n = 0; n < 200; n++) {
+            byte[] template = new byte[random.nextInt(50)];
+            random.nextBytes(template);
+            int fieldOffset = random.nextInt(template.length + 1);
+            int fieldLength = random.nextInt(template.length - fieldOffset + 1);
+            int minimumLength = random.nextBoolean() ? 32 : 0;
+            int count = 1 + random.nextInt(20);
+            byte[] fields = new byte[3 + count * fieldLength];
+            random.nextBytes(fields);
+
+            BulkCmacEngine bulk = new BulkCmacEngine(context.getCiphers().acquire(), context.getSubKey1(),
+                    context.getSubKey2(), template, minimumLength, fieldOffset, fieldLength, 20);
+            byte[] macs = new byte[2 + count * 16];
+            bulk.doFinal(fields, 3, count, macs, 2);
+
+            for (int m = 0; m < count; m++) {
+                byte[] message = template.clone();
+                System.arraycopy(fields, 3 + m * fieldLength, message, fieldOffset, fieldLength);
+                byte[] expected = new byte[16];
+                cmac.update(message);
+                cmac.doFinal(expected, 0, minimumLength);
+                Assert.assertArrayEquals(expected, Arrays.copyOfRange(macs, 2 + m * 16, 2 + (m + 1) * 16));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doFinal_OverCapacity() throws Exception {
+        BulkCmacEngine bulk = new BulkCmacEngine(context.getCiphers().acquire(), context.getSubKey1(),
+                context.getSubKey2(), new byte[16], 0, 1, 7, 2);
+        bulk.doFinal(new byte[21], 0, 3, new byte[48], 0);
+    }
+
+    /**
+     * MAC of twice the first bytes of the example message, the variable field first zeroed in the template
+     */
+    private byte[] mac(int length, int fieldOffset, int fieldLength) throws Exception {
+        byte[] message = Arrays.copyOf(BytesUtils.hexToBytes(MESSAGE), length);
+        byte[] field = Arrays.copyOfRange(message, fieldOffset, fieldOffset + fieldLength);
+        Arrays.fill(message, fieldOffset, fieldOffset + fieldLength, (byte) 0x00);
+
+        BulkCmacEngine bulk = new BulkCmacEngine(context.getCiphers().acquire(), context.getSubKey1(),
+                context.getSubKey2(), message, 0, fieldOffset, fieldLength, 2);
+        byte[] fields = new byte[2 * fieldLength];
+        System.arraycopy(field, 0, fields, 0, fieldLength);
+        System.arraycopy(field, 0, fields, fieldLength, fieldLength);
+        byte[] result = new byte[32];
+        bulk.doFinal(fields, 0, 2, result, 0);
+
+        Assert.assertArrayEquals(Arrays.copyOf(result, 16), Arrays.copyOfRange(result, 16, 32));
+        return Arrays.copyOf(result, 16);
+    }
+}
@@ -0,0 +1,181 @@
+package fr.redfroggy.sample.derivation.security;
+
+import fr.redfroggy.sample.derivation.services.KeyContext;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+
+/**
+ * Test of CMAC implementation
+ * See RFC 4493 §4 : Test Vectors
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CmacEngineTest {
+
+    private static final String KEY = "2b7e1516 28aed2a6 abf71588 09cf4f3c";
+
+    private static final String MESSAGE = "6bc1bee2 2e409f96 e93d7e11 7393172a ae2d8a57 1e03ac9c 9eb76fac 45af8e51"
+            + "30c81c46 a35ce411 e5fbc119 1a0a52ef f69f2445 df4f9b17 ad2b417b e66c3710";
+
+    private KeyContext context;
+
+    private CmacEngine cmac;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new KeyContext(Algorithm.AES, BytesUtils.hexToBytes(KEY));
+        BlockCipher cipher = context.getCiphers().acquire();
+        cmac = new CmacEngine(cipher, context.getSubKey1(), context.getSubKey2());
+    }
+
+    /**
+     * RFC 4493 §4 : Subkey Generation
+     */
+    @Test
+    public void subKeys() {
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("fbeed618 35713366 7c85e08f 7236a8de"), context.getSubKey1());
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("f7ddac30 6ae266cc f90bc11e e46d513b"), context.getSubKey2());
+    }
+
+    /**
+     * RFC 4493 §4 : Example 1: len = 0
+     */
+    @Test
+    public void doFinal_EmptyMessage() throws Exception {
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("bb1d6929 e9593728 7fa37d12 9b756746"), mac(0));
+    }
+
+    /**
+     * RFC 4493 §4 : Example 2: len = 16
+     */
+    @Test
+    public void doFinal_OneBlock() throws Exception {
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("070a16b4 6b4d4144 f79bdd9d d04a287c"), mac(16));
+    }
+
+    /**
+     * RFC 4493 §4 : Example 3: len = 40
+     */
+    @Test
+    public void doFinal_PaddedMessage() throws Exception {
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("dfa66747 de9ae630 30ca3261 1497c827"), mac(40));
+    }
+
+    /**
+     * RFC 4493 §4 : Example 4: len = 64
+     */
+    @Test
+    public void doFinal_FourBlocks() throws Exception {
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("51f0bebf 7e3b9d92 fc497417 79363cfe"), mac(64));
+    }
+
+    /**
+     * The MAC does not depend on how the message is split
+     */
+    @Test
+    public void update_Streaming() throws Exception {
+
+        byte[] message = BytesUtils.hexToBytes(MESSAGE + MESSAGE);
+        byte[] expected = new byte[16];
+        cmac.update(message).doFinal(expected, 0);
+
+        byte[] byteByByte = new byte[16];
+        for (byte b : message) {
+            cmac.update(b);
+        }
+        cmac.doFinal(byteByByte, 0);
+        Assert.assertArrayEquals(expected, byteByByte);
+
+        byte[] chunks = new byte[16];
+        for (int offset = 0; offset < message.length; offset += 7) {
+            cmac.update(message, offset, Math.min(7, message.length - offset));
+        }
+        cmac.doFinal(chunks, 0);
+        Assert.assertArrayEquals(expected, chunks);
+    }
+
+    /**
+     * A reset drops the current message, the key is kept
+     */
+    @Test
+    public void reset_KeepKey() throws Exception {
+
+        cmac.update(BytesUtils.hexToBytes("00112233"));
+        cmac.reset();
+
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("070a16b4 6b4d4144 f79bdd9d d04a287c"), mac(16));
+    }
+
+    /**
+     * A message shorter than the minimum length is padded up to this length with K2
+     */
+    @Test
+    public void doFinal_MinimumLength() throws Exception {
+
+        byte[] message = BytesUtils.hexToBytes(MESSAGE.substring(0, 35));
+        byte[] padded = new byte[32];
+        System.arraycopy(message, 0, padded, 0, message.length);
+        padded[message.length] = (byte) 0x80;
+
+        byte[] expected = reference(padded, context.getSubKey2());
+
+        byte[] result = new byte[16];
+        cmac.update(message);
+        cmac.doFinal(result, 0, 32);
+
+        Assert.assertArrayEquals(expected, result);
+    }
+
+    /**
+     * RFC 4493 §4 : Examples 3 and 4, on messages already padded in a larger buffer which is left unchanged
+     */
+    @Test
+    public void doFinal_Prepared() throws Exception {
+
+        byte[] message = BytesUtils.hexToBytes(MESSAGE);
+        byte[] work = new byte[2 + 64 + 16];
+        System.arraycopy(message, 0, work, 2, 40);
+        work[2 + 40] = (byte) 0x80;
+        byte[] prepared = work.clone();
+
+        Assert.assertEquals(16, cmac.doFinal(work, 2, 48, true, work, 2 + 64));
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("dfa66747 de9ae630 30ca3261 1497c827"),
+                Arrays.copyOfRange(work, 2 + 64, work.length));
+        Assert.assertArrayEquals(Arrays.copyOfRange(prepared, 0, 2 + 64), Arrays.copyOfRange(work, 0, 2 + 64));
+
+        // A streamed message is discarded
+        cmac.update(message, 0, 5);
+        System.arraycopy(message, 0, work, 2, 64);
+        Assert.assertEquals(16, cmac.doFinal(work, 2, 64, false, work, 2 + 64));
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("51f0bebf 7e3b9d92 fc497417 79363cfe"),
+                Arrays.copyOfRange(work, 2 + 64, work.length));
+    }
+
+    private byte[] mac(int length) throws Exception {
+        byte[] message = BytesUtils.hexToBytes(MESSAGE);
+        byte[] result = new byte[16];
+        Assert.assertSame(cmac, cmac.update(message, 0, length));
+        Assert.assertEquals(16, cmac.doFinal(result, 0));
+        return result;
+    }
+
+    /**
+     * CBC-MAC of a padded message with the last block XORed with a subkey
+     */
+    private byte[] reference(byte[] padded, byte[] subKey) throws Exception {
+        byte[] input = padded.clone();
+        for (int i = 0; i < 16; i++) {
+            input[input.length - 16 + i] ^= subKey[i];
+        }
+        BlockCipher cipher = context.getCiphers().acquire();
+        byte[] output = new byte[input.length];
+        cipher.encryptChained(input, 0, input.length, output, 0);
+        context.getCiphers().release(cipher);
+        return Arrays.copyOfRange(output, output.length - 16, output.length);
+    }
+}
@@ -0,0 +1,177 @@
+package fr.redfroggy.sample.derivation.server;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.KeyRing;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationRegistry;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Test of the binary protocol server with a loopback client
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationServerTest {
+
+    private static final byte[] AES128_KEY = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+
+    private static final byte[] AES192_KEY = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF0102030405060708");
+
+    private static final byte[] DES_KEY = BytesUtils.hexToBytes("0123456789ABCDEF");
+
+    private static final byte[] UID = BytesUtils.hexToBytes("04:78:2E:21:80:1D:80");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    private static final byte[][] KEYS = {AES128_KEY, DES_KEY, AES192_KEY};
+
+    private Map<AbstractDiversification.Standard, DiversificationStandard> standards;
+
+    private DiversificationRegistry registry;
+
+    private DiversificationServer server;
+
+    private DiversificationClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        standards = new EnumMap<>(AbstractDiversification.Standard.class);
+        for (AbstractDiversification.Standard standard : AbstractDiversification.Standard.values()) {
+            standards.put(standard, new DiversificationStandard(standard));
+        }
+        registry = new DiversificationRegistry(standards, new KeyRing(Arrays.asList(KEYS)), 2);
+        server = new DiversificationServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), registry, 2);
+        client = new DiversificationClient(server.getAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+        registry.close();
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 key diversification example
+     */
+    @Test
+    public void diversify_AN10922_AES128() throws Exception {
+        byte[] divKey = client.diversify(AbstractDiversification.Standard.AN10922_AES128, 0, 0, UID, AID, SEED);
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("A8 DD 63 A3 B8 9D 54 B3 7C A8 02 47 3F DA 91 75"), divKey);
+    }
+
+    @Test
+    public void diversify_Pipelined() throws Exception {
+        AbstractDiversification.Standard[] values = AbstractDiversification.Standard.values();
+        int count = 10000;
+        int window = 1000;
+        byte[] uid = UID.clone();
+        for (int i = 0; i < window; i++) {
+            uid[6] = (byte) i;
+            client.send(values[i % values.length], keyHandle(values[i % values.length]), 1, uid, AID, SEED);
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (i + window < count) {
+                uid[6] = (byte) (i + window);
+                client.send(values[(i + window) % values.length], keyHandle(values[(i + window) % values.length]), 1, uid, AID, SEED);
+            }
+
+            uid[6] = (byte) i;
+            AbstractDiversification.Standard standard = values[i % values.length];
+            byte[] key = KEYS[keyHandle(standard)];
+            DiversificationClient.Response response = client.receive();
+
+            Assert.assertEquals(i, response.getRequestId());
+            Assert.assertEquals(DiversificationProtocol.STATUS_OK, response.getStatus());
+            Assert.assertArrayEquals(standards.get(standard).diversify(key, 1, uid, AID, SEED), response.getKey());
+        }
+    }
+
+    /**
+     * The requests received before the client shuts down its output are answered, then the connection is closed,
+     * including the requests left while the responses could not be written
+     */
+    @Test
+    public void service_HalfClosed() throws Exception {
+        try (ServerSocketChannel listener = ServerSocketChannel.open();
+             Selector selector = Selector.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (DiversificationClient peer = new DiversificationClient((InetSocketAddress) listener.getLocalAddress());
+                 SocketChannel channel = listener.accept()) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+                channel.configureBlocking(false);
+                DiversificationServer.Connection connection = server.new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+                // The client does not read until requests are left in the server because its write buffer is full
+                int count = 0;
+                while (connection.in.position() == 0 && count < 100000) {
+                    for (int i = 0; i < 500; i++, count++) {
+                        peer.send(AbstractDiversification.Standard.AN10922_AES128, 0, 0, UID, AID, SEED);
+                    }
+                    peer.flush();
+                    connection.service(true);
+                }
+                Assert.assertTrue(connection.in.position() > 0);
+                Assert.assertTrue(connection.out.position() > 0);
+
+                peer.channel.shutdownOutput();
+                for (int i = 0; i < count; i++) {
+                    if (channel.isOpen()) {
+                        connection.service(true);
+                    }
+                    DiversificationClient.Response response = peer.receive();
+                    Assert.assertEquals(i, response.getRequestId());
+                    Assert.assertEquals(DiversificationProtocol.STATUS_OK, response.getStatus());
+                }
+                Assert.assertFalse(channel.isOpen());
+                Assert.assertEquals(-1, peer.channel.read(ByteBuffer.allocate(1)));
+            }
+        }
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversify_UnknownKey() throws Exception {
+        client.diversify(AbstractDiversification.Standard.AN10922_AES128, 3, 0, UID, AID, SEED);
+    }
+
+    @Test
+    public void diversify_SeveralClients() throws Exception {
+        try (DiversificationClient other = new DiversificationClient(server.getAddress())) {
+            Assert.assertArrayEquals(client.diversify(AbstractDiversification.Standard.AN0148_DES, 1, 1, UID, null, null),
+                    other.diversify(AbstractDiversification.Standard.AN0148_DES, 1, 1, UID, null, null));
+        }
+    }
+
+    private int keyHandle(AbstractDiversification.Standard standard) {
+        switch (standard) {
+            case AN0148_DES:
+                return 1;
+            case AN10922_AES192:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test of the asynchronous diversification API
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncDiversificationTest {
+
+    private static final byte[] KEY = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+
+    private static final byte[] UID = BytesUtils.hexToBytes("04782E21801D80");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    private static final String EXPECTED = "A8DD63A3B89D54B37CA802473FDA9175";
+
+    /**
+     * NXP AN10922 / §2.2.1 through the by-value, the handle and the batch requests
+     */
+    @Test
+    public void diversify_Vector() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+
+        try (AsyncDiversification async = new AsyncDiversification(div, 2, AsyncDiversification.DEFAULT_QUEUE_SIZE,
+                AsyncDiversification.RejectionPolicy.ABORT);
+             KeyHandle handle = div.open(KEY, 0, KEY.length)) {
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(async.diversify(KEY, 0, UID, AID, SEED));
+                futures.add(async.diversify(handle, 0, UID, AID, SEED));
+            }
+            for (CompletableFuture<byte[]> future : futures) {
+                Assert.assertEquals(EXPECTED, hex(future.get(10, TimeUnit.SECONDS)));
+            }
+
+            byte[] keys = async.diversifyBatch(KEY, 0, new byte[][]{UID, UID}, AID, SEED).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(EXPECTED, hex(Arrays.copyOfRange(keys, 0, 16)));
+            Assert.assertEquals(EXPECTED, hex(Arrays.copyOfRange(keys, 16, 32)));
+        }
+    }
+
+    /**
+     * A failed derivation completes its future with the exception of the process
+     */
+    @Test
+    public void diversify_Failure() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+
+        try (AsyncDiversification async = new AsyncDiversification(div, 1, 1,
+                AsyncDiversification.RejectionPolicy.ABORT)) {
+            async.diversify(new byte[5], 0, UID, AID, SEED).get(10, TimeUnit.SECONDS);
+            Assert.fail("Invalid key accepted");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof DiversificationException);
+        }
+    }
+
+    /**
+     * ABORT: a request is rejected when the thread is busy and the queue is full
+     */
+    @Test
+    public void diversify_QueueFullAbort() throws Exception {
+        BlockingDiversification div = new BlockingDiversification();
+
+        try (AsyncDiversification async = new AsyncDiversification(div, 1, 1,
+                AsyncDiversification.RejectionPolicy.ABORT)) {
+            CompletableFuture<byte[]> running = async.diversify(KEY, 0, UID, AID, SEED);
+            Assert.assertTrue(div.started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<byte[]> waiting = async.diversify(KEY, 0, UID, AID, SEED);
+            CompletableFuture<byte[]> rejected = async.diversify(KEY, 0, UID, AID, SEED);
+
+            Assert.assertEquals(1, async.getQueueSize());
+            Assert.assertTrue(rejected.isCompletedExceptionally());
+            try {
+                rejected.get();
+                Assert.fail("Request accepted by a full queue");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof DiversificationException);
+            }
+
+            div.release.countDown();
+            Assert.assertEquals(EXPECTED, hex(running.get(10, TimeUnit.SECONDS)));
+            Assert.assertEquals(EXPECTED, hex(waiting.get(10, TimeUnit.SECONDS)));
+        }
+    }
+
+    /**
+     * CALLER_RUNS: a request is run by the calling thread when the queue is full
+     */
+    @Test
+    public void diversify_QueueFullCallerRuns() throws Exception {
+        BlockingDiversification div = new BlockingDiversification();
+
+        try (AsyncDiversification async = new AsyncDiversification(div, 1, 1,
+                AsyncDiversification.RejectionPolicy.CALLER_RUNS)) {
+            CompletableFuture<byte[]> running = async.diversify(KEY, 0, UID, AID, SEED);
+            Assert.assertTrue(div.started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<byte[]> waiting = async.diversify(KEY, 0, UID, AID, SEED);
+
+            div.blocking = false;
+            CompletableFuture<byte[]> inline = async.diversify(KEY, 0, UID, AID, SEED);
+            Assert.assertTrue(inline.isDone());
+            Assert.assertEquals(EXPECTED, hex(inline.get()));
+
+            div.release.countDown();
+            Assert.assertEquals(EXPECTED, hex(running.get(10, TimeUnit.SECONDS)));
+            Assert.assertEquals(EXPECTED, hex(waiting.get(10, TimeUnit.SECONDS)));
+        }
+    }
+
+    /**
+     * A closed facade rejects the requests, whatever the policy
+     */
+    @Test
+    public void diversify_Closed() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        AsyncDiversification async = new AsyncDiversification(div, 1, 1, AsyncDiversification.RejectionPolicy.CALLER_RUNS);
+        Assert.assertTrue(async.close(10, TimeUnit.SECONDS));
+
+        CompletableFuture<byte[]> rejected = async.diversify(KEY, 0, UID, AID, SEED);
+        Assert.assertTrue(rejected.isCompletedExceptionally());
+    }
+
+    private static String hex(byte[] bytes) {
+        return BytesUtils.bytesToHex(bytes).replace(" ", "");
+    }
+
+    /**
+     * Process whose derivations wait for the test while it is blocking
+     */
+    private static class BlockingDiversification extends DiversificationStandard {
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private volatile boolean blocking = true;
+
+        BlockingDiversification() throws DiversificationException {
+            super(Standard.AN10922_AES128, KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        }
+
+        @Override
+        public byte[] diversify(byte[] originalKey, int keyIndex, byte[] uid, byte[] aid, byte[] systemIdentifier)
+                throws DiversificationException {
+            if (blocking) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.diversify(originalKey, keyIndex, uid, aid, systemIdentifier);
+        }
+    }
+}
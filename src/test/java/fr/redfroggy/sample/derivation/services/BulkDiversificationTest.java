@@ -0,0 +1,230 @@
+package fr.redfroggy.sample.derivation.services;
+
+import com.google.common.primitives.Bytes;
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test of the diversification of UIDs files
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BulkDiversificationTest {
+
+    private static final byte[] KEY = BytesUtils.hexToBytes("00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiversificationStandard div;
+
+    @Before
+    public void setUp() throws Exception {
+        div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 key diversification example, among other UIDs spread over several chunks
+     */
+    @Test
+    public void diversify_HexToHex() throws Exception {
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            content.append(String.format("04:78:2E:21:80:1D:%02X\r\n", 0x80 + i));
+            if (i == 10) {
+                content.append('\n');
+            }
+        }
+        content.append("04 78 2E 21 80 1D 80;ignored");
+        File input = write(content.toString().getBytes(StandardCharsets.US_ASCII));
+        File output = folder.newFile();
+
+        long count = new BulkDiversification(div, 7, 3, 4).diversify(KEY, 0, AID, SEED, input.toPath(),
+                BulkDiversification.Format.HEX, output.toPath(), BulkDiversification.Format.HEX);
+
+        Assert.assertEquals(21, count);
+        List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.US_ASCII);
+        Assert.assertEquals(21, lines.size());
+        Assert.assertEquals("04782E21801D80;A8DD63A3B89D54B37CA802473FDA9175", lines.get(0));
+        Assert.assertEquals("04782E21801D80;A8DD63A3B89D54B37CA802473FDA9175", lines.get(20));
+        for (int i = 0; i < 20; i++) {
+            byte[] uid = BytesUtils.hexToBytes(String.format("04782E21801D%02X", 0x80 + i));
+            String expected = BytesUtils.bytesToHex(div.diversify(KEY, 0, uid, AID, SEED), ' ').replace(" ", "");
+            Assert.assertEquals(BytesUtils.bytesToHex(uid, ' ').replace(" ", "") + ";" + expected, lines.get(i));
+        }
+    }
+
+    @Test
+    public void diversify_BinaryToBinary() throws Exception {
+
+        byte[] uids = BytesUtils.hexToBytes("04782E21801D80 11223344556677 04782E21801D80");
+        File input = write(uids);
+        File output = folder.newFile();
+
+        long count = new BulkDiversification(div, 7, 2, 1).diversify(KEY, 0, AID, SEED, input.toPath(),
+                BulkDiversification.Format.BINARY, output.toPath(), BulkDiversification.Format.BINARY);
+
+        Assert.assertEquals(3, count);
+        byte[] expected = new byte[0];
+        for (int i = 0; i < 3; i++) {
+            byte[] uid = Arrays.copyOfRange(uids, 7 * i, 7 * (i + 1));
+            expected = Bytes.concat(expected, uid, div.diversify(KEY, 0, uid, AID, SEED));
+        }
+        Assert.assertArrayEquals(expected, Files.readAllBytes(output.toPath()));
+    }
+
+    @Test
+    public void diversify_EmptyFile() throws Exception {
+
+        File input = write(new byte[0]);
+        File output = folder.newFile();
+
+        long count = new BulkDiversification(div, 7, 0, 0).diversify(KEY, 0, AID, SEED, input.toPath(),
+                BulkDiversification.Format.HEX, output.toPath(), BulkDiversification.Format.HEX);
+
+        Assert.assertEquals(0, count);
+        Assert.assertEquals(0, output.length());
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversify_InvalidUid() throws Exception {
+
+        File input = write("04782E21801D80\n04782E21801D\n".getBytes(StandardCharsets.US_ASCII));
+        File output = folder.newFile();
+
+        new BulkDiversification(div, 7, 16, 2).diversify(KEY, 0, AID, SEED, input.toPath(),
+                BulkDiversification.Format.HEX, output.toPath(), BulkDiversification.Format.HEX);
+    }
+
+    /**
+     * Range crossing a carry of the counter, spread over several chunks and threads, in the order of the range
+     */
+    @Test
+    public void diversifyRange_Sink() throws Exception {
+
+        final List<byte[]> records = new ArrayList<>();
+        byte[] start = BytesUtils.hexToBytes("04782E21801DF0");
+        long count = new BulkDiversification(div, 7, 5, 3).diversifyRange(KEY, 0, AID, SEED, start, 50, 3,
+                new BulkDiversification.KeySink() {
+                    @Override
+                    public void write(byte[] uids, byte[] keys, int count) {
+                        for (int i = 0; i < count; i++) {
+                            records.add(Bytes.concat(Arrays.copyOfRange(uids, 7 * i, 7 * (i + 1)),
+                                    Arrays.copyOfRange(keys, 16 * i, 16 * (i + 1))));
+                        }
+                    }
+                });
+
+        Assert.assertEquals(50, count);
+        Assert.assertEquals(50, records.size());
+        long first = 0x04782E21801DF0L;
+        for (int i = 0; i < 50; i++) {
+            byte[] uid = BytesUtils.hexToBytes(String.format("%014X", first + 3 * i));
+            Assert.assertArrayEquals(Bytes.concat(uid, div.diversify(KEY, 0, uid, AID, SEED)), records.get(i));
+        }
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : range of one UID written to a file
+     */
+    @Test
+    public void diversifyRange_File() throws Exception {
+
+        File output = folder.newFile();
+
+        long count = new BulkDiversification(div, 7, 0, 0).diversifyRange(KEY, 0, AID, SEED,
+                BytesUtils.hexToBytes("04782E21801D80"), 1, 1, output.toPath(), BulkDiversification.Format.HEX);
+
+        Assert.assertEquals(1, count);
+        Assert.assertEquals(Arrays.asList("04782E21801D80;A8DD63A3B89D54B37CA802473FDA9175"),
+                Files.readAllLines(output.toPath(), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * The counter does not carry into the bytes above the last 7 ones
+     */
+    @Test(expected = DiversificationException.class)
+    public void diversifyRange_Overflow() throws Exception {
+
+        new BulkDiversification(div, 7, 0, 0).diversifyRange(KEY, 0, AID, SEED,
+                BytesUtils.hexToBytes("FFFFFFFFFFFFF0"), 17, 1, folder.newFile().toPath(), BulkDiversification.Format.HEX);
+    }
+
+    /**
+     * The output of a bulk diversification is verified, the altered keys are reported
+     */
+    @Test
+    public void verify_Hex() throws Exception {
+
+        File keys = folder.newFile();
+        BulkDiversification bulk = new BulkDiversification(div, 7, 4, 3);
+        bulk.diversifyRange(KEY, 0, AID, SEED, BytesUtils.hexToBytes("04782E21801D80"), 30, 1,
+                keys.toPath(), BulkDiversification.Format.HEX);
+        List<String> lines = Files.readAllLines(keys.toPath(), StandardCharsets.US_ASCII);
+        lines.set(5, lines.get(5).substring(0, 15) + "00000000000000000000000000000000");
+        lines.set(22, lines.get(22).replace(";", " ; ").toLowerCase());
+        lines.set(29, lines.get(29).substring(0, 46) + (lines.get(29).charAt(46) == '0' ? '1' : '0'));
+        Files.write(keys.toPath(), lines, StandardCharsets.US_ASCII);
+        File mismatches = folder.newFile();
+
+        BulkDiversification.Verification verification = bulk.verify(KEY, 0, AID, SEED, keys.toPath(),
+                BulkDiversification.Format.HEX, mismatches.toPath());
+
+        Assert.assertEquals(30, verification.getCount());
+        Assert.assertEquals(2, verification.getMismatches());
+        Assert.assertTrue(verification.getThroughput() > 0);
+        List<String> reported = Files.readAllLines(mismatches.toPath(), StandardCharsets.US_ASCII);
+        Assert.assertEquals(2, reported.size());
+        Assert.assertEquals("04782E21801D85;00000000000000000000000000000000;"
+                + BytesUtils.bytesToHex(div.diversify(KEY, 0, BytesUtils.hexToBytes("04782E21801D85"), AID, SEED), ' ')
+                .replace(" ", ""), reported.get(0));
+        Assert.assertTrue(reported.get(1).startsWith("04782E21801D9D;"));
+    }
+
+    @Test
+    public void verify_Binary() throws Exception {
+
+        byte[] uids = BytesUtils.hexToBytes("04782E21801D80 11223344556677");
+        byte[] records = Bytes.concat(Arrays.copyOfRange(uids, 0, 7), div.diversify(KEY, 0, Arrays.copyOfRange(uids, 0, 7), AID, SEED),
+                Arrays.copyOfRange(uids, 7, 14), new byte[16]);
+
+        BulkDiversification.Verification verification = new BulkDiversification(div, 7, 1, 2).verify(KEY, 0, AID, SEED,
+                write(records).toPath(), BulkDiversification.Format.BINARY, null);
+
+        Assert.assertEquals(2, verification.getCount());
+        Assert.assertEquals(1, verification.getMismatches());
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void verify_MissingKey() throws Exception {
+
+        File input = write("04782E21801D80;A8DD63A3B89D54B37CA802473FDA9175\n04782E21801D81\n".getBytes(StandardCharsets.US_ASCII));
+
+        new BulkDiversification(div, 7, 16, 2).verify(KEY, 0, AID, SEED, input.toPath(),
+                BulkDiversification.Format.HEX, null);
+    }
+
+    private File write(byte[] content) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
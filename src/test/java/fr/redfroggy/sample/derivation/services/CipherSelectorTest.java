@@ -0,0 +1,113 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.security.BlockCipher;
+import fr.redfroggy.sample.derivation.security.BlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.JceBlockCipherProvider;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test of the choice of the cipher provider
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CipherSelectorTest {
+
+    @Test
+    public void select_Cached() throws Exception {
+        for (Algorithm algorithm : new Algorithm[]{Algorithm.AES, Algorithm.DES, Algorithm.TDES}) {
+            BlockCipherProvider provider = CipherSelector.select(algorithm);
+            Assert.assertNotNull(provider);
+            Assert.assertSame(provider, CipherSelector.select(algorithm));
+        }
+    }
+
+    /**
+     * Without explicit provider, the JCE is used and nothing is benchmarked
+     */
+    @Test
+    public void defaultProvider_Jce() throws Exception {
+        Assert.assertTrue(new DiversificationStandard(AbstractDiversification.Standard.AN0148_AES).getCipherProvider()
+                instanceof JceBlockCipherProvider);
+    }
+
+    @Test
+    public void select_WrongDiscarded() throws Exception {
+        BlockCipherProvider java = new JavaBlockCipherProvider();
+        Assert.assertSame(java, CipherSelector.select(Algorithm.AES, Arrays.asList(new WrongProvider(), java)));
+        Assert.assertSame(java, CipherSelector.select(Algorithm.TDES, Arrays.asList(java, new WrongProvider())));
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void select_NoneCorrect() throws Exception {
+        CipherSelector.select(Algorithm.DES, Collections.<BlockCipherProvider>singletonList(new WrongProvider()));
+    }
+
+    /**
+     * Without example, the first provider is taken as is
+     */
+    @Test
+    public void select_NoExample() throws Exception {
+        BlockCipherProvider wrong = new WrongProvider();
+        Assert.assertSame(wrong, CipherSelector.select(Algorithm.TKTDES, Arrays.asList(wrong, new JceBlockCipherProvider())));
+    }
+
+    @Test
+    public void forName() throws Exception {
+        Assert.assertSame(CipherSelector.select(Algorithm.AES), CipherSelector.forName("AUTO", Algorithm.AES));
+        Assert.assertTrue(CipherSelector.forName("JCE", Algorithm.AES) instanceof JceBlockCipherProvider);
+        Assert.assertTrue(CipherSelector.forName("JAVA", Algorithm.AES) instanceof JavaBlockCipherProvider);
+    }
+
+    /**
+     * Provider of ciphers flipping a bit of each block
+     */
+    private static class WrongProvider implements BlockCipherProvider {
+
+        private final BlockCipherProvider java = new JavaBlockCipherProvider();
+
+        @Override
+        public String getName() {
+            return "Wrong";
+        }
+
+        @Override
+        public BlockCipher newCipher(Algorithm algorithm, ByteBuffer key) throws GeneralSecurityException {
+            final BlockCipher cipher = java.newCipher(algorithm, key);
+            return new BlockCipher() {
+                @Override
+                public int getBlockSize() {
+                    return cipher.getBlockSize();
+                }
+
+                @Override
+                public void encryptBlocks(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+                        throws GeneralSecurityException {
+                    cipher.encryptBlocks(input, inputOffset, length, output, outputOffset);
+                    output[outputOffset] ^= 0x01;
+                }
+
+                @Override
+                public void encryptChained(byte[] input, int inputOffset, int length, byte[] output, int outputOffset)
+                        throws GeneralSecurityException {
+                    cipher.encryptChained(input, inputOffset, length, output, outputOffset);
+                    output[outputOffset] ^= 0x01;
+                }
+
+                @Override
+                public void destroy() {
+                    cipher.destroy();
+                }
+            };
+        }
+    }
+}
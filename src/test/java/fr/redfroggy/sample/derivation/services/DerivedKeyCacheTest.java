@@ -0,0 +1,203 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test of the cache of diversified keys
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DerivedKeyCacheTest {
+
+    private static final byte[] KEY = BytesUtils.hexToBytes("00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF");
+
+    private static final byte[] UID = BytesUtils.hexToBytes("04:78:2E:21:80:1D:80");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    private static final byte[] DIV_KEY = BytesUtils.hexToBytes("A8:DD:63:A3:B8:9D:54:B3:7C:A8:02:47:3F:DA:91:75");
+
+    @Test
+    public void get_HitAndMiss() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(10, 0);
+        KeyContext context = new KeyContext(Algorithm.AES, KEY);
+        byte[] output = new byte[18];
+
+        Assert.assertEquals(-1, get(cache, context, 0, UID, output, 1));
+        put(cache, context, 0, UID, DIV_KEY);
+        Assert.assertEquals(16, get(cache, context, 0, UID, output, 1));
+        Assert.assertArrayEquals(DIV_KEY, Arrays.copyOfRange(output, 1, 17));
+
+        // Any other input is another entry
+        Assert.assertEquals(-1, get(cache, context, 1, UID, output, 1));
+        Assert.assertEquals(-1, get(cache, new KeyContext(Algorithm.AES, KEY), 0, UID, output, 1));
+        Assert.assertEquals(-1, get(cache, context, 0, BytesUtils.hexToBytes("04782E21801D81"), output, 1));
+        Assert.assertEquals(-1, cache.get(context, KEY.length, 0, UID, 0, UID.length, AID, 0, AID.length - 1,
+                SEED, 0, SEED.length, output, 0));
+        Assert.assertEquals(-1, cache.get(context, 8, 0, UID, 0, UID.length, AID, 0, AID.length,
+                SEED, 0, SEED.length, output, 0));
+
+        Assert.assertEquals(1, cache.stats().hitCount());
+        Assert.assertEquals(6, cache.stats().missCount());
+    }
+
+    /**
+     * Entries name their master key by identifier, the key value is not in the cache
+     */
+    @Test
+    public void put_NoMasterKey() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(10, 0);
+        KeyContext context = new KeyContext(Algorithm.AES, KEY);
+        KeyContext other = new KeyContext(Algorithm.AES, KEY);
+        put(cache, context, 0, UID, DIV_KEY);
+        put(cache, other, 0, UID, DIV_KEY);
+
+        List<DerivedKeyCache.Inputs> inputs = new ArrayList<>(cache.keys.asMap().keySet());
+        Assert.assertEquals(2, inputs.size());
+        for (DerivedKeyCache.Inputs entry : inputs) {
+            String data = BytesUtils.bytesToHex(Arrays.copyOf(entry.data, entry.length));
+            Assert.assertFalse(data.contains(BytesUtils.bytesToHex(KEY)));
+        }
+        // The key identity is hashed, the entries of many keys for one card are spread
+        Assert.assertNotEquals(inputs.get(0).hashCode(), inputs.get(1).hashCode());
+    }
+
+    @Test
+    public void evict_Zeroized() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(1, 0);
+        KeyContext context = new KeyContext(Algorithm.AES, KEY);
+        put(cache, context, 0, UID, DIV_KEY);
+        DerivedKeyCache.DerivedKey first = cache.keys.asMap().values().iterator().next();
+        DerivedKeyCache.Inputs firstInputs = cache.keys.asMap().keySet().iterator().next();
+
+        put(cache, context, 1, UID, DIV_KEY);
+        cache.keys.cleanUp();
+
+        Assert.assertEquals(1, cache.size());
+        Assert.assertArrayEquals(new byte[16], first.value);
+        Assert.assertArrayEquals(new byte[firstInputs.data.length], firstInputs.data);
+        Assert.assertEquals(-1, get(cache, context, 0, UID, new byte[16], 0));
+    }
+
+    @Test
+    public void expire() throws Exception {
+        DerivedKeyCache cache = new DerivedKeyCache(10, 20);
+        KeyContext context = new KeyContext(Algorithm.AES, KEY);
+        put(cache, context, 0, UID, DIV_KEY);
+        Assert.assertEquals(16, get(cache, context, 0, UID, new byte[16], 0));
+
+        Thread.sleep(100);
+        Assert.assertEquals(-1, get(cache, context, 0, UID, new byte[16], 0));
+    }
+
+    @Test
+    public void diversify_Cached() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        div.setDerivedKeyCache(new DerivedKeyCache());
+
+        Assert.assertArrayEquals(DIV_KEY, div.diversify(KEY, 0, UID, AID, SEED));
+        Assert.assertArrayEquals(DIV_KEY, div.diversify(KEY, 0, UID, AID, SEED));
+
+        byte[] output = new byte[16];
+        div.diversify(KEY, 0, KEY.length, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, output, 0);
+        Assert.assertArrayEquals(DIV_KEY, output);
+
+        Assert.assertEquals(2, div.getMetrics().getDerivedKeyCacheHits());
+        Assert.assertEquals(1, div.getMetrics().getDerivedKeyCacheMisses());
+        Assert.assertEquals(3, div.getMetrics().getCalls());
+    }
+
+    /**
+     * Keys opened as handles are cached by handle, apart from the same key given by value
+     */
+    @Test
+    public void diversify_HandleCached() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        DerivedKeyCache cache = new DerivedKeyCache();
+        div.setDerivedKeyCache(cache);
+        byte[] output = new byte[16];
+
+        try (KeyHandle handle = div.open(KEY, 0, KEY.length); KeyHandle other = div.open(KEY, 0, KEY.length)) {
+            for (int i = 0; i < 2; i++) {
+                div.diversify(handle, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, output, 0);
+                Assert.assertArrayEquals(DIV_KEY, output);
+            }
+            Assert.assertEquals(-1, cache.get(other, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, output, 0));
+        }
+        Assert.assertEquals(-1, get(cache, new KeyContext(Algorithm.AES, KEY), 0, UID, output, 0));
+
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, div.getMetrics().getDerivedKeyCacheHits());
+    }
+
+    /**
+     * Lookups concurrent with evictions never read a zeroized key
+     */
+    @Test
+    public void get_ConcurrentEvictions() throws Exception {
+        final DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        div.setDerivedKeyCache(new DerivedKeyCache(4, 0));
+        final byte[][] expected = new byte[16][];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = div.diversify(KEY, 0, uid(i), AID, SEED);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] output = new byte[16];
+                        for (int n = 0; n < 20000; n++) {
+                            int i = n % expected.length;
+                            byte[] uid = uid(i);
+                            div.diversify(KEY, 0, KEY.length, 0, uid, 0, uid.length, AID, 0, AID.length,
+                                    SEED, 0, SEED.length, output, 0);
+                            Assert.assertArrayEquals(expected[i], output);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(div.getMetrics().getDerivedKeyCacheHits() > 0);
+    }
+
+    private static byte[] uid(int i) {
+        byte[] uid = UID.clone();
+        uid[6] = (byte) i;
+        return uid;
+    }
+
+    private static int get(DerivedKeyCache cache, KeyContext context, int keyIndex, byte[] uid, byte[] output,
+                           int outputOffset) {
+        return cache.get(context, KEY.length, keyIndex, uid, 0, uid.length, AID, 0, AID.length, SEED, 0, SEED.length,
+                output, outputOffset);
+    }
+
+    private static void put(DerivedKeyCache cache, KeyContext context, int keyIndex, byte[] uid, byte[] divKey) {
+        cache.put(context, KEY.length, keyIndex, uid, 0, uid.length, AID, 0, AID.length, SEED, 0, SEED.length,
+                divKey, 0, divKey.length);
+    }
+}
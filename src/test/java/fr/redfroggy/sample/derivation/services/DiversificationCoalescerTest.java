@@ -0,0 +1,121 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test of the coalescing of concurrent single-card requests
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationCoalescerTest {
+
+    private static final byte[] KEY = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+
+    private static final byte[] UID = BytesUtils.hexToBytes("04782E21801D80");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    /**
+     * NXP AN10922 / §2.2.1 : a lone request is diversified at the end of its window
+     */
+    @Test
+    public void diversify_Window() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+
+        try (DiversificationCoalescer coalescer = new DiversificationCoalescer(div, 1, 64, 1000)) {
+            byte[] divKey = coalescer.diversify(KEY, 0, UID, AID, SEED).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("A8DD63A3B89D54B37CA802473FDA9175", BytesUtils.bytesToHex(divKey).replace(" ", ""));
+            Assert.assertEquals(0, coalescer.getOpenBatches());
+            Assert.assertEquals(1, div.getMetrics().getBatches());
+        }
+    }
+
+    /**
+     * Full batches are diversified at once, each caller gets its own key
+     */
+    @Test
+    public void diversify_FullBatches() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_3DES,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        byte[] key = BytesUtils.hexToBytes("0123456789ABCDEFFEDCBA9876543210");
+
+        // A window long enough for the batches to fill up
+        try (DiversificationCoalescer coalescer = new DiversificationCoalescer(div, 1, 8, 10000000)) {
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                byte[] uid = UID.clone();
+                uid[6] = (byte) i;
+                futures.add(coalescer.diversify(key, 1, uid, null, null));
+            }
+            Assert.assertEquals(0, coalescer.getOpenBatches());
+            Assert.assertEquals(4, div.getMetrics().getBatches());
+
+            for (int i = 0; i < 32; i++) {
+                byte[] uid = UID.clone();
+                uid[6] = (byte) i;
+                Assert.assertTrue(futures.get(i).isDone());
+                Assert.assertArrayEquals(div.diversify(key, 1, uid, null, null), futures.get(i).get());
+            }
+        }
+    }
+
+    /**
+     * Requests of different parameters are not diversified together
+     */
+    @Test
+    public void diversify_SeparateBatches() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+
+        try (DiversificationCoalescer coalescer = new DiversificationCoalescer(div, 1, 2, 10000000)) {
+            CompletableFuture<byte[]> first = coalescer.diversify(KEY, 0, UID, AID, SEED);
+            CompletableFuture<byte[]> otherAid = coalescer.diversify(KEY, 0, UID, new byte[]{1, 2, 3}, SEED);
+            CompletableFuture<byte[]> otherIndex = coalescer.diversify(KEY, 1, UID, AID, SEED);
+            Assert.assertEquals(3, coalescer.getOpenBatches());
+            Assert.assertFalse(first.isDone());
+
+            CompletableFuture<byte[]> second = coalescer.diversify(KEY, 0, UID, AID, SEED);
+            Assert.assertTrue(first.isDone() && second.isDone());
+            Assert.assertArrayEquals(first.get(), second.get());
+            Assert.assertFalse(otherAid.isDone() || otherIndex.isDone());
+            Assert.assertEquals(2, coalescer.getOpenBatches());
+        }
+    }
+
+    /**
+     * A failed batch fails each of its requests, closing diversifies the open batches
+     */
+    @Test
+    public void diversify_FailureAndClose() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        DiversificationCoalescer coalescer = new DiversificationCoalescer(div, 1, 64, 10000000);
+
+        CompletableFuture<byte[]> invalid = coalescer.diversify(new byte[5], 0, UID, AID, SEED);
+        CompletableFuture<byte[]> valid = coalescer.diversify(KEY, 0, UID, AID, SEED);
+        coalescer.close();
+
+        Assert.assertNotNull(valid.get(10, TimeUnit.SECONDS));
+        try {
+            invalid.get(10, TimeUnit.SECONDS);
+            Assert.fail("Invalid key accepted");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof DiversificationException);
+        }
+        Assert.assertTrue(coalescer.diversify(KEY, 0, UID, AID, SEED).isCompletedExceptionally());
+    }
+}
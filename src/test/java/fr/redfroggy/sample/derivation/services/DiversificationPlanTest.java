@@ -0,0 +1,116 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test of the derivations with precompiled plans
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationPlanTest {
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    /**
+     * NXP AN10922 / §2.2.1 and §2.3.1, HID AN1048 / §5.1 to §5.3 through plans
+     */
+    @Test
+    public void diversify_Vectors() throws Exception {
+        Assert.assertEquals("A8DD63A3B89D54B37CA802473FDA9175", diversify(AbstractDiversification.Standard.AN10922_AES128,
+                "00112233445566778899AABBCCDDEEFF", 0, "04782E21801D80", AID, SEED));
+        Assert.assertEquals("CE39C8E1CD82D9A7BEDBE9D74AF59B23176755EE7586E12C", diversify(AbstractDiversification.Standard.AN10922_AES192,
+                "00112233445566778899AABBCCDDEEFF0102030405060708", 0, "04782E21801D80", AID, SEED));
+        Assert.assertEquals("1A945225B3FAA445", diversify(AbstractDiversification.Standard.AN0148_DES,
+                "0123456789ABCDEF", 1, "045E75A9C12580", new byte[0], new byte[0]));
+        Assert.assertEquals("7BAA6C97BDA36BFF24445AFFA0B58CF6", diversify(AbstractDiversification.Standard.AN0148_3DES,
+                "0123456789ABCDEFFEDCBA9876543210", 1, "045E75A9C12580", new byte[0], new byte[0]));
+        Assert.assertEquals("519A502E2F69CE7B17C3BFB12B304D28", diversify(AbstractDiversification.Standard.AN0148_AES,
+                "0123456789ABCDEFFEDCBA9876543210", 1, "046C75A9C12580", new byte[0], new byte[0]));
+    }
+
+    /**
+     * A plan gives the keys of the by-value API, for any UID and UID length
+     */
+    @Test
+    public void diversify_SameAsByValue() throws Exception {
+        Random random = new Random(19);
+        String[] keys = {"00112233445566778899AABBCCDDEEFF", "00112233445566778899AABBCCDDEEFF0102030405060708",
+                "0123456789ABCDEF", "0123456789ABCDEFFEDCBA9876543210", "0123456789ABCDEFFEDCBA9876543210"};
+
+        for (AbstractDiversification.Standard standard : AbstractDiversification.Standard.values()) {
+            DiversificationStandard div = new DiversificationStandard(standard, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                    new JavaBlockCipherProvider());
+            byte[] key = BytesUtils.hexToBytes(keys[standard.ordinal()]);
+            int[] uidLengths = standard.name().startsWith("AN10922") ? new int[]{4, 7, 10} : new int[]{7};
+
+            for (int uidLength : uidLengths) {
+                DiversificationPlan plan = div.compile(uidLength, AID, SEED);
+                byte[] uid = new byte[uidLength + 3];
+                byte[] output = new byte[plan.getDiversifiedKeyLength(key.length) + 5];
+                try (KeyHandle handle = div.open(key, 0, key.length)) {
+                    for (int i = 0; i < 20; i++) {
+                        random.nextBytes(uid);
+                        byte[] card = new byte[uidLength];
+                        System.arraycopy(uid, 3, card, 0, uidLength);
+
+                        int length = div.diversify(plan, handle, 1, uid, 3, output, 5);
+                        byte[] expected = div.diversify(key, 1, card, AID, SEED);
+                        Assert.assertEquals(expected.length, length);
+                        Assert.assertEquals(standard + " " + BytesUtils.bytesToHex(card), BytesUtils.bytesToHex(expected),
+                                BytesUtils.bytesToHex(Arrays.copyOfRange(output, 5, 5 + length)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A plan is only used by the process of its standard
+     */
+    @Test(expected = DiversificationException.class)
+    public void diversify_OtherStandard() throws Exception {
+        DiversificationStandard aes = new DiversificationStandard(AbstractDiversification.Standard.AN0148_AES,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        DiversificationStandard an10922 = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        byte[] key = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+
+        try (KeyHandle handle = aes.open(key, 0, key.length)) {
+            aes.diversify(an10922.compile(7, AID, SEED), handle, 1, new byte[7], 0, new byte[16], 0);
+        }
+    }
+
+    /**
+     * The UID length is checked when the plan is compiled
+     */
+    @Test(expected = DiversificationException.class)
+    public void compile_InvalidUidLength() throws Exception {
+        new DiversificationStandard(AbstractDiversification.Standard.AN0148_DES, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                new JavaBlockCipherProvider()).compile(8, new byte[0], new byte[0]);
+    }
+
+    private static String diversify(AbstractDiversification.Standard standard, String key, int keyIndex, String uid,
+                                    byte[] aid, byte[] systemIdentifier) throws DiversificationException {
+        DiversificationStandard div = new DiversificationStandard(standard, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                new JavaBlockCipherProvider());
+        byte[] masterKey = BytesUtils.hexToBytes(key);
+        byte[] card = BytesUtils.hexToBytes(uid);
+        DiversificationPlan plan = div.compile(card.length, aid, systemIdentifier);
+        byte[] output = new byte[plan.getDiversifiedKeyLength(masterKey.length)];
+
+        try (KeyHandle handle = div.open(masterKey, 0, masterKey.length)) {
+            div.diversify(plan, handle, keyIndex, card, 0, output, 0);
+        }
+        return BytesUtils.bytesToHex(output).replace(" ", "");
+    }
+}
@@ -0,0 +1,114 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.security.KeyRing;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Test of the dispatch of the derivations between standards and key profiles
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationRegistryTest {
+
+    private static final byte[][] KEYS = {
+            BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF"),
+            BytesUtils.hexToBytes("0123456789ABCDEF"),
+            BytesUtils.hexToBytes("0123456789ABCDEFFEDCBA9876543210")
+    };
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    private Map<AbstractDiversification.Standard, DiversificationStandard> standards;
+
+    private DiversificationRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        standards = new EnumMap<>(AbstractDiversification.Standard.class);
+        for (AbstractDiversification.Standard standard : AbstractDiversification.Standard.values()) {
+            if (standard != AbstractDiversification.Standard.AN10922_AES192) {
+                standards.put(standard, new DiversificationStandard(standard, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                        new JavaBlockCipherProvider()));
+            }
+        }
+        registry = new DiversificationRegistry(standards, new KeyRing(Arrays.asList(KEYS)), 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.close();
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 and HID AN1048 / §5.1 to §5.3 served by the same registry
+     */
+    @Test
+    public void diversify_Standards() throws Exception {
+        Assert.assertEquals("A8DD63A3B89D54B37CA802473FDA9175",
+                diversify(AbstractDiversification.Standard.AN10922_AES128, 0, 0, "04782E21801D80", AID, SEED));
+        Assert.assertEquals("1A945225B3FAA445",
+                diversify(AbstractDiversification.Standard.AN0148_DES, 1, 1, "045E75A9C12580", new byte[0], new byte[0]));
+        Assert.assertEquals("7BAA6C97BDA36BFF24445AFFA0B58CF6",
+                diversify(AbstractDiversification.Standard.AN0148_3DES, 2, 1, "045E75A9C12580", new byte[0], new byte[0]));
+        Assert.assertEquals("519A502E2F69CE7B17C3BFB12B304D28",
+                diversify(AbstractDiversification.Standard.AN0148_AES, 2, 1, "046C75A9C12580", new byte[0], new byte[0]));
+    }
+
+    /**
+     * The warm-up derivations are neither counted nor cached
+     */
+    @Test
+    public void create_WarmedUp() throws Exception {
+        for (DiversificationStandard div : standards.values()) {
+            Assert.assertEquals(0, div.getMetrics().getCalls());
+        }
+        Assert.assertEquals(3, registry.getProfileCount());
+        Assert.assertNotNull(registry.getKey(AbstractDiversification.Standard.AN0148_DES, 1));
+        Assert.assertNull(registry.getKey(AbstractDiversification.Standard.AN0148_AES, 1));
+        Assert.assertNull(registry.getKey(AbstractDiversification.Standard.AN10922_AES128, 3));
+        Assert.assertNull(registry.get(AbstractDiversification.Standard.AN10922_AES192));
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversify_StandardNotServed() throws Exception {
+        diversify(AbstractDiversification.Standard.AN10922_AES192, 0, 0, "04782E21801D80", AID, SEED);
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversify_UnknownProfile() throws Exception {
+        diversify(AbstractDiversification.Standard.AN10922_AES128, 3, 0, "04782E21801D80", AID, SEED);
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversify_ProfileNotUsable() throws Exception {
+        diversify(AbstractDiversification.Standard.AN0148_AES, 1, 1, "046C75A9C12580", new byte[0], new byte[0]);
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void close_KeysClosed() throws Exception {
+        registry.close();
+        diversify(AbstractDiversification.Standard.AN10922_AES128, 0, 0, "04782E21801D80", AID, SEED);
+    }
+
+    private String diversify(AbstractDiversification.Standard standard, int profile, int keyIndex, String uid,
+                             byte[] aid, byte[] systemIdentifier) throws Exception {
+        byte[] uidBytes = BytesUtils.hexToBytes(uid);
+        byte[] output = new byte[32];
+        int length = registry.diversify(standard, profile, keyIndex, uidBytes, 0, uidBytes.length, aid, 0, aid.length,
+                systemIdentifier, 0, systemIdentifier.length, output, 0);
+        return BytesUtils.bytesToHex(Arrays.copyOf(output, length)).replace(" ", "");
+    }
+}
@@ -0,0 +1,122 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stress test of a diversification process shared between threads,
+ * checked against the NXP and HID examples of {@link DiversificationStandardTest}
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationStandardConcurrencyTest {
+
+    private static final int THREADS = 8;
+
+    private static final int ITERATIONS = 200;
+
+    /**
+     * Standard, key, key index, uid, aid, system identifier, expected diversified key
+     */
+    private static final Object[][] VECTORS = {
+            {AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", 0, "04782E21801D80", "F54230", "4E585020416275",
+                    "A8DD63A3B89D54B37CA802473FDA9175"},
+            {AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", 0, "11223344556677", "AABBCC", "010000000000000000000000000000000000000000",
+                    "DB29A5E17D9414DE4BE5C0B10B49A1D2"},
+            {AbstractDiversification.Standard.AN10922_AES192, "00112233445566778899AABBCCDDEEFF0102030405060708", 0, "04782E21801D80", "F54230", "4E585020416275",
+                    "CE39C8E1CD82D9A7BEDBE9D74AF59B23176755EE7586E12C"},
+            {AbstractDiversification.Standard.AN0148_DES, "0123456789ABCDEF", 1, "045E75A9C12580", "", "",
+                    "1A945225B3FAA445"},
+            {AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA9876543210", 1, "045E75A9C12580", "", "",
+                    "7BAA6C97BDA36BFF24445AFFA0B58CF6"},
+            {AbstractDiversification.Standard.AN0148_AES, "0123456789ABCDEFFEDCBA9876543210", 1, "046C75A9C12580", "", "",
+                    "519A502E2F69CE7B17C3BFB12B304D28"},
+    };
+
+    @Test
+    public void diversify_SharedInstances() throws Exception {
+        runConcurrently(false);
+    }
+
+    /**
+     * Key contexts are evicted continuously while they are used
+     */
+    @Test
+    public void diversify_SharedInstancesWithEviction() throws Exception {
+        runConcurrently(true);
+    }
+
+    private void runConcurrently(boolean evict) throws Exception {
+
+        final DiversificationStandard[] divs = new DiversificationStandard[AbstractDiversification.Standard.values().length];
+        for (AbstractDiversification.Standard standard : AbstractDiversification.Standard.values()) {
+            divs[standard.ordinal()] = new DiversificationStandard(standard);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            if (evict) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        while (running.get()) {
+                            for (DiversificationStandard div : divs) {
+                                div.contexts.invalidateAll();
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int offset = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int errors = 0;
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            Object[] vector = VECTORS[(i + offset) % VECTORS.length];
+                            DiversificationStandard div = divs[((AbstractDiversification.Standard) vector[0]).ordinal()];
+                            byte[] divKey = div.diversify(
+                                    BytesUtils.hexToBytes((String) vector[1]),
+                                    (Integer) vector[2],
+                                    BytesUtils.hexToBytes((String) vector[3]),
+                                    BytesUtils.hexToBytes((String) vector[4]),
+                                    BytesUtils.hexToBytes((String) vector[5]));
+                            if (!Arrays.equals(BytesUtils.hexToBytes((String) vector[6]), divKey)) {
+                                errors++;
+                            }
+                        }
+                        return errors;
+                    }
+                }));
+            }
+
+            start.countDown();
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(0, result.get().intValue());
+            }
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+}
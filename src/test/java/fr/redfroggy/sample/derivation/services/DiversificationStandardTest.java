@@ -2,12 +2,16 @@ package fr.redfroggy.sample.derivation.services;
 
 import fr.redfroggy.sample.derivation.exception.DiversificationException;
 import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import com.google.common.primitives.Bytes;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * Test of AN10922 and AN0148 implementation
  * See document AN10922 of NXP
@@ -167,4 +171,196 @@ public class DiversificationStandardTest {
         DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_AES);
         div.diversify(key, keyIndex, uid, aid, seed);
     }
+
+    /**
+     * A batch gives the same keys as one diversification per card, for every standard
+     */
+    @Test
+    public void diversifyBatch_SameAsSingle() throws Exception {
+
+        byte[][] uids = new byte[][]{
+                BytesUtils.hexToBytes("04:78:2E:21:80:1D:80"),
+                BytesUtils.hexToBytes("04:5E:75:A9:C1:25:80"),
+                BytesUtils.hexToBytes("11:22:33:44:55:66:77")
+        };
+        byte[] aid = BytesUtils.hexToBytes("F5:42:30");
+        byte[] seed = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+        int keyIndex = 1;
+
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", keyIndex, uids, aid, seed);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", keyIndex, uids, aid,
+                BytesUtils.hexToBytes("01:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00"));
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN10922_AES192, "00112233445566778899AABBCCDDEEFF0102030405060708", keyIndex, uids, aid, seed);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_DES, "0123456789ABCDEF", keyIndex, uids, new byte[0], new byte[0]);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA9876543210", keyIndex, uids, new byte[0], new byte[0]);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_AES, "0123456789ABCDEFFEDCBA9876543210", keyIndex, uids, new byte[0], new byte[0]);
+    }
+
+    /**
+     * A batch larger than the cipher calls gives the same keys as one diversification per card
+     */
+    @Test
+    public void diversifyBatch_SeveralChunks() throws Exception {
+
+        byte[][] uids = new byte[2 * DiversificationStandard.BATCH_CHUNK_SIZE + 3][];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = BytesUtils.hexToBytes("04:78:2E:21:80:00:00");
+            uids[i][5] = (byte) (i >> 8);
+            uids[i][6] = (byte) i;
+        }
+        byte[] aid = BytesUtils.hexToBytes("F5:42:30");
+        byte[] seed = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", 1, uids, aid, seed);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN10922_AES192, "00112233445566778899AABBCCDDEEFF0102030405060708", 1, uids, aid, seed);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_DES, "0123456789ABCDEF", 1, uids, new byte[0], new byte[0]);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA9876543210", 1, uids, new byte[0], new byte[0]);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA98765432100011223344556677", 1, uids, new byte[0], new byte[0]);
+        assertBatchSameAsSingle(AbstractDiversification.Standard.AN0148_AES, "0123456789ABCDEFFEDCBA9876543210", 1, uids, new byte[0], new byte[0]);
+    }
+
+    /**
+     * Keys are written at the requested offset of the output buffer
+     */
+    @Test
+    public void diversifyBatch_Offsets() throws Exception {
+
+        byte[] key = BytesUtils.hexToBytes("00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF");
+        byte[] uids = BytesUtils.hexToBytes("FF:FF:04:78:2E:21:80:1D:80");
+        byte[] aid = BytesUtils.hexToBytes("F5:42:30");
+        byte[] seed = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+        byte[] output = new byte[20];
+
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        div.diversifyBatch(key, 0, uids, 2, 7, 1, aid, seed, output, 4);
+
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("00:00:00:00:A8:DD:63:A3:B8:9D:54:B3:7C:A8:02:47:3F:DA:91:75"), output);
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversifyBatch_OutputTooSmall() throws Exception {
+
+        byte[] key = BytesUtils.hexToBytes("01:23:45:67:89:AB:CD:EF");
+        byte[] uids = BytesUtils.hexToBytes("04:5E:75:A9:C1:25:80:04:5E:75:A9:C1:25:81");
+
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_DES);
+        div.diversifyBatch(key, 1, uids, 0, 7, 2, new byte[0], new byte[0], new byte[8], 0);
+    }
+
+    private void assertBatchSameAsSingle(AbstractDiversification.Standard standard, String key, int keyIndex, byte[][] uids,
+                                         byte[] aid, byte[] seed) throws Exception {
+
+        DiversificationStandard div = new DiversificationStandard(standard);
+        byte[] divKeys = div.diversifyBatch(BytesUtils.hexToBytes(key), keyIndex, uids, aid, seed);
+
+        int divKeyLength = divKeys.length / uids.length;
+        for (int i = 0; i < uids.length; i++) {
+            byte[] divKey = div.diversify(BytesUtils.hexToBytes(key), keyIndex, uids[i], aid, seed);
+            Assert.assertArrayEquals(standard.toString(), divKey, Arrays.copyOfRange(divKeys, i * divKeyLength, (i + 1) * divKeyLength));
+        }
+    }
+
+    /**
+     * Diversification into a caller buffer gives the same keys as the array API, for every standard
+     */
+    @Test
+    public void diversifyInto_SameAsSingle() throws Exception {
+
+        byte[] uid = BytesUtils.hexToBytes("04:78:2E:21:80:1D:80");
+        byte[] aid = BytesUtils.hexToBytes("F5:42:30");
+
+        assertIntoSameAsSingle(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", uid, aid,
+                BytesUtils.hexToBytes("4E:58:50:20:41:62:75"));
+        assertIntoSameAsSingle(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", uid, aid,
+                BytesUtils.hexToBytes("01:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00:00"));
+        assertIntoSameAsSingle(AbstractDiversification.Standard.AN10922_AES192, "00112233445566778899AABBCCDDEEFF0102030405060708", uid, aid,
+                BytesUtils.hexToBytes("4E:58:50:20:41:62:75"));
+        assertIntoSameAsSingle(AbstractDiversification.Standard.AN0148_DES, "0123456789ABCDEF", uid, new byte[0], new byte[0]);
+        assertIntoSameAsSingle(AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA9876543210", uid, new byte[0], new byte[0]);
+        assertIntoSameAsSingle(AbstractDiversification.Standard.AN0148_AES, "0123456789ABCDEFFEDCBA9876543210", uid, new byte[0], new byte[0]);
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 key diversification example, with direct buffers
+     */
+    @Test
+    public void diversifyInto_DirectBuffers() throws Exception {
+
+        ByteBuffer key = direct("00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF");
+        ByteBuffer uid = direct("04:78:2E:21:80:1D:80");
+        ByteBuffer aid = direct("F5:42:30");
+        ByteBuffer seed = direct("4E:58:50:20:41:62:75");
+        ByteBuffer output = ByteBuffer.allocateDirect(32);
+        output.position(2);
+
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        Assert.assertEquals(16, div.diversify(key, 0, uid, aid, seed, output));
+
+        Assert.assertEquals(18, output.position());
+        byte[] divKey = new byte[16];
+        output.position(2);
+        output.get(divKey);
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("A8:DD:63:A3:B8:9D:54:B3:7C:A8:02:47:3F:DA:91:75"), divKey);
+        Assert.assertEquals(0, uid.position());
+    }
+
+    /**
+     * A key in a direct buffer is not copied on the heap, the work buffers of the thread are erased after the call
+     */
+    @Test
+    public void diversifyInto_DirectBuffersErased() throws Exception {
+
+        for (AbstractDiversification.Standard standard : new AbstractDiversification.Standard[]{
+                AbstractDiversification.Standard.AN10922_AES128, AbstractDiversification.Standard.AN0148_DES}) {
+            String key = standard == AbstractDiversification.Standard.AN0148_DES ? "0123456789ABCDEF"
+                    : "00112233445566778899AABBCCDDEEFF";
+            byte[] aid = standard == AbstractDiversification.Standard.AN0148_DES ? new byte[0] : BytesUtils.hexToBytes("F54230");
+            byte[] seed = standard == AbstractDiversification.Standard.AN0148_DES ? new byte[0] : BytesUtils.hexToBytes("4E585020416275");
+            DiversificationStandard div = new DiversificationStandard(standard);
+            byte[] expected = div.diversify(BytesUtils.hexToBytes(key), 1, BytesUtils.hexToBytes("04782E21801D80"), aid, seed);
+
+            ByteBuffer output = ByteBuffer.allocateDirect(expected.length);
+            div.diversify(direct(key), 1, direct("04782E21801D80"), ByteBuffer.wrap(aid), ByteBuffer.wrap(seed), output);
+            byte[] divKey = new byte[expected.length];
+            output.flip();
+            output.get(divKey);
+            Assert.assertArrayEquals(expected, divKey);
+
+            DiversificationStandard.Workspace workspace = div.workspaces.get();
+            Assert.assertArrayEquals(new byte[workspace.buffers[DiversificationStandard.Workspace.OUTPUT].length],
+                    workspace.buffers[DiversificationStandard.Workspace.OUTPUT]);
+            Assert.assertArrayEquals(new byte[workspace.buffers[DiversificationStandard.Workspace.MESSAGE].length],
+                    workspace.buffers[DiversificationStandard.Workspace.MESSAGE]);
+            for (int i = 0; i < workspace.expandedKey.capacity(); i++) {
+                Assert.assertEquals(0, workspace.expandedKey.get(i));
+            }
+        }
+    }
+
+    private void assertIntoSameAsSingle(AbstractDiversification.Standard standard, String key, byte[] uid, byte[] aid, byte[] seed) throws Exception {
+
+        DiversificationStandard div = new DiversificationStandard(standard);
+        byte[] expected = div.diversify(BytesUtils.hexToBytes(key), 1, uid, aid, seed);
+
+        // Inputs and output surrounded by other bytes
+        byte[] keyBuffer = BytesUtils.hexToBytes("AA" + key + "AA");
+        byte[] uidBuffer = Bytes.concat(new byte[3], uid);
+        byte[] aidBuffer = Bytes.concat(new byte[1], aid, new byte[1]);
+        byte[] seedBuffer = Bytes.concat(seed, new byte[2]);
+        byte[] output = new byte[expected.length + 4];
+
+        int length = div.diversify(keyBuffer, 1, keyBuffer.length - 2, 1, uidBuffer, 3, uid.length, aidBuffer, 1, aid.length,
+                seedBuffer, 0, seed.length, output, 4);
+
+        Assert.assertEquals(expected.length, length);
+        Assert.assertArrayEquals(standard.toString(), expected, Arrays.copyOfRange(output, 4, output.length));
+    }
+
+    private static ByteBuffer direct(String hexadecimal) {
+        byte[] data = BytesUtils.hexToBytes(hexadecimal);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
 }
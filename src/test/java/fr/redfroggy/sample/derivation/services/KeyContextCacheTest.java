@@ -0,0 +1,74 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.security.Algorithm;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Test of the key contexts cache
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class KeyContextCacheTest {
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 sub keys
+     */
+    @Test
+    public void subKeys_AES128() throws Exception {
+
+        byte[] key = BytesUtils.hexToBytes("00:11:22:33:44:55:66:77:88:99:AA:BB:CC:DD:EE:FF");
+
+        KeyContext context = new KeyContextCache().acquire(Algorithm.AES, key);
+
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("FD E4 FB AE 4A 09 E0 20 EF F7 22 96 9F 83 83 2B"), context.getLKey());
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("FB C9 F7 5C 94 13 C0 41 DF EE 45 2D 3F 07 06 D1"), context.getSubKey1());
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("F7 93 EE B9 28 27 80 83 BF DC 8A 5A 7E 0E 0D 25"), context.getSubKey2());
+    }
+
+    @Test
+    public void acquire_SameKeyReturnsSameContext() throws Exception {
+
+        KeyContextCache cache = new KeyContextCache();
+        KeyContext context1 = cache.acquire(Algorithm.AES, BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF"));
+        KeyContext context2 = cache.acquire(Algorithm.AES, BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF"));
+        KeyContext context3 = cache.acquire(Algorithm.AES, BytesUtils.hexToBytes("FFEEDDCCBBAA99887766554433221100"));
+
+        Assert.assertSame(context1, context2);
+        Assert.assertNotSame(context1, context3);
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void invalidateAll_ZeroizeContexts() throws Exception {
+
+        byte[] key = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+        KeyContextCache cache = new KeyContextCache(1);
+        KeyContext context = cache.acquire(Algorithm.AES, key);
+        context.release();
+
+        cache.invalidateAll();
+
+        Assert.assertEquals(0, cache.size());
+        Assert.assertFalse(context.matches(key));
+        Assert.assertArrayEquals(new byte[16], context.getSubKey1());
+        Assert.assertArrayEquals(new byte[16], context.getSubKey2());
+    }
+
+    @Test
+    public void invalidateAll_KeepContextsInUse() throws Exception {
+
+        byte[] key = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+        KeyContextCache cache = new KeyContextCache(1);
+        KeyContext context = cache.acquire(Algorithm.AES, key);
+
+        cache.invalidateAll();
+        Assert.assertTrue(context.matches(key));
+
+        context.release();
+        Assert.assertFalse(context.matches(key));
+        Assert.assertFalse(context.retain());
+    }
+}
@@ -0,0 +1,138 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test of the derivations with opened master keys
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class KeyHandleTest {
+
+    private static final byte[] UID = BytesUtils.hexToBytes("04:78:2E:21:80:1D:80");
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    @Test
+    public void diversify_SameAsByValue() throws Exception {
+        assertSameAsByValue(AbstractDiversification.Standard.AN10922_AES128, "00112233445566778899AABBCCDDEEFF", AID, SEED);
+        assertSameAsByValue(AbstractDiversification.Standard.AN10922_AES192, "00112233445566778899AABBCCDDEEFF0102030405060708", AID, SEED);
+        assertSameAsByValue(AbstractDiversification.Standard.AN0148_DES, "0123456789ABCDEF", new byte[0], new byte[0]);
+        assertSameAsByValue(AbstractDiversification.Standard.AN0148_3DES, "0123456789ABCDEFFEDCBA9876543210", new byte[0], new byte[0]);
+        assertSameAsByValue(AbstractDiversification.Standard.AN0148_AES, "0123456789ABCDEFFEDCBA9876543210", new byte[0], new byte[0]);
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 key diversification example, the key given inside a larger buffer
+     */
+    @Test
+    public void open_Offset() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        byte[] key = BytesUtils.hexToBytes("FF00112233445566778899AABBCCDDEEFFFF");
+        byte[] output = new byte[16];
+
+        try (KeyHandle handle = div.open(key, 1, 16)) {
+            Arrays.fill(key, (byte) 0x00);
+            Assert.assertEquals(16, div.diversify(handle, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, output, 0));
+        }
+        Assert.assertArrayEquals(BytesUtils.hexToBytes("A8:DD:63:A3:B8:9D:54:B3:7C:A8:02:47:3F:DA:91:75"), output);
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void open_BadKeyLength() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_AES);
+        byte[] key = BytesUtils.hexToBytes("0123456789ABCDEF");
+        div.open(key, 0, key.length);
+    }
+
+    @Test
+    public void close_Zeroized() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        byte[] key = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+        KeyHandle handle = div.open(key, 0, key.length);
+        div.diversify(handle, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, new byte[16], 0);
+
+        handle.close();
+        handle.close();
+
+        Assert.assertTrue(handle.context.matches(new byte[16]));
+        Assert.assertArrayEquals(new byte[16], handle.context.getSubKey1());
+        try {
+            div.diversify(handle, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, new byte[16], 0);
+            Assert.fail("Closed handle used");
+        } catch (DiversificationException e) {
+            Assert.assertEquals(1, div.getMetrics().getErrors());
+        }
+    }
+
+    /**
+     * The engines of the other threads drop their cipher and context when the handle is closed
+     */
+    @Test
+    public void close_EnginesUnlinked() throws Exception {
+        final DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+        byte[] key = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+        final KeyHandle handle = div.open(key, 0, key.length);
+        div.diversify(handle, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, new byte[16], 0);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    div.diversify(handle, 0, UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, new byte[16], 0);
+                } catch (DiversificationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        other.start();
+        other.join();
+
+        List<DiversificationStandard.Engine> engines = new ArrayList<>(handle.created);
+        Assert.assertEquals(2, engines.size());
+        handle.close();
+
+        Assert.assertTrue(handle.created.isEmpty());
+        for (DiversificationStandard.Engine engine : engines) {
+            Assert.assertNull(engine.cipher);
+            Assert.assertNull(engine.context);
+        }
+    }
+
+    @Test(expected = DiversificationException.class)
+    public void diversify_OtherProcess() throws Exception {
+        byte[] key = BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF");
+        KeyHandle handle = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128).open(key, 0, key.length);
+
+        new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128).diversify(handle, 0,
+                UID, 0, UID.length, AID, 0, AID.length, SEED, 0, SEED.length, new byte[16], 0);
+    }
+
+    private void assertSameAsByValue(AbstractDiversification.Standard standard, String key, byte[] aid, byte[] seed) throws Exception {
+        DiversificationStandard div = new DiversificationStandard(standard);
+        byte[] keyValue = BytesUtils.hexToBytes(key);
+        byte[] uid = UID.clone();
+
+        try (KeyHandle handle = div.open(keyValue, 0, keyValue.length)) {
+            for (int i = 0; i < 4; i++) {
+                uid[6] = (byte) i;
+                byte[] expected = div.diversify(keyValue, 1, uid, aid, seed);
+                byte[] output = new byte[expected.length + 2];
+
+                int length = div.diversify(handle, 1, uid, 0, uid.length, aid, 0, aid.length, seed, 0, seed.length, output, 2);
+
+                Assert.assertEquals(expected.length, length);
+                Assert.assertArrayEquals(standard.toString(), expected, Arrays.copyOfRange(output, 2, output.length));
+            }
+        }
+    }
+}
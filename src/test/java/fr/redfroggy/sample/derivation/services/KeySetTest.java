@@ -0,0 +1,106 @@
+package fr.redfroggy.sample.derivation.services;
+
+import fr.redfroggy.sample.derivation.exception.DiversificationException;
+import fr.redfroggy.sample.derivation.security.JavaBlockCipherProvider;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+
+/**
+ * Test of the derivation of all the keys of a card in one call
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class KeySetTest {
+
+    private static final byte[] AID = BytesUtils.hexToBytes("F5:42:30");
+
+    private static final byte[] SEED = BytesUtils.hexToBytes("4E:58:50:20:41:62:75");
+
+    /**
+     * AN0148: several key indexes of the same master key, one after the other in the record
+     */
+    @Test
+    public void diversify_KeyIndexes() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_3DES,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        byte[] key = BytesUtils.hexToBytes("0123456789ABCDEFFEDCBA9876543210");
+        byte[] uid = BytesUtils.hexToBytes("045E75A9C12580");
+
+        try (KeyHandle handle = div.open(key, 0, key.length)) {
+            KeySet keys = new KeySet();
+            for (int keyIndex = 0; keyIndex < 6; keyIndex++) {
+                keys.add(handle, keyIndex);
+            }
+            DiversificationPlan plan = div.compile(uid.length, new byte[0], new byte[0]);
+            byte[] record = new byte[keys.getRecordLength(plan) + 2];
+
+            Assert.assertEquals(96, div.diversify(plan, keys, uid, 0, record, 2));
+            // One call of 6 keys, as one batch
+            Assert.assertEquals(1, div.getMetrics().getCalls());
+            Assert.assertEquals(6, div.getMetrics().getKeys());
+            Assert.assertEquals(1, div.getMetrics().getBatches());
+
+            Assert.assertEquals("7BAA6C97BDA36BFF24445AFFA0B58CF6",
+                    BytesUtils.bytesToHex(Arrays.copyOfRange(record, 18, 34)).replace(" ", ""));
+            for (int keyIndex = 0; keyIndex < 6; keyIndex++) {
+                Assert.assertArrayEquals(div.diversify(key, keyIndex, uid, null, null),
+                        Arrays.copyOfRange(record, 2 + keyIndex * 16, 2 + (keyIndex + 1) * 16));
+            }
+            Assert.assertEquals(1, div.getMetrics().getBatches());
+        }
+    }
+
+    /**
+     * AN10922: several application master keys, the entries of a key need not follow each other
+     */
+    @Test
+    public void diversify_MasterKeys() throws Exception {
+        for (AbstractDiversification.Standard standard : new AbstractDiversification.Standard[]{
+                AbstractDiversification.Standard.AN10922_AES128, AbstractDiversification.Standard.AN10922_AES192}) {
+            int keyLength = AbstractDiversification.Standard.AN10922_AES128.equals(standard) ? 16 : 24;
+            DiversificationStandard div = new DiversificationStandard(standard, KeyContextCache.DEFAULT_MAXIMUM_SIZE,
+                    new JavaBlockCipherProvider());
+            byte[][] masterKeys = new byte[3][keyLength];
+            KeyHandle[] handles = new KeyHandle[masterKeys.length];
+            KeySet keys = new KeySet();
+            for (int i = 0; i < masterKeys.length; i++) {
+                Arrays.fill(masterKeys[i], (byte) (0x11 * (i + 1)));
+                handles[i] = div.open(masterKeys[i], 0, keyLength);
+            }
+            keys.add(handles[0], 0).add(handles[1], 0).add(handles[2], 0).add(handles[0], 0);
+
+            byte[] uid = BytesUtils.hexToBytes("04782E21801D80");
+            DiversificationPlan plan = div.compile(uid.length, AID, SEED);
+            byte[] record = new byte[keys.getRecordLength(plan)];
+            Assert.assertEquals(4 * keyLength, div.diversify(plan, keys, uid, 0, record, 0));
+
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] expected = div.diversify(masterKeys[i % masterKeys.length], 0, uid, AID, SEED);
+                Assert.assertArrayEquals(standard + " entry " + i, expected,
+                        Arrays.copyOfRange(record, i * keyLength, (i + 1) * keyLength));
+            }
+            for (KeyHandle handle : handles) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * The record must fit in the output buffer
+     */
+    @Test(expected = DiversificationException.class)
+    public void diversify_OutputTooSmall() throws Exception {
+        DiversificationStandard div = new DiversificationStandard(AbstractDiversification.Standard.AN0148_DES,
+                KeyContextCache.DEFAULT_MAXIMUM_SIZE, new JavaBlockCipherProvider());
+        byte[] key = BytesUtils.hexToBytes("0123456789ABCDEF");
+
+        try (KeyHandle handle = div.open(key, 0, key.length)) {
+            KeySet keys = new KeySet().add(handle, 1).add(handle, 2);
+            div.diversify(div.compile(7, new byte[0], new byte[0]), keys, new byte[7], 0, new byte[15], 0);
+        }
+    }
+}
@@ -1,13 +1,25 @@
 package fr.redfroggy.sample.derivation.utils;
 
+import com.google.common.primitives.Bytes;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
 @RunWith(MockitoJUnitRunner.class)
 public class BytesUtilsTest {
 
+    /**
+     * Number of random cases of the property tests
+     */
+    private static final int CASES = 2000;
+
+    private final Random random = new Random(0x5EED);
+
     @Test
     public void bytesToHex_Byte() {
         String res = BytesUtils.bytesToHex((byte) 0x10);
@@ -46,6 +58,11 @@ public class BytesUtilsTest {
         Assert.assertArrayEquals(expected, res);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void hexToBytes_OddDigits() {
+        BytesUtils.hexToBytes("10:11:1");
+    }
+
     @Test
     public void xor() {
         byte[] expected = new byte[] { (byte) 0x02, (byte) 0x5c, (byte) 0x02, (byte) 0x5c };
@@ -54,4 +71,167 @@ public class BytesUtilsTest {
         byte[] res = BytesUtils.xor(data1, data2);
         Assert.assertArrayEquals(expected, res);
     }
+
+    @Test
+    public void xor_Range() {
+        byte[] data1 = new byte[] { (byte) 0xFF, (byte) 0x10, (byte) 0x11, (byte) 0x12, (byte) 0x4d };
+        byte[] data2 = new byte[] { (byte) 0x12, (byte) 0x4d, (byte) 0x10, (byte) 0x11 };
+        byte[] res = new byte[] { (byte) 0xAA, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xAA };
+        BytesUtils.xor(data1, 1, data2, 0, res, 1, 4);
+        Assert.assertArrayEquals(new byte[] { (byte) 0xAA, (byte) 0x02, (byte) 0x5c, (byte) 0x02, (byte) 0x5c, (byte) 0xAA }, res);
+    }
+
+    @Test
+    public void xor_Random() {
+        for (int n = 0; n < CASES; n++) {
+            int length = random.nextInt(40);
+            byte[] data1 = randomBytes(length + 3);
+            byte[] data2 = randomBytes(length + 5);
+            byte[] expected = new byte[length];
+            for (int i = 0; i < length; i++) {
+                expected[i] = (byte) (data1[3 + i] ^ data2[5 + i]);
+            }
+
+            byte[] res = randomBytes(length + 2);
+            byte[] before = res.clone();
+            BytesUtils.xor(data1, 3, data2, 5, res, 1, length);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(res, 1, 1 + length));
+            Assert.assertEquals(before[0], res[0]);
+            Assert.assertEquals(before[length + 1], res[length + 1]);
+
+            // In place
+            BytesUtils.xor(data1, 3, data2, 5, data1, 3, length);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(data1, 3, 3 + length));
+        }
+    }
+
+    @Test
+    public void shiftLeft() {
+        byte[] res = BytesUtils.shiftLeft(new byte[] { (byte) 0x80, (byte) 0x81, (byte) 0x7F });
+        Assert.assertArrayEquals(new byte[] { (byte) 0x01, (byte) 0x02, (byte) 0xFE }, res);
+    }
+
+    @Test
+    public void shiftLeft_Random() {
+        for (int n = 0; n < CASES; n++) {
+            int length = 1 + random.nextInt(40);
+            byte[] data = randomBytes(length + 2);
+            byte[] value = Arrays.copyOfRange(data, 2, 2 + length);
+            BigInteger shifted = new BigInteger(1, value).shiftLeft(1);
+            byte[] expected = toBytes(shifted, length);
+
+            Assert.assertArrayEquals(expected, BytesUtils.shiftLeft(value));
+            Assert.assertArrayEquals(expected, referenceShiftLeft(value));
+
+            byte[] res = new byte[length + 1];
+            int carry = BytesUtils.shiftLeft(data, 2, length, res, 1);
+            Assert.assertEquals(shifted.testBit(8 * length) ? 1 : 0, carry);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(res, 1, 1 + length));
+
+            // In place
+            Assert.assertEquals(carry, BytesUtils.shiftLeft(data, 2, length, data, 2));
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(data, 2, 2 + length));
+        }
+    }
+
+    @Test
+    public void pad() {
+        byte[] data = new byte[] { (byte) 0x10, (byte) 0x11, (byte) 0x12 };
+        Assert.assertArrayEquals(new byte[] { (byte) 0x10, (byte) 0x11, (byte) 0x12, 0, 0, 0, 0, 0 }, BytesUtils.pad(data, 8));
+        Assert.assertSame(data, BytesUtils.pad(data, 3));
+        Assert.assertSame(data, BytesUtils.pad(data, 0));
+    }
+
+    @Test
+    public void pad_Random() {
+        for (int n = 0; n < CASES; n++) {
+            int length = random.nextInt(40);
+            int multiple = random.nextInt(17);
+            byte[] data = randomBytes(length);
+            byte[] expected = referencePad(data, multiple);
+
+            Assert.assertArrayEquals(expected, BytesUtils.pad(data, multiple));
+            Assert.assertEquals(expected.length, BytesUtils.paddedLength(length, multiple));
+
+            byte[] buffer = randomBytes(length + 20);
+            System.arraycopy(data, 0, buffer, 3, length);
+            byte after = buffer[3 + expected.length];
+            Assert.assertEquals(expected.length, BytesUtils.pad(buffer, 3, length, multiple));
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(buffer, 3, 3 + expected.length));
+            Assert.assertEquals(after, buffer[3 + expected.length]);
+        }
+    }
+
+    @Test
+    public void reverseBytes() {
+        byte[] res = BytesUtils.reverseBytes(new byte[] { (byte) 0x10, (byte) 0x11, (byte) 0x12 });
+        Assert.assertArrayEquals(new byte[] { (byte) 0x12, (byte) 0x11, (byte) 0x10 }, res);
+    }
+
+    @Test
+    public void reverse_Random() {
+        for (int n = 0; n < CASES; n++) {
+            int length = random.nextInt(40);
+            byte[] data = randomBytes(length + 4);
+            byte[] expected = new byte[length];
+            for (int i = 0; i < length; i++) {
+                expected[i] = data[4 + length - 1 - i];
+            }
+
+            Assert.assertArrayEquals(expected, BytesUtils.reverseBytes(Arrays.copyOfRange(data, 4, 4 + length)));
+
+            byte[] res = new byte[length + 1];
+            BytesUtils.reverse(data, 4, length, res, 1);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(res, 1, 1 + length));
+
+            // In place
+            BytesUtils.reverse(data, 4, length, data, 4);
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(data, 4, 4 + length));
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Big endian value on a fixed number of bytes, higher bits dropped
+     */
+    private static byte[] toBytes(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        byte[] res = new byte[length];
+        int copied = Math.min(length, bytes.length);
+        System.arraycopy(bytes, bytes.length - copied, res, length - copied, copied);
+        return res;
+    }
+
+    /**
+     * Previous string based implementation of {@link BytesUtils#shiftLeft(byte[])}
+     */
+    private static byte[] referenceShiftLeft(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            String s = Integer.toBinaryString(0x100 + b);
+            sb.append(s.subSequence(s.length() - 8, s.length()));
+        }
+        String s = sb.toString().substring(1) + "0";
+        byte[] a = new byte[s.length() / 8];
+        for (int index = 0, i = 0; i < s.length(); index++, i += 8) {
+            a[index] = (byte) Integer.parseInt(s.substring(i, i + 8), 2);
+        }
+        return a;
+    }
+
+    /**
+     * Previous implementation of {@link BytesUtils#pad(byte[], int)}
+     */
+    private static byte[] referencePad(byte[] data, int multiple) {
+        if (multiple <= 0 || data.length % multiple == 0) {
+            return data;
+        }
+        int padding = data.length < multiple ? multiple - data.length : ((data.length / multiple + 1) * multiple) - data.length;
+        return Bytes.concat(data, new byte[padding]);
+    }
 }
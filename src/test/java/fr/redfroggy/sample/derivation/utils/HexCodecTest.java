@@ -0,0 +1,122 @@
+package fr.redfroggy.sample.derivation.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HexCodecTest {
+
+    private static final byte[] DATA = new byte[] { (byte) 0x04, (byte) 0x78, (byte) 0x2E, (byte) 0xA0, (byte) 0xFF };
+
+    @Test
+    public void digit() {
+        Assert.assertEquals(0, HexCodec.digit('0'));
+        Assert.assertEquals(10, HexCodec.digit('a'));
+        Assert.assertEquals(15, HexCodec.digit('F'));
+        Assert.assertEquals(-1, HexCodec.digit('G'));
+        Assert.assertEquals(-1, HexCodec.digit(':'));
+        Assert.assertEquals(-1, HexCodec.digit(-1));
+        Assert.assertEquals(-1, HexCodec.digit('\u0663'));
+    }
+
+    @Test
+    public void encode_Bytes() {
+        byte[] output = new byte[12];
+        Assert.assertEquals(10, HexCodec.encode(DATA, 0, DATA.length, output, 1));
+        Assert.assertEquals("\u000004782EA0FF\u0000", new String(output, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void encode_Streaming() {
+        ByteBuffer data = ByteBuffer.wrap(DATA);
+        ByteBuffer output = ByteBuffer.allocate(5);
+        StringBuilder text = new StringBuilder();
+        while (data.hasRemaining()) {
+            output.clear();
+            Assert.assertEquals(Math.min(2, data.remaining()), HexCodec.encode(data, output));
+            output.flip();
+            text.append(StandardCharsets.US_ASCII.decode(output));
+        }
+        Assert.assertEquals("04782EA0FF", text.toString());
+    }
+
+    @Test
+    public void encode_Separators() {
+        CharBuffer output = CharBuffer.allocate(HexCodec.encodedLength(DATA.length));
+        Assert.assertEquals(DATA.length, HexCodec.encode(ByteBuffer.wrap(DATA), output, ':', 2));
+        Assert.assertEquals("04:78\n2E:A0\nFF", new String(output.array()));
+
+        // Stops when the next byte does not fit
+        output = CharBuffer.allocate(7);
+        ByteBuffer data = ByteBuffer.wrap(DATA);
+        Assert.assertEquals(2, HexCodec.encode(data, output, ' ', 0));
+        Assert.assertEquals(2, data.position());
+        Assert.assertEquals(5, output.position());
+    }
+
+    @Test
+    public void decode_Separators() {
+        ByteBuffer output = ByteBuffer.allocate(8);
+        Assert.assertEquals(5, HexCodec.decode(CharBuffer.wrap("04:78 2e-A0\nfF"), output));
+        Assert.assertArrayEquals(DATA, Arrays.copyOf(output.array(), output.position()));
+    }
+
+    @Test
+    public void decode_Streaming() {
+        ByteBuffer input = ByteBuffer.wrap("04:7".getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer output = ByteBuffer.allocate(8);
+
+        // The unpaired digit is left for the next call
+        Assert.assertEquals(1, HexCodec.decode(input, output));
+        Assert.assertEquals(3, input.position());
+
+        ByteBuffer next = ByteBuffer.allocate(16);
+        next.put(input).put("8 2EA0FF".getBytes(StandardCharsets.US_ASCII)).flip();
+        Assert.assertEquals(4, HexCodec.decode(next, output));
+        Assert.assertFalse(next.hasRemaining());
+        Assert.assertArrayEquals(DATA, Arrays.copyOf(output.array(), output.position()));
+    }
+
+    @Test
+    public void decode_OutputFull() {
+        CharBuffer input = CharBuffer.wrap("04782EA0FF");
+        ByteBuffer output = ByteBuffer.allocate(2);
+        Assert.assertEquals(2, HexCodec.decode(input, output));
+        Assert.assertEquals(4, input.position());
+    }
+
+    /**
+     * Random data, compared with the formatting of the JDK
+     */
+    @Test
+    public void roundTrip_Random() {
+        Random random = new Random(0x4E58);
+        for (int n = 0; n < 500; n++) {
+            byte[] data = new byte[random.nextInt(40)];
+            random.nextBytes(data);
+
+            StringBuilder expected = new StringBuilder();
+            for (byte b : data) {
+                expected.append(String.format("%02X", b));
+            }
+
+            byte[] text = new byte[2 * data.length];
+            HexCodec.encode(data, 0, data.length, text, 0);
+            Assert.assertEquals(expected.toString(), new String(text, StandardCharsets.US_ASCII));
+
+            ByteBuffer decoded = ByteBuffer.allocate(data.length);
+            HexCodec.decode(ByteBuffer.wrap(text), decoded);
+            Assert.assertArrayEquals(data, decoded.array());
+
+            Assert.assertArrayEquals(data, BytesUtils.hexToBytes(BytesUtils.bytesToHex(data, ':', 7)));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package fr.redfroggy.sample.derivation.web;
+
+import com.google.common.primitives.Bytes;
+import fr.redfroggy.sample.derivation.configuration.Settings;
+import fr.redfroggy.sample.derivation.security.KeyRing;
+import fr.redfroggy.sample.derivation.services.AbstractDiversification;
+import fr.redfroggy.sample.derivation.services.AsyncDiversification;
+import fr.redfroggy.sample.derivation.services.DiversificationCoalescer;
+import fr.redfroggy.sample.derivation.services.DiversificationRegistry;
+import fr.redfroggy.sample.derivation.services.DiversificationStandard;
+import fr.redfroggy.sample.derivation.utils.BytesUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Test of the HTTP endpoints
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DiversificationControllerTest {
+
+    private static final String NXP_KEY = "A8DD63A3B89D54B37CA802473FDA9175";
+
+    private DiversificationStandard div;
+
+    private DiversificationRegistry registry;
+
+    private DiversificationController controller;
+
+    private MockMvc mvc;
+
+    @Before
+    public void setUp() throws Exception {
+        Settings settings = new Settings();
+        settings.setKey("00112233445566778899AABBCCDDEEFF");
+        settings.setAid("F54230");
+        settings.setSystemIdentifier("4E585020416275");
+        settings.setMaxBatchSize(4);
+
+        div = new DiversificationStandard(AbstractDiversification.Standard.AN10922_AES128);
+
+        controller = new DiversificationController();
+        controller.settings = settings;
+        controller.div = div;
+        Map<AbstractDiversification.Standard, DiversificationStandard> standards = new EnumMap<>(AbstractDiversification.Standard.class);
+        standards.put(AbstractDiversification.Standard.AN10922_AES128, div);
+        standards.put(AbstractDiversification.Standard.AN0148_DES, new DiversificationStandard(AbstractDiversification.Standard.AN0148_DES));
+        registry = new DiversificationRegistry(standards, new KeyRing(Arrays.asList(
+                BytesUtils.hexToBytes(settings.getKey()), BytesUtils.hexToBytes("0123456789ABCDEF"))), 1);
+        controller.registry = registry;
+        controller.async = new AsyncDiversification(div, 1, 16, AsyncDiversification.RejectionPolicy.ABORT);
+        controller.init();
+        mvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : AES-128 key diversification example
+     */
+    @Test
+    public void diversify_Nominal() throws Exception {
+        mvc.perform(get("/keys/04782E21801D80"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(NXP_KEY));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.close();
+        if (controller.async != null) {
+            controller.async.close();
+        }
+    }
+
+    /**
+     * NXP AN10922 / §2.2.1 : single-card requests diversified by the coalescer
+     */
+    @Test
+    public void diversify_Coalesced() throws Exception {
+        controller.settings.setCoalesceWindow(100);
+        try (DiversificationCoalescer coalescer = new DiversificationCoalescer(div, 1, 8, 100)) {
+            controller.coalescer = coalescer;
+            mvc.perform(get("/keys/04782E21801D80"))
+                    .andExpect(status().isOk())
+                    .andExpect(content().string(NXP_KEY));
+            mvc.perform(get("/keys/04782E21801D").param("keyIndex", "1"))
+                    .andExpect(status().isOk());
+            Assert.assertEquals(2, div.getMetrics().getBatches());
+        }
+    }
+
+    /**
+     * HID AN1048 / §5.1. Example: Single DES, with the second key profile of the registry
+     */
+    @Test
+    public void diversify_Registry() throws Exception {
+        mvc.perform(get("/keys/045E75A9C12580").param("standard", "AN0148_DES").param("profile", "1").param("keyIndex", "1"))
+                .andExpect(status().isOk())
+                .andExpect(content().string("1A945225B3FAA445"));
+        mvc.perform(get("/keys/04782E21801D80").param("profile", "0"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(NXP_KEY));
+        mvc.perform(get("/keys/04782E21801D80").param("standard", "AN0148_AES"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void diversifyBatch_Binary() throws Exception {
+        byte[] uid1 = BytesUtils.hexToBytes("04782E21801D80");
+        byte[] uid2 = BytesUtils.hexToBytes("04112233445566");
+        byte[] expected = Bytes.concat(BytesUtils.hexToBytes(NXP_KEY),
+                div.diversify(BytesUtils.hexToBytes("00112233445566778899AABBCCDDEEFF"), 0, uid2,
+                        BytesUtils.hexToBytes("F54230"), BytesUtils.hexToBytes("4E585020416275")));
+
+        MvcResult result = mvc.perform(post("/keys").contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .accept(MediaType.APPLICATION_OCTET_STREAM).content(Bytes.concat(uid1, uid2)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        byte[] response = mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray();
+
+        Assert.assertArrayEquals(expected, response);
+    }
+
+    @Test
+    public void diversifyBatch_Hex() throws Exception {
+        MvcResult result = mvc.perform(post("/keys").contentType(MediaType.TEXT_PLAIN).accept(MediaType.TEXT_PLAIN)
+                .content("04:78:2E:21:80:1D:80\r\n\n04782e21801d80".getBytes(StandardCharsets.US_ASCII)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().string(NXP_KEY + "\n" + NXP_KEY + "\n"));
+    }
+
+    /**
+     * Without the asynchronous facade, the batch is diversified in the request thread
+     */
+    @Test
+    public void diversifyBatch_Synchronous() throws Exception {
+        controller.async.close();
+        controller.async = null;
+        MvcResult result = mvc.perform(post("/keys").contentType(MediaType.TEXT_PLAIN).accept(MediaType.TEXT_PLAIN)
+                .content("04782E21801D80".getBytes(StandardCharsets.US_ASCII)))
+                .andReturn();
+        mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().string(NXP_KEY + "\n"));
+    }
+
+    @Test
+    public void diversifyBatch_InvalidLength() throws Exception {
+        mvc.perform(post("/keys").contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .accept(MediaType.APPLICATION_OCTET_STREAM).content(new byte[10]))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void diversifyBatch_TooLarge() throws Exception {
+        mvc.perform(post("/keys").contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .accept(MediaType.APPLICATION_OCTET_STREAM).content(new byte[5 * 7]))
+                .andExpect(status().isBadRequest());
+    }
+}
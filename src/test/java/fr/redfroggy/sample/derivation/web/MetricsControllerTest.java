@@ -0,0 +1,42 @@
+package fr.redfroggy.sample.derivation.web;
+
+import fr.redfroggy.sample.derivation.metrics.DiversificationMetrics;
+import fr.redfroggy.sample.derivation.metrics.MetricsRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import javax.management.MBeanServerFactory;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Test of the metrics endpoint
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MetricsControllerTest {
+
+    @Test
+    public void getMetrics_Nominal() throws Exception {
+        DiversificationMetrics metrics = new DiversificationMetrics("AN0148_AES");
+        metrics.recordCall(metrics.start());
+        metrics.recordBatch(64);
+
+        MetricsController controller = new MetricsController();
+        controller.registry = new MetricsRegistry(MBeanServerFactory.newMBeanServer());
+        controller.registry.register(metrics);
+        MockMvc mvc = MockMvcBuilders.standaloneSetup(controller).build();
+
+        mvc.perform(get("/metrics"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("\"name\":\"AN0148_AES\"")))
+                .andExpect(content().string(containsString("\"calls\":2")))
+                .andExpect(content().string(containsString("\"keys\":65")))
+                .andExpect(content().string(containsString("\"batchSizeMax\":64")));
+    }
+}